@@ -0,0 +1,168 @@
+;;
+;; ## Console pipeline benchmark
+;;
+;; Here we measure the throughput of the console channel pipeline against the
+;; pipeline it replaced, in which every event type tapped the mult separately and
+;; ran its own regexes against every line.
+;;
+;; Both pipelines are fed the same mix of console lines. We also check that the
+;; single pass classifier agrees with the original patterns on every line, so the
+;; numbers compare like with like.
+;;
+;; Run with:
+;;
+;;     lein bench
+;;
+;; The JMH benchmarks in bench/java run the same pipeline over a whole console
+;; transcript, see run-pipeline below.
+(ns uk.org.il2ssd.bench.channel
+  (:require [clojure.core.async :refer [<!! >!! chan close! filter< map> mult
+                                        pipe remove< tap thread]]
+            [uk.org.il2ssd.channel :as channel]))
+
+(def sample-lines
+  "### sample-lines
+   This is a mix of console output in roughly the proportions seen on a busy
+   server: mostly chat and user list lines, with the occasional mission, pilot
+   and ban list line."
+  ["Chat: Pilot: \thello all\n"
+   "Chat: --- Pilot has a new plane\n"
+   " 1      Pilot                 25     3      (1)Red       Bf-109G-6\n"
+   " 2      Another               30     0      (2)Blue      Spitfire\n"
+   " 1: Pilot [3]192.168.1.10:21000\n"
+   "Mission: Net/dogfight/test.mis is Playing\n"
+   "socket channel '3', ip 192.168.1.10:21000, Pilot, is complete created\n"
+   "socketConnection with 192.168.1.10:21000 on channel 3 lost.  Reason: \n"
+   "  SeparateEStart 0\n"
+   "  BannedPilot\n"
+   "ERROR mission: Net/dogfight/missing.mis NOT loaded"
+   "<consoleN><12>"
+   "Server: Mission will end in 5 minutes\n"
+   "\n"])
+
+(defn legacy-pipeline
+  "### legacy-pipeline
+   This zero argument function builds the pipeline as it was before lines were
+   classified in a single pass, with one tap and one set of regexes per event
+   type."
+  []
+  (let [in-channel (chan 10)
+        mult-channel (mult (remove< #(re-matches #"<consoleN><\d++>" %)
+                                    in-channel))
+        event-channel (chan 10)
+        print-channel (tap mult-channel (chan 10))
+        filter-pipe (fn [type & regexes]
+                      (pipe (filter< (fn [x] (some #(re-matches % x) regexes))
+                                     (tap mult-channel (chan 10)))
+                            (map> #(assoc {} :type type :value %) event-channel)
+                            false))]
+    (filter-pipe :diff channel/diff-pattern)
+    (filter-pipe :mis channel/mis-pattern)
+    (filter-pipe :pilot channel/pilot-join-pattern channel/pilot-lost-pattern)
+    (filter-pipe :ban channel/ban-pattern)
+    (filter-pipe :user channel/user-pattern)
+    (filter-pipe :host channel/host-pattern)
+    (filter-pipe :error channel/error-pattern)
+    {:in-channel    in-channel
+     :event-channel event-channel
+     :print-channel print-channel}))
+
+(defn legacy-types
+  "### legacy-types
+   This one argument function returns the event types which the legacy pipeline
+   emits for the supplied line when the ban list was not just requested."
+  [line]
+  (when-not (re-matches channel/prompt-pattern line)
+    (for [[type patterns] [[:diff [channel/diff-pattern]]
+                           [:mis [channel/mis-pattern]]
+                           [:pilot [channel/pilot-join-pattern
+                                    channel/pilot-lost-pattern]]
+                           [:ban [channel/ban-pattern]]
+                           [:user [channel/user-pattern]]
+                           [:host [channel/host-pattern]]
+                           [:error [channel/error-pattern]]]
+          :when (some #(re-matches % line) patterns)]
+      type)))
+
+(defn check-classifier
+  "### check-classifier
+   This zero argument function checks that the classifier finds the same event
+   as the legacy patterns for every sample line. Difficulty lines also match the
+   ban list pattern, so there the classifier must pick the first of the two."
+  []
+  (doseq [line sample-lines
+          :let [expected (first (legacy-types line))
+                actual (when-not (channel/prompt? line)
+                         (channel/classify line "difficulty"))]]
+    (when-not (= expected actual)
+      (throw (IllegalStateException.
+               (str "Classifier disagrees on " (pr-str line) ": expected "
+                    expected ", got " actual))))))
+
+(defn run-pipeline
+  "### run-pipeline
+   This two argument function pushes the supplied console lines through the
+   supplied pipeline, draining its event and print channels as a console
+   session would. The elapsed time in nanoseconds is returned."
+  [{:keys [in-channel event-channel print-channel]} lines]
+  (let [printed (count (remove #(re-matches channel/prompt-pattern %) lines))
+        start (System/nanoTime)
+        events (thread (loop [] (when (<!! event-channel) (recur))))
+        prints (thread (dotimes [_ printed] (<!! print-channel)))]
+    (doseq [line lines]
+      (>!! in-channel line))
+    (<!! prints)
+    (let [elapsed (- (System/nanoTime) start)]
+      (close! in-channel)
+      (close! event-channel)
+      (<!! events)
+      elapsed)))
+
+(defn run-classifier
+  "### run-classifier
+   This two argument function applies the supplied classifying function to the
+   supplied number of sample lines on the calling thread. The elapsed time in
+   nanoseconds is returned."
+  [f n]
+  (let [lines (object-array (take n (cycle sample-lines)))
+        start (System/nanoTime)]
+    (dotimes [i n]
+      (f (aget lines i)))
+    (- (System/nanoTime) start)))
+
+(defn lines-per-second
+  [n nanos]
+  (long (/ n (/ nanos 1e9))))
+
+(defn report
+  "### report
+   This three argument function runs the supplied benchmark function a few times
+   to warm up, then prints the best throughput of the measured runs."
+  [label n f]
+  (dotimes [_ 3] (f))
+  (let [best (apply min (repeatedly 5 f))]
+    (println (format "%-24s %,12d lines/s" label (lines-per-second n best)))))
+
+(def lossless
+  "### lossless
+   These consumer settings make the print consumer lossless, as it was in the
+   legacy pipeline, so that every line is printed in both runs."
+  {:print {:size 10 :policy :block}})
+
+(defn -main
+  [& args]
+  (let [n (if (seq args) (Long/parseLong (first args)) 200000)]
+    (check-classifier)
+    (report "legacy classify" n
+            #(run-classifier (comp doall legacy-types) n))
+    (report "single pass classify" n
+            #(run-classifier (fn [line]
+                               (when-not (channel/prompt? line)
+                                 (channel/classify line nil)))
+                             n))
+    (report "legacy pipeline" n
+            #(run-pipeline (legacy-pipeline) (take n (cycle sample-lines))))
+    (report "single pass pipeline" n
+            #(run-pipeline (channel/new-pipeline lossless)
+                           (take n (cycle sample-lines))))
+    (shutdown-agents)))
@@ -0,0 +1,176 @@
+;;
+;; ## Load harness
+;;
+;; Here we find out how much console output il2ssd can keep up with. A mock server,
+;; see the mock namespace, is started with the given number of pilots, and a
+;; headless session connects to it just as the daemon does. The mock then replays a
+;; generated transcript of a server with that many pilots at a rate which doubles
+;; at each step, while the harness polls the user list once a second as the pilots
+;; tab does.
+;;
+;; For each step we report:
+;;
+;; * the number of lines per second the mock managed to send, which falls short of
+;;   the offered rate once il2ssd pushes back on the socket;
+;; * the number of lines per second the session's pipeline classified;
+;; * the number of lines the console print consumer dropped;
+;; * the median and largest round trip of the user list polls.
+;;
+;; il2ssd is saturated at the first step where it processes less than nine tenths
+;; of the offered rate, or where a user list poll takes longer than a second. The
+;; results are also written as JSON to target/load-result.json.
+;;
+;; Run with:
+;;
+;;     lein with-profile +bench run -m uk.org.il2ssd.bench.load [pilots] [step-seconds]
+(ns uk.org.il2ssd.bench.load
+  (:require [clojure.core.async :refer [<!! thread]]
+            [clojure.java.io :as io]
+            [uk.org.il2ssd.api :as api]
+            [uk.org.il2ssd.bench.mock :as mock]
+            [uk.org.il2ssd.bench.transcript :as transcript]
+            [uk.org.il2ssd.channel :as channel]
+            [uk.org.il2ssd.daemon :as daemon]
+            [uk.org.il2ssd.server :as server]
+            [uk.org.il2ssd.session :as session]
+            [uk.org.il2ssd.state :as state])
+  (:import (java.util.concurrent.atomic AtomicLong)))
+
+(def defaults
+  "### defaults
+   These are the default settings of a load run: the number of simulated
+   pilots, the length of each step in seconds, the offered rate of the first
+   and largest steps in lines per second and the mock server's port."
+  {:pilots     128
+   :step-s     5
+   :first-rate 1000
+   :max-rate   512000
+   :port       21004})
+
+(defn- drain-console
+  "### drain-console
+   This function starts a thread which takes every line from the print-channel
+   of the session in scope, as the console tab would, and counts them in the
+   supplied counter."
+  [^AtomicLong printed]
+  (let [{:keys [print-channel]} (state/channels)]
+    (thread
+      (loop []
+        (when (<!! print-channel)
+          (.incrementAndGet printed)
+          (recur))))))
+
+(defn- poll-users
+  "### poll-users
+   This function polls the user list of the session in scope once a second for
+   the supplied number of seconds, and returns the round trip of each poll in
+   milliseconds. A poll which gets no answer within ten seconds counts as ten
+   seconds."
+  [seconds]
+  (vec (for [_ (range seconds)]
+         (let [start (System/nanoTime)]
+           (deref (server/get-user-details) 10000 nil)
+           (let [millis (/ (- (System/nanoTime) start) 1e6)]
+             (Thread/sleep (long (max 0 (- 1000 millis))))
+             millis)))))
+
+(defn- lines-classified
+  []
+  (.get ^AtomicLong (:lines (:metrics (state/channels)))))
+
+(defn- print-dropped
+  []
+  (get-in (channel/pipeline-stats (state/channels)) [:consumers :print :dropped]))
+
+(defn run-step
+  "### run-step
+   This function offers the supplied rate of console lines from the supplied
+   mock server to the session in scope for the supplied number of seconds, and
+   returns what the session made of them."
+  [mock-server rate seconds ^AtomicLong printed]
+  (let [^AtomicLong sent (:sent mock-server)
+        before [(.get sent) (lines-classified) (.get printed) (print-dropped)]
+        start (System/nanoTime)
+        _ (mock/set-rate mock-server rate)
+        polls (sort (poll-users seconds))
+        elapsed (/ (- (System/nanoTime) start) 1e9)
+        [sent classified printed dropped] (map - [(.get sent) (lines-classified)
+                                                  (.get printed) (print-dropped)]
+                                               before)]
+    {:offered        rate
+     :sent           (long (/ sent elapsed))
+     :classified     (long (/ classified elapsed))
+     :printed        (long (/ printed elapsed))
+     :dropped        dropped
+     :poll-median-ms (nth polls (quot (count polls) 2))
+     :poll-max-ms    (last polls)}))
+
+(defn saturated?
+  "### saturated?
+   This one argument function returns true if the supplied step shows that
+   il2ssd could not keep up."
+  [{:keys [offered classified poll-max-ms]}]
+  (or (< classified (* 0.9 offered))
+      (> poll-max-ms 1000)))
+
+(defn- print-step
+  [{:keys [offered sent classified printed dropped poll-median-ms poll-max-ms]
+    :as step}]
+  (println (format "%,10d %,10d %,10d %,10d %,10d %9.1f %9.1f %s"
+                   offered sent classified printed dropped
+                   (double poll-median-ms) (double poll-max-ms)
+                   (if (saturated? step) "saturated" ""))))
+
+(defn run
+  "### run
+   This function runs the load test with the supplied settings, which are
+   merged over the defaults above, and returns the results of each step along
+   with the highest rate which il2ssd kept up with."
+  [settings]
+  (let [{:keys [pilots step-s first-rate max-rate port] :as settings}
+        (merge defaults settings)
+        mock-server (mock/start {:port port :pilots pilots})
+        session (session/new-session {:cycle-missions (constantly [])
+                                      :dcg-minutes    (constantly "")})
+        printed (AtomicLong.)]
+    (try
+      (state/with-session session
+        (daemon/event-listener)
+        (drain-console printed)
+        (server/connect "127.0.0.1" port)
+        (when-not @(state/connected)
+          (throw (IllegalStateException. "Could not connect to the mock server")))
+        (mock/replay mock-server (transcript/generate 200 1946 pilots) 0)
+        (println (format "%d pilots, %d second steps" pilots step-s))
+        (println (format "%10s %10s %10s %10s %10s %9s %9s"
+                         "offered" "sent" "classified" "printed" "dropped"
+                         "poll-med" "poll-max"))
+        (let [steps (loop [rate first-rate
+                           steps []]
+                      (let [step (run-step mock-server rate step-s printed)
+                            steps (conj steps step)]
+                        (print-step step)
+                        (if (or (saturated? step) (>= rate max-rate))
+                          steps
+                          (recur (* 2 rate) steps))))
+              sustained (reduce max 0 (map :offered (remove saturated? steps)))]
+          (println (format "Sustained %,d lines/s with %d pilots." sustained pilots))
+          {:settings  settings
+           :steps     steps
+           :sustained sustained}))
+      (finally
+        (state/with-session session
+          (daemon/stop))
+        (session/remove-session session)
+        (mock/stop mock-server)))))
+
+(defn -main
+  [& [pilots step-s]]
+  (let [result (run (cond-> {}
+                      pilots (assoc :pilots (Long/parseLong pilots))
+                      step-s (assoc :step-s (Long/parseLong step-s))))
+        file (io/file "target" "load-result.json")]
+    (io/make-parents file)
+    (spit file (api/to-json result))
+    (shutdown-agents)
+    (System/exit 0)))
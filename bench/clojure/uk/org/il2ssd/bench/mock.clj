@@ -0,0 +1,389 @@
+;;
+;; ## Mock IL-2 console server
+;;
+;; Here we define a stand-in for the console of the IL-2 dedicated server, so that
+;; il2ssd can be load and soak tested on any platform. It listens on a TCP port and
+;; speaks the console protocol closely enough for the client:
+;;
+;; * Console text is escaped as the server escapes it, so each line of output ends
+;;   with an escaped newline followed by a real one.
+;; * Every command is answered by its output followed by a `<consoleN><n>` prompt.
+;; * The `server`, `mission`, `host`, `user`, `ban`, `difficulty`, `kick` and `chat`
+;;   commands act on the simulated server state; anything else is reported as an
+;;   unknown command.
+;;
+;; The server simulates any number of pilots. While it runs, pilots score, chat,
+;; leave and are replaced, with a join or leave line sent to every client just as
+;; the real server announces them. The simulation runs at a configurable multiple
+;; of real time.
+;;
+;; A console transcript can also be replayed to every client at a given number of
+;; lines per second, see replay, so that a load harness can drive the client as
+;; hard as it likes. Prompts are left out of a replay, since the client takes each
+;; prompt as the end of a command's response.
+;;
+;; A server is started with:
+;;
+;;     (start {:port 21003 :pilots 128})
+;;
+;; and the simulation and replay can be tuned while it runs.
+(ns uk.org.il2ssd.bench.mock
+  (:require [clojure.string :as string]
+            [uk.org.il2ssd.bench.transcript :as transcript]
+            [uk.org.il2ssd.channel :as channel])
+  (:import (java.io BufferedReader InputStreamReader IOException OutputStream)
+           (java.net InetSocketAddress ServerSocket Socket)
+           (java.nio.charset Charset)
+           (java.util Random)
+           (java.util.concurrent.atomic AtomicLong)
+           (org.apache.commons.lang StringEscapeUtils)))
+
+(def ^Charset utf-8 (Charset/forName "UTF-8"))
+
+(def defaults
+  "### defaults
+   These are the default settings of a mock server. The tick is the interval in
+   milliseconds between changes to the simulated pilots at a speed of 1."
+  {:port    21003
+   :pilots  128
+   :speed   1.0
+   :tick-ms 5000
+   :seed    1946})
+
+;; ### Console output
+
+(defn encode
+  "### encode
+   This one argument function returns the supplied console line as the server
+   sends it: escaped, with a real newline after it."
+  ^bytes [^String line]
+  (.getBytes (str (if (channel/prompt? line)
+                    line
+                    (StringEscapeUtils/escapeJava line))
+                  "\n")
+             utf-8))
+
+(defn- send-lines
+  "### send-lines
+   This function writes the supplied lines to the supplied client in one go, so
+   that the output of a command is never split by other output. A client which
+   can't be written to is closed and forgotten."
+  [server {:keys [^Socket socket ^OutputStream out] :as client} lines]
+  (try (locking out
+         (doseq [line lines]
+           (.write out (encode line)))
+         (.flush out))
+       true
+       (catch IOException _
+         (swap! (:clients server) disj client)
+         (try (.close socket) (catch IOException _ nil))
+         false)))
+
+(defn broadcast
+  "### broadcast
+   This two argument function sends the supplied lines to every client of the
+   supplied server."
+  [server lines]
+  (doseq [client @(:clients server)]
+    (send-lines server client lines)))
+
+;; ### Commands
+
+(defn- unquote-arg
+  [arg]
+  (string/replace (string/trim (str arg)) "\"" ""))
+
+(defn- mission-lines
+  [{:keys [mission playing]}]
+  (cond
+    (nil? mission) ["Mission NOT loaded\n"]
+    playing [(str "Mission: " mission " is Playing\n")]
+    :else [(str "Mission: " mission " is Loaded\n")]))
+
+(defn- lost-line
+  [{:keys [socket ip port]}]
+  (str "socketConnection with " ip ":" port " on channel " socket
+       " lost.  Reason: You have been kicked from the server.\n"))
+
+(defn- kick!
+  "### kick!
+   This function removes the pilots matching pred from the state of the
+   supplied server, and announces to every client that they have left."
+  [server pred]
+  (let [state (:state server)
+        kicked (locking state
+                 (let [kicked (vec (filter pred (:pilots @state)))]
+                   (swap! state update-in [:pilots] #(vec (remove pred %)))
+                   kicked))]
+    (broadcast server (map lost-line kicked))))
+
+(defn respond
+  "### respond
+   This two argument function carries out the supplied console command against
+   the state of the supplied server. It returns the lines of the command's
+   output, not including the prompt."
+  [server ^String command]
+  (let [state (:state server)
+        [verb arg] (string/split (string/trim command) #"\s+" 2)]
+    (case verb
+      "server" ["Type: Local server\n" "Name: il2ssd mock\n"
+                "Description: Load testing stand-in\n"]
+      "mission" (let [[op path begin] (string/split (str arg) #"\s+")]
+                  (case op
+                    "LOAD" (do (swap! state assoc :mission path
+                                      :playing (= begin "BEGIN"))
+                               [])
+                    "BEGIN" (do (swap! state assoc :playing true) [])
+                    "END" (do (swap! state assoc :playing false) [])
+                    "DESTROY" (do (swap! state assoc :mission nil :playing false) [])
+                    (mission-lines @state)))
+      "host" (let [name (unquote-arg arg)]
+               (for [line (transcript/host-list (:pilots @state))
+                     :when (or (string/blank? name)
+                               (.contains ^String line (str ": " name " [")))]
+                 line))
+      "user" (let [name (unquote-arg arg)
+                   [header & lines] (transcript/user-list (:pilots @state))]
+               (cons header
+                     (for [line lines
+                           :when (or (string/blank? name)
+                                     (.contains ^String line (str " " name " ")))]
+                       line)))
+      "ban" (let [[op type value] (string/split (str arg) #"\s+" 3)
+                  value (unquote-arg value)]
+              (case op
+                "ADD" (do (swap! state update-in [:bans] conj value) [])
+                "REM" (do (swap! state update-in [:bans] disj value) [])
+                "CLEAR" (do (swap! state assoc :bans (sorted-set)) [])
+                (for [ban (:bans @state)] (str "  " ban "\n"))))
+      "difficulty" (if-let [[setting value] (when arg (string/split arg #"\s+"))]
+                     (do (swap! state assoc-in [:difficulty setting] value) [])
+                     (for [[setting value] (:difficulty @state)]
+                       (str "  " setting " " value "\n")))
+      "kick" (let [name (unquote-arg arg)]
+               (kick! server #(= name (:name %)))
+               [])
+      "kick#" (let [number (unquote-arg arg)
+                    sockets (set (for [[i pilot] (map-indexed vector (:pilots @state))
+                                       :when (= number (str (inc i)))]
+                                   (:socket pilot)))]
+                (kick! server #(sockets (:socket %)))
+                [])
+      "chat" []
+      [(str "Command not found: " command "\n")])))
+
+;; ### Clients
+
+(defn- serve-client
+  "### serve-client
+   This function answers the commands of the supplied client until it
+   disconnects. Each response ends with a prompt numbered by the number of
+   commands the client has sent."
+  [server {:keys [^Socket socket] :as client}]
+  (let [in (BufferedReader. (InputStreamReader. (.getInputStream socket) utf-8))]
+    (try (loop [n 0]
+           (when-let [command (.readLine in)]
+             (when (send-lines server client
+                               (concat (respond server command)
+                                       [(str "<consoleN><" n ">")]))
+               (recur (inc n)))))
+         (catch IOException _ nil)
+         (finally
+           (swap! (:clients server) disj client)
+           (try (.close socket) (catch IOException _ nil))))))
+
+(defn- accept-loop
+  "### accept-loop
+   This function accepts clients of the supplied server until its socket is
+   closed, answering each on its own thread."
+  [{:keys [^ServerSocket listener clients] :as server}]
+  (try (loop []
+         (let [socket (.accept listener)
+               client {:socket socket
+                       :out    (.getOutputStream socket)}]
+           (.setTcpNoDelay socket true)
+           (swap! clients conj client)
+           (doto (Thread. ^Runnable #(serve-client server client) "mock-client")
+             (.setDaemon true)
+             (.start))
+           (recur)))
+       (catch IOException _ nil)))
+
+;; ### Simulation
+
+(defn- tick
+  "### tick
+   This function moves the simulated pilots of the supplied server on by one
+   tick: some score, some chat, and now and then one leaves and another takes
+   the free slot. The join and leave lines and the chat are sent to every
+   client."
+  [{:keys [state ^Random random] :as server}]
+  (let [lines (locking state
+                (let [{:keys [pilots next-socket]} @state
+                      n (count pilots)
+                      scored (mapv #(if (< (.nextInt random 10) 3)
+                                      (update-in % [:score] + (.nextInt random 5))
+                                      %)
+                                   pilots)
+                      leaving (when (and (pos? n) (zero? (.nextInt random 8)))
+                                (nth scored (.nextInt random n)))
+                      joining (when leaving
+                                (transcript/new-pilot random next-socket))]
+                  (swap! state assoc
+                         :pilots (cond-> (vec (remove #{leaving} scored))
+                                   joining (conj joining))
+                         :next-socket (inc next-socket))
+                  (concat
+                    (for [_ (range (if (pos? n) (.nextInt random 4) 0))]
+                      (str "Chat: " (:name (nth scored (.nextInt random n)))
+                           ": \tcheck six\n"))
+                    (when leaving
+                      [(lost-line leaving)])
+                    (when-let [{:keys [socket ip port name]} joining]
+                      [(str "socket channel '" socket "', ip " ip ":" port ", "
+                            name ", is complete created\n")]))))]
+    (broadcast server lines)))
+
+(defn- simulate-loop
+  "### simulate-loop
+   This function ticks the simulation of the supplied server at its current
+   speed until the server is stopped."
+  [{:keys [running settings] :as server}]
+  (while @running
+    (let [{:keys [speed tick-ms]} @settings]
+      (Thread/sleep (long (max 1 (/ tick-ms speed))))
+      (when @running
+        (tick server)))))
+
+(defn set-speed
+  "### set-speed
+   This two argument function sets the multiple of real time at which the
+   supplied server's pilots are simulated and a transcript is replayed."
+  [server speed]
+  (swap! (:settings server) assoc :speed (double speed)))
+
+;; ### Replay
+
+(defn replay
+  "### replay
+   This three argument function replays the supplied console lines to every
+   client of the supplied server, at the supplied number of lines per second of
+   real time multiplied by the server's speed. The lines are repeated until the
+   replay is stopped. Any replay already running is stopped first.
+
+   A client which can't keep up holds the replay back, and the replay never
+   runs more than a second's worth of lines behind, so the number of lines
+   actually sent, counted in the server's sent counter, shows what the clients
+   could take."
+  [{:keys [replaying settings running ^AtomicLong sent] :as server} lines rate]
+  (let [lines (vec (remove channel/prompt? lines))
+        size (count lines)
+        run (Object.)]
+    (reset! replaying {:run run :rate (double rate)})
+    (when (pos? size)
+      (doto (Thread.
+              ^Runnable
+              (fn []
+                (loop [last (System/nanoTime)
+                       budget 0.0
+                       index 0]
+                  (when (and @running (identical? run (:run @replaying)))
+                    (let [now (System/nanoTime)
+                          per-second (* (:rate @replaying) (:speed @settings))
+                          budget (min per-second
+                                      (+ budget (* (/ (- now last) 1e9) per-second)))
+                          batch (long (min 512 budget))]
+                      (if (pos? batch)
+                        (do (broadcast server (for [i (range index (+ index batch))]
+                                                (nth lines (mod i size))))
+                            (.addAndGet sent batch)
+                            (recur now (- budget batch) (mod (+ index batch) size)))
+                        (do (Thread/sleep 1)
+                            (recur now budget index)))))))
+              "mock-replay")
+        (.setDaemon true)
+        (.start)))
+    server))
+
+(defn set-rate
+  "### set-rate
+   This two argument function changes the rate of the running replay of the
+   supplied server, in lines per second of real time."
+  [{:keys [replaying] :as server} rate]
+  (swap! replaying #(when % (assoc % :rate (double rate)))))
+
+(defn stop-replay
+  "### stop-replay
+   This one argument function stops the replay of the supplied server."
+  [server]
+  (reset! (:replaying server) nil))
+
+;; ### Server
+
+(defn start
+  "### start
+   This function starts a mock server with the supplied settings, which are
+   merged over the defaults above, and returns it. The simulation of its pilots
+   starts straight away."
+  [settings]
+  (let [{:keys [port pilots seed] :as settings} (merge defaults settings)
+        random (Random. seed)
+        listener (doto (ServerSocket.)
+                   (.setReuseAddress true)
+                   (.bind (InetSocketAddress. (int port))))
+        server {:listener  listener
+                :random    random
+                :settings  (atom settings)
+                :running   (atom true)
+                :replaying (atom nil)
+                :clients   (atom #{})
+                :sent      (AtomicLong.)
+                :state     (atom {:pilots      (vec (for [socket (range pilots)]
+                                                      (transcript/new-pilot
+                                                        random (+ socket 10))))
+                                  :next-socket (+ pilots 10)
+                                  :mission     nil
+                                  :playing     false
+                                  :bans        (sorted-set "BannedPilot")
+                                  :difficulty  (into (sorted-map)
+                                                     (for [setting transcript/difficulty-settings]
+                                                       [setting "0"]))})}]
+    (doseq [[f name] [[#(accept-loop server) "mock-accept"]
+                      [#(simulate-loop server) "mock-simulation"]]]
+      (doto (Thread. ^Runnable f ^String name)
+        (.setDaemon true)
+        (.start)))
+    server))
+
+(defn stop
+  "### stop
+   This one argument function stops the supplied server and disconnects its
+   clients."
+  [{:keys [^ServerSocket listener running clients] :as server}]
+  (reset! running false)
+  (stop-replay server)
+  (try (.close listener) (catch IOException _ nil))
+  (doseq [{:keys [^Socket socket]} @clients]
+    (try (.close socket) (catch IOException _ nil)))
+  (reset! clients #{}))
+
+(defn -main
+  "### -main
+   This function runs a mock server until the process is stopped. The port,
+   number of pilots and speed may be given as arguments, e.g.
+
+       lein with-profile +bench run -m uk.org.il2ssd.bench.mock 21003 128 1
+
+   If the il2ssd.transcript system property names a recorded transcript, it is
+   replayed at the number of lines per second given by the il2ssd.replay-rate
+   system property, 10 by default, which is about the rate of a busy server."
+  [& [port pilots speed]]
+  (let [server (start (cond-> {}
+                        port (assoc :port (Long/parseLong port))
+                        pilots (assoc :pilots (Long/parseLong pilots))
+                        speed (assoc :speed (Double/parseDouble speed))))]
+    (when (System/getProperty "il2ssd.transcript")
+      (replay server (transcript/transcript)
+              (Double/parseDouble (System/getProperty "il2ssd.replay-rate" "10"))))
+    (println "Mock IL-2 server listening on port" (.getLocalPort ^ServerSocket (:listener server)))
+    @(promise)))
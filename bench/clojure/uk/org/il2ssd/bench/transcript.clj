@@ -0,0 +1,189 @@
+;;
+;; ## Console transcripts
+;;
+;; Here we provide the console transcript which the JMH benchmarks are run over.
+;;
+;; A recorded transcript can be used by giving its path in the il2ssd.transcript
+;; system property. It should hold the console output one line per line, as it is
+;; printed to the console tab or by the headless daemon. Otherwise a transcript of
+;; a busy server is generated: two hours of 32 pilots flying a dogfight server, with
+;; the user list polled every few seconds, pilots coming and going, chat, the odd
+;; mission change and the difficulty settings and ban list being listed now and
+;; then. The generator is seeded, so every run sees the same lines.
+(ns uk.org.il2ssd.bench.transcript
+  (:require [clojure.java.io :as io]
+            [uk.org.il2ssd.channel :as channel])
+  (:import (java.util Random)))
+
+(def pilot-count
+  "### pilot-count
+   This is the number of pilots connected to the generated server."
+  32)
+
+(def ticks
+  "### ticks
+   This is the number of user list polls in the generated transcript, one every
+   five seconds for two hours."
+  1440)
+
+(def difficulty-settings
+  ["SeparateEStart" "ComplexEManagement" "EngineOverheat" "TorqueGyroEffects"
+   "FlutterEffect" "WindTurbulence" "StallSpins" "Vulnerability"
+   "BlackoutsRedouts" "RealisticGunnery" "LimitedAmmo" "LimitedFuel"
+   "CockpitAlwaysOn" "NoOutsideViews" "HeadShake" "NoIcons" "NoPadlock" "Clouds"
+   "NoInstantSuccess" "Takeoff_N_Landing" "RealisticLandings" "NoMapIcons"
+   "NoMinimapPath" "NoSpeedBar" "Reliability" "GLimits"
+   "RealisticPilotVulnerability" "RealisticNavigationInstruments" "NoPlayerIcon"
+   "NoFogOfWarIcons"])
+
+(def aircraft
+  ["Bf-109G-6" "Bf-109K-4" "FW-190A-8" "Spitfire" "SpitfireMkIXc" "P-51D"
+   "La-5FN" "Yak-3" "Il-2M"])
+
+(def missions
+  ["Net/dogfight/Crimea.mis" "Net/dogfight/Kuban.mis" "Net/dogfight/Normandy.mis"])
+
+(defn- pick
+  [^Random random coll]
+  (nth coll (.nextInt random (count coll))))
+
+(defn new-pilot
+  "### new-pilot
+   This two argument function returns a newly connected pilot on the supplied
+   socket."
+  [^Random random socket]
+  (let [army (inc (.nextInt random 2))]
+    {:socket   socket
+     :name     (str "Pilot" socket)
+     :ip       (str "192.168." (.nextInt random 256) "." (.nextInt random 256))
+     :port     21000
+     :ping     (+ 20 (.nextInt random 200))
+     :score    0
+     :army     army
+     :aircraft (pick random aircraft)}))
+
+(defn user-list
+  "### user-list
+   This one argument function returns the user list printed for the supplied
+   pilots, header first."
+  [pilots]
+  (cons " N      Name           Ping    Score   Army        Aircraft\n"
+        (map-indexed
+          (fn [i {:keys [name ping score army aircraft]}]
+            (format " %-6d %-20s %-7d %-7d (%d)%-10s %s\n"
+                    (inc i) name ping score army
+                    (if (= army 1) "Red" "Blue") aircraft))
+          pilots)))
+
+(defn host-list
+  "### host-list
+   This one argument function returns the host list printed for the supplied
+   pilots."
+  [pilots]
+  (map-indexed (fn [i {:keys [name socket ip port]}]
+                 (str " " (inc i) ": " name " [" socket "]" ip ":" port "\n"))
+               pilots))
+
+(defn- prompt
+  [n]
+  (str "<consoleN><" n ">"))
+
+(defn generate
+  "### generate
+   This function returns a generated transcript of the supplied number of user
+   list polls, using the supplied random seed. The server starts with the
+   supplied number of pilots, or pilot-count if none is given."
+  ([ticks seed]
+   (generate ticks seed pilot-count))
+  ([ticks seed pilot-count]
+   (let [random (Random. seed)]
+     (loop [tick 0
+            pilots (vec (for [socket (range pilot-count)]
+                          (new-pilot random (+ socket 10))))
+            next-socket (+ pilot-count 10)
+            out (transient [])]
+       (if (= tick ticks)
+         (persistent! out)
+         (let [scored (mapv #(if (< (.nextInt random 10) 3)
+                               (update-in % [:score] + (.nextInt random 5))
+                               %)
+                            pilots)
+               leaving (when (zero? (.nextInt random 8)) (pick random scored))
+               joining (when (zero? (.nextInt random 8)) (new-pilot random next-socket))
+               pilots (cond-> (vec (remove #{leaving} scored))
+                        joining (conj joining))
+               chat (for [_ (range (.nextInt random 4))]
+                      (str "Chat: " (:name (pick random scored)) ": \tcheck six\n"))
+               lines (concat
+                       chat
+                       (when-let [{:keys [socket ip port]} leaving]
+                         [(str "socketConnection with " ip ":" port " on channel "
+                               socket " lost.  Reason: \n")
+                          (str "Chat: --- " (:name leaving) " has left the game.\n")])
+                       (when-let [{:keys [socket ip port name]} joining]
+                         (concat
+                           [(str "socket channel '" socket "', ip " ip ":" port ", "
+                                 name ", is complete created\n")]
+                           (host-list pilots)
+                           [(prompt tick)]))
+                       (user-list pilots)
+                       [(prompt tick)]
+                       (when (zero? (mod tick 60))
+                         [(str "Mission: " (pick random missions) " is Playing\n")
+                          (prompt tick)])
+                       (when (zero? (mod tick 240))
+                         (concat
+                           (for [setting difficulty-settings]
+                             (str "  " setting " " (.nextInt random 2) "\n"))
+                           [(prompt tick)]))
+                       (when (zero? (mod tick 480))
+                         ["  BannedPilot\n" "  192.168.0.66\n" (prompt tick)]))]
+           (recur (inc tick)
+                  pilots
+                  (if joining (inc next-socket) next-socket)
+                  (reduce conj! out lines))))))))
+
+(defn read-transcript
+  "### read-transcript
+   This one argument function reads a recorded transcript from the supplied
+   file. Each line is given back its newline, except for prompts, which the
+   transport passes on without one."
+  [file]
+  (with-open [reader (io/reader file)]
+    (mapv #(if (channel/prompt? %) % (str % "\n"))
+          (doall (line-seq reader)))))
+
+(def transcript
+  "### transcript
+   This zero argument function returns the benchmark transcript as a vector of
+   console lines: the recorded transcript if one is given, otherwise the
+   generated one."
+  (memoize
+    (fn []
+      (if-let [file (System/getProperty "il2ssd.transcript")]
+        (read-transcript file)
+        (generate ticks 1946)))))
+
+(defn lines-of
+  "### lines-of
+   This one argument function returns the lines of the transcript which are
+   events of the supplied type, as an array for the benchmarks to index. Lines in
+   the difficulty format count as difficulty settings."
+  [type]
+  (into-array String
+              (for [line (transcript)
+                    :when (and (not (channel/prompt? line))
+                               (= (keyword type)
+                                  (channel/classify line "difficulty")))]
+                line)))
+
+(defn user-polls
+  "### user-polls
+   This zero argument function returns the user lines of the transcript grouped
+   by the poll which printed them, as an array of arrays."
+  []
+  (into-array (Class/forName "[Ljava.lang.String;")
+              (for [poll (partition-by #(channel/classify % nil)
+                                       (remove channel/prompt? (transcript)))
+                    :when (= :user (channel/classify (first poll) nil))]
+                (into-array String poll))))
@@ -0,0 +1,64 @@
+package uk.org.il2ssd.bench;
+
+import clojure.lang.IPersistentVector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.org.il2ssd.jfx.ConsoleLines;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time for print-console to queue one frame's worth of transcript lines and
+ * for the console to flush them, with the scrollback already full so that
+ * every flush trims the oldest lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsoleBenchmark {
+
+    @Param({"1000", "10000"})
+    public int scrollback;
+
+    @Param({"1", "64"})
+    public int batch;
+
+    private ConsoleLines console;
+    private String[] lines;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        IPersistentVector transcript = (IPersistentVector)
+                Vars.fn("uk.org.il2ssd.bench.transcript", "transcript").invoke();
+        lines = new String[transcript.count()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = (String) transcript.nth(i);
+        }
+        console = new ConsoleLines(scrollback);
+        while (console.size() < console.capacity()) {
+            frame();
+        }
+    }
+
+    @Benchmark
+    public boolean frame() {
+        for (int i = 0; i < batch; i++) {
+            console.offer(lines[next]);
+            next = (next + 1) % lines.length;
+        }
+        return console.flush();
+    }
+}
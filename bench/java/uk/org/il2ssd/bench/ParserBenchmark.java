@@ -0,0 +1,77 @@
+package uk.org.il2ssd.bench;
+
+import clojure.lang.IFn;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to parse one console line with each parser in parse.clj, taking the
+ * lines of the parser's event type from the transcript in turn.
+ * <p>
+ * parseText also goes through parse-text, which is what the event handlers
+ * call, and builds the same record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"diff", "mis", "pilot", "user", "host"})
+    public String type;
+
+    private IFn parser;
+    private IFn parseText;
+    private String[] lines;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        String name;
+        switch (type) {
+            case "diff":
+                name = "difficulty-parser";
+                break;
+            case "mis":
+                name = "mission-parser";
+                break;
+            default:
+                name = type + "-parser";
+        }
+        parser = Vars.fn("uk.org.il2ssd.parse", name);
+        parseText = Vars.fn("uk.org.il2ssd.parse", "parse-text");
+        lines = (String[]) Vars.fn("uk.org.il2ssd.bench.transcript", "lines-of").invoke(type);
+        if (lines.length == 0) {
+            throw new IllegalStateException("The transcript has no " + type + " lines");
+        }
+    }
+
+    private String nextLine() {
+        String line = lines[next];
+        next = (next + 1) % lines.length;
+        return line;
+    }
+
+    @Benchmark
+    public Object parser() {
+        return parser.invoke(nextLine());
+    }
+
+    @Benchmark
+    public Object parseText() {
+        return parseText.invoke(parser, nextLine());
+    }
+}
@@ -0,0 +1,98 @@
+package uk.org.il2ssd.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import clojure.lang.PersistentArrayMap;
+import javafx.collections.FXCollections;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to apply the transcript's user lists to a pilot roster with
+ * update-pilot-data, one line at a time and one whole poll at a time. A poll
+ * also applies the frame's UI updates, as the frame timer would.
+ * <p>
+ * The UI updates are applied on the benchmark thread, since the pilots are not
+ * shown in a scene.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PilotBenchmark {
+
+    private static final int PILOTS = 48;
+
+    private IFn userParser;
+    private IFn updatePilotData;
+    private IFn applyFrameUpdates;
+    private IFn get;
+    private Object data;
+    private Object number;
+    private Object score;
+    private Object armyname;
+    private String[][] polls;
+    private int nextPoll;
+    private int nextLine;
+
+    @Setup
+    public void setUp() {
+        userParser = Vars.fn("uk.org.il2ssd.parse", "user-parser");
+        updatePilotData = Vars.fn("uk.org.il2ssd.jfx.ui", "update-pilot-data");
+        applyFrameUpdates = Vars.fn("uk.org.il2ssd.jfx.util", "apply-frame-updates");
+        get = Clojure.var("clojure.core", "get");
+        number = Clojure.read(":number");
+        score = Clojure.read(":score");
+        armyname = Clojure.read(":armyname");
+        data = PersistentArrayMap.EMPTY
+                .assoc(Clojure.read(":pilots-data"), FXCollections.observableArrayList())
+                .assoc(Clojure.read(":pilots-roster"),
+                        Vars.fn("uk.org.il2ssd.jfx.ui", "new-pilot-roster").invoke());
+        IFn addPilotData = Vars.fn("uk.org.il2ssd.jfx.ui", "add-pilot-data");
+        for (int i = 1; i <= PILOTS; i++) {
+            addPilotData.invoke(data, String.valueOf(i), String.valueOf(i + 10),
+                    "192.168.0." + i, "Pilot" + (i + 10));
+        }
+        applyFrameUpdates.invoke();
+        polls = (String[][]) Vars.fn("uk.org.il2ssd.bench.transcript", "user-polls").invoke();
+    }
+
+    private Object update(String line) {
+        Object user = userParser.invoke(line);
+        return updatePilotData.invoke(data, get.invoke(user, number),
+                get.invoke(user, score), get.invoke(user, armyname));
+    }
+
+    @Benchmark
+    public Object line() {
+        String[] poll = polls[nextPoll];
+        Object updated = update(poll[nextLine]);
+        if (++nextLine == poll.length) {
+            nextLine = 0;
+            nextPoll = (nextPoll + 1) % polls.length;
+            applyFrameUpdates.invoke();
+        }
+        return updated;
+    }
+
+    @Benchmark
+    public Object poll() {
+        for (String line : polls[nextPoll]) {
+            update(line);
+        }
+        nextPoll = (nextPoll + 1) % polls.length;
+        return applyFrameUpdates.invoke();
+    }
+}
@@ -0,0 +1,51 @@
+package uk.org.il2ssd.bench;
+
+import clojure.lang.IDeref;
+import clojure.lang.IFn;
+import clojure.lang.IPersistentVector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to push the whole transcript through a new console pipeline from
+ * channel.clj: correlation, the mult, classification and the event and print
+ * consumers, with both consumers drained as a session would drain them.
+ * <p>
+ * The print consumer is made lossless so that every run does the same work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PipelineBenchmark {
+
+    private IFn newPipeline;
+    private IFn runPipeline;
+    private Object settings;
+    private IPersistentVector lines;
+
+    @Setup
+    public void setUp() {
+        newPipeline = Vars.fn("uk.org.il2ssd.channel", "new-pipeline");
+        runPipeline = Vars.fn("uk.org.il2ssd.bench.channel", "run-pipeline");
+        settings = ((IDeref) Vars.fn("uk.org.il2ssd.bench.channel", "lossless")).deref();
+        lines = (IPersistentVector) Vars.fn("uk.org.il2ssd.bench.transcript", "transcript").invoke();
+    }
+
+    @Benchmark
+    public Object transcript() {
+        return runPipeline.invoke(newPipeline.invoke(settings), lines);
+    }
+}
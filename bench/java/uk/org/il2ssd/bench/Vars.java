@@ -0,0 +1,20 @@
+package uk.org.il2ssd.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+
+/**
+ * Looks up the Clojure functions which the benchmarks call, loading their
+ * namespaces first.
+ */
+final class Vars {
+    private static final IFn REQUIRE = Clojure.var("clojure.core", "require");
+
+    private Vars() {
+    }
+
+    static IFn fn(String ns, String name) {
+        REQUIRE.invoke(Clojure.read(ns));
+        return Clojure.var(ns, name);
+    }
+}
@@ -7,16 +7,25 @@
                  [org.clojure/core.async "0.1.278.0-76b25b-alpha"]
                  [com.airhacks/afterburner.fx "1.4.4"]
                  [commons-lang/commons-lang "2.6"]
-                 [instaparse/instaparse "1.3.2"]
                  [com.brainbot/iniconfig "0.2.0"]
                  [overtone/at-at "1.2.0"]
                  [org.clojars.hozumi/clj-commons-exec "1.0.7"]]
   :profiles {:dev {:dependencies [[org.apache.maven/maven-ant-tasks "2.1.3"]
                                   [junit/junit "4.11"]
-                                  [org.loadui/testFx "3.1.2"]]}
-             :junit {:java-source-paths ["src/java" "test/java"]}}
+                                  [org.loadui/testFx "3.1.2"]
+                                  [instaparse/instaparse "1.3.2"]]}
+             :junit {:java-source-paths ["src/java" "test/java"]}
+             :bench {:dependencies [[org.openjdk.jmh/jmh-core "1.19"]
+                                    [org.openjdk.jmh/jmh-generator-annprocess "1.19"]]
+                     :source-paths ["bench/clojure"]
+                     :java-source-paths ["bench/java"]}}
+  :aliases {"bench" ["with-profile" "+bench" "run" "-m" "uk.org.il2ssd.bench.channel"]
+            "jmh" ["with-profile" "+bench" "run" "-m" "org.openjdk.jmh.Main"
+                   "-rf" "json" "-rff" "target/jmh-result.json"]
+            "mock" ["with-profile" "+bench" "run" "-m" "uk.org.il2ssd.bench.mock"]
+            "load" ["with-profile" "+bench" "run" "-m" "uk.org.il2ssd.bench.load"]}
   :main uk.org.il2ssd.core
-  :aot [uk.org.il2ssd.core]
+  :aot [uk.org.il2ssd.core uk.org.il2ssd.daemon]
   :source-paths ["src/clojure"]
   :java-source-paths ["src/java"]
   :test-paths ["test/clojure" "test/java"]
@@ -0,0 +1,216 @@
+;;
+;; ## Admission rules
+;;
+;; Here we decide what to do with each pilot as they join a server, before they
+;; have had a chance to spawn. The rules are read from an edn file, by default
+;; admission.edn in the working directory:
+;;
+;;     {:rules [{:cidr "203.0.113.0/24" :action :ban}
+;;              {:cidr "203.0.113.64/28" :action :allow}
+;;              {:name "(?i)^\\[bot\\]" :action :kick}
+;;              {:name "^Pilot$" :action :warn
+;;               :message "Please choose a callsign"}]
+;;      :flood {:joins 5 :seconds 60 :action :kick}}
+;;
+;; A pilot is checked against the IP ranges first, then the name patterns in the
+;; order they are listed, then the reconnect flood limit, and the first rule to
+;; match decides. An :allow range lets the pilot in without checking anything
+;; else, so it can open a hole in a wider range which is blocked.
+;;
+;; The actions are :warn, which sends the rule's message to the pilot in chat,
+;; :kick, and :ban, which bans the pilot's name for a name rule and their IP
+;; address otherwise, and then kicks them. The server can only ban single
+;; addresses, so a range is blocked by banning each address as it joins.
+;;
+;; The IP ranges are kept in a binary trie keyed by the bits of the address, so
+;; finding the most specific range which holds an address takes one walk of at
+;; most 32 steps, however many ranges there are.
+(ns uk.org.il2ssd.admission
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [uk.org.il2ssd.bans :as bans]
+            [uk.org.il2ssd.server :as server]
+            [uk.org.il2ssd.state :as state])
+  (:import (java.util.regex Pattern)))
+
+(def actions
+  "### actions
+   This is the set of actions which a rule can take."
+  #{:allow :warn :kick :ban})
+
+(def default-message
+  "### default-message
+   This is the message sent to a pilot by a :warn rule which gives none."
+  "Please follow the server rules.")
+
+(def rules
+  "### rules
+   This atom holds the compiled admission rules, or nil if no rules are
+   loaded and every pilot is let in."
+  (atom nil))
+
+;; ### IP ranges
+
+(defn parse-ip
+  "### parse-ip
+   This one argument function returns the supplied IPv4 address as a number,
+   or nil if it is not a valid address."
+  [^String text]
+  (when-let [[_ & octets] (re-matches #"(\d{1,3})\.(\d{1,3})\.(\d{1,3})\.(\d{1,3})"
+                                      text)]
+    (let [octets (map #(Long/parseLong %) octets)]
+      (when (every? #(<= % 255) octets)
+        (reduce #(+ (* 256 %1) %2) 0 octets)))))
+
+(defn parse-cidr
+  "### parse-cidr
+   This one argument function returns the supplied IPv4 range, in the form
+   \"10.0.0.0/8\" or as a single address, as a vector of its first address as
+   a number and its prefix length. Any bits of the address beyond the prefix
+   are ignored."
+  [^String text]
+  (let [[_ ip bits] (re-matches #"([^/]+)(?:/(\d{1,2}))?" text)
+        address (when ip (parse-ip ip))
+        length (if bits (Long/parseLong bits) 32)]
+    (when-not (and address (<= length 32))
+      (throw (IllegalArgumentException. (str "Invalid IP range: " text))))
+    [address length]))
+
+(defn- bit
+  [^long address ^long index]
+  (bit-and 1 (bit-shift-right address (- 31 index))))
+
+(defn trie-insert
+  "### trie-insert
+   This three argument function adds the supplied rule to the supplied trie
+   under the supplied range. Each node of the trie is a map of the next bit to
+   the node below it, along with the rule of the range which ends there. The
+   first rule given for a range is kept."
+  [trie [address length] rule]
+  (let [path (vec (for [i (range length)] (bit address i)))]
+    (if (get-in trie (conj path :rule))
+      trie
+      (assoc-in trie (conj path :rule) rule))))
+
+(defn trie-lookup
+  "### trie-lookup
+   This two argument function returns the rule of the most specific range in
+   the supplied trie which holds the supplied address, or nil if none does."
+  [trie ^long address]
+  (loop [node trie
+         index 0
+         found (:rule trie)]
+    (if (< index 32)
+      (if-let [next (get node (bit address index))]
+        (recur next (inc index) (or (:rule next) found))
+        found)
+      found)))
+
+;; ### Rules
+
+(defn- check-action
+  [{:keys [action] :as rule}]
+  (when-not (actions action)
+    (throw (IllegalArgumentException.
+             (str "Invalid admission action " action " in " (pr-str rule)))))
+  rule)
+
+(defn compile-rules
+  "### compile-rules
+   This one argument function compiles the supplied rules map, as read from the
+   rules file, into the trie of IP ranges, the list of name patterns and the
+   flood limit. An invalid rule throws an IllegalArgumentException."
+  [{:keys [flood] :as settings}]
+  (let [listed (map check-action (:rules settings))]
+    {:ranges (reduce (fn [trie {:keys [cidr] :as rule}]
+                       (trie-insert trie (parse-cidr cidr) rule))
+                     {}
+                     (filter :cidr listed))
+     :names  (vec (for [{:keys [name] :as rule} listed
+                        :when name]
+                    (assoc rule :pattern (Pattern/compile name))))
+     :flood  (when flood
+               (let [{:keys [joins seconds]} (check-action flood)]
+                 (when-not (and (integer? joins) (pos? joins)
+                                (integer? seconds) (pos? seconds))
+                   (throw (IllegalArgumentException.
+                            (str "Invalid flood limit " (pr-str flood)))))
+                 (assoc flood :millis (* 1000 seconds))))}))
+
+(defn load-rules
+  "### load-rules
+   This one argument function reads and compiles the rules file at the supplied
+   path and makes its rules the ones checked on every join. If the file cannot
+   be read the rules are left as they were and the error is printed."
+  [path]
+  (try
+    (reset! rules (compile-rules (edn/read-string (slurp (io/file path)
+                                                         :encoding "UTF-8"))))
+    (catch Exception e
+      (binding [*out* *err*]
+        (println (str "Could not load admission rules from " path ": "
+                      (.getMessage e))))
+      @rules)))
+
+;; ### Joins
+
+(def ^:private flood-prune-size
+  "### flood-prune-size
+   This is the number of addresses with recent joins above which the addresses
+   whose joins have all expired are forgotten."
+  4096)
+
+(defn- flooding?
+  "### flooding?
+   This function notes a join from the supplied address at the supplied time
+   in the session in scope, and returns true if the address has now joined
+   more times than the flood limit allows within its window."
+  [{:keys [joins millis]} ip ^long now]
+  (let [since (- now millis)
+        recent (fn [times] (filterv #(> % since) times))
+        history (swap! (state/joins)
+                       (fn [history]
+                         (let [history (if (> (count history) flood-prune-size)
+                                         (into {} (for [[ip times] history
+                                                        :let [times (recent times)]
+                                                        :when (seq times)]
+                                                    [ip times]))
+                                         history)]
+                           (assoc history ip (conj (recent (get history ip []))
+                                                   now)))))]
+    (> (count (get history ip)) joins)))
+
+(defn judge
+  "### judge
+   This two argument function returns the rule which decides the admission of
+   a pilot joining from the supplied address under the supplied name, or nil
+   if the pilot is let in without one. The join counts towards the flood limit
+   even if a range or name rule decides."
+  [ip name]
+  (when-let [{:keys [ranges names flood]} @rules]
+    (let [address (parse-ip ip)
+          range-rule (when address (trie-lookup ranges address))
+          flood-rule (when (and flood ip)
+                       (when (flooding? flood ip (System/currentTimeMillis))
+                         flood))]
+      (when-not (= :allow (:action range-rule))
+        (or range-rule
+            (some #(when (re-find (:pattern %) name) %) names)
+            flood-rule)))))
+
+(defn admit
+  "### admit
+   This one argument function checks the supplied pilot, as parsed from the
+   line which shows them joining, against the admission rules and takes the
+   action of the rule which decides, if any, on the server of the session in
+   scope. The rule is returned."
+  [{:keys [ip name]}]
+  (when name
+    (when-let [{:keys [action message] :as rule} (judge ip name)]
+      (case action
+        :allow nil
+        :warn (server/chat :name name (or message default-message))
+        :kick (server/kick :name name)
+        :ban (do (bans/ban! [(if (:name rule) [:name name] [:ip ip])])
+                 (server/kick :name name)))
+      rule)))
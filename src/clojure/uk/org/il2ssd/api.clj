@@ -0,0 +1,750 @@
+;;
+;; ## HTTP control API
+;;
+;; Here we serve a small HTTP API so that other programs can watch and control the
+;; open sessions. Responses are JSON, and the operations are the same ones which the
+;; UI buttons perform:
+;;
+;;     GET  /sessions                  every session and its state
+;;     GET  /sessions/1                one session and its state
+;;     POST /sessions/1/mission/load?path=Net/dogfight/a.mis
+;;     POST /sessions/1/kick?name=Pilot
+;;     GET  /sessions/1/events         the session's console events
+;;     GET  /sessions/1/bans            the session's ban list
+;;     GET  /sessions/1/bans?name=Pilot  whether a name (or ip) is banned
+;;     GET  /sessions/1/journal?q=Pilot&hours=48
+;;                                     search the journal of the session's server
+;;     GET  /events                    the console events of every session
+;;     GET  /players?sort=average&limit=20
+;;                                     the totals of each player, see players
+;;
+;; The event streams use server-sent events: each typed event taken from a
+;; session's event-channel is sent as a JSON object, see publish.
+;;
+;; The API runs on one thread with its own selector, just like the transport. No
+;; thread is held for a subscriber, and each subscriber holds a queue of at most
+;; queue-limit events; when a subscriber falls that far behind, its oldest events
+;; are dropped rather than holding up the session or the other subscribers.
+;; Operations and journal searches may touch the disk or wait on the server, so
+;; they run on the blocking executor and are answered when they finish.
+;;
+;; Anything which can reach the API's address can use it, and that includes every
+;; web page open in a browser on the same machine. Operations therefore carry the
+;; configured token in an X-Il2ssd-Token header, and any request from a web page
+;; whose origin has not been allowed is refused, see refusal.
+(ns uk.org.il2ssd.api
+  (:require [clojure.string :as string]
+            [uk.org.il2ssd.bans :as bans]
+            [uk.org.il2ssd.blocking :as blocking]
+            [uk.org.il2ssd.control :as control]
+            [uk.org.il2ssd.jmx :as jmx]
+            [uk.org.il2ssd.journal :as journal]
+            [uk.org.il2ssd.parse :refer [difficulty-parser host-parser
+                                         mission-parser pilot-parser
+                                         user-parser]]
+            [uk.org.il2ssd.players :as players]
+            [uk.org.il2ssd.server :as server]
+            [uk.org.il2ssd.session :as session]
+            [uk.org.il2ssd.state :as state]
+            [uk.org.il2ssd.supervisor :as supervisor])
+  (:import (java.io IOException)
+           (java.net InetSocketAddress URLDecoder)
+           (java.nio ByteBuffer)
+           (java.nio.channels CancelledKeyException ClosedSelectorException
+                              SelectionKey Selector ServerSocketChannel
+                              SocketChannel)
+           (java.nio.charset Charset)
+           (java.security MessageDigest)
+           (java.util ArrayDeque)
+           (java.util.concurrent ConcurrentLinkedQueue)))
+
+(def defaults
+  "### defaults
+   This is a map of the default API settings: the address and port to listen on,
+   the number of events queued for a subscriber before the oldest are dropped,
+   the largest request in bytes, the token which operations must carry and the
+   web page origins which may use the API. There is no token until one is
+   configured, so no operation is allowed until then."
+  {:host        "127.0.0.1"
+   :port        8021
+   :queue-limit 256
+   :max-request 8192
+   :token       nil
+   :origins     #{}})
+
+(def ^Charset utf-8 (Charset/forName "UTF-8"))
+
+;; ### JSON
+
+(defn- json-string
+  "### json-string
+   This function returns the supplied string as a quoted JSON string."
+  [^String text]
+  (let [out (StringBuilder. (+ 2 (.length text)))]
+    (.append out \")
+    (dotimes [i (.length text)]
+      (let [c (.charAt text i)]
+        (case c
+          \" (.append out "\\\"")
+          \\ (.append out "\\\\")
+          \newline (.append out "\\n")
+          \return (.append out "\\r")
+          \tab (.append out "\\t")
+          (if (< (int c) 0x20)
+            (.append out (format "\\u%04x" (int c)))
+            (.append out c)))))
+    (.append out \")
+    (str out)))
+
+(defn to-json
+  "### to-json
+   This one argument function returns the JSON text for the supplied value.
+   Maps and records become objects, other collections become arrays, and
+   keywords become strings."
+  [value]
+  (cond
+    (nil? value) "null"
+    (true? value) "true"
+    (false? value) "false"
+    (number? value) (str value)
+    (string? value) (json-string value)
+    (keyword? value) (json-string (name value))
+    (map? value) (str "{"
+                      (string/join "," (for [[k v] value]
+                                         (str (to-json (if (keyword? k) k (str k)))
+                                              ":" (to-json v))))
+                      "}")
+    (coll? value) (str "[" (string/join "," (map to-json value)) "]")
+    :else (json-string (str value))))
+
+;; ### Server state
+
+(def ^:private running
+  "### running
+   This atom stores the selector, listening channel, settings and task queue
+   of the running API, or nil if the API is stopped. The task queue holds zero
+   argument functions to be run on the API thread; each run of the API has its
+   own, so that a task for one run is never taken by the thread of another."
+  (atom nil))
+
+(def ^:private subscribers
+  "### subscribers
+   This atom stores the set of event stream subscribers. Each is a map holding
+   the subscriber's selection key, the id of the session it watches or nil for
+   every session, its queue of encoded events and its count of dropped events."
+  (atom #{}))
+
+(defn- on-selector
+  "### on-selector
+   This function queues the supplied function to run on the API thread of the
+   supplied run of the API, by default the running one, and wakes its selector
+   so that it runs promptly."
+  ([f]
+   (on-selector @running f))
+  ([{:keys [^Selector selector ^ConcurrentLinkedQueue tasks]} f]
+   (when selector
+     (.offer tasks f)
+     (.wakeup selector))))
+
+;; ### Events
+
+(def event-names
+  "### event-names
+   This is a map of the console event types to the names by which they are
+   streamed."
+  {:diff  "difficulty"
+   :mis   "mission"
+   :pilot "pilot"
+   :ban   "ban"
+   :user  "user"
+   :host  "host"
+   :error "error"})
+
+(defn event-data
+  "### event-data
+   This one argument function parses the value of the supplied console event
+   into the data which is streamed for it."
+  [{:keys [type value]}]
+  (case type
+    :diff (into {} (difficulty-parser value))
+    :mis (into {} (mission-parser value))
+    :pilot (when-let [pilot (pilot-parser value)]
+             (assoc (into {} pilot) :action (if (:name pilot) "join" "leave")))
+    :user (into {} (user-parser value))
+    :host (into {} (host-parser value))
+    (string/trim value)))
+
+(defn- encode-event
+  "### encode-event
+   This function returns the bytes of the server-sent event for the supplied
+   console event of the supplied session."
+  ^bytes [id {:keys [type command] :as event}]
+  (let [event-name (event-names type (name type))]
+    (.getBytes (str "event: " event-name "\n"
+                    "data: " (to-json {:session id
+                                       :type    event-name
+                                       :command command
+                                       :data    (event-data event)})
+                    "\n\n")
+               utf-8)))
+
+(defn- want-write
+  "### want-write
+   This function makes the supplied subscriber's key selectable for writes, so
+   that its queued events are sent on the API thread."
+  [{:keys [^SelectionKey key]}]
+  (on-selector #(try (.interestOps key (bit-or SelectionKey/OP_READ
+                                               SelectionKey/OP_WRITE))
+                     (catch CancelledKeyException _ nil))))
+
+(defn publish
+  "### publish
+   This one argument function queues the supplied console event of the session
+   in scope for every subscriber watching the session. It never blocks: if a
+   subscriber's queue is full the oldest event is dropped.
+
+   The event is only parsed and encoded if someone is subscribed."
+  [event]
+  (let [id (:id (state/session))
+        watching (filter #(contains? #{nil id} (:session %)) @subscribers)]
+    (when (seq watching)
+      (let [bytes (encode-event id event)
+            limit (:queue-limit (:settings @running) (:queue-limit defaults))]
+        (doseq [{:keys [^ArrayDeque queue dropped] :as subscriber} watching]
+          (locking queue
+            (.addLast queue bytes)
+            (when (> (.size queue) limit)
+              (.removeFirst queue)
+              (swap! dropped inc)))
+          (want-write subscriber))))))
+
+(defn api-stats
+  "### api-stats
+   This zero argument function returns a map of statistics for the API: the
+   number of subscribers, the number of events waiting to be sent to them and
+   the number of events dropped for slow subscribers."
+  []
+  (let [subs @subscribers]
+    {:subscribers (count subs)
+     :queued      (reduce + (for [{:keys [^ArrayDeque queue]} subs]
+                              (locking queue (.size queue))))
+     :dropped     (reduce + (map (comp deref :dropped) subs))}))
+
+;; ### Requests
+
+(defn- session-view
+  "### session-view
+   This function returns the JSON view of the supplied session."
+  [session]
+  (state/with-session session
+    {:id    (:id session)
+     :name  @(:name session)
+     :state (state/get-state)
+     :dcg   (control/dcg-stats)}))
+
+(defn- find-session
+  [id]
+  (first (filter #(= (str (:id %)) id) (session/all-sessions))))
+
+(defn- parse-query
+  "### parse-query
+   This function decodes the supplied query string into a map of parameter
+   names to values."
+  [query]
+  (into {}
+        (for [pair (string/split (or query "") #"&")
+              :when (seq pair)
+              :let [[k v] (string/split pair #"=" 2)]]
+          [(URLDecoder/decode ^String k "UTF-8")
+           (URLDecoder/decode (str v) "UTF-8")])))
+
+(defn- required
+  "### required
+   This function returns the named parameter, or throws an exception which is
+   answered with a 400 response if it is missing."
+  [params key]
+  (let [value (params key)]
+    (if (string/blank? value)
+      (throw (ex-info (str "Missing parameter: " key) {:status 400}))
+      value)))
+
+(defn- number-param
+  "### number-param
+   This function returns the named parameter as a number, or nil if it is
+   missing. A parameter which is not a number is answered with a 400 response."
+  [params key]
+  (when-let [value (params key)]
+    (try (Double/parseDouble value)
+         (catch NumberFormatException _
+           (throw (ex-info (str "Not a number: " key) {:status 400}))))))
+
+(defn search-journal
+  "### search-journal
+   This one argument function searches the journal of the server which the
+   session in scope is, or was last, connected to, with the supplied request
+   parameters:
+
+   * q - the text to find, or a regex if regex is true; every line if blank.
+   * hours - how many hours back to search, or from and to in milliseconds
+     since the epoch.
+   * limit - the most lines to return, 1000 by default.
+
+   The search is run on the blocking executor, see route."
+  [params]
+  (if-let [{:keys [dir]} @(state/journal)]
+    (let [now (System/currentTimeMillis)
+          hours (number-param params "hours")
+          from (or (number-param params "from")
+                   (when hours (- now (* hours 60 60 1000)))
+                   0)
+          to (or (number-param params "to") Long/MAX_VALUE)
+          limit (or (number-param params "limit") 1000)]
+      {:status 200
+       :body   (journal/search dir {:query (params "q")
+                                    :regex (= (params "regex") "true")
+                                    :from  (long from)
+                                    :to    (long to)
+                                    :limit (long limit)})})
+    {:status 409 :body {:error "Not journalled"}}))
+
+(defn ban-list
+  "### ban-list
+   This one argument function answers a query of the ban list of the session in
+   scope. With a name or ip parameter it answers whether that name or address
+   is banned; otherwise it lists every ban as its type and value."
+  [params]
+  {:status 200
+   :body   (cond
+             (params "name") {:banned (bans/banned? :name (params "name"))}
+             (params "ip") {:banned (bans/banned? :ip (params "ip"))}
+             :else (vec (for [[type value] (bans/entries)]
+                          {:type type :value value})))})
+
+(def player-sorts
+  "### player-sorts
+   This is the set of player totals which the players may be sorted by."
+  #{"sessions" "hours" "average" "best" "score-sum" "last-seen"})
+
+(defn player-stats
+  "### player-stats
+   This one argument function answers a query of the player statistics with the
+   supplied request parameters:
+
+   * name - the text which the player names must contain, ignoring case.
+   * sort - one of player-sorts, highest first; by name if not given.
+   * limit - the most players to return, every player by default."
+  [params]
+  (let [sort (params "sort")
+        limit (number-param params "limit")]
+    (when (and sort (not (player-sorts sort)))
+      (throw (ex-info (str "Cannot sort by: " sort) {:status 400})))
+    {:status 200
+     :body   (vec (players/query {:name  (params "name")
+                                  :sort  (when sort (keyword sort))
+                                  :limit (when limit (long limit))}))}))
+
+(def operations
+  "### operations
+   This is a map of the operations which may be posted to a session, keyed by
+   the path which follows the session id. Each operation is a function of the
+   request parameters, called with the session in scope."
+  {"disconnect"     (fn [_]
+                      (when @(state/cycle-running) (control/stop-cycle))
+                      (supervisor/disconnect))
+   "mission/load"   (fn [params]
+                      (reset! (state/loading) true)
+                      (server/load-mission (required params "path")))
+   "mission/start"  (fn [_] (server/start-mission))
+   "mission/end"    (fn [_] (server/end-mission))
+   "mission/unload" (fn [_] (server/unload-mission))
+   "cycle/start"    (fn [_]
+                      (when @(state/playing) (server/unload-mission))
+                      (control/start-cycle))
+   "cycle/stop"     (fn [_] (control/stop-cycle))
+   "cycle/next"     (fn [_] (control/next-mission false))
+   "dcg/start"      (fn [_] (control/start-dcg))
+   "dcg/stop"       (fn [_] (control/stop-dcg))
+   "dcg/next"       (fn [_] (control/generate-dcg-mis false))
+   "kick"           (fn [params]
+                      (if-let [number (params "number")]
+                        (server/kick :number number)
+                        (server/kick :name (required params "name"))))
+   "ban"            (fn [params]
+                      (bans/ban! [(if-let [ip (params "ip")]
+                                    [:ip ip]
+                                    [:name (required params "name")])]))
+   "unban"          (fn [params]
+                      (bans/lift! [(if-let [ip (params "ip")]
+                                     [:ip ip]
+                                     [:name (required params "name")])]))
+   "chat"           (fn [params]
+                      (let [message (required params "message")]
+                        (cond
+                          (params "number") (server/chat :number (params "number") message)
+                          (params "name") (server/chat :name (params "name") message)
+                          :else (server/chat :all message))))
+   "command"        (fn [params]
+                      (server/write-socket (required params "text")))})
+
+(def token-header
+  "### token-header
+   This is the name of the request header which carries the API token, in
+   lower case as the headers are parsed."
+  "x-il2ssd-token")
+
+(defn refusal
+  "### refusal
+   This three argument function returns the response which refuses a request
+   with the supplied method and headers under the supplied settings, or nil if
+   the request may go ahead.
+
+   Browsers send an Origin header with every request a web page makes across
+   origins, and nothing else need send one, so a request with an origin which
+   is not allowed is refused whatever it asks for. A POST must also carry the
+   configured token, and is refused while none is configured."
+  [{:keys [token origins]} method headers]
+  (let [origin (headers "origin")
+        given (headers token-header)]
+    (cond
+      (and origin (not (contains? origins origin)))
+      {:status 403 :body {:error "Origin not allowed"}}
+
+      (not= method "POST")
+      nil
+
+      (string/blank? token)
+      {:status 403 :body {:error "No API token configured"}}
+
+      (not (and given (MessageDigest/isEqual (.getBytes ^String given utf-8)
+                                             (.getBytes ^String token utf-8))))
+      {:status 401 :body {:error "Missing or wrong API token"}})))
+
+(defn answer
+  "### answer
+   This one argument function calls the supplied zero argument function and
+   returns the response it returns, or the response for the exception it
+   throws to refuse the request, see required."
+  [f]
+  (try (f)
+       (catch clojure.lang.ExceptionInfo e
+         {:status (:status (ex-data e) 500)
+          :body   {:error (.getMessage e)}})))
+
+(defn route
+  "### route
+   This three argument function answers a request with the supplied method, path
+   and query string. It returns either a map of the response :status and :body,
+   a map with a :subscribe key giving the session id to stream events from, nil
+   meaning every session, or a map with a :run key. Its value is a zero argument
+   function which does what was asked, off the API thread, and returns the
+   response."
+  [method path query]
+  (let [parts (vec (remove empty? (string/split path #"/")))
+        params (parse-query query)]
+    (answer
+      #(cond
+        (= parts ["events"])
+        {:subscribe nil}
+
+        (= parts ["sessions"])
+        {:status 200 :body (mapv session-view (session/all-sessions))}
+
+        (= parts ["players"])
+        (player-stats params)
+
+        (= (first parts) "sessions")
+        (if-let [session (find-session (get parts 1))]
+          (let [op (string/join "/" (drop 2 parts))]
+            (cond
+              (empty? op) {:status 200 :body (session-view session)}
+              (= op "events") {:subscribe (:id session)}
+              (= op "journal") {:run (fn []
+                                       (state/with-session session
+                                         (answer (fn [] (search-journal params)))))}
+              (= op "bans") (state/with-session session
+                              (ban-list params))
+              (not (operations op)) {:status 404 :body {:error "Unknown operation"}}
+              (not= method "POST") {:status 405 :body {:error "Use POST"}}
+              :else {:run (fn []
+                            (state/with-session session
+                              (answer
+                                (fn []
+                                  (if (or @(state/connected) (= op "disconnect"))
+                                    (do ((operations op) params)
+                                        {:status 200 :body {:ok true}})
+                                    {:status 409 :body {:error "Not connected"}})))))}))
+          {:status 404 :body {:error "No such session"}})
+
+        :else
+        {:status 404 :body {:error "Not found"}}))))
+
+;; ### Connections
+
+(def ^:private reasons
+  {200 "OK" 400 "Bad Request" 401 "Unauthorized" 403 "Forbidden" 404 "Not Found"
+   405 "Method Not Allowed" 409 "Conflict" 431 "Request Header Fields Too Large" 500 "Internal Server Error"})
+
+(defn- response-bytes
+  ^bytes [{:keys [status body]}]
+  (let [content (.getBytes ^String (to-json body) utf-8)
+        head (str "HTTP/1.1 " status " " (reasons status) "\r\n"
+                  "Content-Type: application/json\r\n"
+                  "Content-Length: " (alength content) "\r\n"
+                  "Connection: close\r\n\r\n")]
+    (byte-array (concat (.getBytes head utf-8) content))))
+
+(def ^:private stream-head
+  (str "HTTP/1.1 200 OK\r\n"
+       "Content-Type: text/event-stream\r\n"
+       "Cache-Control: no-cache\r\n"
+       "Connection: keep-alive\r\n\r\n"))
+
+(defn- close-key
+  "### close-key
+   This function closes the connection for the supplied key and removes its
+   subscriber, if it has one."
+  [^SelectionKey key]
+  (let [{:keys [subscriber]} @(.attachment key)]
+    (when subscriber
+      (swap! subscribers disj subscriber)))
+  (.cancel key)
+  (try (.close (.channel key)) (catch IOException _ nil)))
+
+(defn- header-end
+  "### header-end
+   This function returns the index just past the blank line which ends the
+   request head in the supplied buffer, or -1 if it has not arrived yet."
+  [^ByteBuffer buffer]
+  (let [bytes (.array buffer)
+        end (.position buffer)]
+    (loop [i 3]
+      (cond
+        (>= i end) -1
+        (and (== (aget bytes (- i 3)) 13) (== (aget bytes (- i 2)) 10)
+             (== (aget bytes (- i 1)) 13) (== (aget bytes i) 10)) (inc i)
+        :else (recur (inc i))))))
+
+(defn- parse-headers
+  "### parse-headers
+   This function returns a map of the name of each header in the supplied
+   request head, in lower case, to its value."
+  [head]
+  (into {} (for [line (rest (string/split-lines head))
+                 :let [[header value] (string/split line #":" 2)]
+                 :when value]
+             [(string/lower-case (string/trim header)) (string/trim value)])))
+
+(defn- respond
+  "### respond
+   This function sends the supplied JSON response on the supplied key and
+   closes the connection once it is written. It must be run on the API thread,
+   and does nothing if the connection has closed in the meantime."
+  [^SelectionKey key response]
+  (when (.isValid key)
+    (swap! (.attachment key) assoc
+           :out (ByteBuffer/wrap (response-bytes response))
+           :close true)
+    (.interestOps key (bit-or SelectionKey/OP_READ SelectionKey/OP_WRITE))))
+
+(defn- start-response
+  "### start-response
+   This function answers the request on the supplied key, either with a JSON
+   response after which the connection is closed, or by making the connection
+   an event stream subscriber. A request which must run off the API thread is
+   answered once it has run on the blocking executor."
+  [^SelectionKey key ^String head]
+  (let [[method target] (string/split (first (string/split-lines head)) #" ")
+        [path query] (string/split (or target "/") #"\?" 2)
+        conn (.attachment key)
+        result (or (refusal (:settings @running) method (parse-headers head))
+                   (route method path query))]
+    (cond
+      (contains? result :subscribe)
+      (let [subscriber {:key     key
+                        :session (:subscribe result)
+                        :queue   (ArrayDeque.)
+                        :dropped (atom 0)}]
+        (swap! conn assoc
+               :out (ByteBuffer/wrap (.getBytes ^String stream-head utf-8))
+               :subscriber subscriber)
+        (swap! subscribers conj subscriber)
+        (.interestOps key (bit-or SelectionKey/OP_READ SelectionKey/OP_WRITE)))
+
+      (contains? result :run)
+      (let [run (:run result)
+            api @running]
+        (swap! conn assoc :running true)
+        (blocking/thread
+          (let [response (try (run)
+                              (catch Exception e
+                                (.printStackTrace e)
+                                {:status 500 :body {:error (str e)}}))]
+            (on-selector api #(respond key response)))))
+
+      :else
+      (respond key result))))
+
+(defn- read-key
+  "### read-key
+   This function reads from the connection for the supplied key. Once the head
+   of a request has arrived it is answered; the body of a request is not used,
+   and anything sent while a request is running, or by a subscriber, is
+   ignored."
+  [^SelectionKey key]
+  (let [conn (.attachment key)
+        {:keys [^ByteBuffer in out running]} @conn
+        ^SocketChannel socket (.channel key)
+        read (try (.read socket in)
+                  (catch IOException _ -1))]
+    (cond
+      (neg? read) (close-key key)
+      (or out running) (.clear in)
+      :else (let [end (header-end in)]
+              (cond
+                (pos? end) (start-response key (String. (.array in) 0 (int end) utf-8))
+                (not (.hasRemaining in)) (do (.clear in)
+                                             (respond key {:status 431
+                                                           :body {:error "Request too large"}})))))))
+
+(defn- next-events
+  "### next-events
+   This function takes every event waiting for the supplied subscriber and
+   returns them as one buffer, or nil if none are waiting."
+  [{:keys [^ArrayDeque queue]}]
+  (let [batch (locking queue
+                (let [batch (vec queue)]
+                  (.clear queue)
+                  batch))]
+    (when (seq batch)
+      (let [buffer (ByteBuffer/allocate (reduce + (map #(alength ^bytes %) batch)))]
+        (doseq [^bytes bytes batch]
+          (.put buffer bytes))
+        (.flip buffer)))))
+
+(defn- write-key
+  "### write-key
+   This function writes as much as the connection for the supplied key will take.
+   A response connection is closed once its response is written. A subscriber is
+   sent its waiting events, and stops asking to write when there are none."
+  [^SelectionKey key]
+  (let [conn (.attachment key)
+        ^SocketChannel socket (.channel key)]
+    (loop []
+      (let [{:keys [^ByteBuffer out close subscriber]} @conn]
+        (if (and out (.hasRemaining out))
+          (when (try (pos? (.write socket out))
+                     (catch IOException _ (close-key key) false))
+            (recur))
+          (cond
+            close (close-key key)
+            subscriber (if-let [events (next-events subscriber)]
+                         (do (swap! conn assoc :out events)
+                             (recur))
+                         (.interestOps key SelectionKey/OP_READ))))))))
+
+(defn- accept-key
+  [^SelectionKey key ^Selector selector max-request]
+  (when-let [^SocketChannel socket (.accept ^ServerSocketChannel (.channel key))]
+    (.configureBlocking socket false)
+    (.register socket selector SelectionKey/OP_READ
+               (atom {:in (ByteBuffer/allocate max-request)}))))
+
+(defn- select-loop
+  "### select-loop
+   This is the body of the API thread. Any tasks queued in the supplied task
+   queue are run first, then we wait for connections and service each one in
+   turn, until a task closes the selector."
+  [^Selector selector ^ConcurrentLinkedQueue tasks max-request]
+  (try
+    (while (.isOpen selector)
+      (loop []
+        (when-let [f (.poll tasks)]
+          (try (f)
+               (catch Exception e (.printStackTrace e)))
+          (recur)))
+      (when (.isOpen selector)
+        (.select selector)
+        (let [selected (.selectedKeys selector)]
+          (doseq [^SelectionKey key selected]
+            (try (when (and (.isValid key) (.isAcceptable key))
+                   (accept-key key selector max-request))
+                 (when (and (.isValid key) (.isReadable key))
+                   (read-key key))
+                 (when (and (.isValid key) (.isWritable key))
+                   (write-key key))
+                 (catch CancelledKeyException _ nil)
+                 (catch Exception e
+                   (.printStackTrace e)
+                   (close-key key))))
+          (.clear selected))))
+    (catch ClosedSelectorException _ nil)))
+
+(defn- close-all
+  "### close-all
+   This function closes every connection of the supplied selector, then the
+   selector itself. It must be run on the API thread."
+  [^Selector selector]
+  (doseq [^SelectionKey key (.keys selector)]
+    (try (.close (.channel key)) (catch IOException _ nil)))
+  (try (.close selector) (catch IOException _ nil)))
+
+(declare stop)
+
+(defn- listen
+  "### listen
+   This function opens a listening channel on the address and port in the
+   supplied settings, registered with a new selector, and returns both. If
+   the address can't be bound, both are closed and the exception is passed on
+   to the caller."
+  [{:keys [host port]}]
+  (let [selector (Selector/open)
+        server (ServerSocketChannel/open)]
+    (try (doto server
+           (.configureBlocking false)
+           (-> .socket (.bind (InetSocketAddress. ^String host (int port))))
+           (.register selector SelectionKey/OP_ACCEPT))
+         {:selector selector :server server}
+         (catch Exception e
+           (try (.close server) (catch IOException _ nil))
+           (try (.close selector) (catch IOException _ nil))
+           (throw e)))))
+
+(defn start
+  "### start
+   This function starts the API on its own thread, listening on the address and
+   port in the supplied settings, which are merged over the defaults above.
+   The API's statistics are registered with JMX as \"uk.org.il2ssd:type=Api\".
+
+   The new address is bound before any API which is already running is
+   stopped, so that if it can't be bound the running API carries on. Only an
+   API listening on the same address and port is stopped first, waiting up to
+   a second for it to close, to free the address for the new one."
+  [settings]
+  (let [{:keys [host port max-request] :as settings} (merge defaults settings)
+        old (:settings @running)]
+    (when (and old (= [host port] [(:host old) (:port old)]))
+      (some-> (stop) (deref 1000 nil)))
+    (let [{:keys [^Selector selector] :as channels} (listen settings)
+          tasks (ConcurrentLinkedQueue.)]
+      (stop)
+      (reset! running (assoc channels :settings settings :tasks tasks))
+      (jmx/register "type=Api" api-stats)
+      (doto (Thread. ^Runnable #(select-loop selector tasks max-request) "il2ssd-api")
+        (.setDaemon true)
+        (.start)))))
+
+(defn stop
+  "### stop
+   This zero argument function stops the API. The listening channel, every
+   connection and the selector are closed on the API thread. A promise is
+   returned which is delivered once they are closed, or nil if the API was not
+   running."
+  []
+  (when-let [{:keys [^Selector selector] :as api} @running]
+    (let [closed (promise)]
+      (on-selector api #(do (close-all selector)
+                            (deliver closed true)))
+      (reset! running nil)
+      (reset! subscribers #{})
+      (jmx/unregister "type=Api")
+      closed)))
@@ -0,0 +1,172 @@
+;;
+;; ## Ban registry
+;;
+;; Here we keep a local copy of each server's ban list, so that bans can be added,
+;; lifted and looked up without asking the server for the whole list every time.
+;;
+;; Each session holds the set of entries banned on its server. An entry is a
+;; vector of its type and value, either [:name "Pilot"] or [:ip "10.0.0.1"], so
+;; finding whether a name or address is banned is a single set lookup however long
+;; the list grows.
+;;
+;; Every change is applied to the set as a delta. The entries added and removed
+;; are passed to the on-change function, so that the UI can apply the same deltas
+;; to the ban list table rather than rebuilding it, wherever the change was made.
+;; The commands to make the same change on the server are queued in the session's
+;; outbox, which writes them in batches at its own pace, so a list of thousands of
+;; bans can be imported in one go.
+;;
+;; The server's list is only fetched in full to reconcile with it, for example
+;; after the list has been changed from somewhere else. The difference between the
+;; two lists is then applied as a single set of deltas.
+(ns uk.org.il2ssd.bans
+  (:require [clojure.java.io :as io]
+            [clojure.set :as set]
+            [clojure.string :as string]
+            [uk.org.il2ssd.channel :as channel]
+            [uk.org.il2ssd.server :as server]
+            [uk.org.il2ssd.state :as state]))
+
+(def response-timeout
+  "### response-timeout
+   This is the time in milliseconds that reconcile waits for the server's ban
+   list."
+  30000)
+
+(def on-change
+  "### on-change
+   This atom holds a function which is called, with the session in scope, with
+   each change to a ban registry: a map of the entries :added and :removed, or
+   of :cleared true. It does nothing unless the UI sets it."
+  (atom (fn [_])))
+
+(defn parse-entry
+  "### parse-entry
+   This one argument function returns the entry for the supplied line of a ban
+   list, as printed by the server or as written by export-bans. Surrounding
+   whitespace is ignored; a value in the form of an IPv4 address is an IP ban
+   and anything else is a name. A blank line has no entry."
+  [line]
+  (let [value (string/trim line)]
+    (when-not (string/blank? value)
+      (if (re-matches #"(\d{1,3}\.){3}\d{1,3}" value)
+        [:ip value]
+        [:name value]))))
+
+(defn banned?
+  "### banned?
+   This function returns true if the supplied entry, or the entry of the
+   supplied type and value, is banned on the server of the session in scope."
+  ([entry]
+   (contains? @(state/bans) entry))
+  ([type value]
+   (banned? [type value])))
+
+(defn entries
+  "### entries
+   This zero argument function returns every entry banned on the server of the
+   session in scope, sorted by type and value."
+  []
+  (sort @(state/bans)))
+
+(defn- change!
+  "### change!
+   This one argument function applies f to the registry of the session in
+   scope. f returns the new registry along with the entries it added and
+   removed. These changes are passed to on-change, if there are any, and
+   returned as a map of :added and :removed."
+  [f]
+  (let [registry (state/bans)
+        changes (loop []
+                  (let [old @registry
+                        [new added removed] (f old)]
+                    (if (compare-and-set! registry old new)
+                      {:added added :removed removed}
+                      (recur))))]
+    (when (or (seq (:added changes)) (seq (:removed changes)))
+      (@on-change changes))
+    changes))
+
+(defn seen!
+  "### seen!
+   This one argument function adds the supplied entry to the registry, as it
+   has been printed in a ban list by the server. Nothing is sent to the
+   server."
+  [entry]
+  (change! (fn [old]
+             (if (contains? old entry)
+               [old nil nil]
+               [(conj old entry) [entry] nil]))))
+
+(defn ban!
+  "### ban!
+   This one argument function bans every one of the supplied entries which is
+   not banned already, both in the registry and on the server."
+  [to-ban]
+  (let [{:keys [added] :as changes}
+        (change! (fn [old]
+                   (let [added (vec (distinct (remove old to-ban)))]
+                     [(into old added) added nil])))]
+    (doseq [[type value] added]
+      (server/ban :add type value))
+    changes))
+
+(defn lift!
+  "### lift!
+   This one argument function lifts the ban on every one of the supplied entries
+   which is banned, both in the registry and on the server."
+  [to-lift]
+  (let [{:keys [removed] :as changes}
+        (change! (fn [old]
+                   (let [removed (vec (distinct (filter old to-lift)))]
+                     [(reduce disj old removed) nil removed])))]
+    (doseq [[type value] removed]
+      (server/ban :rem type value))
+    changes))
+
+(defn clear!
+  "### clear!
+   This zero argument function lifts every ban, both in the registry and on the
+   server. The change is given as :cleared true rather than as a list of every
+   entry removed."
+  []
+  (reset! (state/bans) #{})
+  (server/ban :clear)
+  (@on-change {:cleared true})
+  {:cleared true})
+
+(defn reconcile!
+  "### reconcile!
+   This zero argument function fetches the ban list from the server and makes
+   the registry match it, returning the entries which were added and removed.
+   It waits for the server's reply, so it should not be called on a thread
+   which the reply depends on. If there is no reply nil is returned and the
+   registry is left as it was."
+  []
+  (when-let [lines (deref (server/get-bans) response-timeout nil)]
+    (let [server-entries (set (for [line lines
+                                    :when (re-matches channel/ban-pattern line)]
+                                (parse-entry line)))]
+      (change! (fn [old]
+                 [server-entries
+                  (vec (set/difference server-entries old))
+                  (vec (set/difference old server-entries))])))))
+
+(defn export-bans
+  "### export-bans
+   This one argument function writes every entry in the registry to the
+   supplied file, one value per line, and returns the number written."
+  [file]
+  (let [banned (entries)]
+    (with-open [writer (io/writer file :encoding "UTF-8")]
+      (doseq [[_ value] banned]
+        (.write writer (str value "\n"))))
+    (count banned)))
+
+(defn import-bans
+  "### import-bans
+   This one argument function bans every entry listed in the supplied file, one
+   value per line, which is not banned already."
+  [file]
+  (ban! (with-open [reader (io/reader file :encoding "UTF-8")]
+          (doall (keep parse-entry (line-seq reader))))))
@@ -0,0 +1,79 @@
+;;
+;; ## Blocking work
+;;
+;; Here we keep the executor on which every short-lived blocking call runs:
+;; connecting to and disconnecting from a server, running the DCG executable and
+;; waiting for the server to answer a request.
+;;
+;; None of these may run in a go block. The go blocks share a small fixed pool of
+;; threads with every transform of the console pipeline, so a connect attempt which
+;; waits out its timeout, or a slow DCG run, would hold one of those threads and
+;; could stall the console of every session.
+;;
+;; Where the JVM has virtual threads each task gets one of its own; otherwise the
+;; tasks share a cached pool of daemon threads, which grows as tasks block and
+;; shrinks again when they are idle.
+(ns uk.org.il2ssd.blocking
+  (:require [clojure.core.async :refer [>!! chan close!]])
+  (:import (java.lang.reflect InvocationTargetException Method)
+           (java.util.concurrent ExecutorService Executors ThreadFactory)
+           (java.util.concurrent.atomic AtomicLong)))
+
+(defn- virtual-executor
+  "### virtual-executor
+   This zero argument function returns an executor which starts a virtual
+   thread for each task, or nil if the JVM has no virtual threads, or has them
+   only as a preview which is not enabled. The method is looked up by name, as
+   it is not there to compile against on older JVMs."
+  []
+  (try
+    (let [^Method method (.getMethod Executors "newVirtualThreadPerTaskExecutor"
+                                     (make-array Class 0))]
+      (.invoke method nil (object-array 0)))
+    (catch NoSuchMethodException _ nil)
+    (catch InvocationTargetException _ nil)))
+
+(defn- pooled-executor
+  "### pooled-executor
+   This zero argument function returns a cached pool of daemon threads named
+   \"il2ssd-io-n\", so that they neither keep the program running nor get
+   mistaken for the go pool in a thread dump."
+  []
+  (let [counter (AtomicLong.)]
+    (Executors/newCachedThreadPool
+      (reify ThreadFactory
+        (newThread [_ runnable]
+          (doto (Thread. runnable (str "il2ssd-io-" (.incrementAndGet counter)))
+            (.setDaemon true)))))))
+
+(def ^ExecutorService executor
+  "### executor
+   This is the executor on which blocking work runs."
+  (or (virtual-executor) (pooled-executor)))
+
+(defn call
+  "### call
+   This one argument function runs the supplied zero argument function on the
+   blocking executor, with the bindings of the caller, which carry the session
+   in scope. It returns a channel which receives the result, unless it is nil,
+   and is then closed, as with core.async's thread. An exception is printed
+   rather than lost with the task."
+  [f]
+  (let [result (chan 1)
+        f (bound-fn* f)]
+    (.execute executor
+              (fn []
+                (let [value (try (f)
+                                 (catch Throwable t
+                                   (.printStackTrace t)
+                                   nil))]
+                  (when-not (nil? value)
+                    (>!! result value))
+                  (close! result))))
+    result))
+
+(defmacro thread
+  "### thread
+   This macro runs its body on the blocking executor, see call."
+  [& body]
+  `(call (fn [] ~@body)))
@@ -0,0 +1,407 @@
+;;
+;; ## Mission catalogue
+;;
+;; Here we keep a catalogue of every mission file under a server's Missions
+;; directory, so that a mission can be found by searching rather than by browsing
+;; the directory tree with a file chooser, which can take minutes on a large tree
+;; or a network volume.
+;;
+;; Each mission is catalogued by its path relative to the Missions directory, in
+;; the form the server expects in LOAD commands, along with its size, when it was
+;; last modified, and the details read from the mission itself: the map, the date
+;; and time of day, the weather and the number of home bases of each army.
+;;
+;; The catalogue is built by a thread of its own, so the UI never waits for it.
+;; The catalogue saved by the last run is shown first, and the files which have
+;; not changed since then keep their saved details, so only new or modified files
+;; are read again. Once built, the catalogue is kept up to date by a WatchService
+;; on every directory of the tree rather than by scanning it again. Only if the
+;; WatchService loses track of events is the tree scanned again in full.
+(ns uk.org.il2ssd.catalogue
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [clojure.string :as string])
+  (:import (java.io BufferedReader File IOException)
+           (java.nio.charset Charset)
+           (java.nio.file ClosedWatchServiceException CopyOption FileSystems
+                          FileVisitResult Files LinkOption Path Paths
+                          SimpleFileVisitor StandardCopyOption
+                          StandardWatchEventKinds WatchEvent WatchEvent$Kind
+                          WatchKey WatchService)
+           (java.nio.file.attribute BasicFileAttributes)
+           (java.util.concurrent TimeUnit)))
+
+(def cache-dir
+  "### cache-dir
+   This is the directory, under the working directory, to which the catalogue
+   of each Missions directory is saved between runs."
+  "catalogue")
+
+(def ^Charset mission-charset
+  "### mission-charset
+   This is the charset in which mission files are read. Missions are written in
+   whatever code page the mission builder's Windows used, so we read them as
+   ISO-8859-1, which maps every byte to a character. The keys and sections we
+   look for are ASCII and read the same in any of those code pages."
+  (Charset/forName "ISO-8859-1"))
+
+(defn mission-lines
+  "### mission-lines
+   This one argument function returns the lines of the mission file which the
+   supplied reader reads, with any byte order mark removed from the first line.
+   Read as ISO-8859-1, the UTF-8 mark which some editors write is three
+   characters rather than U+FEFF, so either form is removed."
+  [^BufferedReader reader]
+  (when-let [[line & more] (seq (line-seq reader))]
+    (cons (string/replace-first line #"^(?:\uFEFF|\u00EF\u00BB\u00BF)" "")
+          more)))
+
+(def weather
+  "### weather
+   This is the name of each cloud type which a mission can set, by number."
+  ["Clear" "Good" "Hazy" "Poor" "Blind" "Rain/Snow" "Thunder"])
+
+(def catalogues
+  "### catalogues
+   This atom holds a map of the path of each Missions directory which is
+   catalogued to its catalogue: a sorted map of the missions by relative path,
+   the status of the build and the WatchService which keeps it up to date."
+  (atom {}))
+
+(def on-change
+  "### on-change
+   This atom holds a function which is called with the path of a Missions
+   directory whenever its catalogue changes. It does nothing unless the UI sets
+   it."
+  (atom (fn [_])))
+
+(def ^:private publish-every
+  "### publish-every
+   This is the number of missions read while building a catalogue after which
+   they are added to the catalogue, so that a search shows them before the
+   build is finished."
+  500)
+
+;; ### Mission details
+
+(defn missions-dir
+  "### missions-dir
+   This one argument function returns the Missions directory of the server
+   whose il2server.exe is at the supplied path, or nil if there is no path."
+  ^Path [server-path]
+  (when server-path
+    (-> (Paths/get server-path (into-array String []))
+        (.getParent)
+        (.resolve "Missions"))))
+
+(defn- parse-number
+  [value]
+  (try (Double/parseDouble value)
+       (catch NumberFormatException _ nil)))
+
+(defn- add-detail
+  "### add-detail
+   This three argument function adds the detail given by the supplied line of
+   the supplied section of a mission file, if it is one we catalogue, to the
+   supplied details."
+  [details section ^String line]
+  (let [[key value] (when (#{"MAIN" "SEASON"} section)
+                      (string/split line #"\s+" 3))
+        number (when value (parse-number value))]
+    (case section
+      "MAIN" (case key
+               "MAP" (assoc details :map (first (string/split (str value) #"/")))
+               "TIME" (if number
+                        (assoc details :time (format "%02d:%02d"
+                                                     (long number)
+                                                     (long (* 60 (rem number 1)))))
+                        details)
+               "CloudType" (assoc details :weather (get weather (some-> number long)))
+               "CloudHeight" (assoc details :cloud-height (some-> number long))
+               details)
+      "SEASON" (if (and number (#{"Year" "Month" "Day"} key))
+                 (assoc-in details [:season key] (long number))
+                 details)
+      "BornPlace" (cond (.startsWith line "1 ") (update-in details [:red] inc)
+                        (.startsWith line "2 ") (update-in details [:blue] inc)
+                        :else details)
+      details)))
+
+(defn read-details
+  "### read-details
+   This one argument function reads the supplied mission file and returns the
+   details which we catalogue: the map, the date and time of day, the weather
+   and cloud height, and the number of home bases of each army as :red and
+   :blue."
+  [^Path file]
+  (with-open [^BufferedReader reader (Files/newBufferedReader
+                                       file mission-charset)]
+    (let [{:keys [season] :as details}
+          (loop [lines (mission-lines reader)
+                 section nil
+                 details {:red 0 :blue 0}]
+            (if-let [line (first lines)]
+              (let [line (string/trim line)]
+                (cond (string/blank? line) (recur (rest lines) section details)
+                      (.startsWith line "[") (recur (rest lines)
+                                                    (string/replace line #"[\[\]]" "")
+                                                    details)
+                      :else (recur (rest lines) section
+                                   (add-detail details section line))))
+              details))
+          {:strs [Year Month Day]} season]
+      (cond-> (dissoc details :season)
+        Year (assoc :date (str Year (when Month (format "-%02d" Month))
+                               (when (and Month Day) (format "-%02d" Day))))))))
+
+(defn- search-text
+  [{:keys [path map date weather]}]
+  (string/lower-case (string/join " " [path map date weather])))
+
+(defn- relative-path
+  [^Path root ^Path file]
+  (string/replace (str (.relativize root file)) "\\" "/"))
+
+(defn- mission-file?
+  [^Path file]
+  (.endsWith (string/lower-case (str (.getFileName file))) ".mis"))
+
+(defn- catalogue-file
+  "### catalogue-file
+   This function returns the catalogue entry for the supplied mission file
+   under the supplied Missions directory, which has the supplied attributes.
+   The supplied entry from the previous catalogue is kept if the file is the
+   same size and was last modified at the same time."
+  [^Path root ^Path file ^BasicFileAttributes attributes known]
+  (let [size (.size attributes)
+        modified (.toMillis (.lastModifiedTime attributes))]
+    (if (and known (= size (:size known)) (= modified (:modified known)))
+      known
+      (let [entry (assoc (try (read-details file)
+                              (catch IOException _ {}))
+                    :path (relative-path root file)
+                    :size size
+                    :modified modified)]
+        (assoc entry :text (search-text entry))))))
+
+;; ### Saved catalogues
+
+(defn- cache-file
+  "### cache-file
+   This one argument function returns the file to which the catalogue of the
+   supplied Missions directory is saved, in the cache directory."
+  ^File [root]
+  (io/file cache-dir (format "%08x.edn" (hash root))))
+
+(defn- load-saved
+  "### load-saved
+   This one argument function returns the catalogue of the supplied Missions
+   directory as it was last saved, or an empty catalogue if it has not been
+   saved or cannot be read."
+  [root]
+  (let [file (cache-file root)
+        saved (when (.isFile file)
+                (try (edn/read-string (slurp file :encoding "UTF-8"))
+                     (catch Exception _ nil)))]
+    (into (sorted-map)
+          (when (= root (:root saved))
+            (for [[path entry] (:missions saved)]
+              [path (assoc entry :text (search-text entry))])))))
+
+(defn- save!
+  "### save!
+   This one argument function saves the catalogue of the supplied Missions
+   directory to its file in the cache directory."
+  [root]
+  (let [file (cache-file root)
+        temp (io/file (str file ".tmp"))]
+    (.mkdirs (io/file cache-dir))
+    (spit temp (pr-str {:root     root
+                        :missions (into {} (for [[path entry] (get-in @catalogues
+                                                                      [root :missions])]
+                                             [path (dissoc entry :text)]))})
+          :encoding "UTF-8")
+    (Files/move (.toPath temp) (.toPath file)
+                (into-array CopyOption [StandardCopyOption/REPLACE_EXISTING]))))
+
+;; ### Building and watching
+
+(defn- changed!
+  "### changed!
+   This two argument function applies f to the missions catalogued for the
+   supplied Missions directory and calls on-change."
+  [root f]
+  (swap! catalogues update-in [root :missions] f)
+  (@on-change root))
+
+(defn- watch-dir
+  [^WatchService watcher watched ^Path dir]
+  (try
+    (let [key (.register dir watcher
+                         (into-array WatchEvent$Kind
+                                     [StandardWatchEventKinds/ENTRY_CREATE
+                                      StandardWatchEventKinds/ENTRY_DELETE
+                                      StandardWatchEventKinds/ENTRY_MODIFY]))]
+      (swap! watched assoc key dir))
+    (catch IOException _ nil)))
+
+(defn- scan
+  "### scan
+   This function walks the supplied directory under the supplied Missions
+   directory, watching every directory in it and cataloguing every mission
+   file. The missions are added to the catalogue in batches as they are read.
+   The missions found are returned as a map by relative path."
+  [root ^Path missions ^Path start ^WatchService watcher watched]
+  (let [known (get-in @catalogues [root :missions])
+        found (atom {})
+        batch (atom {})
+        publish #(let [missions @batch]
+                   (reset! batch {})
+                   (changed! root (fn [catalogue] (merge catalogue missions))))]
+    (Files/walkFileTree
+      start
+      (proxy [SimpleFileVisitor] []
+        (preVisitDirectory [dir _]
+          (watch-dir watcher watched dir)
+          FileVisitResult/CONTINUE)
+        (visitFile [file attributes]
+          (when (and (.isRegularFile ^BasicFileAttributes attributes)
+                     (mission-file? file))
+            (let [path (relative-path missions file)
+                  entry (catalogue-file missions file attributes (get known path))]
+              (swap! found assoc path entry)
+              (when-not (identical? entry (get known path))
+                (when (>= (count (swap! batch assoc path entry)) publish-every)
+                  (publish)))))
+          FileVisitResult/CONTINUE)
+        (visitFileFailed [_ _]
+          FileVisitResult/CONTINUE)))
+    (publish)
+    @found))
+
+(defn- rescan
+  "### rescan
+   This function catalogues the whole of the supplied Missions directory again,
+   dropping any mission which is no longer there."
+  [root ^Path missions watcher watched]
+  (let [found (scan root missions missions watcher watched)]
+    (changed! root (fn [_] (into (sorted-map) found)))))
+
+(defn- under?
+  [dir path]
+  (or (= path dir) (.startsWith ^String path (str dir "/"))))
+
+(defn- apply-event
+  "### apply-event
+   This function applies a single event from the WatchService to the
+   catalogue of the supplied Missions directory. A new directory is walked
+   and watched, anything deleted is dropped along with anything under it, and
+   a mission file which is created or modified is read again."
+  [root ^Path missions watcher watched ^Path dir ^WatchEvent event]
+  (let [^Path file (.resolve dir ^Path (.context event))
+        path (relative-path missions file)
+        kind (.kind event)]
+    (cond
+      (= kind StandardWatchEventKinds/ENTRY_DELETE)
+      (changed! root (fn [catalogue]
+                       (into (sorted-map)
+                             (remove #(under? path (key %)) catalogue))))
+
+      (Files/isDirectory file (make-array LinkOption 0))
+      (when (= kind StandardWatchEventKinds/ENTRY_CREATE)
+        (scan root missions file watcher watched))
+
+      (mission-file? file)
+      (try
+        (let [attributes (Files/readAttributes file BasicFileAttributes
+                                               ^"[Ljava.nio.file.LinkOption;"
+                                               (make-array LinkOption 0))]
+          (changed! root #(assoc % path (catalogue-file missions file attributes nil))))
+        (catch IOException _ nil)))))
+
+(defn- run
+  "### run
+   This function builds the catalogue of the supplied Missions directory and
+   then applies the changes reported by its WatchService until the WatchService
+   is closed. The catalogue is saved once built and again whenever it has been
+   quiet for a moment after a change."
+  [root ^Path missions ^WatchService watcher]
+  (let [watched (atom {})]
+    (try
+      (changed! root #(merge (load-saved root) %))
+      (rescan root missions watcher watched)
+      (swap! catalogues assoc-in [root :status] :ready)
+      (@on-change root)
+      (save! root)
+      (loop [dirty? false]
+        (if-let [^WatchKey key (.poll watcher 2 TimeUnit/SECONDS)]
+          (let [dir (get @watched key)
+                events (.pollEvents key)]
+            (if (some #(= StandardWatchEventKinds/OVERFLOW (.kind ^WatchEvent %)) events)
+              (rescan root missions watcher watched)
+              (when dir
+                (doseq [event events]
+                  (apply-event root missions watcher watched dir event))))
+            (when-not (.reset key)
+              (swap! watched dissoc key))
+            (recur true))
+          (do (when dirty? (save! root))
+              (recur false))))
+      (catch ClosedWatchServiceException _ nil)
+      (catch Exception e
+        (swap! catalogues assoc-in [root :status] :failed)
+        (@on-change root)
+        (.printStackTrace e)))))
+
+(defn open
+  "### open
+   This one argument function starts cataloguing the Missions directory of the
+   server whose il2server.exe is at the supplied path, unless it is already
+   catalogued, and returns the path of the Missions directory as used to look
+   up its catalogue. Nil is returned if there is no path or the Missions
+   directory does not exist."
+  [server-path]
+  (when-let [missions (missions-dir server-path)]
+    (when (Files/isDirectory missions (make-array LinkOption 0))
+      (let [root (str missions)]
+        (locking catalogues
+          (when-not (get @catalogues root)
+            (let [watcher (.newWatchService (FileSystems/getDefault))]
+              (swap! catalogues assoc root {:missions (sorted-map)
+                                            :status   :building
+                                            :watcher  watcher})
+              (doto (Thread. ^Runnable #(run root missions watcher)
+                             (str "il2ssd-catalogue-" (.getFileName missions)))
+                (.setDaemon true)
+                (.start)))))
+        root))))
+
+(defn close
+  "### close
+   This zero argument function stops watching every catalogued Missions
+   directory. The catalogues are kept as they were last saved."
+  []
+  (locking catalogues
+    (doseq [[_ {:keys [^WatchService watcher]}] @catalogues]
+      (.close watcher))
+    (reset! catalogues {})))
+
+;; ### Searching
+
+(defn search
+  "### search
+   This function returns the missions catalogued for the supplied Missions
+   directory whose path, map, date or weather contain every word of the
+   supplied text, ignoring case, sorted by path. At most limit missions are
+   returned, along with the number which matched in all as :total and the
+   status of the catalogue."
+  [root text limit]
+  (let [{:keys [missions status]} (get @catalogues root)
+        words (remove string/blank?
+                      (string/split (string/lower-case (str text)) #"\s+"))
+        matches (filter (fn [{:keys [^String text]}]
+                          (every? #(.contains text ^String %) words))
+                        (vals missions))]
+    {:missions (vec (take limit matches))
+     :total    (count matches)
+     :status   status}))
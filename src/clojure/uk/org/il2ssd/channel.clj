@@ -4,6 +4,9 @@
 ;; output concurrently. The initial input channel will receive one line at a time from
 ;; the server socket.
 ;;
+;; Every session builds its own pipeline of these channels, so that the console
+;; output of each server is processed independently of the others.
+;;
 ;; We are using channels with a buffer of ten values. This means that once ten values
 ;; are placed on a channel, further puts onto that channel block until a value is
 ;; taken from the channel.
@@ -15,124 +18,340 @@
 ;; If we didn't do this, each value would only be available on a "first come, first
 ;; served" basis.
 ;;
-;; Various "taps" are then defined. These are the channels which each receive a copy
-;; of every input onto the mult.
+;; The mult has two taps, which we call consumers: one which prints every line to the
+;; console, and one which classifies each line as a typed event for the event
+;; listener.
 ;;
 ;; Each put onto the mult must be taken by every tap before the next put can be taken.
-;; This means that slow or unresponsive tapping processes can slow or even halt the
-;; program.
+;; This means that a slow consumer could hold up every other consumer. To prevent
+;; this, each consumer's tap has its own buffer policy:
+;;
+;; * `:block` - the buffer is lossless; once it is full the mult waits for it.
+;; * `:sliding` - once the buffer is full the oldest line is dropped for each new one.
+;; * `:dropping` - once the buffer is full new lines are dropped.
+;;
+;; The console printer uses a sliding buffer, since it is better to skip some chat
+;; when the console falls behind than to delay mission and pilot events. The event
+;; consumer must see every line, so its buffer blocks.
+;;
+;; Each consumer's buffer counts the lines it drops, and its depth can be read at
+;; any time, see consumer-stats.
+;;
+;; Every command sent to the server is queued as an outstanding request. The server
+;; ends its response to each command with a prompt line, so the lines between two
+;; prompts are the response to the oldest outstanding request. Each line is tagged
+;; with the command it answers before it reaches the mult, and each request's
+;; promise is delivered with its response lines when the prompt arrives. Commands
+;; can therefore be sent back to back without waiting for each other's output.
+;;
+;; Each pipeline keeps metrics for the stages its lines pass through, along with the
+;; round trip time of each command, see the metrics namespace. The depth of each
+;; channel in the pipeline can be read at any time, see pipeline-stats.
 ;;
-;; Because we are using buffered channels, up to ten items can be put onto the mult
-;; before further puts will block until every channel has taken the oldest put.
+;; Classification is a single pass over each line. The first character of a line
+;; tells us which event, if any, the line could be, so at most two of the event
+;; patterns below are ever tried against a line. Lines which could not be any event
+;; are rejected on their first character without running a regex at all.
 (ns uk.org.il2ssd.channel
   (:require [clojure.core.async :refer [close! chan filter< mult remove<
-                                        tap untap-all pipe map>]]))
-
-(defn filter-pipe
-  ([from to type & regexes]
-   (pipe
-     (filter<
-       (fn [x] (some #(re-matches % x) regexes))
-       (tap from (chan 10)))
-     (map>
-       #(assoc {} :type type :value %)
-       to))))
-
-(def in-channel
-  "### in-channel
-   This is the input channel from the Il-2 dedicated server console. It receives values
-   one line at a time from the server socket."
-  (chan 10))
-
-(def mult-channel
-  "### mult-channel
-   This mult channel filters the input values from in-channel above. We filter the
-   channel to accept only lines which don't begin with the server console prompt
-   text, so that only genuine output from the console is used in later processing."
-  (mult
-    (remove<
-      #(re-matches #"<consoleN><\d++>" %)
-      in-channel)))
-
-(def event-channel
-  (chan 10))
-
-(def print-channel
-  "### print-channel
-   This channel taps mult-channel, and is used to print directly to the server console
-   text area control."
-  (tap mult-channel (chan 10)))
-
-(def diff-pipe
-  "### diff-channel
-   This channel taps mult-channel, and filters for lines which consist of two
-   spaces, followed by a single word, followed by a single number which is either
-   0 or 1, followed by a newline character. This is the exact format used to print
-   difficulty settings by the server console.
-
-   This channel is used to parse difficulty settings from the server console output."
-  (filter-pipe
-    mult-channel
-    event-channel
-    :diff
-    #"\s{2}\w+\s*+[0-1]\n"))
-
-(def mis-pipe
-  "### mis-channel
-   This channel taps mult-channel, and filters for lines which contain the three
-   mission status lines. This channel is used to parse mission load, begin, end
-   and unload events from the server console output."
-  (filter-pipe
-    mult-channel
-    event-channel
-    :mis
-    #"(Mission){1}:?+\s.+\S++\n"))
-
-(def pilot-pipe
-  "### pilot-channel"
-  (filter-pipe
-    mult-channel
-    event-channel
-    :pilot
-    #"(socket channel){1}\s'\d++'.+is complete created\n"
-    #"(socketConnection with){1}.+on channel \d++ lost\..+\n"))
-
-(def ban-pipe
-  (filter-pipe
-    mult-channel
-    event-channel
-    :ban
-    #"\s{2}.+\n"))
-
-(def user-pipe
-  (filter-pipe
-    mult-channel
-    event-channel
-    :user
-    #"\s\d++\s++.+\s++\d++\s++\d++\s++\(\d\).+\n"))
-
-(def host-pipe
-  (filter-pipe
-    mult-channel
-    event-channel
-    :host
-    #"\s\d++:\s.+\s\[\d++\](\d{1,3}\.?){4}:\d++\n"))
-
-(def error-pipe
-  "### err-channel
-   This channel taps mult-channel, and filters for lines which contain the
-   mission load error text. This channel is used to set the mission status
-   to unloaded when the user tries to load an invalid mission path."
-  (filter-pipe
-    mult-channel
-    event-channel
-    :error
-    #"ERROR mission:.+NOT loaded" ))
+                                        tap pipe map<]]
+            [clojure.core.async.impl.protocols :as impl]
+            [uk.org.il2ssd.metrics :as metrics])
+  (:import (java.util ArrayList LinkedList)
+           (java.util.concurrent ConcurrentLinkedQueue)
+           (java.util.concurrent.atomic AtomicLong)
+           (clojure.core.async.impl.channels ManyToManyChannel)))
+
+;; ### Consumer buffers
+
+(deftype ConsumerBuffer [^LinkedList buf ^long n policy ^AtomicLong dropped]
+  impl/Buffer
+  (full? [_]
+    (and (= policy :block)
+         (>= (.size buf) n)))
+  (remove! [_]
+    (.removeLast buf))
+  (add! [_ itm]
+    (if (< (.size buf) n)
+      (.addFirst buf itm)
+      (do (.incrementAndGet dropped)
+          (when (= policy :sliding)
+            (.removeLast buf)
+            (.addFirst buf itm)))))
+  clojure.lang.Counted
+  (count [_]
+    (.size buf)))
+
+(defn consumer-buffer
+  "### consumer-buffer
+   This two argument function returns a channel buffer of size n which follows
+   the supplied policy, one of `:block`, `:sliding` or `:dropping`, and counts
+   the values it drops."
+  [n policy]
+  {:pre [(#{:block :sliding :dropping} policy)]}
+  (ConsumerBuffer. (LinkedList.) n policy (AtomicLong.)))
+
+(def consumers
+  "### consumers
+   This is a map of the default buffer size and policy for each consumer of the
+   console output."
+  {:print {:size 1000 :policy :sliding}
+   :event {:size 10 :policy :block}})
+
+(defn- consumer-tap
+  "### consumer-tap
+   This function taps the mult with a channel whose buffer follows the supplied
+   consumer settings. It returns the channel and its buffer."
+  [mult-channel {:keys [size policy]}]
+  (let [buffer (consumer-buffer size policy)]
+    [(tap mult-channel (chan buffer)) buffer]))
+
+(defn consumer-stats
+  "### consumer-stats
+   This one argument function returns a map of the queue depth and the number
+   of dropped lines for each consumer of the supplied pipeline, for example:
+
+       {:print {:depth 12 :dropped 340}
+        :event {:depth 0 :dropped 0}}"
+  [{:keys [buffers]}]
+  (into {} (for [[consumer ^ConsumerBuffer buffer] buffers]
+             [consumer {:depth   (count buffer)
+                        :dropped (.get ^AtomicLong (.dropped buffer))}])))
+
+;; ### Event patterns
+;;
+;; diff-pattern matches lines which consist of two spaces, followed by a single
+;; word, followed by a single number which is either 0 or 1, followed by a newline
+;; character. This is the exact format used to print difficulty settings by the
+;; server console.
+;;
+;; mis-pattern matches the three mission status lines. It is used to parse mission
+;; load, begin, end and unload events.
+;;
+;; error-pattern matches the mission load error text. It is used to set the mission
+;; status to unloaded when the user tries to load an invalid mission path.
+
+(def prompt-pattern #"<consoleN><\d++>")
+(def diff-pattern #"\s{2}\w+\s*+[0-1]\n")
+(def mis-pattern #"(Mission){1}:?+\s.+\S++\n")
+(def pilot-join-pattern #"(socket channel){1}\s'\d++'.+is complete created\n")
+(def pilot-lost-pattern #"(socketConnection with){1}.+on channel \d++ lost\..+\n")
+(def ban-pattern #"\s{2}.+\n")
+(def user-pattern #"\s\d++\s++.+\s++\d++\s++\d++\s++\(\d\).+\n")
+(def host-pattern #"\s\d++:\s.+\s\[\d++\](\d{1,3}\.?){4}:\d++\n")
+(def error-pattern #"ERROR mission:.+NOT loaded")
+
+(defn prompt?
+  "### prompt?
+   This one argument function returns true if the supplied line is the server
+   console prompt text. The prompt is recognised by its first character before
+   the pattern is tried."
+  [^String line]
+  (boolean (and (.startsWith line "<")
+                (re-matches prompt-pattern line))))
+
+(defn classify
+  "### classify
+   This two argument function returns the event type of the supplied console
+   line, or nil if the line is not an event.
+
+   The first character of the line selects the patterns to try:
+
+   * `M` - a mission status line.
+   * `s` - a pilot joining or leaving.
+   * `E` - a mission load error.
+   * whitespace then whitespace - a difficulty setting or a ban list entry.
+   * whitespace then a digit - a host or user details line.
+
+   Difficulty settings and ban list entries can look alike, since a banned name
+   may be a word followed by a 0 or 1. A line in the difficulty format is a ban
+   list entry when it answers the supplied command and that command was the ban
+   list request."
+  [^String line command]
+  (when (> (.length line) 1)
+    (let [first-char (.charAt line 0)
+          second-char (.charAt line 1)]
+      (cond
+        (= first-char \M)
+        (when (re-matches mis-pattern line) :mis)
+
+        (= first-char \s)
+        (when (or (re-matches pilot-join-pattern line)
+                  (re-matches pilot-lost-pattern line))
+          :pilot)
+
+        (= first-char \E)
+        (when (re-matches error-pattern line) :error)
+
+        (not (Character/isWhitespace first-char))
+        nil
+
+        (Character/isWhitespace second-char)
+        (cond
+          (and (re-matches diff-pattern line)
+               (not= command "ban")) :diff
+          (re-matches ban-pattern line) :ban)
+
+        (Character/isDigit second-char)
+        (cond
+          (re-matches host-pattern line) :host
+          (re-matches user-pattern line) :user)))))
+
+;; ### Requests
+
+(defn new-request
+  "### new-request
+   This one argument function returns an outstanding request for the supplied
+   command. Its response is a promise of the vector of lines which the server
+   prints in reply, or nil if the request is abandoned."
+  [command]
+  {:command  command
+   :response (promise)})
+
+(defn cancel-requests
+  "### cancel-requests
+   This one argument function abandons every outstanding request in the supplied
+   queue, delivering nil to each response so that nothing waits on a server
+   which will not reply."
+  [^ConcurrentLinkedQueue requests]
+  (loop []
+    (when-let [{:keys [response]} (.poll requests)]
+      (deliver response nil)
+      (recur))))
+
+(defn correlator
+  "### correlator
+   This two argument function returns a function which must be called on each
+   console line in the order the lines arrive. It returns the line tagged with
+   the command of the oldest outstanding request in the supplied queue, or a nil
+   command if no request is outstanding, and with the System nanoTime at which
+   it was tagged.
+
+   When the line is a prompt, the oldest request is taken from the queue and its
+   response is delivered with the lines collected since the previous prompt. Its
+   round trip is recorded in the supplied metrics, which may be nil. The prompt
+   itself is tagged so that it can be removed before the mult."
+  [^ConcurrentLinkedQueue requests metrics]
+  (let [lines (ArrayList.)]
+    (fn [line]
+      (if (prompt? line)
+        (do (when-let [{:keys [response queued]} (.poll requests)]
+              (deliver response (vec lines))
+              (metrics/round-trip! metrics queued))
+            (.clear lines)
+            {:line line :prompt true})
+        (let [{:keys [command]} (.peek requests)]
+          (when command
+            (.add lines line))
+          {:line line :command command :at (System/nanoTime)})))))
+
+;; ### Pipeline
+
+(defn new-pipeline
+  "### new-pipeline
+   This function builds the channels for one server console and returns a map of
+   the channels that the rest of the program uses, along with the buffer of each
+   consumer and the queue of outstanding requests.
+
+   A map of consumer settings may be supplied, which is merged over the defaults
+   in consumers above.
+
+   #### in-channel
+   This is the input channel from the Il-2 dedicated server console. It receives
+   values one line at a time from the server socket.
+
+   #### requests
+   This is the queue of outstanding requests, in the order their commands were
+   sent to the server, see correlator above.
+
+   #### mult-channel
+   This mult channel receives each line from in-channel above tagged with the
+   command it answers. Prompt lines complete the oldest request and are then
+   filtered out, so that only genuine output from the console is used in later
+   processing.
+
+   #### event-channel
+   This channel receives one event for every line which classify recognises,
+   tagged with the type of the event and the command the line answers. Its
+   metadata holds the System nanoTime at which it was classified under :at.
+
+   #### print-channel
+   This channel taps mult-channel, and is used to print each line directly to
+   the server console.
+
+   The mult-channel itself is returned too, so that other consumers such as the
+   console journal can tap it while they run.
+
+   #### metrics
+   These are the pipeline's stage timings, round trip times and event counts,
+   see the metrics namespace. The transport and the event listener record their
+   own stages in them."
+  ([]
+   (new-pipeline nil))
+  ([settings]
+   (let [settings (merge-with merge consumers settings)
+         in-channel (chan 10)
+         requests (ConcurrentLinkedQueue.)
+         metrics (metrics/new-metrics)
+         mult-channel (mult (remove< :prompt
+                                     (map< (correlator requests metrics)
+                                           in-channel)))
+         event-channel (chan 10)
+         [print-tap print-buffer] (consumer-tap mult-channel (:print settings))
+         [event-tap event-buffer] (consumer-tap mult-channel (:event settings))]
+     ;; Every line is mapped to an event, even if it has no type, because a nil
+     ;; from map< would be taken as the channel closing.
+     (pipe
+       (filter<
+         :type
+         (map<
+           (fn [{:keys [line command at]}]
+             (metrics/since! metrics :fanout at)
+             (let [type (metrics/timed metrics :classify (classify line command))]
+               (metrics/count-line! metrics type)
+               (with-meta {:type type :value line :command command}
+                          {:at (System/nanoTime)})))
+           event-tap))
+       event-channel)
+     {:in-channel    in-channel
+      :event-channel event-channel
+      :print-channel (map< :line print-tap)
+      :mult-channel  mult-channel
+      :requests      requests
+      :metrics       metrics
+      :buffers       {:print print-buffer
+                      :event event-buffer}})))
+
+(defn channel-depth
+  "### channel-depth
+   This one argument function returns the number of values waiting in the
+   buffer of the supplied channel, or 0 if the channel has no buffer which can
+   be read."
+  [ch]
+  (if (instance? ManyToManyChannel ch)
+    (count (.buf ^ManyToManyChannel ch))
+    0))
+
+(defn pipeline-stats
+  "### pipeline-stats
+   This one argument function returns a map of statistics for the supplied
+   pipeline: the depth of its channels, the consumer statistics above, the
+   number of outstanding requests and the statistics of its metrics."
+  [{:keys [in-channel event-channel ^ConcurrentLinkedQueue requests metrics]
+    :as pipeline}]
+  (merge {:depths    {:in    (channel-depth in-channel)
+                      :event (channel-depth event-channel)}
+          :consumers (consumer-stats pipeline)
+          :requests  (.size requests)}
+         (when metrics
+           (metrics/metrics-stats metrics))))
 
 (defn close-channels
   "### close-channels
-   This function closes all channels so that pending operations don't block
-   and can end successfully."
-  []
+   This function closes the channels of the supplied pipeline so that pending
+   operations don't block and can end successfully. Any outstanding requests are
+   abandoned."
+  [{:keys [in-channel event-channel requests]}]
   (close! in-channel)
-  (close! event-channel))
\ No newline at end of file
+  (close! event-channel)
+  (cancel-requests requests))
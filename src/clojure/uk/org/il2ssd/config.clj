@@ -4,7 +4,8 @@
 ;; Here we define functions to build config files and to save and load these
 ;; files.
 (ns uk.org.il2ssd.config
-  (:require [clojure.string :as string]
+  (:require [clojure.edn :as edn]
+            [clojure.string :as string]
             [com.brainbot.iniconfig :as iniconfig])
   (:import (clojure.lang PersistentArrayMap PersistentVector)
            (java.io File FileNotFoundException)))
@@ -43,6 +44,55 @@
 (def pilot-settings
   (atom nil))
 
+(def console-settings
+  "### console-settings
+   This is an atom to hold a map of the console settings so that they can be
+   saved in the main \"il2ssd.ini\" config file. The scrollback is the number
+   of lines which each session's console keeps."
+  (atom {"Scrollback" "100000"}))
+
+(def api-settings
+  "### api-settings
+   This is an atom to hold a map of the HTTP API settings so that they can be
+   saved in the main \"il2ssd.ini\" config file. The API is only started when
+   it is enabled, and listens on the local address unless told otherwise. No
+   operation is allowed until a token is set, and web pages may only use the
+   API from the origins listed, separated by spaces."
+  (atom {"Enabled" "false" "Address" "127.0.0.1" "Port" "8021"
+         "Token" "" "Origins" ""}))
+
+(def journal-settings
+  "### journal-settings
+   This is an atom to hold a map of the console journal settings so that they
+   can be saved in the main \"il2ssd.ini\" config file. Each server's console
+   output is journalled under the directory while the journal is enabled; see
+   the journal namespace for the other settings."
+  (atom {"Enabled"        "false"
+         "Directory"      "journal"
+         "Segment MB"     "16"
+         "Roll Hours"     "6"
+         "Compress Hours" "24"
+         "Retain Days"    "7"}))
+
+(def players-settings
+  "### players-settings
+   This is an atom to hold a map of the player statistics settings so that they
+   can be saved in the main \"il2ssd.ini\" config file. Every pilot's sessions
+   are recorded under the directory while the statistics are enabled; see the
+   players namespace."
+  (atom {"Enabled"       "true"
+         "Directory"     "players"
+         "Flush Seconds" "5"}))
+
+(def admission-settings
+  "### admission-settings
+   This is an atom to hold a map of the admission settings so that they can be
+   saved in the main \"il2ssd.ini\" config file. Every joining pilot is checked
+   against the rules in the rules file while admission is enabled; see the
+   admission namespace."
+  (atom {"Enabled"    "false"
+         "Rules File" "admission.edn"}))
+
 (def saved-difficulties
   "### saved-difficulties
    This is an atom to hold the difficulty settings loaded from a saved difficulty
@@ -164,6 +214,110 @@
   [pilot-upd]
   (swap! pilot-settings assoc "Update Interval" pilot-upd))
 
+(defn load-console
+  "### load-console
+   This one argument function loads the console settings from the nested data
+   structure retrieved from the config file into the console-settings atom."
+  [file]
+  (swap! console-settings merge (get file "Console")))
+
+(defn scrollback
+  "### scrollback
+   This zero argument function returns the configured console scrollback as a
+   positive number of lines, falling back to 100000 lines if the setting is not
+   a valid number."
+  []
+  (let [lines (try (Integer/parseInt (get @console-settings "Scrollback"))
+                   (catch NumberFormatException _ 0))]
+    (if (pos? lines) lines 100000)))
+
+(defn load-api
+  "### load-api
+   This one argument function loads the HTTP API settings from the nested data
+   structure retrieved from the config file into the api-settings atom."
+  [file]
+  (swap! api-settings merge (get file "API")))
+
+(defn api
+  "### api
+   This zero argument function returns the settings to start the HTTP API with,
+   or nil if the API is not enabled. An invalid port falls back to 8021."
+  []
+  (let [{:strs [Enabled Address Port Token Origins]} @api-settings]
+    (when (= Enabled "true")
+      {:host    Address
+       :port    (try (Integer/parseInt Port)
+                     (catch NumberFormatException _ 8021))
+       :token   (when-not (string/blank? Token) (string/trim Token))
+       :origins (set (remove string/blank? (string/split (str Origins) #"\s+")))})))
+
+(defn load-journal
+  "### load-journal
+   This one argument function loads the console journal settings from the
+   nested data structure retrieved from the config file into the
+   journal-settings atom."
+  [file]
+  (swap! journal-settings merge (get file "Journal")))
+
+(defn journal
+  "### journal
+   This zero argument function returns the settings to journal each server's
+   console with, or nil if the journal is not enabled. Any setting which is not
+   a valid positive number is left to the journal's default."
+  []
+  (let [settings @journal-settings
+        number (fn [key scale]
+                 (let [n (try (Long/parseLong (get settings key))
+                              (catch NumberFormatException _ 0))]
+                   (when (pos? n) (* n scale))))]
+    (when (= (get settings "Enabled") "true")
+      (into {:directory (get settings "Directory" "journal")}
+            (for [[key setting scale] [[:segment-bytes "Segment MB" (* 1024 1024)]
+                                       [:roll-hours "Roll Hours" 1]
+                                       [:compress-hours "Compress Hours" 1]
+                                       [:retain-hours "Retain Days" 24]]
+                  :let [n (number setting scale)]
+                  :when n]
+              [key n])))))
+
+(defn load-players
+  "### load-players
+   This one argument function loads the player statistics settings from the
+   nested data structure retrieved from the config file into the
+   players-settings atom."
+  [file]
+  (swap! players-settings merge (get file "Players")))
+
+(defn player-store
+  "### player-store
+   This zero argument function returns the settings to start the player
+   statistics store with, or nil if the statistics are not enabled. An invalid
+   flush interval falls back to the store's default."
+  []
+  (let [{:strs [Enabled Directory] :as settings} @players-settings
+        seconds (try (Long/parseLong (get settings "Flush Seconds"))
+                     (catch NumberFormatException _ 0))]
+    (when (= Enabled "true")
+      (cond-> {:directory Directory}
+        (pos? seconds) (assoc :flush-ms (* seconds 1000))))))
+
+(defn load-admission
+  "### load-admission
+   This one argument function loads the admission settings from the nested
+   data structure retrieved from the config file into the admission-settings
+   atom."
+  [file]
+  (swap! admission-settings merge (get file "Admission")))
+
+(defn admission-rules
+  "### admission-rules
+   This zero argument function returns the path of the admission rules file,
+   or nil if admission is not enabled."
+  []
+  (let [{:strs [Enabled] :as settings} @admission-settings]
+    (when (= Enabled "true")
+      (get settings "Rules File" "admission.edn"))))
+
 (defn build-config-file
 [& args]
   (let [newln (System/lineSeparator)]
@@ -193,7 +347,17 @@
                            "[DCG]"
                            @dcg-settings
                            "[Pilots]"
-                           @pilot-settings)))
+                           @pilot-settings
+                           "[Console]"
+                           @console-settings
+                           "[API]"
+                           @api-settings
+                           "[Journal]"
+                           @journal-settings
+                           "[Players]"
+                           @players-settings
+                           "[Admission]"
+                           @admission-settings)))
 
 (defn read-config-file
   "### read-config-file
@@ -212,6 +376,19 @@
     (iniconfig/read-ini "il2ssd.ini")
     (catch FileNotFoundException _ nil)))
 
+(defn cycle-missions
+  "### cycle-missions
+   This one argument function reads the mission cycle from the nested data
+   structure retrieved from the config file. The missions are returned in cycle
+   order as a vector of maps with :mission and :timer keys."
+  [file]
+  (loop [index 0
+         missions []]
+    (if-let [saved-mission (get-in file ["Cycle" (str index)])]
+      (let [[mission timer] (edn/read-string saved-mission)]
+        (recur (inc index) (conj missions {:mission mission :timer timer})))
+      missions)))
+
 (defn get-configuration
   "### get-configuration
    This one argument function takes values from the nested data structure
@@ -225,8 +402,8 @@
     :server-path-lbl (get-in file ["Server" "Path"] "...")
     :mode-choice (get-in file ["Mission" "Mode"] "single")
     :single-path-lbl (get-in file ["Mission" "Single Mission"] "...")
-    :cycle-data (get file "Cycle" "")
+    :cycle-data (cycle-missions file)
     :dcg-timer-toggle (get-in file ["DCG" "Timer Enabled"] "false")
     :dcg-timer-fld (get-in file ["DCG" "Timer Minutes"] "")
     :dcg-path-lbl (get-in file ["DCG" "DCG Executable"] "...")
-    :pilot-upd-fld (get-in file ["Pilots" "Update Interval"] "10")))
\ No newline at end of file
+    :pilot-upd-fld (get-in file ["Pilots" "Update Interval"] "10")))
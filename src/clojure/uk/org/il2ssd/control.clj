@@ -0,0 +1,424 @@
+;;
+;; ## Mission control
+;;
+;; Here we keep each session's mission state in step with the server console, and
+;; run the mission cycle and DCG mission generation for it.
+;;
+;; Nothing in this namespace touches a UI toolkit, so that it can be driven either
+;; by the JavaFX UI or by the headless daemon. Anything which the UI and the daemon
+;; keep differently is read from the session's data map:
+;;
+;; * :cycle-missions is a zero argument function which returns the missions of the
+;;   cycle as a vector of maps with :mission and :timer keys.
+;; * :dcg-minutes is a zero argument function which returns the number of minutes
+;;   after which the next DCG mission is generated, as a string.
+;;
+;; Both are called with the session in scope.
+(ns uk.org.il2ssd.control
+  (:require [clojure.string :as string]
+            [clj-commons-exec :as exec]
+            [uk.org.il2ssd.blocking :as blocking]
+            [uk.org.il2ssd.catalogue :as catalogue]
+            [uk.org.il2ssd.event.scheduler :as schedule]
+            [uk.org.il2ssd.metrics :as metrics]
+            [uk.org.il2ssd.parse :refer [mission-parser parse-text]]
+            [uk.org.il2ssd.preflight :as preflight]
+            [uk.org.il2ssd.server :as server]
+            [uk.org.il2ssd.state :as state])
+  (:import (java.io BufferedReader)
+           (java.nio.charset Charset)
+           (java.nio.file CopyOption Files LinkOption Path Paths
+                          StandardCopyOption)
+           (java.util.regex Pattern)))
+
+;; ### Mission state
+
+(defn parse-event
+  "### parse-event
+   This two argument function parses the text of a console event with the
+   supplied parser, see parse/parse-text, and records the time taken in the
+   metrics of the session's pipeline."
+  [parser text]
+  (metrics/timed (:metrics (state/channels)) :parse
+    (parse-text parser text)))
+
+(defn mission-event
+  "### mission-event
+   This one argument function updates the mission state of the session in scope
+   from a line of mission command output.
+
+   If the line names a mission we know that a mission is loaded, and its state
+   tells us whether it is playing. Otherwise the line may tell us that no mission
+   is loaded.
+
+   The parsed line is returned."
+  [text]
+  (reset! (state/loading) false)
+  (let [parsed (parse-event mission-parser text)
+        {:keys [path mission state]} parsed]
+    (if mission
+      (do (when (= (str path mission) @(state/dcg-mission-path))
+            (reset! (state/dcg-running) true))
+          (when (= state "Loaded")
+            (reset! (state/loaded) true)
+            (reset! (state/playing) false))
+          (when (= state "Playing")
+            (reset! (state/loaded) true)
+            (reset! (state/playing) true)))
+      (when (= state "NOT loaded")
+        (reset! (state/dcg-running) false)
+        (reset! (state/loaded) false)
+        (reset! (state/playing) false)))
+    parsed))
+
+(defn reply-playing?
+  "### reply-playing?
+   This one argument function returns true if the supplied reply to the mission
+   state request, see server/get-mission-state, reports that a mission is
+   playing. The reply lines are parsed here rather than read from the playing
+   atom, because the reply is delivered as soon as its prompt arrives, before
+   its mission event has been through the event listener."
+  [lines]
+  (= "Playing" (:state (last (keep mission-parser lines)))))
+
+(declare next-mission stop-cycle)
+
+(defn load-failed
+  "### load-failed
+   This zero argument function is called when the server reports that a mission
+   failed to load. The session's mission is no longer loaded, and if a mission
+   cycle is running we skip to the next mission."
+  []
+  (reset! (state/loading) false)
+  (reset! (state/loaded) false)
+  (reset! (state/playing) false)
+  (when @(state/cycle-running)
+    (next-mission false)))
+
+;; ### Mission cycle
+
+(defn cycle-missions
+  "### cycle-missions
+   This zero argument function returns the missions of the cycle for the session
+   in scope."
+  []
+  (if-let [missions (:cycle-missions (state/data))]
+    (vec (missions))
+    []))
+
+(defn cycle-problem
+  "### cycle-problem
+   This one argument function checks the supplied cycle mission of the session
+   in scope before it is loaded, see the preflight namespace, and returns the
+   problem found, or nil if it can be loaded."
+  [{:keys [mission]}]
+  (preflight/mission-problem @(state/server-path) mission))
+
+(defn- loadable-index
+  "### loadable-index
+   This two argument function returns the index of the first of the supplied
+   cycle missions, from the supplied index on and coming round to the start,
+   which passes its pre-flight check, or nil if none does. Each mission
+   passed over is reported."
+  [missions start]
+  (let [total (count missions)]
+    (loop [offset 0]
+      (when (< offset total)
+        (let [index (mod (+ start offset) total)
+              cycle-mission (get missions index)]
+          (if-let [problem (cycle-problem cycle-mission)]
+            (do (println (str "Skipping cycle mission " (:mission cycle-mission)
+                              ": " (preflight/describe problem)))
+                (recur (inc offset)))
+            index))))))
+
+(defn load-cycle-mis
+  "### load-cycle-mis
+   This function gets the cycle mission at the current cycle index and loads
+   the mission. It schedules the next-mission function to trigger after the timer
+   specified for the current mission and stores this scheduled event so that it
+   may be cancelled later.
+
+   A mission which fails its pre-flight check is skipped without being sent to
+   the server, and the cycle index moves on to the next mission which passes.
+   If no mission in the cycle passes, the cycle is stopped."
+  []
+  (let [missions (cycle-missions)]
+    (when (seq missions)
+      (if-let [index (loadable-index missions @(state/cycle-index))]
+        (let [{:keys [mission timer]} (get missions index)]
+          (reset! (state/cycle-index) index)
+          (reset! (state/loading) true)
+          (server/load-begin-mission mission)
+          (schedule/schedule-mission #(next-mission true) timer))
+        (do (println "No mission in the cycle can be loaded, stopping the cycle")
+            (stop-cycle))))))
+
+(defn next-mission
+  "### next-mission
+   This one argument function increments the index and loads the mission at
+   that index, unless the initial index was the last index, in which case the
+   index is reset to 0 before loading.
+   If this was not a scheduled load event, the active scheduled load event
+   is cancelled - the user has chosen to override the scheduler by pressing
+   the next button, or loading the mission at the previous index has failed."
+  [scheduled]
+  (when-not scheduled
+    (schedule/stop-scheduled-mis))
+  (let [last-mission (dec (count (cycle-missions)))]
+    (if (>= @(state/cycle-index) last-mission)
+      (reset! (state/cycle-index) 0)
+      (swap! (state/cycle-index) inc))
+    (load-cycle-mis)))
+
+(defn start-cycle
+  "### start-cycle
+   This function resets the cycle-running atom and loads the first
+   cycle mission. Every mission in the cycle which fails its pre-flight check
+   is reported first, so that all of them can be fixed at once."
+  []
+  (doseq [cycle-mission (cycle-missions)
+          :let [problem (cycle-problem cycle-mission)]
+          :when problem]
+    (println (str "Cycle mission " (:mission cycle-mission) " cannot be loaded: "
+                  (preflight/describe problem))))
+  (reset! (state/cycle-running) true)
+  (reset! (state/cycle-index) 0)
+  (load-cycle-mis))
+
+(defn resume-cycle
+  "### resume-cycle
+   This one argument function carries on the mission cycle of the session in
+   scope from its current index after the connection to the server was lost.
+   If the server is still playing a mission, as the supplied flag tells us, it
+   is left to run for the timer of the cycle mission; otherwise the cycle
+   mission is loaded again, as the server has restarted."
+  [playing?]
+  (reset! (state/cycle-running) true)
+  (if-let [{:keys [timer]} (when playing?
+                             (get (cycle-missions) @(state/cycle-index)))]
+    (schedule/schedule-mission #(next-mission true) timer)
+    (load-cycle-mis)))
+
+(defn stop-cycle
+  "### stop-cycle
+   This function stops the cycle by cancelling the session's scheduled event and
+   resetting the cycle running state."
+  []
+  (schedule/stop-scheduled-mis)
+  (schedule/reset-schedule)
+  (reset! (state/cycle-running) false))
+
+;; ### DCG missions
+;;
+;; DCG can take a minute or more to generate a mission, so while each DCG mission
+;; plays the next one is generated in the background. When the timer fires, the
+;; staged mission is loaded at once; only if it is not ready yet do we wait for it,
+;; and only if it failed is a mission generated there and then.
+;;
+;; DCG always writes its mission to the same file, so when the server's Missions
+;; directory is known, a generated mission is checked and then copied aside under
+;; a name of its own, alternating between two, before it is staged. The next run
+;; of DCG can then write its mission without touching the one that is playing.
+;; Runs of DCG for a session never overlap.
+
+(declare schedule-next-dcg)
+
+(defn get-generated-mis
+  "### get-generated-mis
+   This zero argument function reads the path of the last mission generated by
+   DCG from the missions.txt file next to the DCG executable. The path is
+   returned relative to the Missions directory, as the server expects it."
+  []
+  (when-let [path @(state/dcg-path)]
+    (let [dcg-exe (Paths/get path (into-array String []))
+          dcg-dir (.getParent dcg-exe)
+          mis-list (.resolve dcg-dir "missions.txt")]
+      (when (Files/exists mis-list (into-array LinkOption []))
+        (with-open [^BufferedReader reader (Files/newBufferedReader
+                                             mis-list (Charset/defaultCharset))]
+          (when-let [line (.readLine reader)]
+            (string/replace (str "Net/" line) "\\" "/")))))))
+
+(defn- missions-dir
+  "### missions-dir
+   This zero argument function returns the Missions directory of the session's
+   server, or nil if the server executable has not been chosen."
+  ^Path []
+  (catalogue/missions-dir @(state/server-path)))
+
+(defn- stage-files
+  "### stage-files
+   This function copies the supplied mission, relative to the supplied Missions
+   directory, along with its briefing properties files, to the supplied staging
+   slot. The path of the copy is returned, relative to the Missions directory."
+  [^Path dir ^String path slot]
+  (let [file (.resolve dir path)
+        parent (.getParent file)
+        base (string/replace (str (.getFileName file)) #"\.mis$" "")
+        staged (str base "_next" slot)
+        pattern (re-pattern (str (Pattern/quote base)
+                                 "((_\\w\\w)?\\.properties|\\.mis)"))
+        ^"[Ljava.nio.file.CopyOption;" options
+        (into-array CopyOption [StandardCopyOption/REPLACE_EXISTING])]
+    (with-open [files (Files/newDirectoryStream parent)]
+      (doseq [^Path source files
+              :let [[_ suffix] (re-matches pattern (str (.getFileName source)))]
+              :when suffix]
+        (Files/copy source (.resolve parent (str staged suffix)) options)))
+    (str (subs path 0 (- (count path) (count (str base ".mis")))) staged ".mis")))
+
+(defn- run-dcg
+  "### run-dcg
+   This zero argument function runs the DCG executable of the session in scope,
+   waits for it to finish and returns the mission it generated. The mission is
+   staged if the Missions directory is known, see above; its :path is nil if
+   DCG failed or the mission it wrote is not valid. The time DCG took is
+   recorded in the session's DCG statistics."
+  []
+  (locking (state/dcg-next)
+    (let [start (System/nanoTime)
+          {:keys [exit out]} @(exec/sh [@(state/dcg-path) "/netdogfight"])
+          ms (quot (- (System/nanoTime) start) 1000000)
+          path (get-generated-mis)
+          dir (missions-dir)
+          {:keys [slot]} (swap! (state/dcg-next)
+                                (fn [{:keys [runs total-ms max-ms slot] :as next}]
+                                  (assoc next
+                                    :runs (inc (or runs 0))
+                                    :total-ms (+ (or total-ms 0) ms)
+                                    :max-ms (max (or max-ms 0) ms)
+                                    :last-ms ms
+                                    :slot (if (= slot 1) 2 1))))]
+      (println out)
+      {:ms   ms
+       :path (when (and (= exit 0) (not (string/blank? path)))
+               (cond (nil? dir) path
+                     (nil? (preflight/check (.resolve dir ^String path)))
+                     (stage-files dir path slot)))})))
+
+(defn pregenerate-dcg
+  "### pregenerate-dcg
+   This zero argument function starts generating the next DCG mission for the
+   session in scope in the background, unless one is already staged or being
+   generated. The mission is staged for generate-dcg-mis to load."
+  []
+  (let [result (promise)
+        {:keys [pending]} (swap! (state/dcg-next)
+                                 (fn [{:keys [pending] :as next}]
+                                   (if pending next (assoc next :pending result))))]
+    (when (identical? pending result)
+      (blocking/thread
+        (deliver result (try (run-dcg)
+                             (catch Exception e
+                               (.printStackTrace e)
+                               {})))))))
+
+(defn- take-staged
+  "### take-staged
+   This zero argument function takes the staged DCG mission of the session in
+   scope, waiting for it if it is still being generated, and returns its path,
+   or nil if there is none or it failed. The DCG statistics share the atom, so
+   we try again if they change while the mission is being taken."
+  []
+  (let [next (state/dcg-next)]
+    (loop []
+      (let [{:keys [pending] :as old} @next]
+        (when pending
+          (if (compare-and-set! next old (dissoc old :pending))
+            (:path @pending)
+            (recur)))))))
+
+(defn dcg-stats
+  "### dcg-stats
+   This zero argument function returns the DCG statistics of the session in
+   scope: the number of runs, the mean, longest and last time each took in
+   milliseconds, and whether the next mission is staged."
+  []
+  (let [{:keys [runs total-ms max-ms last-ms pending]} @(state/dcg-next)]
+    {:runs    (or runs 0)
+     :mean-ms (if runs (quot total-ms runs) 0)
+     :max-ms  (or max-ms 0)
+     :last-ms last-ms
+     :staged  (boolean (and pending (realized? pending) (:path @pending)))}))
+
+(defn generate-dcg-mis
+  "### generate-dcg-mis
+   This one argument function loads and starts the next DCG mission for the
+   session in scope, then schedules the next mission if the DCG timer is
+   enabled and starts generating it in the background.
+
+   The staged mission is used if there is one, waiting for it if DCG is still
+   running; otherwise DCG is run now. If this was not a scheduled generation,
+   the active scheduled event is cancelled first. Everything which waits for
+   DCG runs on the blocking executor, and nothing is loaded if DCG was stopped
+   while we waited."
+  [scheduled]
+  (when-not scheduled
+    (schedule/stop-scheduled-mis))
+  (let [session (state/session)
+        {:keys [run]} @(state/dcg-next)]
+    (reset! (state/loading) true)
+    (blocking/thread
+      (state/with-session session
+        (let [dcg-mis-path (or (take-staged)
+                               (:path (run-dcg)))]
+          (if (and dcg-mis-path (= run (:run @(state/dcg-next))))
+            (do (reset! (state/dcg-mission-path) dcg-mis-path)
+                (server/load-begin-mission dcg-mis-path)
+                (schedule-next-dcg)
+                (pregenerate-dcg))
+            (reset! (state/loading) false)))))))
+
+(defn schedule-next-dcg
+  "### schedule-next-dcg
+   This zero argument function schedules the next DCG mission generation after
+   the session's DCG timer, if the timer is enabled."
+  []
+  (when @(state/dcg-timer)
+    (when-let [minutes (:dcg-minutes (state/data))]
+      (schedule/schedule-mission #(generate-dcg-mis true) (minutes)))))
+
+(defn start-dcg
+  "### start-dcg
+   This zero argument function starts running DCG missions for the session in
+   scope. Any running cycle is stopped first. The last generated mission is
+   loaded if there is one; otherwise a new mission is generated."
+  []
+  (when @(state/cycle-running)
+    (stop-cycle))
+  (reset! (state/dcg-running) true)
+  (if-let [dcg-mis-path @(state/dcg-mission-path)]
+    (do (reset! (state/loading) true)
+        (server/load-begin-mission dcg-mis-path)
+        (schedule-next-dcg)
+        (pregenerate-dcg))
+    (generate-dcg-mis true)))
+
+(defn resume-dcg
+  "### resume-dcg
+   This one argument function carries on running DCG missions for the session
+   in scope after the connection to the server was lost. If the server is still
+   playing a mission, as the supplied flag tells us, only the next generation is
+   scheduled; otherwise DCG is started again, which loads the last generated
+   mission."
+  [playing?]
+  (if playing?
+    (do (reset! (state/dcg-running) true)
+        (schedule-next-dcg)
+        (pregenerate-dcg))
+    (start-dcg)))
+
+(defn stop-dcg
+  "### stop-dcg
+   This zero argument function cancels the next DCG mission generation for the
+   session in scope and unloads the running mission. A staged mission is
+   dropped, as it may be stale by the time DCG is started again, and the run
+   is counted so that a generation which is still waiting for DCG knows that
+   it has been stopped."
+  []
+  (schedule/stop-scheduled-mis)
+  (schedule/reset-schedule)
+  (swap! (state/dcg-next) (fn [{:keys [run] :as next}]
+                            (assoc (dissoc next :pending) :run (inc (or run 0)))))
+  (server/unload-mission))
@@ -46,8 +46,9 @@
    the stage and then our object map, which will hold each of the controls we need to
    manipulate.
 
-   After initialising the objects map, we initialise event handlers, watches and the
-   state for our standard controls from defaults or from our stored config file.
+   After initialising the objects map, we initialise event handlers, open the first
+   server session, start the frame timer and initialise the state for our standard
+   controls from defaults or from our stored config file.
 
    Finally the tables and file choosers are instantiated, as these require some extra
    configuration."
@@ -57,12 +58,16 @@
   (jfx/init-stage)
   (jfx/init-objects)
   (jfx/init-handlers)
+  (jfx/init-session)
+  (jfx/init-frame-timer)
   (jfx/init-controls)
   (jfx/init-choosers)
   (jfx/init-diff-table)
   (jfx/init-cycle-table)
   (jfx/init-pilots-table)
-  (jfx/init-bans-table))
+  (jfx/init-players-table)
+  (jfx/init-bans-table)
+  (jfx/init-catalogue))
 
 (defn -stop
   "### -stop
@@ -0,0 +1,193 @@
+;;
+;; ## Headless daemon
+;;
+;; This namespace must be AOT compiled for the daemon class to be generated!
+;;
+;; Here we run a single server session without any UI, for hosts which have no
+;; display or no JavaFX runtime. Nothing loaded from here touches a UI toolkit:
+;; the daemon connects to the server named in "il2ssd.ini", prints the server
+;; console to standard output and runs the mission mode saved in the config file,
+;; whether that is a single mission, the mission cycle or DCG generation.
+;;
+;; The daemon is started with:
+;;
+;;     java -cp il2ssd.jar uk.org.il2ssd.Daemon
+;;
+;; and runs until the process is stopped.
+(ns uk.org.il2ssd.daemon
+  (:require [clojure.core.async :refer [<!! thread]]
+            [clojure.string :as string]
+            [uk.org.il2ssd.admission :as admission]
+            [uk.org.il2ssd.api :as api]
+            [uk.org.il2ssd.bans :as bans]
+            [uk.org.il2ssd.channel :refer [close-channels]]
+            [uk.org.il2ssd.config :as config]
+            [uk.org.il2ssd.control :as control]
+            [uk.org.il2ssd.metrics :as metrics]
+            [uk.org.il2ssd.parse :refer [pilot-parser]]
+            [uk.org.il2ssd.server :as server]
+            [uk.org.il2ssd.session :as session]
+            [uk.org.il2ssd.state :as state]
+            [uk.org.il2ssd.supervisor :as supervisor])
+  (:gen-class :name uk.org.il2ssd.Daemon
+              :main true))
+
+(def mission-timeout
+  "### mission-timeout
+   This is the time in milliseconds that the daemon waits for the server to
+   report its mission state after connecting."
+  10000)
+
+(defn- setting
+  "### setting
+   This function returns the named setting from the supplied section of the
+   config file, or nil if it is blank or is the placeholder shown in the UI."
+  [file section key]
+  (let [value (get-in file [section key])]
+    (when-not (or (string/blank? value) (= value "..."))
+      value)))
+
+(defn new-daemon-session
+  "### new-daemon-session
+   This one argument function opens a session whose settings are taken from the
+   supplied config file rather than from the UI.
+
+   The session's mission cycle and DCG timer are read from the config file, see
+   the control namespace, and its mission paths and mode are set from the saved
+   settings. The session is returned."
+  [file]
+  (let [missions (config/cycle-missions file)
+        minutes (get-in file ["DCG" "Timer Minutes"] "")
+        session (session/new-session {:cycle-missions (constantly missions)
+                                      :dcg-minutes    (constantly minutes)})]
+    (state/with-session session
+      (reset! (state/server-path) (setting file "Server" "Path"))
+      (reset! (state/mode) (get-in file ["Mission" "Mode"] "single"))
+      (reset! (state/single-mission-path) (setting file "Mission" "Single Mission"))
+      (reset! (state/cycle-mission-path) (:mission (first missions)))
+      (reset! (state/dcg-path) (setting file "DCG" "DCG Executable"))
+      (reset! (state/dcg-timer) (= "true" (get-in file ["DCG" "Timer Enabled"])))
+      (reset! (state/dcg-mission-path) (control/get-generated-mis)))
+    session))
+
+(defn console-listener
+  "### console-listener
+   This zero argument function starts a thread which prints the console output
+   of the session in scope to standard output for as long as the session's
+   print-channel is open."
+  []
+  (let [{:keys [print-channel]} (state/channels)]
+    (thread
+      (loop []
+        (when-let [text (<!! print-channel)]
+          (print text)
+          (flush)
+          (recur))))))
+
+(defn event-listener
+  "### event-listener
+   This zero argument function starts a thread which keeps the mission state of
+   the session in scope up to date from its console events for as long as the
+   session's event-channel is open.
+
+   Every event must be taken from the channel to keep the pipeline moving, but
+   only mission events, ban list entries and joining pilots, who are checked
+   against the admission rules, are used; there are no tables to keep for the
+   rest. Each event is also published to the HTTP API's event streams."
+  []
+  (let [{:keys [event-channel metrics]} (state/channels)]
+    (thread
+      (loop []
+        (when-let [{:keys [type value command] :as event} (<!! event-channel)]
+          (metrics/since! metrics :queue (:at (meta event)))
+          (metrics/timed metrics :handle
+            (case type
+              :mis (control/mission-event value)
+              :error (control/load-failed)
+              :ban (when-not (= command "difficulty")
+                     (some-> (bans/parse-entry value) bans/seen!))
+              :pilot (admission/admit (control/parse-event pilot-parser value))
+              nil))
+          (api/publish event)
+          (recur))))))
+
+(defn start-mode
+  "### start-mode
+   This zero argument function starts the saved mission mode of the session in
+   scope once the server has reported its mission state.
+
+   A single mission is only loaded if no mission is already playing, so that
+   restarting the daemon does not interrupt a mission. This is decided from the
+   reply to the mission state request, as its mission event may not have
+   reached the event listener yet. The mission cycle and DCG generation are
+   always started, as they must schedule the next mission."
+  []
+  (let [playing? (control/reply-playing?
+                   (deref (server/get-mission-state) mission-timeout nil))]
+    (case @(state/mode)
+      "single" (when-let [path @(state/single-mission-path)]
+                 (when-not playing?
+                   (reset! (state/loading) true)
+                   (server/load-begin-mission path)))
+      "cycle" (when (seq (control/cycle-missions))
+                (control/start-cycle))
+      "dcg" (when @(state/dcg-path)
+              (control/start-dcg))
+      nil)))
+
+(defn stop
+  "### stop
+   This zero argument function stops any mission cycle or DCG timer of the
+   session in scope, disconnects it from its server and closes its pipeline."
+  []
+  (when @(state/cycle-running)
+    (control/stop-cycle))
+  (supervisor/disconnect)
+  (close-channels (state/channels)))
+
+(defn -main
+  "### -main
+   This is the main method of the daemon. It reads the config file from the
+   working directory, connects to the server named in it and starts the saved
+   mission mode, then waits until the process is stopped. The HTTP API is
+   started too if it is enabled in the config file.
+
+   The daemon exits with a non-zero status if there is no config file or if the
+   server cannot be reached. Once connected, the connection is supervised, so
+   the daemon reconnects by itself whenever the server restarts."
+  [& args]
+  (let [file (config/read-config-file)
+        host (setting file "Server" "IP")
+        port (setting file "Server" "Port")
+        stopped (promise)]
+    (when-not (and host port)
+      (binding [*out* *err*]
+        (println "il2ssd.ini must give the server IP and Port to run headless."))
+      (System/exit 1))
+    (config/load-api file)
+    (config/load-journal file)
+    (config/load-admission file)
+    (when-let [path (config/admission-rules)]
+      (admission/load-rules path))
+    (when-let [settings (config/api)]
+      (api/start settings))
+    (let [session (new-daemon-session file)]
+      (state/with-session session
+        (console-listener)
+        (event-listener)
+        (try (supervisor/connect host (Integer/decode ^String port))
+             (catch NumberFormatException _ nil))
+        (when-not @(state/connected)
+          (binding [*out* *err*]
+            (println (str "Could not connect to " host ":" port ".")))
+          (close-channels (state/channels))
+          (System/exit 1))
+        (.addShutdownHook (Runtime/getRuntime)
+                          (Thread. ^Runnable
+                                   (fn []
+                                     (api/stop)
+                                     (state/with-session session (stop))
+                                     (deliver stopped true))))
+        (start-mode)))
+    @stopped
+    (shutdown-agents)))
@@ -1,28 +1,56 @@
 (ns uk.org.il2ssd.event.bans
-  (:require [uk.org.il2ssd.state :as state]
-            [uk.org.il2ssd.jfx.ui :as ui]
-            [uk.org.il2ssd.server :as server]))
+  (:require [uk.org.il2ssd.bans :as registry]
+            [uk.org.il2ssd.blocking :as blocking]
+            [uk.org.il2ssd.state :as state]
+            [uk.org.il2ssd.jfx.ui :as ui])
+  (:import (java.io File)))
+
+(defn show-changes
+  "### show-changes
+   This one argument function mirrors the supplied changes to the ban registry
+   of the session in scope to its ban list table. It is set as the registry's
+   on-change function."
+  [changes]
+  (ui/queue-ban-changes (state/data) changes))
 
 (defn get-bans
+  "### get-bans
+   This zero argument function reconciles the ban registry of the session shown
+   in the UI with the server's ban list. The reconcile waits for the server, so
+   it runs on the blocking executor."
   []
-  (ui/clear-bans-data @state/control-instances)
-  (server/get-bans))
+  (let [session (state/session)]
+    (blocking/thread
+      (state/with-session session
+        (registry/reconcile!)))))
 
 (defn lift-ban
   []
-  (let [{:keys [bans-table
-                bans-data]} @state/control-instances
+  (let [{:keys [bans-table]} @state/control-instances
+        {:keys [bans-data]} (state/data)
         index (ui/get-selected-index bans-table)]
     (when (>= index 0)
-      (let [ban (ui/get-ban bans-data index)
-            type (condp = (:type ban)
-                   "Name" :name
-                   "IP" :ip)
-            value (:value ban)]
-        (server/ban :rem type value)
-        (get-bans)))))
+      (registry/lift! [(ui/get-ban bans-data index)]))))
 
 (defn clear-bans
   []
-  (server/ban :clear)
-  (get-bans))
\ No newline at end of file
+  (registry/clear!))
+
+(defn import-bans
+  "### import-bans
+   This zero argument function bans every entry in the file chosen by the user
+   which is not banned already. The commands are queued at once and the
+   session's outbox sends them to the server at its own pace."
+  []
+  (let [{:keys [bans-chooser]} @state/control-instances]
+    (when-let [file (ui/show-chooser bans-chooser)]
+      (registry/import-bans file))))
+
+(defn export-bans
+  "### export-bans
+   This zero argument function saves every entry in the ban registry to the
+   file chosen by the user, in the format which import-bans reads."
+  []
+  (let [{:keys [bans-chooser]} @state/control-instances]
+    (when-let [file (ui/show-save-chooser bans-chooser)]
+      (registry/export-bans file))))
@@ -0,0 +1,98 @@
+;;
+;; ## Mission catalogue window
+;;
+;; This namespace contains the UI commands of the mission catalogue window, which
+;; the single mission and mission cycle panes open to choose a mission from the
+;; catalogue of the server's Missions directory, see the catalogue namespace.
+(ns uk.org.il2ssd.event.catalogue
+  (:require [uk.org.il2ssd.catalogue :as catalogue]
+            [uk.org.il2ssd.jfx.ui :as ui]
+            [uk.org.il2ssd.state :as state])
+  (:import (java.nio.file Path)))
+
+(def max-rows
+  "### max-rows
+   This is the largest number of matching missions shown in the catalogue
+   table at once."
+  1000)
+
+(def shown
+  "### shown
+   This atom holds the Missions directory whose catalogue the window shows, the
+   text being searched for and the function which is called with the path of
+   the mission chosen."
+  (atom {:root nil :text "" :choose nil}))
+
+(defn refresh-catalogue
+  "### refresh-catalogue
+   This function fills the catalogue table with the missions which match the
+   search text. Called with the path of a Missions directory, whose catalogue
+   has changed, it does nothing unless that catalogue is the one shown."
+  ([]
+   (let [{:keys [root text]} @shown]
+     (when root
+       (ui/set-catalogue-data @state/control-instances
+                              (catalogue/search root text max-rows)))))
+  ([root]
+   (when (= root (:root @shown))
+     (refresh-catalogue))))
+
+(defn search-catalogue
+  "### search-catalogue
+   This zero argument function searches the catalogue for the text in the
+   search field. It is called whenever the text changes."
+  []
+  (let [{:keys [catalogue-search-fld]} @state/control-instances]
+    (swap! shown assoc :text (ui/get-text catalogue-search-fld))
+    (refresh-catalogue)))
+
+(defn- unreachable
+  "### unreachable
+   This one argument function returns the text which explains why there is no
+   catalogue for the server whose il2server.exe is at the supplied path."
+  [server-path]
+  (if-let [dir (catalogue/missions-dir server-path)]
+    (str "The Missions directory " dir " cannot be found.")
+    "Select il2server.exe in the Settings tab to catalogue its missions."))
+
+(defn show-catalogue
+  "### show-catalogue
+   This one argument function opens the catalogue window on the Missions
+   directory of the session's server. The supplied function is called with the
+   path of the mission which the user chooses, relative to the Missions
+   directory as the server expects.
+
+   If the Missions directory can't be reached the window is still opened, with
+   no missions and the reason in its status line."
+  [choose]
+  (let [{:keys [catalogue-stage]} @state/control-instances
+        server-path @(state/server-path)]
+    (if-let [root (catalogue/open server-path)]
+      (do (swap! shown assoc :root root :choose choose)
+          (refresh-catalogue))
+      (do (swap! shown assoc :root nil :choose nil)
+          (ui/set-catalogue-data @state/control-instances
+                                 {:missions [] :total 0
+                                  :error    (unreachable server-path)})))
+    (ui/show-window catalogue-stage)))
+
+(defn choose-mission
+  "### choose-mission
+   This zero argument function passes the mission selected in the catalogue
+   table to the function supplied when the window was opened, and closes the
+   window."
+  []
+  (let [{:keys [catalogue-table catalogue-stage]} @state/control-instances
+        {:keys [choose]} @shown]
+    (when-let [mission (ui/get-catalogue-mission catalogue-table)]
+      (ui/hide-window catalogue-stage)
+      (when choose
+        (choose mission)))))
+
+(defn close-catalogue
+  "### close-catalogue
+   This zero argument function closes the catalogue window without choosing a
+   mission."
+  []
+  (let [{:keys [catalogue-stage]} @state/control-instances]
+    (ui/hide-window catalogue-stage)))
@@ -1,19 +1,56 @@
 ;;
-;; ## Mission cycle scheduler
+;; ## Mission cycle commands
 ;;
-;; This namespace contains functions to schedule mission cycle load events
-;; using the at-at scheduling library.
+;; This namespace contains the UI commands which edit, start and stop the mission
+;; cycle. The cycle itself is run by the control namespace.
+;;
+;; Each mission in the cycle table is checked as soon as it is added, and again
+;; whenever the server path or a file under the Missions directory changes, so
+;; that a mission which cannot be loaded is flagged in the table long before the
+;; cycle comes round to it, see the preflight namespace.
 (ns uk.org.il2ssd.event.cycle
   (:require [clojure.string :as string]
-            [uk.org.il2ssd.event.mission :as mission]
-            [uk.org.il2ssd.event.scheduler :as schedule]
+            [uk.org.il2ssd.blocking :as blocking]
+            [uk.org.il2ssd.control :as control]
+            [uk.org.il2ssd.event.catalogue :as catalogue]
+            [uk.org.il2ssd.preflight :as preflight]
             [uk.org.il2ssd.server :as server]
             [uk.org.il2ssd.state :as state]
             [uk.org.il2ssd.jfx.ui :as ui])
   (:import (java.io File)
            (uk.org.il2ssd.jfx CycleMission)))
 
-(declare load-cycle-mis)
+(def ^:private checking
+  "### checking
+   This atom holds the ids of the sessions whose cycle missions are waiting to
+   be checked, so that a burst of changes to a cycle costs a single check."
+  (atom #{}))
+
+(defn- claim-check
+  [id]
+  (loop []
+    (let [waiting @checking]
+      (cond (contains? waiting id) false
+            (compare-and-set! checking waiting (conj waiting id)) true
+            :else (recur)))))
+
+(defn check-missions
+  "### check-missions
+   This zero argument function checks every mission in the cycle table of the
+   session in scope on the blocking executor, and shows the problem found with
+   each in the table. A check which is already waiting for the session covers
+   any changes made before it runs."
+  []
+  (let [id (:id (state/session))]
+    (when (claim-check id)
+      (blocking/thread
+        (swap! checking disj id)
+        (let [{:keys [cycle-data]} (state/data)]
+          (ui/set-cycle-problems
+            cycle-data
+            (into {} (for [cycle-mission (ui/get-cycle-missions cycle-data)]
+                       [(:mission cycle-mission)
+                        (preflight/describe (control/cycle-problem cycle-mission))]))))))))
 
 (defn mission-swap
   "### mission-swap
@@ -21,8 +58,8 @@
    mission index, swapping the selected mission with the one stored at the
    target index, provided the target index is valid."
   [f]
-  (let [{:keys [cycle-table
-                cycle-data]} @state/control-instances
+  (let [{:keys [cycle-table]} @state/control-instances
+        {:keys [cycle-data]} (state/data)
         max (dec (ui/get-list-size cycle-data))
         source (ui/get-selected-index cycle-table)
         new (f source)
@@ -39,14 +76,14 @@
    This function deletes the mission at the current selected index, providing
    the current selected index is valid."
   []
-  (let [{:keys [cycle-table
-                cycle-data]} @state/control-instances
+  (let [{:keys [cycle-table]} @state/control-instances
+        {:keys [cycle-data]} (state/data)
         index (ui/get-selected-index cycle-table)]
     (when (>= index 0)
       (ui/remove-list-item cycle-data index)
       (let [size (ui/get-list-size cycle-data)]
         (when (zero? size)
-          (reset! state/cycle-mission-path nil))))))
+          (reset! (state/cycle-mission-path) nil))))))
 
 (defn mission-add
   "### mission-add
@@ -55,96 +92,38 @@
    cycle mission atom to the cycle mission stored at the current value of the
    cycle index."
   []
-  (let [{:keys [cycle-data
-                cycle-path-fld]} @state/control-instances
+  (let [{:keys [cycle-path-fld]} @state/control-instances
+        {:keys [cycle-data]} (state/data)
         mission (ui/get-text cycle-path-fld)]
     (when-not (string/blank? mission)
       (ui/clear-input cycle-path-fld)
       (ui/add-cycle-data cycle-data mission "60")
-      (reset! state/cycle-mission-path
-              (:mission (ui/get-cycle-mission cycle-data @state/cycle-index))))))
+      (reset! (state/cycle-mission-path)
+              (:mission (ui/get-cycle-mission cycle-data @(state/cycle-index)))))))
 
 (defn cycle-choose-command
   "### cycle-choose-command
-   This zero argument function gets the mission file selected by the user
-   after displaying a mission file chooser. This value is relativised
-   against the Missions directory so that it is in the format expected
-   by the server in LOAD commands.
+   This zero argument function opens the mission catalogue for the user to
+   choose a mission from. The catalogue gives its path relative to the
+   Missions directory, in the format expected by the server in LOAD commands.
 
    This value is loaded into the cycle mission list, and the cycle mission
    atom is reset to the mission path at the current cycle index."
   []
-  (let [{:keys [mis-chooser
-                cycle-data]} @state/control-instances
-        file (ui/show-chooser mis-chooser)]
-    (when file
-      (ui/add-cycle-data
-        cycle-data
-        (mission/get-relative-path @state/server-path (.getCanonicalPath file))
-        "60")
-      (reset! state/cycle-mission-path
-              (:mission (ui/get-cycle-mission cycle-data @state/cycle-index))))))
-
-(defn next-mission
-  "### next-mission
-   This one argument function increments the index and loads the mission at
-   that index, unless the initial index was the last index, in which case the
-   index is reset to 0 before loading.
-   If this was not a scheduled load event, the active scheduled load event
-   is cancelled - the user has chosen to override the scheduler by pressing
-   the next button, or loading the mission at the previous index has failed."
-  [scheduled]
-  (when-not scheduled
-    (schedule/stop-scheduled-mis))
-  (let [{:keys [cycle-data]} @state/control-instances
-        last-mission (dec (ui/get-list-size cycle-data))]
-    (if (= @state/cycle-index last-mission)
-      (reset! state/cycle-index 0)
-      (swap! state/cycle-index inc))
-    (load-cycle-mis)))
-
-(defn start-cycle
-  "### start-cycle
-   This function resets the cycle-running atom and loads the first
-   cycle mission. The cycle index is set to 0 when the program is
-   initialised or when stopping the cycle."
-  []
-  (reset! state/cycle-running true)
-  (reset! state/cycle-index 0)
-  (load-cycle-mis))
-
-(defn load-cycle-mis
-  "### load-cycle-mis
-   This function gets the cycle mission object from the list at the
-   current cycle index and loads the mission. It schedules the
-   next-mission function to trigger after the timer specified for
-   the current mission and stores this scheduled event in an atom
-   so that it may be cancelled later."
-  []
-  (let [{:keys [cycle-data]} @state/control-instances
-        mission-data (ui/get-cycle-mission cycle-data @state/cycle-index)
-        mission (:mission mission-data)
-        timer (:timer mission-data)]
-    (reset! state/loading true)
-    (server/load-begin-mission mission)
-    (schedule/schedule-mission #(next-mission true) timer)))
-
-(defn stop-cycle
-  "### stop-cycle
-   This function stops the cycle by resetting the schedule pool and
-   each of the state atoms associated with the cycle scheduler."
-  []
-  (schedule/stop-scheduled-mis)
-  (schedule/reset-schedule)
-  (reset! state/cycle-running false))
+  (let [{:keys [cycle-data]} (state/data)]
+    (catalogue/show-catalogue
+      (fn [mission]
+        (ui/add-cycle-data cycle-data mission "60")
+        (reset! (state/cycle-mission-path)
+                (:mission (ui/get-cycle-mission cycle-data @(state/cycle-index))))))))
 
 (defn start-stop-cycle-command
   "### start-stop-cycle-command
    This function stops the cycle if it is running, or starts it if it is not.
    In either case it stops any mission that is playing."
   []
-  (when @state/playing
+  (when @(state/playing)
     (server/unload-mission))
-  (if @state/cycle-running
-    (stop-cycle)
-    (start-cycle)))
\ No newline at end of file
+  (if @(state/cycle-running)
+    (control/stop-cycle)
+    (control/start-cycle)))
\ No newline at end of file
@@ -1,16 +1,86 @@
 (ns uk.org.il2ssd.event.main
-  (:require [clojure.core.async :refer [<!! go thread]]
+  (:require [clojure.core.async :refer [alts!! chan close! thread]]
             [clojure.string :as string]
-            [uk.org.il2ssd.channel :refer :all]
+            [uk.org.il2ssd.admission :as admission]
+            [uk.org.il2ssd.api :as api]
+            [uk.org.il2ssd.bans :as bans]
+            [uk.org.il2ssd.blocking :as blocking]
+            [uk.org.il2ssd.catalogue :as catalogue]
+            [uk.org.il2ssd.channel :refer [close-channels]]
+            [uk.org.il2ssd.control :as control]
             [uk.org.il2ssd.event.cycle :as cycle]
             [uk.org.il2ssd.event.mission :as mission]
+            [uk.org.il2ssd.event.poller :as poller]
+            [uk.org.il2ssd.metrics :as metrics]
             [uk.org.il2ssd.jfx.ui :as ui]
             [uk.org.il2ssd.parse :refer :all]
+            [uk.org.il2ssd.players :as players]
             [uk.org.il2ssd.server :as server]
             [uk.org.il2ssd.config :as config]
+            [uk.org.il2ssd.session :as session]
             [uk.org.il2ssd.state :as state]
+            [uk.org.il2ssd.supervisor :as supervisor]
             [uk.org.il2ssd.event.scheduler :as schedule]))
 
+(def session-fields
+  "### session-fields
+   This is a map of the settings controls whose values belong to a session,
+   along with the value that each control takes for a new session."
+  {:ip-field        ""
+   :port-field      ""
+   :server-path-lbl "..."
+   :single-path-lbl "..."
+   :dcg-path-lbl    "..."
+   :dcg-mis-lbl     "..."
+   :dcg-timer-fld   ""
+   :pilot-upd-fld   "10"})
+
+(defn session-setting
+  "### session-setting
+   This one argument function returns the value of the named settings control
+   for the session in scope. If the session is shown in the UI the value comes
+   from the control itself; otherwise it comes from the values stored when the
+   UI last switched away from the session."
+  [key]
+  (if (state/current?)
+    (ui/get-text (get @state/control-instances key))
+    (get @(state/settings) key (session-fields key))))
+
+(defn set-session-setting
+  "### set-session-setting
+   This two argument function sets the value of the named settings label for
+   the session in scope, either in the UI or in the stored values as above."
+  [key text]
+  (if (state/current?)
+    (ui/set-label (get @state/control-instances key) text)
+    (swap! (state/settings) assoc key text)))
+
+(defn store-session-fields
+  "### store-session-fields
+   This zero argument function stores the values of the settings controls in
+   the session in scope, so that they can be restored when the session is
+   shown again."
+  []
+  (let [{:keys [mode-choice]} @state/control-instances]
+    (reset! (state/settings)
+            (into {:mode-choice (ui/get-choice mode-choice)}
+                  (for [key (keys session-fields)]
+                    [key (ui/get-text (get @state/control-instances key))])))))
+
+(defn restore-session-fields
+  "### restore-session-fields
+   This zero argument function sets the settings controls to the values stored
+   in the session in scope, or to their defaults for a new session."
+  []
+  (let [{:keys [dcg-timer-toggle mode-choice]} @state/control-instances
+        settings @(state/settings)]
+    (doseq [[key default] session-fields]
+      (ui/set-text (get @state/control-instances key)
+                   (get settings key default)))
+    (when-let [choice (:mode-choice settings)]
+      (ui/set-choice mode-choice choice))
+    (ui/set-toggle-selected dcg-timer-toggle (boolean @(state/dcg-timer)))))
+
 (defn set-title
   "### set-title
    This is a multiple-arity function which changes the title of the program
@@ -22,38 +92,54 @@
    When it is called with two arguments it adds the currently loaded mission
    and its current state to the title."
   ([]
-   (ui/set-title @state/stage "Il-2 Simple Server Daemon"))
+   (when (state/current?)
+     (ui/set-title @state/stage "Il-2 Simple Server Daemon")))
   ([mission state]
-   (ui/set-title @state/stage
-                 (str "Il-2 Simple Server Daemon - " mission " " (string/lower-case state)))))
+   (when (state/current?)
+     (ui/set-title @state/stage
+                   (str "Il-2 Simple Server Daemon - " mission " " (string/lower-case state))))))
 
 (defn connect-command
   "### connect-command
    This is a zero argument function which calls the server connect function with
    the host from the IP field and the port from the port field.
 
-   We wrap this connection attempt in a go block so that it returns immediately,
-   preventing the current thread from blocking.
+   We run this connection attempt on the blocking executor so that it returns
+   immediately, preventing the current thread from blocking. The connection is
+   supervised, so it is made again if the server restarts. The session is
+   captured first so that the connection belongs to it even if another session
+   is shown before the attempt completes. The session is named after the
+   address it connects to.
 
    We also wrap the connection attempt in a try/catch block to catch any
    exceptions which arise from converting the port-field text to an integer."
   []
   (let [{:keys [ip-field
                 port-field]} @state/control-instances
+        {:keys [menu-item]} (state/data)
+        session (state/session)
         ip (ui/get-text ip-field)
         port (ui/get-text port-field)]
-    (go (try (server/connect ip (Integer/decode port))
+    (reset! (:name session) (str ip ":" port))
+    (ui/set-menu-item-text menu-item @(:name session))
+    (blocking/thread
+      (state/with-session session
+        (try (supervisor/connect ip (Integer/decode port))
              (catch NumberFormatException _ nil)
-             (catch NullPointerException _ nil)))))
+             (catch NullPointerException _ nil))))))
 
 (defn disconnect-command
   "### disconnect-command
-   This is a zero argument function which calls the server disconnect function
-   in a go block so that it doesn't block the calling thread."
+   This is a zero argument function which calls the supervisor's disconnect
+   function on the blocking executor so that it doesn't block the calling
+   thread. This also stops any attempt to reconnect."
   []
-  (when @state/cycle-running
-    (cycle/stop-cycle))
-  (go (server/disconnect)))
+  (when @(state/cycle-running)
+    (control/stop-cycle))
+  (let [session (state/session)]
+    (blocking/thread
+      (state/with-session session
+        (supervisor/disconnect)))))
 
 (defn start-stop-command
   "### start-stop-command
@@ -61,9 +147,9 @@
    or starts the currently loaded mission if it is not.
    If a cycle is running it stops the cycle first."
   []
-  (when @state/cycle-running
-    (cycle/stop-cycle))
-  (if @state/playing
+  (when @(state/cycle-running)
+    (control/stop-cycle))
+  (if @(state/playing)
     (server/end-mission)
     (server/start-mission)))
 
@@ -73,12 +159,12 @@
    it is loaded, and loads the current mission if it is not.
    If a cycle is running, it stops the cycle first."
   []
-  (when @state/cycle-running
-    (cycle/stop-cycle))
-  (if @state/loaded
+  (when @(state/cycle-running)
+    (control/stop-cycle))
+  (if @(state/loaded)
     (server/unload-mission)
-    (do (reset! state/loading true)
-        (server/load-mission @state/single-mission-path))))
+    (do (reset! (state/loading) true)
+        (server/load-mission @(state/single-mission-path)))))
 
 (defn handle-difficulty
   "### difficulty-listener
@@ -91,10 +177,10 @@
 
    As above, we should note that this function will return immediately and
    execution will continue on a new thread without blocking the caller."
-  [text]
-  (when-not (= @state/last-command "ban")
-    (let [parsed (parse-text difficulty-parser text)
-          {:keys [diff-data]} @state/control-instances
+  [text command]
+  (when-not (= command "ban")
+    (let [parsed (control/parse-event difficulty-parser text)
+          {:keys [diff-data]} (state/data)
           {:keys [setting value]} parsed]
       (ui/add-diff-data diff-data setting value))))
 
@@ -117,59 +203,52 @@
    proceed in the new thread. This prevents these functions from blocking
    the calling thread."
   [text]
-  (reset! state/loading false)
-  (let [parsed (parse-text mission-parser text)
-        {:keys [path mission state]} parsed]
+  (let [{:keys [mission state]} (control/mission-event text)]
     (if mission
-      (let [mis-path (str path mission)]
-        (when (= mis-path @state/dcg-mission-path)
-          (reset! state/dcg-running true))
-        (when (= state "Loaded")
-          (reset! state/loaded true)
-          (reset! state/playing false))
-        (when (= state "Playing")
-          (reset! state/loaded true)
-          (reset! state/playing true))
-        (set-title mission state))
+      (set-title mission state)
       (when (= state "NOT loaded")
-        (reset! state/dcg-running false)
-        (reset! state/loaded false)
-        (reset! state/playing false)
         (set-title)))))
 
 (defn handle-pilot
+  "### handle-pilot
+   This function handles a pilot joining or leaving the server. A joining pilot
+   is checked against the admission rules straight away, before their host
+   details are requested; a pilot who leaves is removed from the pilots table
+   and their session is closed in the player statistics."
   [text]
-  (let [parsed (parse-text pilot-parser text)
-        {:keys [pilots-data]} @state/control-instances
+  (let [parsed (control/parse-event pilot-parser text)
         {:keys [socket name]} parsed]
     (if name
-      (server/get-host-details name)
-      (ui/remove-pilot-data pilots-data socket))))
+      (do (admission/admit parsed)
+          (server/get-host-details name))
+      (do (ui/remove-pilot-data (state/data) socket)
+          (players/left socket)))
+    (poller/poll-soon)))
 
 (defn handle-ban
-  [text]
-  (when-not (= @state/last-command "difficulty")
-    (let [ban (string/trim-newline (string/join (drop 2 text)))
-          {:keys [bans-data]} @state/control-instances]
-      (if-not (re-matches #"(\d++{1,3}+\.?+){4}+" ban)
-        (ui/add-ban-data bans-data "Name" ban)
-        (ui/add-ban-data bans-data "IP" ban)))))
+  "### handle-ban
+   This function adds each entry of a ban list printed by the server to the
+   session's ban registry, so that a ban list requested from the console is
+   shown too. Entries which are already known change nothing."
+  [text command]
+  (when-not (= command "difficulty")
+    (when-let [entry (bans/parse-entry text)]
+      (bans/seen! entry))))
 
 (defn handle-host
   [text]
-  (let [parsed (parse-text host-parser text)
-        {:keys [pilots-data]} @state/control-instances
+  (let [parsed (control/parse-event host-parser text)
         {:keys [number socket ip name]} parsed]
-    (ui/add-pilot-data pilots-data number socket ip name)
+    (ui/add-pilot-data (state/data) number socket ip name)
+    (players/joined number socket ip name)
     (server/get-user-details name)))
 
 (defn handle-user
   [text]
-  (let [parsed (parse-text user-parser text)
-        {:keys [pilots-data]} @state/control-instances
-        {:keys [number score armyname]} parsed]
-    (ui/update-pilot-data pilots-data number score armyname)
-    (ui/highlight-team number armyname @state/control-instances)))
+  (let [parsed (control/parse-event user-parser text)
+        {:keys [number name score armyname]} parsed]
+    (players/scored number name score armyname)
+    (ui/update-pilot-data (state/data) number name score armyname)))
 
 (defn handle-error
   "### error-listener
@@ -182,58 +261,82 @@
    If a mission cycle is running, we know that the scheduled mission failed to
    load and we can skip this mission."
   [text]
-  (reset! state/loading false)
-  (reset! state/loaded false)
-  (reset! state/playing false)
-  (set-title)
-  (when @state/cycle-running
-    (cycle/next-mission false)))
-
-(defn update-users
-  []
-  (thread
-    (while @state/connected
-      (let [{:keys [pilot-upd-fld]} @state/control-instances
-            fld-text (ui/get-text pilot-upd-fld)
-            fld-long (try (Long/decode fld-text)
-                          (catch NumberFormatException _ nil))
-            timer (if (and fld-long (<= fld-long 60) (>= fld-long 5)) fld-long 10)]
-        (Thread/sleep (* timer 1000))
-        (when @state/playing
-          (server/get-user-details))))))
+  (control/load-failed)
+  (set-title))
+
+(defn- listening?
+  "### listening?
+   This one argument function returns true while the session in scope is still
+   connected on the supplied socket. A listener started for one connection
+   stops once the session reconnects, as the reconnection starts its own."
+  [socket]
+  (and @(state/connected)
+       (identical? socket @(state/socket))))
+
+(defn- take-while-listening
+  "### take-while-listening
+   This three argument function waits for a value from the supplied channel
+   and returns it, or nil once the supplied stop channel is closed or the
+   session is no longer connected on the supplied socket.
+
+   The channels are shared by every connection of the session, so a listener
+   must not take a value once its connection has ended, or it would handle the
+   first value of the next connection out of turn with that connection's own
+   listener. The stop channel takes priority over a waiting value."
+  [stop ch socket]
+  (let [[value port] (alts!! [stop ch] :priority true)]
+    (when (and (not= port stop)
+               (listening? socket))
+      value)))
 
 (defn console-listener
   "### console-listener
-   This is a zero argument function which spawns another thread. The process on
-   this thread listens for non-nil output on the print-channel for as long as the
-   global connection state atom says that we are connected. Any text which is read
-   is printed to the application console.
+   This is a two argument function which spawns another thread. The process on
+   this thread listens for non-nil output on the session's print-channel for as
+   long as the session is connected on the supplied socket and the supplied
+   stop channel is open. Any text which is read is queued on the session's
+   console lines, which are flushed to the UI once per frame.
 
    Functions which spawn a thread return immediately so that execution can
    proceed in the new thread. This prevents these functions from blocking
    the calling thread."
-  []
-  (thread
-    (while @state/connected
-      (when-let [text (<!! print-channel)]
-        (let [{:keys [console]} @state/control-instances]
-          (ui/print-console console text))))))
+  [stop socket]
+  (let [{:keys [print-channel]} (state/channels)
+        {:keys [console-data]} (state/data)]
+    (thread
+      (loop []
+        (when-let [text (take-while-listening stop print-channel socket)]
+          (ui/print-console console-data text)
+          (recur))))))
 
 (defn event-listener
+  [stop socket]
+  (let [{:keys [event-channel metrics]} (state/channels)]
+    (thread
+      (loop []
+        (when-let [event (take-while-listening stop event-channel socket)]
+          (let [{:keys [type value command]} event]
+            (metrics/since! metrics :queue (:at (meta event)))
+            (metrics/timed metrics :handle
+              (condp = type
+                :diff (handle-difficulty value command)
+                :mis (handle-mission value)
+                :pilot (handle-pilot value)
+                :ban (handle-ban value command)
+                :user (when-not (= command "user") (handle-user value))
+                :host (handle-host value)
+                :error (handle-error value)))
+            (api/publish event))
+          (recur))))))
+
+(defn stop-listeners
+  "### stop-listeners
+   This is a zero argument function which stops the listeners of the session's
+   current connection by closing their stop channel."
   []
-  (thread
-    (while @state/connected
-      (when-let [event (<!! event-channel)]
-        (let [type (:type event)
-              value (:value event)]
-          (condp = type
-            :diff (handle-difficulty value)
-            :mis (handle-mission value)
-            :pilot (handle-pilot value)
-            :ban (handle-ban value)
-            :user (handle-user value)
-            :host (handle-host value)
-            :error (handle-error value)))))))
+  (let [listeners (state/listeners)]
+    (some-> @listeners close!)
+    (reset! listeners nil)))
 
 (defn start-listeners
   "### start-listeners
@@ -241,10 +344,19 @@
    which parse the server console output.
 
    They all need to be running and removing puts from the channels or the program
-   will stall - every tap must take each value from the mult to stay synchronised."
+   will stall - every tap must take each value from the mult to stay synchronised.
+
+   The listener threads inherit the session in scope, so each session has its
+   own listeners working on its own channels. Any listeners of an earlier
+   connection are stopped first, and the new ones share a stop channel of their
+   own."
   []
-  (console-listener)
-  (event-listener))
+  (let [stop (chan)
+        socket @(state/socket)]
+    (stop-listeners)
+    (reset! (state/listeners) stop)
+    (console-listener stop socket)
+    (event-listener stop socket)))
 
 (defn save-ui-state
   "### save-ui-state
@@ -258,9 +370,9 @@
                 dcg-timer-toggle
                 dcg-timer-fld
                 dcg-path-lbl
-                cycle-data
                 pilot-upd-fld]} @state/control-instances
-        mode @state/mode
+        {:keys [cycle-data]} (state/data)
+        mode @(state/mode)
         ip-addr (ui/get-text ip-field)
         port (ui/get-text port-field)
         server-path (ui/get-text server-path-lbl)
@@ -282,21 +394,54 @@
 
 (defn close
   "### close
-   This is a zero argument function which disconnects from the server if the
-   program is connected, saves the current settings to the config file and
-   requests to close the program."
+   This is a zero argument function which disconnects every session from its
+   server if it is connected, saves the settings of the session shown in the UI
+   to the config file and requests to close the program."
   []
-  (do (when @state/cycle-running (cycle/stop-cycle))
+  (do (doseq [session (session/all-sessions)]
+        (state/with-session session
+          (when @(state/cycle-running) (control/stop-cycle))
+          (supervisor/disconnect)
+          (close-channels (state/channels))))
+      (api/stop)
+      (players/stop)
+      (catalogue/close)
       (shutdown-agents)
-      (when @state/connected (server/disconnect))
-      (close-channels)
       (save-ui-state)
       (config/save-config-file)
       (ui/exit)))
 
+(defn update-session
+  "### update-session
+   This function is called whenever any watched session state atom is changed,
+   whether or not the session is shown in the UI. The key provided specifies
+   which state atom has changed.
+
+   When a session connects we clear its console and start its listeners and
+   its pilot polling. When it disconnects we stop its listeners and polling and
+   clear the console and the lists which hold its server data. When its server
+   path changes the missions of its cycle are checked against the new Missions
+   directory."
+  [key new]
+  (when (= key :connected)
+    (ui/clear-console (:console-data (state/data)) new)
+    (if new
+      (do (start-listeners)
+          (poller/start-polling))
+      (do (stop-listeners)
+          (poller/stop-polling)
+          (ui/clear-diff-data (state/data))
+          (ui/queue-ban-changes (state/data) {:cleared true})
+          (ui/clear-pilots-data (state/data)))))
+  (when (and (= key :dcg-mission-path) new)
+    (set-session-setting :dcg-mis-lbl new))
+  (when (= key :server-path)
+    (cycle/check-missions)))
+
 (defn update-ui
   "### update-ui
-   This function is called whenever any watched global state atom is changed.
+   This function is called whenever any watched state atom is changed for the
+   session which is shown in the UI.
    The key provided specifies which state atom has changed.
    For each event, any UI processing specific to that event is triggered.
    To ensure that the state triggered is correct, the new state is assoc-ed
@@ -305,18 +450,12 @@
    map."
   [state controls key _ _ new]
   (case key
-    :connected (do (ui/toggle-console-text new @state/control-instances)
-                   (if new
-                     (do (start-listeners)
-                         (update-users))
-                     (do (set-title)
-                         (ui/clear-diff-data @state/control-instances)
-                         (ui/clear-bans-data @state/control-instances)
-                         (ui/clear-pilots-data @state/control-instances))))
+    :connected (when-not new
+                 (set-title))
     :loading (ui/toggle-prog-ind new @state/control-instances)
     :loaded (ui/toggle-load-txt new @state/control-instances)
     :playing (ui/toggle-start-txt new @state/control-instances)
-    :server-path (ui/set-mis-dir new @state/control-instances)
+    :server-path (catalogue/open new)
     :dcg-path nil
     :single-mission-path nil
     :cycle-mission-path nil
@@ -328,4 +467,48 @@
     :dcg-running (ui/toggle-dcg-start-txt new @state/control-instances)
     :dcg-timer (ui/toggle-dcg-toggle-txt new @state/control-instances))
   (let [new-state (assoc (state) key new)]
-    (ui/set-button-state new-state controls)))
\ No newline at end of file
+    (ui/set-button-state new-state controls)))
+
+(defn flush-consoles
+  "### flush-consoles
+   This zero argument function is called once per frame on the JavaFX
+   Application Thread. It applies the text queued since the last frame to the
+   console lines of every session, so that each session's scrollback is kept
+   whether or not it is shown, and scrolls the console to the newest line when
+   the session which is shown has changed."
+  []
+  (let [{:keys [console]} @state/control-instances]
+    (doseq [session (session/all-sessions)]
+      (state/with-session session
+        (when (and (ui/flush-console (:console-data (state/data)))
+                   (state/current?))
+          (ui/scroll-to-end console))))))
+
+(defn show-session
+  "### show-session
+   This one argument function switches the UI to the supplied session.
+
+   The settings controls of the outgoing session are stored, the tables are
+   pointed at the new session's lists and its settings are restored. Finally
+   every state-dependent part of the UI is refreshed from the new session's
+   state, and the mission state is requested so that the title catches up.
+
+   A new session takes on the mission mode of the session shown before it."
+  [session]
+  (let [previous @state/current-session
+        mode (when previous @(state/mode))]
+    (when previous
+      (store-session-fields))
+    (session/switch-session session)
+    (when-not @(state/mode)
+      (reset! (state/mode) mode)))
+  (let [controls @state/controls
+        current (state/get-state)]
+    (ui/set-session-data @state/control-instances (state/data))
+    (ui/select-menu-item (:menu-item (state/data)))
+    (restore-session-fields)
+    (set-title)
+    (doseq [[key value] current]
+      (update-ui state/get-state controls key nil nil value))
+    (when @(state/connected)
+      (server/get-mission-state))))
@@ -1,11 +1,11 @@
 (ns uk.org.il2ssd.event.mission
   (:require [clojure.set :refer [map-invert]]
             [clojure.string :as string]
+            [uk.org.il2ssd.event.catalogue :as catalogue]
             [uk.org.il2ssd.jfx.ui :as ui]
             [uk.org.il2ssd.server :as server]
             [uk.org.il2ssd.state :as state])
-  (:import (java.io File)
-           (java.nio.file Path Paths)))
+  (:import (java.io File)))
 
 (defn mis-selected?
   "### mis-selected?
@@ -14,8 +14,8 @@
    It does this by retrieving the contents of the valid control for the mission
    mode selected."
   [mode]
-  (let [{:keys [single-path-lbl
-                cycle-data]} @state/control-instances
+  (let [{:keys [single-path-lbl]} @state/control-instances
+        {:keys [cycle-data]} (state/data)
         single-mis (ui/get-text single-path-lbl)]
     (case mode
       "single" (if-not (or (string/blank? single-mis)
@@ -27,32 +27,6 @@
                 false)
       "dcg" false)))
 
-(defn get-relative-path
-  "### get-relative-path
-   This two-argument function returns a relative path for a mission based upon
-   the two input paths.
-
-   The server path is expected to be the string path to the il2server.exe file.
-
-   The mission path should be the full canonical path string of the mission file
-   we wish to load.
-
-   In order to determine the path to send to the server we convert the strings
-   to Path objects, get the parent path of the server .exe file (which should be
-   the main server directory), and resolve this against the string \"Missions\".
-
-   This Path object should represent the Missions directory of our server.
-
-   Finally, we relativise the input path against the Missions directory path to
-   get a relative path to the mission from the Missions directory."
-  [server-path mis-path]
-  (let [in-path (Paths/get mis-path (into-array String []))
-        server-exe (Paths/get server-path (into-array String []))
-        server-dir (.getParent server-exe)
-        mis-dir (.resolve server-dir "Missions")
-        out-path (->> in-path (.relativize mis-dir) str)]
-    (string/replace out-path "\\" "/")))
-
 (defn mode-choice
   "### mode-choice
    This is a one argument function which uses the content of the modes argument to
@@ -76,15 +50,15 @@
                 dcg-start-btn
                 cycle-next-btn
                 dcg-next-btn
-                single-path-lbl
-                cycle-data]} @state/control-instances
+                single-path-lbl]} @state/control-instances
+        {:keys [cycle-data]} (state/data)
         mode (name ((map-invert modes) (ui/get-choice mode-choice)))]
-    (reset! state/mode mode)
+    (reset! (state/mode) mode)
     (when (= mode "single")
       (if (mis-selected? mode)
-        (reset! state/single-mission-path
+        (reset! (state/single-mission-path)
                 (ui/get-text single-path-lbl))
-        (reset! state/single-mission-path nil))
+        (reset! (state/single-mission-path) nil))
       (ui/set-visible load-btn true)
       (ui/set-visible cycle-next-btn false)
       (ui/set-visible dcg-next-btn false)
@@ -93,9 +67,9 @@
       (ui/set-mis-pane mission-pane single-mis-pane))
     (when (= mode "cycle")
       (if (mis-selected? mode)
-        (reset! state/cycle-mission-path
-                (:mission (ui/get-cycle-mission cycle-data @state/cycle-index)))
-        (reset! state/cycle-mission-path nil))
+        (reset! (state/cycle-mission-path)
+                (:mission (ui/get-cycle-mission cycle-data @(state/cycle-index))))
+        (reset! (state/cycle-mission-path) nil))
       (ui/set-visible load-btn false)
       (ui/set-visible cycle-next-btn true)
       (ui/set-visible dcg-next-btn false)
@@ -126,20 +100,15 @@
 
 (defn single-choose-command
   "### single-choose-command
-   This zero argument function gets the mission file selected by the user
-   after displaying a mission file chooser. This value is relativised
-   against the Missions directory so that it is in the format expected
-   by the server in LOAD commands.
+   This zero argument function opens the mission catalogue for the user to
+   choose a mission from. The catalogue gives its path relative to the
+   Missions directory, in the format expected by the server in LOAD commands.
 
    This value is loaded into the single mission path label as the active
    mission to load."
   []
-  (let [{:keys [mis-chooser
-                single-path-lbl]} @state/control-instances
-        file (ui/show-chooser mis-chooser)]
-    (when file
-      (ui/set-label single-path-lbl
-                    (get-relative-path @state/server-path (.getCanonicalPath file))))))
+  (let [{:keys [single-path-lbl]} @state/control-instances]
+    (catalogue/show-catalogue #(ui/set-label single-path-lbl %))))
 
 (defn single-path-select
   "### single-path-select
@@ -149,5 +118,5 @@
   (let [{:keys [single-path-lbl]} @state/control-instances
         single-path (ui/get-text single-path-lbl)]
     (if (= single-path "...")
-      (reset! state/single-mission-path nil)
-      (reset! state/single-mission-path single-path))))
\ No newline at end of file
+      (reset! (state/single-mission-path) nil)
+      (reset! (state/single-mission-path) single-path))))
\ No newline at end of file
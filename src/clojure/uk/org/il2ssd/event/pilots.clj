@@ -3,12 +3,12 @@
             [uk.org.il2ssd.jfx.ui :as ui]
             [uk.org.il2ssd.server :as server]
             [clojure.string :as string]
-            [uk.org.il2ssd.event.bans :as bans]))
+            [uk.org.il2ssd.bans :as bans]))
 
 (defn kick-pilot
   []
-  (let [{:keys [pilots-table
-                pilots-data]} @state/control-instances
+  (let [{:keys [pilots-table]} @state/control-instances
+        {:keys [pilots-data]} (state/data)
         index (ui/get-selected-index pilots-table)]
     (when (>= index 0)
       (let [pilot (ui/get-pilot pilots-data index)
@@ -17,31 +17,29 @@
 
 (defn ban-pilot
   []
-  (let [{:keys [pilots-table
-                pilots-data]} @state/control-instances
+  (let [{:keys [pilots-table]} @state/control-instances
+        {:keys [pilots-data]} (state/data)
         index (ui/get-selected-index pilots-table)]
     (when (>= index 0)
       (let [pilot (ui/get-pilot pilots-data index)
             name (:name pilot)]
-        (server/ban :add :name name)
-        (bans/get-bans)))))
+        (bans/ban! [[:name name]])))))
 
 (defn ip-ban-pilot
   []
-  (let [{:keys [pilots-table
-                pilots-data]} @state/control-instances
+  (let [{:keys [pilots-table]} @state/control-instances
+        {:keys [pilots-data]} (state/data)
         index (ui/get-selected-index pilots-table)]
     (when (>= index 0)
       (let [pilot (ui/get-pilot pilots-data index)
             ip (:ip pilot)]
-        (server/ban :add :ip ip)
-        (bans/get-bans)))))
+        (bans/ban! [[:ip ip]])))))
 
 (defn send-chat
   []
   (let [{:keys [pilots-table
-                pilots-data
                 chat-field]} @state/control-instances
+        {:keys [pilots-data]} (state/data)
         index (ui/get-selected-index pilots-table)]
     (when (>= index 0)
       (let [pilot (ui/get-pilot pilots-data index)
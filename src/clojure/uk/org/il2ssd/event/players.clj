@@ -0,0 +1,23 @@
+(ns uk.org.il2ssd.event.players
+  (:require [uk.org.il2ssd.jfx.ui :as ui]
+            [uk.org.il2ssd.players :as stats]
+            [uk.org.il2ssd.state :as state]))
+
+(defn refresh-players
+  "### refresh-players
+   This zero argument function fills the players table with the totals of every
+   player whose name contains the text in the filter field."
+  []
+  (let [{:keys [player-filter-fld players-data]} @state/control-instances]
+    (ui/set-players-data players-data
+                         (stats/query {:name (ui/get-text player-filter-fld)}))))
+
+(defn players-tab-selected
+  "### players-tab-selected
+   This zero argument function refreshes the players table whenever the players
+   tab is shown, so that it includes the sessions closed since it was last
+   shown."
+  []
+  (let [{:keys [players-tab]} @state/control-instances]
+    (when (ui/tab-selected? players-tab)
+      (refresh-players))))
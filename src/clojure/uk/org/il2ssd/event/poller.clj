@@ -0,0 +1,165 @@
+;;
+;; ## Pilot polling
+;;
+;; Here we poll the server for the user list, which carries the score and team of
+;; each pilot. Rather than polling on a fixed timer, each session adapts its poll
+;; interval to what is happening on its server:
+;;
+;; * A pilot joining or leaving tightens the interval to the minimum, so that the
+;;   roster catches up quickly.
+;; * Each poll which changes no pilot's score or team doubles the interval, up to
+;;   the maximum set in the pilots tab.
+;; * While no mission is playing or no pilots are connected we don't ask the server
+;;   at all, and only check again after the maximum interval.
+;;
+;; Each poll applies the user list from its own response, and only the pilots whose
+;; score or team changed are updated in the UI. Every pilot's score is passed on to
+;; the player statistics, see the players namespace.
+(ns uk.org.il2ssd.event.poller
+  (:require [overtone.at-at :refer [after stop]]
+            [uk.org.il2ssd.blocking :as blocking]
+            [uk.org.il2ssd.channel :as channel]
+            [uk.org.il2ssd.event.scheduler :refer [schedule]]
+            [uk.org.il2ssd.jfx.ui :as ui]
+            [uk.org.il2ssd.parse :refer [user-parser]]
+            [uk.org.il2ssd.players :as players]
+            [uk.org.il2ssd.server :as server]
+            [uk.org.il2ssd.state :as state]))
+
+(def min-interval
+  "### min-interval
+   This is the shortest poll interval in milliseconds, used after a pilot joins
+   or leaves."
+  2000)
+
+(def response-timeout
+  "### response-timeout
+   This is the time in milliseconds that a poll waits for the user list before
+   it gives up and schedules the next poll."
+  10000)
+
+(defn parse-interval
+  "### parse-interval
+   This one argument function converts the pilots tab update interval, in
+   seconds, to milliseconds. Values outside 5 to 60 seconds, or no value at
+   all, fall back to 10 seconds."
+  [text]
+  (let [secs (when text
+               (try (Long/decode text)
+                    (catch NumberFormatException _ nil)))]
+    (* 1000 (if (and secs (<= 5 secs 60)) secs 10))))
+
+(defn max-interval
+  "### max-interval
+   This zero argument function returns the longest poll interval in milliseconds
+   for the session in scope."
+  []
+  (:max @(state/pilot-poll) (parse-interval nil)))
+
+(defn interval-select
+  "### interval-select
+   This zero argument function stores the update interval from the pilots tab as
+   the longest poll interval of the session shown in the UI. It is called on the
+   JavaFX Application Thread when the interval text changes."
+  []
+  (let [{:keys [pilot-upd-fld]} @state/control-instances]
+    (swap! (state/pilot-poll) assoc
+           :max (parse-interval (ui/get-text pilot-upd-fld)))))
+
+(declare poll)
+
+(defn- schedule-poll
+  "### schedule-poll
+   This one argument function replaces any poll scheduled for the session in
+   scope with one which runs after the supplied interval in milliseconds. The
+   poll runs on the blocking executor, since it waits for the server's
+   response."
+  [interval]
+  (let [session (state/session)
+        poll-state (state/pilot-poll)]
+    (locking poll-state
+      (when-let [job (:job @poll-state)]
+        (stop job))
+      (swap! poll-state assoc
+             :interval interval
+             :job (after interval
+                         #(blocking/thread (state/with-session session (poll)))
+                         schedule)))))
+
+(defn- apply-users
+  "### apply-users
+   This one argument function applies each user line of the supplied response
+   to the player statistics and the pilot roster of the session in scope, and
+   returns the number of pilots whose score or team changed."
+  [lines]
+  (reduce (fn [changed line]
+            (if-let [{:keys [number name score armyname]}
+                     (when (re-matches channel/user-pattern line)
+                       (user-parser line))]
+              (do (players/scored number name score armyname)
+                  (if (ui/update-pilot-data (state/data) number name score armyname)
+                    (inc changed)
+                    changed))
+              changed))
+          0
+          lines))
+
+(defn- next-interval
+  "### next-interval
+   This one argument function polls the user list for the session in scope if
+   a mission is playing and pilots are connected, and returns the interval
+   before the next poll, which is at most the supplied longest interval."
+  [longest]
+  (if (or (not @(state/playing))
+          (zero? (ui/count-pilots (state/data))))
+    longest
+    (let [lines (deref (server/get-user-details) response-timeout nil)
+          interval (or (:interval @(state/pilot-poll)) min-interval)]
+      (if (pos? (apply-users lines))
+        (min interval longest)
+        (min (* 2 interval) longest)))))
+
+(defn poll
+  "### poll
+   This zero argument function polls the user list for the session in scope and
+   schedules the next poll.
+
+   Each user line in the response is applied to the pilot roster; the interval
+   is kept while pilots' scores or teams are changing and doubled while they are
+   not. The interval is read once the response arrives, so that a pilot joining
+   during the poll still tightens it. A poll which fails is printed, and the
+   next poll is scheduled after the longest interval, so that polling carries
+   on."
+  []
+  (when @(state/connected)
+    (let [longest (max-interval)
+          interval (try (next-interval longest)
+                        (catch Exception e
+                          (.printStackTrace e)
+                          longest))]
+      (schedule-poll interval))))
+
+(defn poll-soon
+  "### poll-soon
+   This zero argument function tightens the poll interval of the session in
+   scope to the minimum, as pilots have joined or left."
+  []
+  (when @(state/connected)
+    (schedule-poll min-interval)))
+
+(defn start-polling
+  "### start-polling
+   This zero argument function starts polling the user list for the session in
+   scope, beginning at the minimum interval."
+  []
+  (schedule-poll min-interval))
+
+(defn stop-polling
+  "### stop-polling
+   This zero argument function cancels the next poll for the session in scope."
+  []
+  (let [poll-state (state/pilot-poll)]
+    (locking poll-state
+      (when-let [job (:job @poll-state)]
+        (stop job))
+      (swap! poll-state dissoc :job :interval))))
@@ -2,24 +2,20 @@
   (:require [overtone.at-at :refer [after
                                     mk-pool
                                     kill
-                                    stop
-                                    stop-and-reset-pool!]]))
+                                    stop]]
+            [uk.org.il2ssd.state :as state]))
 
 (def schedule
   "### cycle-schedule
-   This is the scheduled task pool for the cycle mission scheduler."
+   This is the scheduled task pool for the mission scheduler. It is shared by
+   every session; each session keeps its own scheduled event."
   (mk-pool))
 
-(def scheduled-mis
-  "### scheduled-mis
-   This is the next scheduled mission load event. It's stored in an atom
-   so that it can be cancelled if the user loads the next mission explicitly."
-  (atom nil))
-
 (defn reset-schedule
   []
-  (stop-and-reset-pool! schedule :strategy :kill)
-  (reset! scheduled-mis nil))
+  (when-let [job @(state/scheduled-mis)]
+    (kill job))
+  (reset! (state/scheduled-mis) nil))
 
 (defn mins-to-ms
   "### mins-to-ms
@@ -31,8 +27,17 @@
 
 (defn stop-scheduled-mis
   []
-  (stop @scheduled-mis))
+  (when-let [job @(state/scheduled-mis)]
+    (stop job)))
 
 (defn schedule-mission
+  "### schedule-mission
+   This two argument function schedules f to run after the timer in minutes.
+   The session in scope is captured so that f runs against the same session
+   when it fires, whichever session is shown in the UI by then."
   [f timer]
-  (reset! scheduled-mis (after (mins-to-ms timer) f schedule)))
\ No newline at end of file
+  (let [session (state/session)]
+    (reset! (state/scheduled-mis)
+            (after (mins-to-ms timer)
+                   #(state/with-session session (f))
+                   schedule))))
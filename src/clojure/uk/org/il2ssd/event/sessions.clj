@@ -0,0 +1,91 @@
+;;
+;; ## Session event handlers
+;;
+;; Here we open and close server sessions from the UI. Each session gets its own
+;; console and table lists and an entry in the Server menu, and watches are added
+;; to its state atoms so that the session's own work carries on whether or not it
+;; is the session shown in the UI.
+(ns uk.org.il2ssd.event.sessions
+  (:require [uk.org.il2ssd.config :as config]
+            [uk.org.il2ssd.control :as control]
+            [uk.org.il2ssd.event.cycle :as cycle]
+            [uk.org.il2ssd.event.main :as main]
+            [uk.org.il2ssd.jfx.ui :as ui]
+            [uk.org.il2ssd.jfx.util :as util]
+            [uk.org.il2ssd.session :as session]
+            [uk.org.il2ssd.state :as state]
+            [uk.org.il2ssd.supervisor :as supervisor]))
+
+(def watched-state
+  "### watched-state
+   This is the set of session state atoms whose changes are reflected in the
+   UI."
+  #{:connected :loaded :loading :playing :server-path :dcg-path
+    :single-mission-path :cycle-mission-path :dcg-timer :dcg-mission-path
+    :cycle-running :cycle-index :dcg-running})
+
+(defn watch-session
+  "### watch-session
+   This one argument function adds a watch function to each of the supplied
+   session's watched state atoms.
+
+   The watch function always runs the session's own event processing, but only
+   updates the UI when the session is the one which is shown."
+  [session]
+  (doseq [[key state-atom] (:state session)
+          :when (watched-state key)]
+    (add-watch state-atom key
+               (fn [key ref old new]
+                 (state/with-session session
+                   (main/update-session key new)
+                   (when (state/current?)
+                     (main/update-ui state/get-state @state/controls
+                                     key ref old new)))))))
+
+(defn open-session
+  "### open-session
+   This zero argument function creates a new session with its own console and
+   table lists, adds it to the Server menu and watches its state.
+
+   The session's mission cycle and DCG timer are read from its cycle table and
+   its settings controls, see the control namespace. The missions in its cycle
+   table are checked whenever the table changes.
+
+   The new session is returned."
+  []
+  (let [{:keys [server-menu session-group]} @state/control-instances
+        item (ui/add-session-item server-menu session-group "")
+        data (ui/new-session-data (config/scrollback))
+        session (session/new-session
+                  (assoc data
+                    :menu-item item
+                    :cycle-missions #(ui/get-cycle-missions (:cycle-data data))
+                    :dcg-minutes #(main/session-setting :dcg-timer-fld)))]
+    (ui/set-menu-item-text item @(:name session))
+    (util/button-handler item main/show-session session)
+    (util/list-listener (:cycle-data data)
+                        #(state/with-session session (cycle/check-missions)))
+    (watch-session session)
+    session))
+
+(defn new-session-command
+  "### new-session-command
+   This zero argument function opens a new session and shows it in the UI."
+  []
+  (main/show-session (open-session)))
+
+(defn close-session-command
+  "### close-session-command
+   This zero argument function stops and disconnects the session shown in the
+   UI before removing it and its menu entry.
+
+   The first remaining session is then shown, or a fresh one if none remain."
+  []
+  (let [{:keys [server-menu]} @state/control-instances
+        session (state/session)]
+    (when @(state/cycle-running) (control/stop-cycle))
+    (supervisor/disconnect)
+    (session/remove-session session)
+    (ui/remove-menu-item server-menu (:menu-item (state/data)))
+    (main/show-session (or (first (session/all-sessions))
+                           (open-session)))))
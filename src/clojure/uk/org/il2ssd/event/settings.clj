@@ -23,8 +23,8 @@
   (let [{:keys [server-path-lbl]} @state/control-instances
         server-path (ui/get-text server-path-lbl)]
     (if (= server-path "...")
-      (reset! state/server-path nil)
-      (reset! state/server-path server-path))))
+      (reset! (state/server-path) nil)
+      (reset! (state/server-path) server-path))))
 
 (defn get-difficulties
   "### get-difficulties
@@ -32,7 +32,7 @@
    requests the currently loaded difficulty settings from the server so that they
    can be parsed back into the program by the listener function."
   []
-  (ui/clear-diff-data @state/control-instances)
+  (ui/clear-diff-data (state/data))
   (server/get-difficulty))
 
 (defn set-difficulties
@@ -44,7 +44,7 @@
    This will update the server with any changes that the user has made to the
    difficulty settings list."
   []
-  (let [{:keys [diff-data]} @state/control-instances]
+  (let [{:keys [diff-data]} (state/data)]
     (doseq [item diff-data
             :let [difficulty-setting (ui/get-difficulty-setting item)
                   setting (:setting difficulty-setting)
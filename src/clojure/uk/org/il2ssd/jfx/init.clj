@@ -6,18 +6,31 @@
 ;; structures which we can more easily manipulate in Clojure.
 (ns uk.org.il2ssd.jfx.init
   (:require [clojure.java.io :refer [resource]]
-            [clojure.edn :as edn]
+            [uk.org.il2ssd.admission :as admission]
+            [uk.org.il2ssd.api :as api]
+            [uk.org.il2ssd.bans :as registry]
+            [uk.org.il2ssd.catalogue :as missions]
+            [uk.org.il2ssd.control :as control]
             [uk.org.il2ssd.event.bans :as bans]
+            [uk.org.il2ssd.event.catalogue :as catalogue]
             [uk.org.il2ssd.event.console :as console]
             [uk.org.il2ssd.event.cycle :as cycle]
             [uk.org.il2ssd.event.dcg :as dcg]
             [uk.org.il2ssd.event.main :as main]
             [uk.org.il2ssd.event.mission :as mission]
             [uk.org.il2ssd.event.pilots :as pilots]
+            [uk.org.il2ssd.event.players :as players]
+            [uk.org.il2ssd.event.poller :as poller]
+            [uk.org.il2ssd.event.sessions :as sessions]
             [uk.org.il2ssd.event.settings :as settings]
             [uk.org.il2ssd.jfx.ui :as ui]
             [uk.org.il2ssd.jfx.util :as util]
-            [uk.org.il2ssd.config :refer [get-configuration read-config-file]]
+            [uk.org.il2ssd.jmx :as jmx]
+            [uk.org.il2ssd.config :refer [get-configuration read-config-file
+                                          load-console load-api load-journal
+                                          load-players api player-store
+                                          load-admission admission-rules]]
+            [uk.org.il2ssd.players :as stats]
             [uk.org.il2ssd.state :as state])
   (:import (java.net URL)
            (java.nio.file Path Paths)
@@ -25,19 +38,22 @@
            (javafx.collections FXCollections)
            (javafx.scene Scene)
            (javafx.scene.control Button ChoiceBox Label MenuItem SelectionModel
-                                 TableColumn TableView Tab TextField ToggleButton)
+                                 TableColumn TableView Tab TextField ToggleButton
+                                 ToggleGroup)
            (javafx.scene.control.cell PropertyValueFactory
                                       TextFieldTableCell ChoiceBoxTableCell
                                       ComboBoxTableCell)
            (javafx.scene.layout BorderPane HBox Priority Region StackPane)
            (javafx.scene.text Font)
-           (javafx.stage FileChooser FileChooser$ExtensionFilter Stage)
-           (uk.org.il2ssd.jfx ConsolePresenter ConsoleView CyclePresenter
+           (javafx.stage FileChooser FileChooser$ExtensionFilter Modality Stage)
+           (uk.org.il2ssd.jfx CataloguePresenter CatalogueView
+                              ConsolePresenter ConsoleView CyclePresenter
                               CycleView MainPresenter MainView
                               SettingsPresenter SettingsView
                               SinglePresenter SingleView CycleMission DCGView
                               DCGPresenter PilotsView PilotsPresenter BansView
-                              BansPresenter)
+                              BansPresenter PlayersView PlayersPresenter
+                              TeamTableRow)
            (javafx.util Callback)))
 
 (def modes
@@ -76,20 +92,24 @@
         main-view (MainView.)
         console-view (ConsoleView.)
         pilots-view (PilotsView.)
+        players-view (PlayersView.)
         bans-view (BansView.)
         single-view (SingleView.)
         cycle-view (CycleView.)
         dcg-view (DCGView.)
         settings-view (SettingsView.)
+        catalogue-view (CatalogueView.)
         scene (Scene. (.getView main-view))
         main-presenter (.getPresenter main-view)
         console-presenter (.getPresenter console-view)
         pilots-presenter (.getPresenter pilots-view)
+        players-presenter (.getPresenter players-view)
         bans-presenter (.getPresenter bans-view)
         single-presenter (.getPresenter single-view)
         cycle-presenter (.getPresenter cycle-view)
         dcg-presenter (.getPresenter dcg-view)
-        settings-presenter (.getPresenter settings-view)]
+        settings-presenter (.getPresenter settings-view)
+        catalogue-presenter (.getPresenter catalogue-view)]
     (main/set-title)
     (doto stage
       (.setScene scene)
@@ -100,11 +120,13 @@
             {:main-presenter     main-presenter
              :console-presenter  console-presenter
              :pilots-presenter   pilots-presenter
+             :players-presenter  players-presenter
              :bans-presenter     bans-presenter
              :single-presenter   single-presenter
              :cycle-presenter    cycle-presenter
              :dcg-presenter      dcg-presenter
-             :settings-presenter settings-presenter})))
+             :settings-presenter settings-presenter
+             :catalogue-presenter catalogue-presenter})))
 
 (defn init-objects
   "### init-objects
@@ -136,11 +158,13 @@
   (let [{:keys [^MainPresenter main-presenter
                 ^ConsolePresenter console-presenter
                 ^PilotsPresenter pilots-presenter
+                ^PlayersPresenter players-presenter
                 ^BansPresenter bans-presenter
                 ^SinglePresenter single-presenter
                 ^CyclePresenter cycle-presenter
                 ^DCGPresenter dcg-presenter
-                ^SettingsPresenter settings-presenter]} @state/presenters
+                ^SettingsPresenter settings-presenter
+                ^CataloguePresenter catalogue-presenter]} @state/presenters
         controls
         {;Main FXML file controls
           :tool-bar          {:instance (.getToolBar main-presenter)}
@@ -166,6 +190,7 @@
                               :disabled-by #{:loading}}
           :console-tab       {:instance (.getConsoleTab main-presenter)}
           :pilots-tab        {:instance (.getPilotsTab main-presenter)}
+          :players-tab       {:instance (.getPlayersTab main-presenter)}
           :bans-tab          {:instance (.getBansTab main-presenter)}
           :settings-tab      {:instance (.getSettingsTab main-presenter)}
           :mission-pane      {:instance (.getMissionPane main-presenter)}
@@ -176,17 +201,19 @@
                               :disabled-by #{:loading}}
           :exit-btn          {:instance (.getExitItem main-presenter)}
           :about-btn         {:instance (.getAboutItem main-presenter)}
-          :mis-chooser       {:instance (FileChooser.)}
+          :server-menu       {:instance (.getServerMenu main-presenter)}
+          :new-server-btn    {:instance (.getNewServerItem main-presenter)}
+          :close-server-btn  {:instance (.getCloseServerItem main-presenter)}
+          :session-group     {:instance (ToggleGroup.)}
           :dcg-chooser       {:instance (FileChooser.)}
          ;Console Tab FXML file controls
           :console-pane      {:instance (.getConsolePane console-presenter)}
           :cmd-entry         {:instance   (.getCommandEntryField console-presenter)
                               :enabled-by #{:connected}}
-          :console           {:instance (.getConsoleTextArea console-presenter)}
+          :console           {:instance (.getConsoleList console-presenter)}
          ;Pilots Tab FXML file controls
           :pilots-pane       {:instance (.getPilotsPane pilots-presenter)}
           :pilots-table      {:instance (.getPilotsTable pilots-presenter)}
-          :pilots-data       {:instance (FXCollections/synchronizedObservableList (FXCollections/observableArrayList))}
           :pilot-number-col  {:instance (.getPilotNumberColumn pilots-presenter)}
           :pilot-socket-col  {:instance (.getPilotSocketColumn pilots-presenter)}
           :pilot-ip-col      {:instance (.getPilotIpColumn pilots-presenter)}
@@ -204,10 +231,22 @@
                               :enabled-by #{:connected}}
           :send-chat-btn     {:instance (.getSendChatButton pilots-presenter)
                               :enabled-by #{:connected}}
+         ;Players Tab FXML file controls
+          :players-pane      {:instance (.getPlayersPane players-presenter)}
+          :players-table     {:instance (.getPlayersTable players-presenter)}
+          :players-data      {:instance (FXCollections/observableArrayList)}
+          :player-name-col   {:instance (.getPlayerNameColumn players-presenter)}
+          :player-sess-col   {:instance (.getPlayerSessionsColumn players-presenter)}
+          :player-hours-col  {:instance (.getPlayerHoursColumn players-presenter)}
+          :player-avg-col    {:instance (.getPlayerAverageColumn players-presenter)}
+          :player-best-col   {:instance (.getPlayerBestColumn players-presenter)}
+          :player-seen-col   {:instance (.getPlayerLastSeenColumn players-presenter)}
+          :player-ip-col     {:instance (.getPlayerLastIpColumn players-presenter)}
+          :player-filter-fld {:instance (.getPlayerFilterField players-presenter)}
+          :refresh-btn       {:instance (.getRefreshPlayersButton players-presenter)}
          ;Ban List FXML file controls
           :bans-pane         {:instance (.getBansPane bans-presenter)}
           :bans-table        {:instance (.getBansTable bans-presenter)}
-          :bans-data         {:instance (FXCollections/synchronizedObservableList (FXCollections/observableArrayList))}
           :ban-type-col      {:instance (.getBanTypeColumn bans-presenter)}
           :ban-value-col     {:instance (.getBanValueColumn bans-presenter)}
           :get-bans-btn      {:instance (.getGetBansButton bans-presenter)
@@ -216,6 +255,11 @@
                               :enabled-by #{:connected}}
           :clear-bans-btn    {:instance (.getClearBansButton bans-presenter)
                               :enabled-by #{:connected}}
+          :import-bans-btn   {:instance (.getImportBansButton bans-presenter)
+                              :enabled-by #{:connected}}
+          :export-bans-btn   {:instance (.getExportBansButton bans-presenter)
+                              :enabled-by #{:connected}}
+          :bans-chooser      {:instance (FileChooser.)}
          ;Single Mission FXML file controls
           :single-mis-pane   {:instance (.getSingleMisPane single-presenter)}
           :single-path-btn   {:instance   (.getChooseSingleMisButton single-presenter)
@@ -226,9 +270,9 @@
          ;Mission Cycle FXML file controls
           :cycle-mis-pane    {:instance (.getCycleMisPane cycle-presenter)}
           :cycle-table       {:instance (.getCycleMissionTable cycle-presenter)}
-          :cycle-data        {:instance (FXCollections/synchronizedObservableList (FXCollections/observableArrayList))}
           :cycle-mis-col     {:instance (.getCycleMissionColumn cycle-presenter)}
           :cycle-tim-col     {:instance (.getCycleTimerColumn cycle-presenter)}
+          :cycle-prob-col    {:instance (.getCycleProblemColumn cycle-presenter)}
           :cycle-mis-upbtn   {:instance    (.getMissionUpButton cycle-presenter)
                               :enabled-by  #{:cycle-mission-path}
                               :disabled-by #{:cycle-running}}
@@ -262,9 +306,25 @@
                               :enabled-by  #{:connected}
                               :disabled-by #{:loading :playing}}
           :diff-table        {:instance (.getDifficultyTable settings-presenter)}
-          :diff-data         {:instance (FXCollections/synchronizedObservableList (FXCollections/observableArrayList))}
           :diff-set-col      {:instance (.getDiffSettingColumn settings-presenter)}
-          :diff-val-col      {:instance (.getDiffValueColumn settings-presenter)}}
+          :diff-val-col      {:instance (.getDiffValueColumn settings-presenter)}
+         ;Mission Catalogue FXML file controls
+          :catalogue-stage   {:instance (Stage.)}
+          :catalogue-pane    {:instance (.getCataloguePane catalogue-presenter)}
+          :catalogue-search-fld {:instance (.getCatalogueSearchField catalogue-presenter)}
+          :catalogue-status-lbl {:instance (.getCatalogueStatusLabel catalogue-presenter)}
+          :catalogue-table   {:instance (.getCatalogueTable catalogue-presenter)}
+          :catalogue-data    {:instance (FXCollections/observableArrayList)}
+          :catalogue-mis-col {:instance (.getCatalogueMissionColumn catalogue-presenter)}
+          :catalogue-map-col {:instance (.getCatalogueMapColumn catalogue-presenter)}
+          :catalogue-date-col {:instance (.getCatalogueDateColumn catalogue-presenter)}
+          :catalogue-time-col {:instance (.getCatalogueTimeColumn catalogue-presenter)}
+          :catalogue-wx-col  {:instance (.getCatalogueWeatherColumn catalogue-presenter)}
+          :catalogue-red-col {:instance (.getCatalogueRedColumn catalogue-presenter)}
+          :catalogue-blue-col {:instance (.getCatalogueBlueColumn catalogue-presenter)}
+          :catalogue-size-col {:instance (.getCatalogueSizeColumn catalogue-presenter)}
+          :catalogue-select-btn {:instance (.getCatalogueSelectButton catalogue-presenter)}
+          :catalogue-close-btn {:instance (.getCatalogueCloseButton catalogue-presenter)}}
         control-instances (map-control-instances controls)]
     (reset! state/controls controls)
     (reset! state/control-instances control-instances)))
@@ -273,10 +333,8 @@
   "### init-handlers
    This zero argument function is used to add event handlers and change listeners
    to any objects that must respond to user input.
-   We also add watch functions to the global state atoms where those state atoms'
-   values should be reflected in the UI.
-   Changes in these atoms' values will trigger a watch function that sets any
-   event-specific state, and sets the control enabled states globally."
+   Watch functions are added to each session's state atoms when the session is
+   opened, see init-session."
   []
   (let [{:keys [^Button connect-btn
                 ^Button disconn-btn
@@ -289,12 +347,20 @@
                 ^Button ip-ban-btn
                 ^Button send-chat-btn
                 ^TextField chat-field
+                ^TextField pilot-upd-fld
+                ^Tab players-tab
+                ^TextField player-filter-fld
+                ^Button refresh-btn
                 ^Button get-bans-btn
                 ^Button lift-ban-btn
                 ^Button clear-bans-btn
+                ^Button import-bans-btn
+                ^Button export-bans-btn
                 ^ChoiceBox mode-choice
                 ^Button load-btn
                 ^MenuItem exit-btn
+                ^MenuItem new-server-btn
+                ^MenuItem close-server-btn
                 ^Label server-path-lbl
                 ^Button server-path-btn
                 ^Button get-diff-btn
@@ -312,29 +378,20 @@
                 ^Button dcg-start-btn
                 ^Button dcg-next-btn
                 ^Label dcg-path-lbl
-                ^Label dcg-mis-lbl]}
-        @state/control-instances
-        watch-fn (partial main/update-ui state/get-state @state/controls)]
-    ;State atom watch functions
-    (add-watch state/connected :connected watch-fn)
-    (add-watch state/loaded :loaded watch-fn)
-    (add-watch state/loading :loading watch-fn)
-    (add-watch state/playing :playing watch-fn)
-    (add-watch state/server-path :server-path watch-fn)
-    (add-watch state/dcg-path :dcg-path watch-fn)
-    (add-watch state/single-mission-path :single-mission-path watch-fn)
-    (add-watch state/cycle-mission-path :cycle-mission-path watch-fn)
-    (add-watch state/dcg-timer :dcg-timer watch-fn)
-    (add-watch state/dcg-mission-path :dcg-mission-path watch-fn)
-    (add-watch state/cycle-running :cycle-running watch-fn)
-    (add-watch state/cycle-index :cycle-index watch-fn)
-    (add-watch state/dcg-running :dcg-running watch-fn)
+                ^Label dcg-mis-lbl
+                ^TextField catalogue-search-fld
+                ^TableView catalogue-table
+                ^Button catalogue-select-btn
+                ^Button catalogue-close-btn]}
+        @state/control-instances]
     ;Main UI EventHandlers and Listeners
     (util/button-handler connect-btn main/connect-command)
     (util/button-handler disconn-btn main/disconnect-command)
     (util/button-handler start-btn main/start-stop-command)
     (util/button-handler load-btn main/load-unload-command)
     (util/button-handler exit-btn main/close)
+    (util/button-handler new-server-btn sessions/new-session-command)
+    (util/button-handler close-server-btn sessions/close-session-command)
     ;Console tab
     (util/keypress-handler cmd-entry "Enter" console/enter-command)
     ;Pilots tab
@@ -343,10 +400,17 @@
     (util/button-handler ip-ban-btn pilots/ip-ban-pilot)
     (util/button-handler send-chat-btn pilots/send-chat)
     (util/keypress-handler chat-field "Enter" pilots/send-chat)
+    (util/field-listener pilot-upd-fld poller/interval-select)
+    ;Players tab
+    (util/tab-handler players-tab players/players-tab-selected)
+    (util/field-listener player-filter-fld players/refresh-players)
+    (util/button-handler refresh-btn players/refresh-players)
     ;Ban List tab
     (util/button-handler get-bans-btn bans/get-bans)
     (util/button-handler lift-ban-btn bans/lift-ban)
     (util/button-handler clear-bans-btn bans/clear-bans)
+    (util/button-handler import-bans-btn bans/import-bans)
+    (util/button-handler export-bans-btn bans/export-bans)
     ;Mission tab
     (util/value-listener mode-choice mission/mode-choice modes)
     ;Single mission pane
@@ -360,20 +424,63 @@
     (util/button-handler cycle-mis-addbtn cycle/mission-add)
     (util/button-handler cycle-path-btn cycle/cycle-choose-command)
     (util/button-handler cycle-start-btn cycle/start-stop-cycle-command)
-    (util/button-handler cycle-next-btn cycle/next-mission false)
+    (util/button-handler cycle-next-btn control/next-mission false)
     ;DCG generation pane
     (util/button-handler dcg-timer-toggle dcg/toggle-timer)
     (util/button-handler dcg-path-btn dcg/dcg-choose-command)
     (util/button-handler dcg-start-btn dcg/start-stop-dcg-command)
-    (util/button-handler dcg-next-btn dcg/generate-dcg-mis false)
+    (util/button-handler dcg-next-btn control/generate-dcg-mis false)
     (util/text-listener dcg-path-lbl dcg/dcg-path-select)
     (util/text-listener dcg-mis-lbl dcg/dcg-mis-generated)
+    ;Mission catalogue window
+    (util/field-listener catalogue-search-fld catalogue/search-catalogue)
+    (util/keypress-handler catalogue-table "Enter" catalogue/choose-mission)
+    (util/button-handler catalogue-select-btn catalogue/choose-mission)
+    (util/button-handler catalogue-close-btn catalogue/close-catalogue)
     ;Settings tab
     (util/button-handler server-path-btn settings/server-choose-command)
     (util/text-listener server-path-lbl settings/server-path-select)
     (util/button-handler get-diff-btn settings/get-difficulties)
     (util/button-handler set-diff-btn settings/set-difficulties)))
 
+(defn init-session
+  "### init-session
+   This zero argument function opens the first server session and shows it in
+   the UI. The remaining controls are initialised into this session.
+
+   The console settings are loaded first, as they size each session's console.
+   The admission rules are loaded before any session can connect. The player
+   statistics store and the HTTP API are started afterwards if they are enabled
+   in the config file."
+  []
+  (let [file (read-config-file)]
+    (load-console file)
+    (load-api file)
+    (load-journal file)
+    (load-players file)
+    (load-admission file))
+  (when-let [path (admission-rules)]
+    (admission/load-rules path))
+  (sessions/new-session-command)
+  (when-let [settings (player-store)]
+    (stats/start settings))
+  (when-let [settings (api)]
+    (api/start settings)))
+
+(defn init-frame-timer
+  "### init-frame-timer
+   This zero argument function starts the timer which, once per frame, applies
+   the UI updates queued since the last frame and flushes the text queued for
+   each session's console. A burst of console output or server data is then
+   shown in a single pass rather than one update per line.
+
+   The frame statistics are registered with JMX as \"uk.org.il2ssd:type=Frames\"."
+  []
+  (jmx/register "type=Frames" util/frame-report)
+  (.start (util/frame-timer (fn []
+                              (util/apply-frame-updates)
+                              (main/flush-consoles)))))
+
 (defn init-controls
   "### init-controls
    The zero argument function is used to load any subsidiary FXML files.
@@ -389,10 +496,12 @@
   []
   (let [{:keys [^Tab console-tab
                 ^Tab pilots-tab
+                ^Tab players-tab
                 ^Tab bans-tab
                 ^Tab settings-tab
                 ^BorderPane console-pane
                 ^BorderPane pilots-pane
+                ^BorderPane players-pane
                 ^BorderPane bans-pane
                 ^BorderPane settings-pane
                 ^TextField ip-field
@@ -406,7 +515,7 @@
                 ^StackPane prog-stack
                 ^ChoiceBox mode-choice
                 ^Region mission-spring
-                ^List cycle-data]} @state/control-instances
+                ^List cycle-data]} (merge @state/control-instances (state/data))
         config (get-configuration (read-config-file))
         {ip         :ip-field
          port       :port-field
@@ -432,6 +541,7 @@
     (HBox/setHgrow mission-spring Priority/ALWAYS)
     (.setContent console-tab console-pane)
     (.setContent pilots-tab pilots-pane)
+    (.setContent players-tab players-pane)
     (.setContent bans-tab bans-pane)
     (.setContent settings-tab settings-pane)
     (-> mode-choice .getItems (.addAll ^List (map modes [:single :cycle :dcg])))
@@ -448,14 +558,10 @@
             "false" (.setSelected dcg-timer-toggle false))
           (dcg/toggle-timer)
           (.setText dcg-timer-fld dcg-mins)
-          (when (seq cycle)
-            (loop [index 0]
-              (when-let [saved-mission (get cycle (str index))]
-                (let [[mission timer] (edn/read-string saved-mission)]
-                  (.add cycle-data (CycleMission. mission timer))
-                  (when (zero? index)
-                    (reset! state/cycle-mission-path mission)))
-                (recur (inc index))))))
+          (doseq [{:keys [mission timer]} cycle]
+            (.add cycle-data (CycleMission. mission timer)))
+          (when-let [{:keys [mission]} (first cycle)]
+            (reset! (state/cycle-mission-path) mission)))
       (-> mode-choice .getSelectionModel .selectFirst))))
 
 (defn init-choosers
@@ -464,12 +570,12 @@
    opened from the UI, setting the title, initial directory and file extension
    filter to be used.
 
-   The initial directory for the mission file chooser is not set, as this will
-   be resolved relative to the chosen Il-2 server path."
+   Missions are not chosen with a FileChooser but from the mission catalogue,
+   see init-catalogue."
   []
   (let [{:keys [^FileChooser server-chooser
-                ^FileChooser mis-chooser
-                ^FileChooser dcg-chooser]} @state/control-instances]
+                ^FileChooser dcg-chooser
+                ^FileChooser bans-chooser]} @state/control-instances]
     (doto server-chooser
       (.setTitle "Choose Il-2 Server Executable")
       (.setInitialDirectory
@@ -482,14 +588,6 @@
               "Il-2 Server (il2server.exe)"
               ^"[Ljava.lang.String;"
               (into-array String ["il2server.exe"])))))
-    (doto mis-chooser
-      (.setTitle "Choose Il-2 Mission File")
-      (-> ^List .getExtensionFilters
-          (.add
-            (FileChooser$ExtensionFilter.
-              "Il-2 Mission (*.mis)"
-              ^"[Ljava.lang.String;"
-              (into-array ["*.mis"])))))
     (doto dcg-chooser
       (.setTitle "Choose DCG Executable")
       (.setInitialDirectory
@@ -501,7 +599,15 @@
             (FileChooser$ExtensionFilter.
               "DCG Executable (il2dcg.exe)"
               ^"[Ljava.lang.String;"
-              (into-array ["il2dcg.exe"])))))))
+              (into-array ["il2dcg.exe"])))))
+    (doto bans-chooser
+      (.setTitle "Choose Ban List File")
+      (-> ^List .getExtensionFilters
+          (.add
+            (FileChooser$ExtensionFilter.
+              "Ban List (*.txt)"
+              ^"[Ljava.lang.String;"
+              (into-array ["*.txt"])))))))
 
 (defn init-diff-table
   "### init-diff-table
@@ -515,8 +621,10 @@
    table cells containing a combo box from which these values can be
    chosen.
 
-   The backing list for the table is instantiated and stored in the controls
-   atom before being linked to the table.
+   The check column shows the problem, if any, found by the pre-flight check of
+ each mission, see event.cycle/check-missions.
+
+ The backing list for the table is taken from the session shown in the UI.
 
    Finally, we attach an EventHandler to the cell edit commit action which rejects
    any inputs which are not equal to 0 or 1, as these are the permitted values for
@@ -525,7 +633,7 @@
   (let [{:keys [^TableView diff-table
                 ^List diff-data
                 ^TableColumn diff-set-col
-                ^TableColumn diff-val-col]} @state/control-instances]
+                ^TableColumn diff-val-col]} (merge @state/control-instances (state/data))]
     (.setCellValueFactory diff-set-col (PropertyValueFactory. "setting"))
     (doto diff-val-col
       (.setCellFactory
@@ -547,8 +655,10 @@
  We also define the CellFactory for the mission timer column as
  TextFieldTableCell, which produces editable table cells.
 
- The backing list for the table is instantiated and stored in the controls atom
- before being linked to the table.
+ The check column shows the problem, if any, found by the pre-flight check of
+ each mission, see event.cycle/check-missions.
+
+ The backing list for the table is taken from the session shown in the UI.
 
  Finally, we attach an EventHandler to the cell edit commit action which rejects
  inputs which cannot be converted to an Integer or which are not greater than
@@ -557,8 +667,10 @@
   (let [{:keys [^TableView cycle-table
                 ^List cycle-data
                 ^TableColumn cycle-mis-col
-                ^TableColumn cycle-tim-col]} @state/control-instances]
+                ^TableColumn cycle-tim-col
+                ^TableColumn cycle-prob-col]} (merge @state/control-instances (state/data))]
     (.setCellValueFactory cycle-mis-col (PropertyValueFactory. "mission"))
+    (.setCellValueFactory cycle-prob-col (PropertyValueFactory. "problem"))
     (doto cycle-tim-col
       (.setCellFactory (TextFieldTableCell/forTableColumn))
       (.setCellValueFactory (PropertyValueFactory. "timer"))
@@ -576,7 +688,7 @@
                 ^TableColumn pilot-ip-col
                 ^TableColumn pilot-name-col
                 ^TableColumn pilot-score-col
-                ^TableColumn pilot-team-col]} @state/control-instances]
+                ^TableColumn pilot-team-col]} (merge @state/control-instances (state/data))]
     (.setCellValueFactory pilot-number-col (PropertyValueFactory. "number"))
     (.setCellValueFactory pilot-socket-col (PropertyValueFactory. "socket"))
     (.setCellValueFactory pilot-ip-col (PropertyValueFactory. "ip"))
@@ -585,6 +697,8 @@
     (.setCellValueFactory pilot-team-col (PropertyValueFactory. "team"))
     (doto pilots-table
       (.setColumnResizePolicy TableView/CONSTRAINED_RESIZE_POLICY)
+      (.setRowFactory (reify Callback
+                        (call [_ _] (TeamTableRow.))))
       (.setItems pilots-data)
       (-> .getSortOrder
           (.addAll
@@ -592,14 +706,75 @@
                                      pilot-score-col
                                      pilot-number-col]))))))
 
+(defn init-players-table
+  []
+  (let [{:keys [^TableView players-table
+                ^List players-data
+                ^TableColumn player-name-col
+                ^TableColumn player-sess-col
+                ^TableColumn player-hours-col
+                ^TableColumn player-avg-col
+                ^TableColumn player-best-col
+                ^TableColumn player-seen-col
+                ^TableColumn player-ip-col]} @state/control-instances]
+    (.setCellValueFactory player-name-col (PropertyValueFactory. "name"))
+    (.setCellValueFactory player-sess-col (PropertyValueFactory. "sessions"))
+    (.setCellValueFactory player-hours-col (PropertyValueFactory. "hours"))
+    (.setCellValueFactory player-avg-col (PropertyValueFactory. "average"))
+    (.setCellValueFactory player-best-col (PropertyValueFactory. "best"))
+    (.setCellValueFactory player-seen-col (PropertyValueFactory. "lastSeen"))
+    (.setCellValueFactory player-ip-col (PropertyValueFactory. "lastIp"))
+    (doto players-table
+      (.setColumnResizePolicy TableView/CONSTRAINED_RESIZE_POLICY)
+      (.setItems players-data))))
+
 (defn init-bans-table
   []
   (let [{:keys [^TableView bans-table
                 ^List bans-data
                 ^TableColumn ban-type-col
-                ^TableColumn ban-value-col]} @state/control-instances]
+                ^TableColumn ban-value-col]} (merge @state/control-instances (state/data))]
+    (reset! registry/on-change bans/show-changes)
     (.setCellValueFactory ban-type-col (PropertyValueFactory. "type"))
     (.setCellValueFactory ban-value-col (PropertyValueFactory. "value"))
     (doto bans-table
       (.setColumnResizePolicy TableView/CONSTRAINED_RESIZE_POLICY)
-      (.setItems bans-data))))
\ No newline at end of file
+      (.setItems bans-data))))
+
+(defn init-catalogue
+  "### init-catalogue
+   This zero argument function instantiates the cell value factories of the
+   mission catalogue table and the window which shows it, which belongs to the
+   main window. Whenever a catalogue changes the table is refreshed, if it is
+   the catalogue shown, and the missions of the cycle shown are checked again,
+   as one of their files may have changed."
+  []
+  (let [{:keys [^Stage catalogue-stage
+                ^BorderPane catalogue-pane
+                ^TableView catalogue-table
+                ^List catalogue-data
+                ^TableColumn catalogue-mis-col
+                ^TableColumn catalogue-map-col
+                ^TableColumn catalogue-date-col
+                ^TableColumn catalogue-time-col
+                ^TableColumn catalogue-wx-col
+                ^TableColumn catalogue-red-col
+                ^TableColumn catalogue-blue-col
+                ^TableColumn catalogue-size-col]} @state/control-instances]
+    (reset! missions/on-change (fn [root]
+                                 (catalogue/refresh-catalogue root)
+                                 (cycle/check-missions)))
+    (.setCellValueFactory catalogue-mis-col (PropertyValueFactory. "mission"))
+    (.setCellValueFactory catalogue-map-col (PropertyValueFactory. "map"))
+    (.setCellValueFactory catalogue-date-col (PropertyValueFactory. "date"))
+    (.setCellValueFactory catalogue-time-col (PropertyValueFactory. "time"))
+    (.setCellValueFactory catalogue-wx-col (PropertyValueFactory. "weather"))
+    (.setCellValueFactory catalogue-red-col (PropertyValueFactory. "red"))
+    (.setCellValueFactory catalogue-blue-col (PropertyValueFactory. "blue"))
+    (.setCellValueFactory catalogue-size-col (PropertyValueFactory. "size"))
+    (.setItems catalogue-table catalogue-data)
+    (doto catalogue-stage
+      (.initOwner ^Stage @state/stage)
+      (.initModality Modality/WINDOW_MODAL)
+      (.setTitle "Mission Catalogue")
+      (.setScene (Scene. catalogue-pane)))))
@@ -7,25 +7,30 @@
 ;; is independent of the UI framework.
 ;;
 ;; This namespace wraps UI update functions that will be called from other
-;; threads in util/run-later calls so that all handling of the JavaFX
+;; threads in util/run-in-frame calls so that all handling of the JavaFX
 ;; Application Thread is kept within this namespace and the main application
 ;; logic doesn't need to know about it.
 (ns uk.org.il2ssd.jfx.ui
   (:require [uk.org.il2ssd.jfx.util :as util])
   (:import (java.io File)
+           (java.text SimpleDateFormat)
            (java.nio.file Path Paths)
-           (java.util List Collections)
+           (java.util Collection Date List Collections HashMap HashSet
+                      LinkedHashSet)
+           (java.util.concurrent ConcurrentLinkedQueue)
            (javafx.application Platform)
+           (javafx.collections FXCollections ObservableList)
            (javafx.event EventHandler)
            (javafx.scene Node)
-           (javafx.scene.control Button ChoiceBox Label Labeled
-                                 ProgressIndicator SelectionModel TableColumn
-                                 TableColumn$CellEditEvent TableView
-                                 TextArea TextField TextInputControl TablePosition
-                                 ToolBar TableRow ToggleButton)
+           (javafx.scene.control Button ChoiceBox Label Labeled Menu MenuItem
+                                 ProgressIndicator RadioMenuItem SelectionModel
+                                 TableColumn TableColumn$CellEditEvent TableView
+                                 ListView TextField TextInputControl TablePosition
+                                 ToggleGroup ToolBar TableRow ToggleButton Tab)
            (javafx.scene.layout BorderPane)
            (javafx.stage FileChooser Stage)
-           (uk.org.il2ssd.jfx CycleMission DifficultySetting Pilot Ban)))
+           (uk.org.il2ssd.jfx CatalogueMission CycleMission DifficultySetting
+                              Pilot Ban ConsoleLines PlayerStats)))
 
 (defn exit
   "### exit
@@ -38,7 +43,7 @@
    This one argument function clears the list which it receives as an argument."
   [controls]
   (let [{:keys [^List diff-data]} controls]
-    (util/run-later (.clear diff-data))))
+    (util/run-in-frame (.clear diff-data))))
 
 (defn add-diff-data
   "### add-diff-data
@@ -47,66 +52,208 @@
   [^List diff-data
    ^String setting
    ^String value]
-  (util/run-later (.add diff-data (DifficultySetting. setting value))))
+  (util/run-in-frame (.add diff-data (DifficultySetting. setting value))))
 
-(defn clear-bans-data
-  [controls]
-  (let [{:keys [^List bans-data]} controls]
-    (util/run-later (.clear bans-data))))
-
-(defn add-ban-data
-  [^List bans-data
-   ^String type
-   ^String value]
-  (util/run-later (.add bans-data (Ban. type value))))
+(def ban-labels
+  "### ban-labels
+   This is a map of each type of ban entry to its label in the ban list
+   table."
+  {:name "Name" :ip "IP"})
+
+(defn new-ban-roster
+  "### new-ban-roster
+   This zero argument function returns a new ban roster, which queues the
+   changes to a session's ban registry to be mirrored to the list which backs
+   the ban list table. The roster also maps each entry shown to its row."
+  []
+  {:changes (ConcurrentLinkedQueue.)
+   :shown   (HashMap.)})
+
+(defn mirror-bans
+  "### mirror-bans
+   This three argument function applies every queued ban change to the supplied
+   list as a single batch of removals followed by a single batch of additions,
+   so that a large change does not rebuild the table. Each change is a vector
+   of :add or :remove and an entry, or :clear alone.
+   This must be called on the JavaFX Application Thread."
+  [^List bans-data ^ConcurrentLinkedQueue changes ^HashMap shown]
+  (let [added (LinkedHashSet.)
+        removed (HashSet.)]
+    (loop [cleared false]
+      (if-let [[change entry] (.poll changes)]
+        (case change
+          :add (do (when-not (.containsKey shown entry)
+                     (let [[type value] entry
+                           ban (Ban. (ban-labels type) value)]
+                       (.put shown entry ban)
+                       (.add added ban)))
+                   (recur cleared))
+          :remove (do (when-let [ban (.remove shown entry)]
+                        (when-not (.remove added ban)
+                          (.add removed ban)))
+                      (recur cleared))
+          :clear (do (.clear shown)
+                     (.clear added)
+                     (.clear removed)
+                     (recur true)))
+        (do (if cleared
+              (.clear bans-data)
+              (when-not (.isEmpty removed)
+                (.removeAll bans-data removed)))
+            (when-not (.isEmpty added)
+              (.addAll bans-data added)))))))
+
+(defn queue-ban-changes
+  "### queue-ban-changes
+   This two argument function queues the supplied changes to the ban registry,
+   a map of the entries :added and :removed or of :cleared true, to be mirrored
+   to the ban list of the supplied session data with the UI updates of the next
+   frame."
+  [data {:keys [added removed cleared]}]
+  (let [{:keys [bans-data bans-roster]} data
+        {:keys [^ConcurrentLinkedQueue changes shown]} bans-roster]
+    (when cleared
+      (.add changes [:clear]))
+    (doseq [entry removed]
+      (.add changes [:remove entry]))
+    (doseq [entry added]
+      (.add changes [:add entry]))
+    (util/coalesce-in-frame [bans-data :roster]
+      (mirror-bans bans-data changes shown))))
 
 (defn get-ban
-  ([^List bans-data index]
-   (let [^Ban ban (.get bans-data index)]
-     (-> {}
-         (assoc :type (.getType ban))
-         (assoc :value (.getValue ban))))))
+  "### get-ban
+   This two argument function returns the ban entry shown at the supplied index
+   of the supplied ban list, as a vector of its type and value."
+  [^List bans-data index]
+  (let [^Ban ban (.get bans-data index)]
+    [(some (fn [[type label]] (when (= label (.getType ban)) type)) ban-labels)
+     (.getValue ban)]))
+
+(defn new-pilot-roster
+  "### new-pilot-roster
+   This zero argument function returns a new pilot roster. The roster indexes
+   each pilot by socket and by channel number, and queues the changes to be
+   mirrored to the list which backs the pilots table."
+  []
+  {:index   (atom {:sockets {} :numbers {}})
+   :changes (ConcurrentLinkedQueue.)})
+
+(defn mirror-pilots
+  "### mirror-pilots
+   This two argument function applies every queued roster change to the supplied
+   list as a single batch of removals followed by a single batch of additions.
+   A pilot who was added and removed again within the batch is never shown.
+   This must be called on the JavaFX Application Thread."
+  [^List pilots-data ^ConcurrentLinkedQueue changes]
+  (let [added (LinkedHashSet.)
+        removed (HashSet.)]
+    (loop [cleared false]
+      (if-let [[change pilot] (.poll changes)]
+        (case change
+          :add (do (.add added pilot)
+                   (recur cleared))
+          :remove (do (when-not (.remove added pilot)
+                        (.add removed pilot))
+                      (recur cleared))
+          :clear (do (.clear added)
+                     (.clear removed)
+                     (recur true)))
+        (do (if cleared
+              (.clear pilots-data)
+              (when-not (.isEmpty removed)
+                (.removeAll pilots-data removed)))
+            (when-not (.isEmpty added)
+              (.addAll pilots-data added)))))))
+
+(defn queue-pilot-change
+  "### queue-pilot-change
+   This three argument function queues a change of the supplied kind to the
+   pilot roster in the supplied session data, to be mirrored to the pilots list
+   with the UI updates of the next frame."
+  [data change pilot]
+  (let [{:keys [pilots-data pilots-roster]} data
+        {:keys [changes]} pilots-roster]
+    (.add ^ConcurrentLinkedQueue changes [change pilot])
+    (util/coalesce-in-frame [pilots-data :roster]
+      (mirror-pilots pilots-data changes))))
 
 (defn clear-pilots-data
-  [controls]
-  (let [{:keys [^List pilots-data]} controls]
-    (util/run-later (.clear pilots-data))))
+  [data]
+  (let [{:keys [index]} (:pilots-roster data)]
+    (reset! index {:sockets {} :numbers {}})
+    (queue-pilot-change data :clear nil)))
 
 (defn add-pilot-data
-  ([^List pilots-data
-    ^String socket
-    ^String ip
-    ^String name]
-   (util/run-later (.add pilots-data (Pilot. socket ip name))))
-  ([^List pilots-data
-    ^String number
-    ^String socket
-    ^String ip
-    ^String name]
-   (util/run-later (.add pilots-data (Pilot. number socket ip name)))))
+  "### add-pilot-data
+   This five argument function adds a pilot with the supplied details to the
+   roster in the supplied session data. If a pilot is already known on the
+   socket, only the pilot's channel number is updated."
+  [data number socket ip name]
+  (let [{:keys [index]} (:pilots-roster data)]
+    (if-let [{:keys [^Pilot pilot] old-number :number} (get-in @index [:sockets socket])]
+      (do (swap! index #(-> %
+                            (update-in [:numbers] dissoc old-number)
+                            (assoc-in [:numbers number] socket)
+                            (assoc-in [:sockets socket :number] number)))
+          (util/coalesce-in-frame [pilot :number]
+            (.setNumber pilot number)))
+      (let [pilot (Pilot. number socket ip name)]
+        (swap! index #(-> %
+                          (assoc-in [:numbers number] socket)
+                          (assoc-in [:sockets socket] {:number number
+                                                       :name   name
+                                                       :pilot  pilot})))
+        (queue-pilot-change data :add pilot)))))
 
 (defn update-pilot-data
-  ([pilots-data number score team]
-   (doseq [^Pilot pilot pilots-data
-           :when (= (.getNumber pilot) number)]
-     (util/run-later
-       (doto pilot
-         (.setScore (Long/decode score))
-         (.setTeam team)))))
-  ([pilots-data number socket ip name]
-   (let [update-pilot (for [^Pilot pilot pilots-data
-                            :when (= (.getSocket pilot) socket)]
-                        (do (util/run-later (.setNumber pilot number))
-                            true))]
-     (when-not (some true? update-pilot)
-       (add-pilot-data pilots-data number socket ip name)))))
+  "### update-pilot-data
+   This five argument function sets the score and team of the pilot with the
+   supplied name on the supplied channel number in the roster of the supplied
+   session data. Nothing is set if another pilot now holds the number, as
+   numbers move up when other pilots leave.
+
+   The roster keeps the last score and team it was given for each pilot, and
+   the pilot is only updated in the UI when one of them has changed. The check
+   and the update of the roster are made as one, so that they see the same
+   pilot. Returns true if the pilot was updated."
+  [data number name score team]
+  (let [{:keys [index]} (:pilots-roster data)]
+    (loop []
+      (let [{:keys [sockets numbers] :as roster} @index
+            socket (numbers number)
+            {:keys [^Pilot pilot] :as known} (sockets socket)]
+        (when (and pilot
+                   (= name (:name known))
+                   (not= [score team] [(:score known) (:team known)]))
+          (if (compare-and-set! index roster
+                                (update-in roster [:sockets socket]
+                                           assoc :score score :team team))
+            (do (util/coalesce-in-frame [pilot :user]
+                  (doto pilot
+                    (.setScore (Long/decode score))
+                    (.setTeam team)))
+                true)
+            (recur)))))))
+
+(defn count-pilots
+  "### count-pilots
+   This one argument function returns the number of pilots in the roster of the
+   supplied session data."
+  [data]
+  (count (:sockets @(:index (:pilots-roster data)))))
 
 (defn remove-pilot-data
-  [^List pilots-data
-   ^String socket]
-  (doseq [^Pilot pilot pilots-data]
-    (when (= (.getSocket pilot) socket)
-      (util/run-later (.remove pilots-data pilot)))))
+  "### remove-pilot-data
+   This two argument function removes the pilot on the supplied socket from the
+   roster in the supplied session data."
+  [data socket]
+  (let [{:keys [index]} (:pilots-roster data)]
+    (when-let [{:keys [pilot number]} (get-in @index [:sockets socket])]
+      (swap! index #(-> %
+                        (update-in [:sockets] dissoc socket)
+                        (update-in [:numbers] dissoc number)))
+      (queue-pilot-change data :remove pilot))))
 
 (defn get-pilot
   ([^List pilots-data index]
@@ -116,37 +263,51 @@
          (assoc :name (.getName pilot))
          (assoc :ip (.getIp pilot))))))
 
-(defn get-nth-in-string
-  "### get-nth-in-string
-   This function takes an integer n, a character ch and some input text, and
-   returns the index of the nth occurrence of character ch in the text."
-  [n ch in-text]
-  (loop [index -1
-         found 0
-         ^String text in-text]
-    (if (or (< n 1) (= found n))
-      index
-      (let [found-idx (.indexOf text (int ch))]
-        (if (neg? found-idx)
-          found-idx
-          (recur (int (+ index (inc found-idx)))
-                 (inc found)
-                 (.substring text (inc found-idx))))))))
+(defn set-players-data
+  "### set-players-data
+   This two argument function replaces the contents of the supplied list with
+   the supplied player totals, as returned by the players namespace's query."
+  [^ObservableList players-data players]
+  (let [format (SimpleDateFormat. "yyyy-MM-dd HH:mm")
+        ^Collection rows (vec (for [{:keys [name sessions hours average best
+                                            last-seen last-ip]} players]
+                                (PlayerStats. (str name) (long sessions) (double hours)
+                                              (double average) (long best)
+                                              (.format format (Date. (long last-seen)))
+                                              (str last-ip))))]
+    (util/run-in-frame (.setAll players-data rows))))
 
 (defn print-console
   "### print-console
-   This two argument function appends the supplied text to the supplied text area
-   control. We also delete old lines when the line count reaches 1000 lines."
-  [^TextArea console new-text]
-  (let [console-text (.getText ^TextArea console)
-        newlines (partial filter #(= % \newline))
-        current-count (count (newlines console-text))
-        new-count (count (newlines new-text))
-        overflow (- (+ current-count new-count) 1000)
-        delete-index (get-nth-in-string overflow \newline console-text)]
-    (when (> delete-index -1)
-      (util/run-now (.deleteText console 0 delete-index))))
-  (util/run-now (.appendText console new-text)))
+   This two argument function queues the supplied text to be appended to the
+   supplied console lines. It may be called from any thread; the lines are shown
+   the next time the console is flushed."
+  [^ConsoleLines lines ^String text]
+  (.offer lines text))
+
+(defn clear-console
+  "### clear-console
+   This two argument function queues a clear of the supplied console lines. When
+   connected is false the console then shows that it is disconnected."
+  [^ConsoleLines lines connected]
+  (.requestClear lines)
+  (when-not connected
+    (.offer lines "<disconnected>")))
+
+(defn flush-console
+  "### flush-console
+   This one argument function applies all queued console text to the supplied
+   console lines. This must be called on the JavaFX Application Thread.
+
+   Returns true if the console lines changed."
+  [^ConsoleLines lines]
+  (.flush lines))
+
+(defn scroll-to-end
+  "### scroll-to-end
+   This one argument function scrolls the supplied list view to its last item."
+  [^ListView list]
+  (.scrollTo list (int (max 0 (dec (.size (.getItems list)))))))
 
 (defn clear-input
   "### clear-input
@@ -159,7 +320,7 @@
    This one argument function sets the stage title for the supplied stage to the
    supplied text value."
   [^Stage stage title]
-  (util/run-later (.setTitle stage title)))
+  (util/coalesce-in-frame [stage :title] (.setTitle stage title)))
 
 (defn set-visible
   "### set-visible
@@ -167,8 +328,8 @@
    upon a boolean parameter."
   [^Node control show]
   (if show
-    (util/run-later (.setVisible control true))
-    (util/run-later (.setVisible control false))))
+    (util/coalesce-in-frame [control :visible] (.setVisible control true))
+    (util/coalesce-in-frame [control :visible] (.setVisible control false))))
 
 (defn toggle-prog-ind
   "### toggle-prog-ind
@@ -177,18 +338,9 @@
   [show controls]
   (let [{:keys [^ProgressIndicator prog-ind]} controls]
     (if show
-      (util/run-later (.setVisible prog-ind true))
-      (util/run-later (.setVisible prog-ind false)))))
-
-(defn toggle-console-text
-  "### tpggle-console-text
-   This two argument function sets the controls in the supplied map of controls
-   to the relevant state for the connection state provided."
-  [connected controls]
-  (let [{:keys [^TextArea console]} controls]
-    (if connected
-      (util/run-later (.clear console))
-      (util/run-later (.setText console "<disconnected>")))))
+      (util/coalesce-in-frame [prog-ind :visible] (.setVisible prog-ind true))
+      (util/coalesce-in-frame [prog-ind :visible]
+        (.setVisible prog-ind false)))))
 
 (defn toggle-start-txt
   "### toggle-start-txt
@@ -198,10 +350,12 @@
   (let [{:keys [^TableView diff-table
                 ^Button start-btn]} controls]
     (if playing
-      (util/run-later (do (.setEditable diff-table false)
-                          (.setText start-btn "\uf04d Stop")))
-      (util/run-later (do (.setEditable diff-table true)
-                          (.setText start-btn "\uf04b Start"))))))
+      (util/coalesce-in-frame [start-btn :playing]
+        (.setEditable diff-table false)
+        (.setText start-btn "\uf04d Stop"))
+      (util/coalesce-in-frame [start-btn :playing]
+        (.setEditable diff-table true)
+        (.setText start-btn "\uf04b Start")))))
 
 (defn toggle-load-txt
   "### toggle-load-txt
@@ -210,8 +364,10 @@
   [loaded controls]
   (let [{:keys [^Button load-btn]} controls]
     (if loaded
-      (util/run-later (.setText load-btn "\uf05e Unload"))
-      (util/run-later (.setText load-btn "\uf093 Load")))))
+      (util/coalesce-in-frame [load-btn :text]
+        (.setText load-btn "\uf05e Unload"))
+      (util/coalesce-in-frame [load-btn :text]
+        (.setText load-btn "\uf093 Load")))))
 
 (defprotocol GetText
   "### GetText
@@ -232,12 +388,21 @@
   (get-text [control]
     (.getText control)))
 
-(defn set-text
-  "### set-text
-   This two argument function sets the text in the supplied text control using
-   the text provided."
-  [^TextInputControl control text]
-  (.setText control text))
+(defprotocol SetText
+  "### SetText
+   As with GetText above, this protocol eliminates calls to the Reflection API
+   when calling the .setText method on either kind of text control."
+  (set-text [control text]))
+
+(extend-protocol SetText
+
+  TextInputControl
+  (set-text [control text]
+    (.setText control text))
+
+  Labeled
+  (set-text [control text]
+    (.setText control text)))
 
 (defn get-difficulty-setting
   "### get-item-data
@@ -262,10 +427,25 @@
   ^String [^ChoiceBox choicebox]
   (str (.getValue choicebox)))
 
+(defn set-choice
+  "### set-choice
+   This two argument function selects the supplied value in the supplied
+   ChoiceBox instance."
+  [^ChoiceBox choicebox value]
+  (.setValue choicebox value))
+
+(defn tab-selected?
+  [^Tab tab]
+  (.isSelected tab))
+
 (defn get-toggle-selected
   [^ToggleButton toggle]
   (.isSelected toggle))
 
+(defn set-toggle-selected
+  [^ToggleButton toggle selected]
+  (.setSelected toggle selected))
+
 (defn set-label
   "### set-label
    This two argument function sets the text content of the supplied Label to the
@@ -280,6 +460,13 @@
   ^File [^FileChooser chooser]
   (.showOpenDialog chooser (Stage.)))
 
+(defn show-save-chooser
+  "### show-save-chooser
+   This one argument function shows the supplied file chooser as a save dialog
+   and returns the file which the user chose to save to."
+  ^File [^FileChooser chooser]
+  (.showSaveDialog chooser (Stage.)))
+
 (defn difficulty-validator
   "### difficulty-validator
    This one argument function returns logical true if the value passed in for
@@ -351,18 +538,53 @@
                   (.setVisible true))))))
 
 
-(defn set-mis-dir
-  "### set-mis-dir
-   This two argument function sets the initial directory for the mission
-   chooser to the Missions directory of the server whose .exe is selected."
-  [path controls]
-  (let [{:keys [^FileChooser mis-chooser]} controls]
-    (util/run-later
-      (.setInitialDirectory mis-chooser
-                            (-> (Paths/get path (into-array String []))
-                                .getParent
-                                (.resolve "Missions")
-                                .toFile)))))
+(defn set-catalogue-data
+  "### set-catalogue-data
+   This two argument function replaces the rows of the mission catalogue table
+   in the supplied controls with the supplied search result, as returned by the
+   catalogue namespace's search, and shows how many missions matched. A result
+   with an :error shows that text instead."
+  [controls {:keys [missions total status error]}]
+  (let [{:keys [^ObservableList catalogue-data
+                ^Label catalogue-status-lbl]} controls
+        ^Collection rows (vec (for [{:keys [path map date time weather red blue size]}
+                                    missions]
+                                (CatalogueMission. path map date time weather
+                                                   (long (or red 0)) (long (or blue 0))
+                                                   (long (quot (or size 0) 1024)))))
+        text (or error
+                 (str (case status
+                        :building "Cataloguing... "
+                        :failed "Cataloguing failed. "
+                        "")
+                      total " missions"
+                      (when (< (count rows) total)
+                        (str ", showing " (count rows)))))]
+    (util/coalesce-in-frame [catalogue-data :items]
+      (.setAll catalogue-data rows)
+      (.setText catalogue-status-lbl text))))
+
+(defn get-catalogue-mission
+  "### get-catalogue-mission
+   This one argument function returns the path of the mission selected in the
+   supplied catalogue table, or nil if none is selected."
+  [^TableView table]
+  (when-let [^CatalogueMission mission (-> table .getSelectionModel .getSelectedItem)]
+    (.getMission mission)))
+
+(defn show-window
+  "### show-window
+   This one argument function shows the supplied stage in front of the other
+   windows."
+  [^Stage stage]
+  (.show stage)
+  (.toFront stage))
+
+(defn hide-window
+  "### hide-window
+   This one argument function hides the supplied stage."
+  [^Stage stage]
+  (.hide stage))
 
 (defn get-list-size
   "### get-list-size
@@ -402,6 +624,25 @@
          (assoc :mission (.getMission mission))
          (assoc :timer (.getTimer mission))))))
 
+(defn get-cycle-missions
+  "### get-cycle-missions
+   This one argument function returns every mission in the supplied cycle
+   mission list as a vector of maps, in the form returned by get-cycle-mission.
+   The list is copied while it is locked, as it may be edited on the JavaFX
+   Application Thread while it is read."
+  [^List cycle-data]
+  (mapv get-cycle-mission (locking cycle-data (vec cycle-data))))
+
+(defn set-cycle-problems
+  "### set-cycle-problems
+   This two argument function shows the result of the pre-flight check of each
+   mission in the supplied cycle mission list, given as a map of the mission
+   path to the text describing its problem, which is empty if it has none."
+  [^List cycle-data problems]
+  (util/coalesce-in-frame [cycle-data :problems]
+    (doseq [^CycleMission mission (locking cycle-data (vec cycle-data))]
+      (.setProblem mission (get problems (.getMission mission) "")))))
+
 (defn swap-list-items
   "### swap-list-items
    This three argument function swaps the items in the list at the given
@@ -441,8 +682,10 @@
   [running controls]
   (let [{:keys [^Button cycle-start-btn]} controls]
     (if running
-      (util/run-later (.setText cycle-start-btn "\uf04d \uf021 Stop"))
-      (util/run-later (.setText cycle-start-btn "\uf04b \uf021 Start")))))
+      (util/coalesce-in-frame [cycle-start-btn :text]
+        (.setText cycle-start-btn "\uf04d \uf021 Stop"))
+      (util/coalesce-in-frame [cycle-start-btn :text]
+        (.setText cycle-start-btn "\uf04b \uf021 Start")))))
 
 (defn toggle-dcg-start-txt
   "### toggle-dcg-start-txt
@@ -451,15 +694,19 @@
   [running controls]
   (let [{:keys [^Button dcg-start-btn]} controls]
     (if running
-      (util/run-later (.setText dcg-start-btn "\uf04d \uf021 Stop"))
-      (util/run-later (.setText dcg-start-btn "\uf04b \uf021 Start")))))
+      (util/coalesce-in-frame [dcg-start-btn :text]
+        (.setText dcg-start-btn "\uf04d \uf021 Stop"))
+      (util/coalesce-in-frame [dcg-start-btn :text]
+        (.setText dcg-start-btn "\uf04b \uf021 Start")))))
 
 (defn toggle-dcg-toggle-txt
   [enabled controls]
   (let [{:keys [^ToggleButton dcg-timer-toggle]} controls]
     (if enabled
-      (util/run-later (.setText dcg-timer-toggle "Enabled"))
-      (util/run-later (.setText dcg-timer-toggle "Disabled")))))
+      (util/coalesce-in-frame [dcg-timer-toggle :text]
+        (.setText dcg-timer-toggle "Enabled"))
+      (util/coalesce-in-frame [dcg-timer-toggle :text]
+        (.setText dcg-timer-toggle "Disabled")))))
 
 (defn swap-to-button
   "### swap-to-button
@@ -503,8 +750,10 @@
                  (every? state enabled-by))
              (or (empty? disabled-by)
                  (not-any? state disabled-by)))
-      (util/run-later (.setDisable ^Node (:instance control) false))
-      (util/run-later (.setDisable ^Node (:instance control) true)))))
+      (util/coalesce-in-frame [(:instance control) :disable]
+        (.setDisable ^Node (:instance control) false))
+      (util/coalesce-in-frame [(:instance control) :disable]
+        (.setDisable ^Node (:instance control) true)))))
 
 (defn highlight-table-row
   "### highlight-table-row
@@ -527,24 +776,58 @@
             .getStyleClass
             (.add "highlightRed"))))))
 
-(defn highlight-team
-  [number team controls]
-  (let [{:keys [^TableView pilots-table]} controls
-        rows (.lookupAll pilots-table "TableRow")]
-    (doseq [^TableRow row rows
-            :let [row-number (try
-                               (-> row .getItem .getNumber)
-                               (catch NullPointerException _))]
-            :when (= row-number number)]
-      (-> row
-          .getStyleClass
-          (.removeAll
-            (into-array String ["highlightRed" "highlightBlue"])))
-      (when (= team "Blue")
-        (-> row
-            .getStyleClass
-            (.add "highlightBlue")))
-      (when (= team "Red")
-        (-> row
-            .getStyleClass
-            (.add "highlightRed"))))))
\ No newline at end of file
+(defn new-session-data
+  "### new-session-data
+   This one argument function instantiates the lists which back the tables and
+   the console for a new session, along with its pilot and ban rosters. The
+   console keeps at most the supplied number of lines of scrollback."
+  [scrollback]
+  {:console-data (doto (ConsoleLines. scrollback) (.offer "<disconnected>"))
+   :pilots-data (FXCollections/synchronizedObservableList (FXCollections/observableArrayList))
+   :pilots-roster (new-pilot-roster)
+   :bans-data   (FXCollections/synchronizedObservableList (FXCollections/observableArrayList))
+   :bans-roster (new-ban-roster)
+   :cycle-data  (FXCollections/synchronizedObservableList (FXCollections/observableArrayList))
+   :diff-data   (FXCollections/synchronizedObservableList (FXCollections/observableArrayList))})
+
+(defn set-session-data
+  "### set-session-data
+   This two argument function sets the items of the console and of each table in
+   the supplied map of controls to the matching list in the supplied session
+   data."
+  [controls data]
+  (let [{:keys [^ListView console
+                ^TableView pilots-table
+                ^TableView bans-table
+                ^TableView cycle-table
+                ^TableView diff-table]} controls
+        {:keys [console-data pilots-data bans-data cycle-data diff-data]} data]
+    (.setItems console console-data)
+    (scroll-to-end console)
+    (.setItems pilots-table pilots-data)
+    (.setItems bans-table bans-data)
+    (.setItems cycle-table cycle-data)
+    (.setItems diff-table diff-data)))
+
+(defn add-session-item
+  "### add-session-item
+   This three argument function adds a new RadioMenuItem with the supplied text
+   to the supplied menu, as a member of the supplied toggle group. The new item
+   is returned."
+  ^RadioMenuItem [^Menu menu ^ToggleGroup group ^String text]
+  (let [item (RadioMenuItem. text)]
+    (.setToggleGroup item group)
+    (-> menu .getItems (.add item))
+    item))
+
+(defn remove-menu-item
+  [^Menu menu item]
+  (-> menu .getItems (.remove item)))
+
+(defn set-menu-item-text
+  [^MenuItem item text]
+  (util/coalesce-in-frame [item :text] (.setText item text)))
+
+(defn select-menu-item
+  [^RadioMenuItem item]
+  (.setSelected item true))
@@ -6,11 +6,14 @@
 ;; Most are shamelessly stolen from the now-abandoned Upshot library which was begun by
 ;; Dave Ray, originator of the excellent Seesaw, a Clojure wrapper for the Swing toolkit.
 (ns uk.org.il2ssd.jfx.util
-  (:import (javafx.application Platform)
+  (:require [uk.org.il2ssd.metrics :as metrics])
+  (:import (java.util.concurrent ConcurrentHashMap ConcurrentLinkedQueue)
+           (javafx.animation AnimationTimer)
+           (javafx.application Platform)
            (javafx.event EventHandler Event)
-           (javafx.beans InvalidationListener)
+           (javafx.beans InvalidationListener Observable)
            (javafx.beans.value ChangeListener ObservableValue)
-           (javafx.scene.control ChoiceBox Labeled Button)
+           (javafx.scene.control ChoiceBox Labeled Button Tab TextInputControl)
            (javafx.scene.input KeyEvent)
            (javafx.scene Node)
            (javafx.stage Stage)))
@@ -62,6 +65,121 @@
   [& body]
   `(run-now* (fn [] ~@body)))
 
+(def ^ConcurrentLinkedQueue frame-queue
+  "### frame-queue
+   This is the queue of UI updates waiting for the next frame. Each entry is
+   either a zero argument function or the key of a coalesced update."
+  (ConcurrentLinkedQueue.))
+
+(def ^ConcurrentHashMap frame-coalesced
+  "### frame-coalesced
+   This is a map of the key of each coalesced update waiting for the next frame
+   to the latest function queued under that key."
+  (ConcurrentHashMap.))
+
+(def frame-stats
+  "### frame-stats
+   This is an atom holding a map of statistics for the frames in which UI updates
+   were applied: the number of such frames, the total and largest number of
+   updates applied in a frame, the number of updates applied in the last such
+   frame and the number of queued updates replaced by a later update with the
+   same key before they were applied."
+  (atom {:frames 0 :updates 0 :max-updates 0 :last-updates 0 :coalesced 0}))
+
+(def frame-apply
+  "### frame-apply
+   This is a histogram of the time taken to apply the UI updates of each frame
+   which applied any updates, see the metrics namespace."
+  (metrics/new-histogram))
+
+(defn run-in-frame*
+  "### run-in-frame*
+   This function accepts a function f and queues it to be run on the JavaFX
+   Application Thread with the other UI updates of the next frame.
+
+   Like run-later*, this function returns immediately, but a burst of updates
+   from another thread costs a single pass per frame rather than one
+   Platform.runLater call each."
+  [f]
+  (.add frame-queue f))
+
+(defmacro run-in-frame
+  "### run-in-frame
+   This macro expands the contents of the argument into a zero-argument function
+   which is passed into the run-in-frame* function above."
+  [& body]
+  `(run-in-frame* (fn [] ~@body)))
+
+(defn coalesce-in-frame*
+  "### coalesce-in-frame*
+   This two argument function queues the function f to be run with the UI updates
+   of the next frame under the supplied key. If an update with the same key is
+   already waiting, f replaces it but keeps its place in the queue, so only the
+   latest of several updates to the same property is applied."
+  [key f]
+  (if (nil? (.put frame-coalesced key f))
+    (.add frame-queue key)
+    (swap! frame-stats update-in [:coalesced] inc)))
+
+(defmacro coalesce-in-frame
+  "### coalesce-in-frame
+   This macro expands the contents of the body into a zero-argument function
+   which is passed with the supplied key into the coalesce-in-frame* function
+   above."
+  [key & body]
+  `(coalesce-in-frame* ~key (fn [] ~@body)))
+
+(defn apply-frame-updates
+  "### apply-frame-updates
+   This zero argument function runs every UI update which is waiting in the frame
+   queue, in the order they were queued, and records the number of updates and
+   the time taken to apply them in the frame statistics. An update which throws
+   does not stop the rest of the frame.
+
+   Only the updates already waiting when the frame starts are applied. Updates
+   queued while they run wait for the next frame, so that a steady stream of
+   updates can't hold the JavaFX Application Thread in a single frame.
+   This must be called on the JavaFX Application Thread."
+  []
+  (loop [remaining (.size frame-queue)
+         applied 0
+         start (System/nanoTime)]
+    (if-let [entry (when (pos? remaining) (.poll frame-queue))]
+      (if-let [f (if (fn? entry) entry (.remove frame-coalesced entry))]
+        (do (try (f)
+                 (catch Exception e (.printStackTrace e)))
+            (recur (dec remaining) (inc applied) start))
+        (recur (dec remaining) applied start))
+      (when (pos? applied)
+        (metrics/record! frame-apply (- (System/nanoTime) start))
+        (swap! frame-stats
+               (fn [{:keys [frames updates max-updates] :as stats}]
+                 (assoc stats
+                   :frames (inc frames)
+                   :updates (+ updates applied)
+                   :max-updates (max max-updates applied)
+                   :last-updates applied)))))))
+
+(defn updates-per-frame
+  "### updates-per-frame
+   This zero argument function returns the mean number of UI updates applied in
+   each frame which applied any updates."
+  []
+  (let [{:keys [frames updates]} @frame-stats]
+    (if (pos? frames)
+      (double (/ updates frames))
+      0.0)))
+
+(defn frame-report
+  "### frame-report
+   This zero argument function returns the frame statistics along with the mean
+   number of updates per frame and the statistics of the time taken to apply
+   them."
+  []
+  (assoc @frame-stats
+    :updates-per-frame (updates-per-frame)
+    :apply (metrics/histogram-stats frame-apply)))
+
 (defn event-handler*
   "### event-handler*
    This function accepts a function f, and returns an instance of an anonymous class
@@ -78,6 +196,15 @@
   ^EventHandler [arg & body]
   `(event-handler* (fn ~arg ~@body)))
 
+(defn frame-timer
+  "### frame-timer
+   This one argument function returns an instance of an anonymous subclass of
+   javafx.animation.AnimationTimer which calls the zero argument function f once
+   per frame on the JavaFX Application Thread, once the timer is started."
+  ^AnimationTimer [f]
+  (proxy [AnimationTimer] []
+    (handle [now] (f))))
+
 (defn invalidation-listener*
   "### invalidation-listener*
    This function accepts a function f, and returns an instance of an anonymous class
@@ -140,6 +267,14 @@
   ([control f arg]
    (.setOnAction control (event-handler [_] (f arg)))))
 
+(defn tab-handler
+  "### tab-handler
+   This two argument function attaches an EventHandler instance to the supplied
+   tab which calls the supplied function when the tab is selected or
+   deselected."
+  [^Tab tab f]
+  (.setOnSelectionChanged tab (event-handler [_] (f))))
+
 (defn close-handler
   [^Stage stage f]
   (.setOnCloseRequest stage (event-handler [_] (f))))
@@ -183,6 +318,24 @@
        .textProperty
        (.addListener (invalidation-listener [_] (f arg))))))
 
+(defn field-listener
+  "### field-listener
+   This two argument function attaches an InvalidationListener instance to the
+   supplied text field's textProperty, which calls the supplied function when the
+   text is changed."
+  [^TextInputControl control f]
+  (-> control
+      .textProperty
+      (.addListener (invalidation-listener [_] (f)))))
+
+(defn list-listener
+  "### list-listener
+   This two argument function attaches an InvalidationListener instance to the
+   supplied observable list, which calls the supplied function whenever items
+   are added to, removed from or moved within the list."
+  [^Observable list f]
+  (.addListener list (invalidation-listener [_] (f))))
+
 (defn focus-listener
   "### focus-listener
    This two argument function attaches a ChangeListener instance to the supplied
@@ -191,4 +344,4 @@
   [^Node control f]
   (-> control
       .focusedProperty
-      (.addListener (change-listener [_ _ newval] (f newval)))))
\ No newline at end of file
+      (.addListener (change-listener [_ _ newval] (f newval)))))
\ No newline at end of file
@@ -0,0 +1,116 @@
+;;
+;; ## JMX beans
+;;
+;; Here we publish statistics maps as MBeans on the platform MBean server, so that
+;; they can be watched from jconsole, VisualVM or any other JMX client while the
+;; program runs.
+;;
+;; Each bean is backed by a zero argument function which returns a map of
+;; statistics. Nested maps are flattened into read-only attributes whose names
+;; join the keys with dots, so the 99th percentile read time of a session is the
+;; attribute "stages.read.p99-us". The function is called again for every read, so
+;; the attributes are always current.
+(ns uk.org.il2ssd.jmx
+  (:import (java.lang.management ManagementFactory)
+           (javax.management Attribute AttributeList AttributeNotFoundException
+                             DynamicMBean MBeanAttributeInfo MBeanInfo
+                             MBeanNotificationInfo MBeanOperationInfo
+                             MBeanServer ObjectName)))
+
+(def domain
+  "### domain
+   This is the JMX domain of every bean which we register."
+  "uk.org.il2ssd")
+
+(defn flatten-stats
+  "### flatten-stats
+   This one argument function flattens the supplied map of statistics into a
+   sorted map of attribute names to values. Nested map keys are joined with
+   dots; numbers are kept as longs or doubles and anything else becomes a
+   string."
+  [stats]
+  (into (sorted-map)
+        (letfn [(walk [prefix m]
+                  (mapcat (fn [[k v]]
+                            (let [attr (str prefix (if (keyword? k) (name k) k))]
+                              (cond
+                                (map? v) (walk (str attr ".") v)
+                                (integer? v) [[attr (long v)]]
+                                (number? v) [[attr (double v)]]
+                                :else [[attr (str v)]])))
+                          m))]
+          (walk "" stats))))
+
+(defn- attribute-info
+  "### attribute-info
+   This function returns the description of a read-only attribute with the
+   supplied name and value."
+  [^String attr value]
+  (MBeanAttributeInfo. attr
+                       (.getName (class value))
+                       attr
+                       true false false))
+
+(defn stats-bean
+  "### stats-bean
+   This one argument function returns a dynamic MBean whose read-only attributes
+   are the flattened statistics returned by the supplied function."
+  ^DynamicMBean [f]
+  (reify DynamicMBean
+    (getAttribute [this attr]
+      (let [stats (flatten-stats (f))]
+        (if (contains? stats attr)
+          (get stats attr)
+          (throw (AttributeNotFoundException. attr)))))
+    (getAttributes [this attrs]
+      (let [stats (flatten-stats (f))
+            result (AttributeList.)]
+        (doseq [attr attrs
+                :when (contains? stats attr)]
+          (.add result (Attribute. attr (get stats attr))))
+        result))
+    (setAttribute [this attribute]
+      (throw (AttributeNotFoundException. (.getName attribute))))
+    (setAttributes [this attributes]
+      (AttributeList.))
+    (invoke [this action params signature]
+      (throw (UnsupportedOperationException. ^String action)))
+    (getMBeanInfo [this]
+      (MBeanInfo. (.getName (class this))
+                  "il2ssd statistics"
+                  (into-array MBeanAttributeInfo
+                              (for [[attr value] (flatten-stats (f))]
+                                (attribute-info attr value)))
+                  nil
+                  (make-array MBeanOperationInfo 0)
+                  (make-array MBeanNotificationInfo 0)))))
+
+(defn object-name
+  "### object-name
+   This one argument function returns the object name in our domain with the
+   supplied key properties, given as a string such as \"type=Api\"."
+  ^ObjectName [properties]
+  (ObjectName. (str domain ":" properties)))
+
+(defn unregister
+  "### unregister
+   This one argument function removes the bean with the supplied key properties
+   from the platform MBean server, if it is registered."
+  [properties]
+  (let [^MBeanServer server (ManagementFactory/getPlatformMBeanServer)
+        name (object-name properties)]
+    (when (.isRegistered server name)
+      (try (.unregisterMBean server name)
+           (catch Exception _ nil)))))
+
+(defn register
+  "### register
+   This two argument function registers a bean with the supplied key properties
+   whose attributes are the statistics returned by the function f, replacing
+   any bean already registered under the same name."
+  [properties f]
+  (let [^MBeanServer server (ManagementFactory/getPlatformMBeanServer)]
+    (unregister properties)
+    (try (.registerMBean server (stats-bean f) (object-name properties))
+         (catch Exception e
+           (.printStackTrace e)))))
@@ -0,0 +1,523 @@
+;;
+;; ## Console journal
+;;
+;; Here we keep every line of each server's console output on disk, so that it can
+;; be searched long after it has scrolled out of the console or the session has
+;; disconnected.
+;;
+;; Each server has its own journal directory, named after its address, made up of
+;; segments. A segment is a file named after the time of its first line, which is
+;; preallocated and memory-mapped, and to which lines are only ever appended. Each
+;; line is stored as a record:
+;;
+;;     8 bytes  the time the line arrived, in milliseconds since the epoch
+;;     4 bytes  the length of the line in bytes
+;;     n bytes  the line in UTF-8
+;;
+;; The time is written last, so a record with a time of zero marks the end of the
+;; segment, and a reader never sees half a record. Every index-interval bytes the
+;; time and offset of a record are appended to the segment's sparse index, so that
+;; a search for a time range starts close to the first line it wants.
+;;
+;; A segment is sealed when it is full or when it is older than the roll interval,
+;; and a new one is started. Sealed segments are compressed once they are old
+;; enough and deleted once they are older than the retention period.
+;;
+;; Searches map each segment read-only and scan it in place. A substring is
+;; matched against the UTF-8 bytes of each record, so only matching lines are ever
+;; decoded; a regex has to decode each line in range. Compressed segments are
+;; decompressed as a stream. Either way, the history is never loaded onto the heap.
+(ns uk.org.il2ssd.journal
+  (:require [clojure.core.async :refer [<!! chan close! tap untap thread]]
+            [clojure.java.io :as io]
+            [clojure.string :as string]
+            [uk.org.il2ssd.state :as state])
+  (:import (java.io BufferedInputStream DataInputStream EOFException File
+                    FileInputStream FileOutputStream IOException)
+           (java.nio ByteBuffer MappedByteBuffer)
+           (java.nio.channels FileChannel FileChannel$MapMode)
+           (java.nio.charset Charset)
+           (java.nio.file OpenOption StandardOpenOption)
+           (java.util.concurrent ExecutorService Executors ThreadFactory)
+           (java.util.regex Pattern)
+           (java.util.zip GZIPInputStream GZIPOutputStream)))
+
+(def ^Charset utf-8 (Charset/forName "UTF-8"))
+
+(def defaults
+  "### defaults
+   These are the default journal settings: the directory which holds each
+   server's journal, the size of a segment in bytes, and the hours after which
+   a segment is sealed, a sealed segment is compressed and a segment is
+   deleted."
+  {:directory      "journal"
+   :segment-bytes  (* 16 1024 1024)
+   :roll-hours     6
+   :compress-hours 24
+   :retain-hours   (* 7 24)})
+
+(def index-interval
+  "### index-interval
+   This is the number of bytes of records between entries in a segment's
+   sparse index."
+  65536)
+
+(def header-bytes
+  "### header-bytes
+   This is the size in bytes of a record's time and length."
+  12)
+
+(def ^:private hour-ms (* 60 60 1000))
+
+;; ### Segment files
+
+(defn server-directory
+  "### server-directory
+   This function returns the journal directory of the server at the supplied
+   host and port, within the supplied journal directory."
+  ^File [directory host port]
+  (io/file directory (string/replace (str host "-" port) #"[^\w.-]" "_")))
+
+(defn- segment-file
+  ^File [^File dir start]
+  (io/file dir (format "%013d.log" start)))
+
+(defn- index-file
+  ^File [^File segment]
+  (File. (str (.getPath segment) ".idx")))
+
+(defn segment-start
+  "### segment-start
+   This one argument function returns the time of the first line of the
+   supplied segment file, from its name."
+  [^File file]
+  (Long/parseLong (first (string/split (.getName file) #"\."))))
+
+(defn segments
+  "### segments
+   This one argument function returns the segment files in the supplied server
+   directory in order, whether compressed or not."
+  [^File dir]
+  (sort-by segment-start
+           (filter #(re-matches #"\d{13}\.log(\.gz)?" (.getName ^File %))
+                   (.listFiles dir))))
+
+(defn- compressed?
+  [^File file]
+  (.endsWith (.getName file) ".gz"))
+
+(def ^:private unmapper
+  "### unmapper
+   This delay holds a one argument function which releases the mapping of a
+   buffer, or nil if the JVM gives no way to. From Java 9 the buffer's own
+   cleaner can't be reached, but Unsafe.invokeCleaner does the same. Both are
+   looked up by name, as neither is there to compile against on every JVM."
+  (delay
+    (or (try (let [unsafe-class (Class/forName "sun.misc.Unsafe")
+                   unsafe (.get (doto (.getDeclaredField unsafe-class "theUnsafe")
+                                  (.setAccessible true))
+                                nil)
+                   invoke-cleaner (.getMethod unsafe-class "invokeCleaner"
+                                              (into-array Class [ByteBuffer]))]
+               (fn [buffer]
+                 (.invoke invoke-cleaner unsafe (object-array [buffer]))))
+             (catch Exception _ nil))
+        (try (let [cleaner (doto (.getMethod (Class/forName "sun.nio.ch.DirectBuffer")
+                                             "cleaner" (make-array Class 0))
+                             (.setAccessible true))
+                   clean (doto (.getMethod (Class/forName "sun.misc.Cleaner")
+                                           "clean" (make-array Class 0))
+                           (.setAccessible true))]
+               (fn [buffer]
+                 (.invoke clean (.invoke cleaner buffer (object-array 0))
+                          (object-array 0))))
+             (catch Exception _ nil)))))
+
+(defn- unmap
+  "### unmap
+   This function releases the mapping of the supplied buffer straight away,
+   where the JVM allows it, rather than when it is collected. On Windows a file
+   can't be deleted while it is mapped. Where the mapping can't be released,
+   a segment which can't be deleted yet is left for the next maintain pass."
+  [^MappedByteBuffer buffer]
+  (when-let [release @unmapper]
+    (try (release buffer)
+         (catch Exception e (.printStackTrace e)))))
+
+(defn- map-file
+  ^MappedByteBuffer [^File file mode size]
+  (with-open [channel (FileChannel/open (.toPath file)
+                                        (into-array OpenOption
+                                                    (if (= mode :read)
+                                                      [StandardOpenOption/READ]
+                                                      [StandardOpenOption/READ
+                                                       StandardOpenOption/WRITE
+                                                       StandardOpenOption/CREATE])))]
+    (.map channel
+          (if (= mode :read)
+            FileChannel$MapMode/READ_ONLY
+            FileChannel$MapMode/READ_WRITE)
+          0
+          (long (if (= mode :read) (.size channel) size)))))
+
+(defn- segment-end
+  "### segment-end
+   This function returns the offset just past the last record in the supplied
+   segment buffer."
+  ^long [^ByteBuffer buffer]
+  (loop [offset 0]
+    (if (and (<= (+ offset header-bytes) (.limit buffer))
+             (pos? (.getLong buffer (int offset))))
+      (recur (long (+ offset header-bytes (.getInt buffer (int (+ offset 8))))))
+      offset)))
+
+(defn- read-index
+  "### read-index
+   This function returns the sparse index of the supplied segment as a vector
+   of [time offset] pairs."
+  [^File segment]
+  (let [file (index-file segment)]
+    (if (.exists file)
+      (with-open [in (DataInputStream. (BufferedInputStream. (FileInputStream. file)))]
+        (loop [entries (transient [])]
+          (let [entry (try [(.readLong in) (.readInt in)]
+                           (catch EOFException _ nil))]
+            (if entry
+              (recur (conj! entries entry))
+              (persistent! entries)))))
+      [])))
+
+;; ### Writing
+
+(defn- open-segment
+  "### open-segment
+   This function opens the segment in the supplied directory which starts at
+   the supplied time for appending, carrying on from its last record if it
+   already exists."
+  [^File dir start segment-bytes]
+  (let [file (segment-file dir start)
+        buffer (map-file file :write segment-bytes)
+        end (segment-end buffer)]
+    {:file     file
+     :start    start
+     :buffer   buffer
+     :position end
+     :indexed  (if (pos? end) end -1)
+     :index    (FileOutputStream. (index-file file) true)}))
+
+(defn- seal
+  "### seal
+   This function flushes the supplied open segment to disk and releases it."
+  [{:keys [^MappedByteBuffer buffer ^FileOutputStream index]}]
+  (.force buffer)
+  (.close index)
+  (unmap buffer))
+
+(defn compress-segment
+  "### compress-segment
+   This one argument function compresses the supplied sealed segment into a
+   gzip file holding its records, and deletes the segment and its index. The
+   segment is left alone if it can't be deleted yet."
+  [^File file]
+  (let [gz (File. (str (.getPath file) ".gz"))
+        tmp (File. (str (.getPath gz) ".tmp"))
+        buffer (map-file file :read 0)
+        end (segment-end buffer)]
+    (with-open [out (GZIPOutputStream. (FileOutputStream. tmp))]
+      (let [bytes (byte-array 65536)]
+        (loop [offset 0]
+          (when (< offset end)
+            (let [n (min (alength bytes) (- end offset))]
+              (.position buffer (int offset))
+              (.get buffer bytes 0 n)
+              (.write out bytes 0 n)
+              (recur (+ offset n)))))))
+    (unmap buffer)
+    (when (.renameTo tmp gz)
+      (when-not (.delete file)
+        (.delete gz))
+      (.delete (index-file file)))))
+
+(defn maintain
+  "### maintain
+   This function compresses the sealed segments in the supplied server
+   directory which ended more than the compress interval ago, and deletes the
+   segments which ended more than the retention period ago. The supplied time
+   is the start of the segment being written, which is left alone."
+  [^File dir {:keys [compress-hours retain-hours]} current]
+  (let [now (System/currentTimeMillis)]
+    (doseq [[^File file next-file] (partition 2 1 (segments dir))
+            :let [ended (segment-start next-file)]
+            :when (not= (segment-start file) current)]
+      (try (cond
+             (< ended (- now (* retain-hours hour-ms)))
+             (do (.delete file)
+                 (.delete (index-file file)))
+
+             (and (not (compressed? file))
+                  (< ended (- now (* compress-hours hour-ms))))
+             (compress-segment file))
+           (catch IOException e (.printStackTrace e))))))
+
+(def ^:private ^ExecutorService maintainer
+  "### maintainer
+   This is the single daemon thread on which maintain passes run, one after
+   another, so that two passes never compress or delete the same segment at
+   once however quickly segments roll."
+  (Executors/newSingleThreadExecutor
+    (reify ThreadFactory
+      (newThread [_ runnable]
+        (doto (Thread. runnable "il2ssd-journal-maintain")
+          (.setDaemon true))))))
+
+(defn- schedule-maintain
+  "### schedule-maintain
+   This function queues a maintain pass of the supplied server directory on
+   the maintainer thread, see maintain."
+  [dir settings current]
+  (.execute maintainer
+            (fn []
+              (try (maintain dir settings current)
+                   (catch Exception e (.printStackTrace e))))))
+
+(defn- append
+  "### append
+   This function appends the supplied line at the supplied time to the
+   supplied open segment, adding an index entry when one is due. It returns the
+   segment, or nil if the line doesn't fit."
+  [{:keys [^MappedByteBuffer buffer position indexed ^FileOutputStream index]
+    :as segment} at ^String line]
+  (let [bytes (.getBytes line utf-8)
+        size (+ header-bytes (alength bytes))
+        position (long position)]
+    (when (<= (+ position size header-bytes) (.capacity buffer))
+      (.position buffer (int (+ position 8)))
+      (.putInt buffer (alength bytes))
+      (.put buffer bytes)
+      (.putLong buffer (int position) (long at))
+      (let [index? (or (neg? indexed) (>= (- position indexed) index-interval))]
+        (when index?
+          (.write index (.array (doto (ByteBuffer/allocate 12)
+                                  (.putLong at)
+                                  (.putInt position)))))
+        (assoc segment
+          :position (+ position size)
+          :indexed (if index? position indexed))))))
+
+(defn- write-line
+  "### write-line
+   This function writes the supplied line to the journal of the supplied
+   writer, rolling to a new segment when the current one is full or too old.
+   A line too big for a segment gets a segment of its own, sized from its
+   UTF-8 bytes. It returns the writer."
+  [{:keys [dir settings segment last] :as writer} line]
+  (let [{:keys [segment-bytes roll-hours]} settings
+        at (max (System/currentTimeMillis) (long last))
+        roll? (or (nil? segment)
+                  (> at (+ (:start segment) (* roll-hours hour-ms))))
+        segment (if roll?
+                  (do (when segment (seal segment))
+                      (let [new-segment (open-segment dir at segment-bytes)]
+                        (schedule-maintain dir settings at)
+                        new-segment))
+                  segment)]
+    (if-let [segment (append segment at line)]
+      (assoc writer :segment segment :last at)
+      (do (seal segment)
+          (let [size (+ (* 2 header-bytes)
+                        (alength (.getBytes ^String line utf-8)))
+                segment (open-segment dir (inc at) (max segment-bytes size))]
+            (schedule-maintain dir settings (inc at))
+            (assoc writer
+              :segment (or (append segment (inc at) line)
+                           (do (seal segment) nil))
+              :last (inc at)))))))
+
+(defn start
+  "### start
+   This function starts journalling the console of the session in scope, which
+   is connected to the supplied host and port, with the supplied settings
+   merged over the defaults above.
+
+   The journal taps the session's console mult with a lossless buffer and
+   writes each line on its own thread, picking up from the last segment if the
+   server has been journalled before."
+  [settings host port]
+  (let [settings (merge defaults settings)
+        dir (doto (server-directory (:directory settings) host port) (.mkdirs))
+        last-segment (last (remove compressed? (segments dir)))
+        mult-channel (:mult-channel (state/channels))
+        lines (chan 4096)
+        journal {:dir dir :lines lines :mult mult-channel :settings settings}]
+    (tap mult-channel lines)
+    (reset! (state/journal) journal)
+    (thread
+      (let [segment (when last-segment
+                      (open-segment dir (segment-start last-segment)
+                                    (:segment-bytes settings)))]
+        (loop [writer {:dir      dir
+                       :settings settings
+                       :segment  segment
+                       :last     (or (:start segment) 0)}]
+          (if-let [{:keys [line]} (<!! lines)]
+            (recur (try (write-line writer line)
+                        (catch IOException e
+                          (.printStackTrace e)
+                          writer)))
+            (when-let [segment (:segment writer)]
+              (seal segment))))))
+    journal))
+
+(defn stop
+  "### stop
+   This zero argument function stops journalling the console of the session in
+   scope. Lines already taken from the console are still written. The journal
+   directory is kept, so that the session can still search it."
+  []
+  (when-let [{:keys [dir mult lines]} @(state/journal)]
+    (when lines
+      (untap mult lines)
+      (close! lines)
+      (reset! (state/journal) {:dir dir}))))
+
+;; ### Searching
+
+(defn- record-matches?
+  "### record-matches?
+   This function returns true if the supplied UTF-8 bytes occur in the record
+   of the supplied length at the supplied offset of the supplied buffer."
+  [^ByteBuffer buffer ^long offset ^long length ^bytes needle]
+  (let [n (alength needle)
+        last-start (- (+ offset length) n)]
+    (loop [i offset]
+      (cond
+        (> i last-start) false
+        (loop [j 0]
+          (or (= j n)
+              (and (= (.get buffer (int (+ i j))) (aget needle j))
+                   (recur (inc j)))))
+        true
+        :else (recur (inc i))))))
+
+(defn- matcher
+  "### matcher
+   This function returns a function which is called with a record's buffer,
+   offset and length, and returns the record's line if it matches the supplied
+   query, or nil if it doesn't. The query is a substring, unless regex is true.
+   Decoding is left until a line is known to match wherever possible."
+  [query regex]
+  (let [decode (fn [^ByteBuffer buffer offset length]
+                 (let [bytes (byte-array length)]
+                   (.position buffer (int offset))
+                   (.get buffer bytes)
+                   (String. bytes utf-8)))]
+    (cond
+      (string/blank? query)
+      decode
+
+      regex
+      (let [pattern (Pattern/compile query)]
+        (fn [buffer offset length]
+          (let [line (decode buffer offset length)]
+            (when (.find (.matcher pattern ^String line))
+              line))))
+
+      :else
+      (let [needle (.getBytes ^String query utf-8)]
+        (fn [buffer offset length]
+          (when (record-matches? buffer offset length needle)
+            (decode buffer offset length)))))))
+
+(defn- scan-buffer
+  "### scan-buffer
+   This function returns the matching lines between the supplied times in the
+   supplied segment buffer, starting at the supplied offset, until there are
+   the supplied number of results in total."
+  [^ByteBuffer buffer offset from to match results limit]
+  (loop [offset (long offset)
+         results results]
+    (if (or (>= (count results) limit)
+            (> (+ offset header-bytes) (.limit buffer)))
+      results
+      (let [at (.getLong buffer (int offset))
+            length (.getInt buffer (int (+ offset 8)))]
+        (if (or (zero? at) (> at to))
+          results
+          (recur (long (+ offset header-bytes length))
+                 (if-let [line (when (>= at from)
+                                 (match buffer (+ offset header-bytes) length))]
+                   (conj results {:at at :line line})
+                   results)))))))
+
+(defn- scan-compressed
+  "### scan-compressed
+   As scan-buffer, but for a compressed segment, which is decompressed one
+   record at a time."
+  [^File file from to match results limit]
+  (with-open [in (DataInputStream. (BufferedInputStream.
+                                     (GZIPInputStream. (FileInputStream. file) 65536)))]
+    (loop [results results]
+      (if (>= (count results) limit)
+        results
+        (let [at (try (.readLong in) (catch EOFException _ 0))]
+          (if (or (zero? at) (> at to))
+            results
+            (let [length (.readInt in)
+                  bytes (byte-array length)]
+              (.readFully in bytes)
+              (recur (if-let [line (when (>= at from)
+                                     (match (ByteBuffer/wrap bytes) 0 length))]
+                       (conj results {:at at :line line})
+                       results)))))))))
+
+(defn search
+  "### search
+   This function searches the journal in the supplied server directory for
+   lines which arrived between the times from and to, in milliseconds since the
+   epoch, and which contain the supplied query, or match it as a regex if regex
+   is true. A blank query matches every line.
+
+   At most limit lines are returned, oldest first, as maps with :at and :line
+   keys. Only the segments which cover the time range are read, and each
+   uncompressed segment is read from the last index entry before from."
+  [^File dir {:keys [query regex from to limit]
+              :or   {from 0 to Long/MAX_VALUE limit 1000}}]
+  (let [match (matcher query regex)
+        files (segments dir)]
+    (reduce
+      (fn [results [^File file ^File next-file]]
+        (cond
+          (>= (count results) limit) (reduced results)
+          (> (segment-start file) to) (reduced results)
+          (and next-file (< (segment-start next-file) from)) results
+          (compressed? file) (scan-compressed file from to match results limit)
+          :else
+          (let [buffer (map-file file :read 0)
+                start (or (last (for [[at offset] (read-index file)
+                                      :while (<= at from)]
+                                  offset))
+                          0)]
+            (try (scan-buffer buffer start from to match results limit)
+                 (finally (unmap buffer))))))
+      []
+      (partition-all 2 1 files))))
+
+(defn -main
+  "### -main
+   This function searches a server's journal from the command line, e.g.
+
+       java -cp il2ssd.jar clojure.main -m uk.org.il2ssd.journal \\
+            journal/192.168.1.10-21003 Pilot 48
+
+   finds every line containing Pilot in the last 48 hours."
+  [dir query & [hours]]
+  (let [from (if hours
+               (- (System/currentTimeMillis)
+                  (* (Double/parseDouble hours) hour-ms))
+               0)]
+    (doseq [{:keys [at line]} (search (io/file dir) {:query query
+                                                     :from  (long from)
+                                                     :limit Long/MAX_VALUE})]
+      (print (str (java.util.Date. (long at)) "  " line))
+      (when-not (.endsWith ^String line "\n") (println)))
+    (flush)))
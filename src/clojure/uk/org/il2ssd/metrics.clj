@@ -0,0 +1,182 @@
+;;
+;; ## Pipeline metrics
+;;
+;; Here we define the timings and counters which show where the time goes between
+;; a line arriving from the server and the UI update it causes.
+;;
+;; Timings are kept in histograms with one bucket per power of two nanoseconds, so
+;; recording a value is a few atomic increments and never allocates. Percentiles
+;; are read from the buckets, so each is accurate to within a factor of two, which
+;; is enough to tell a microsecond from a millisecond.
+;;
+;; Each session's pipeline keeps a metrics map with a histogram for every stage a
+;; line passes through:
+;;
+;; * `:read` - reading the socket.
+;; * `:frame` - splitting what was read into lines and unescaping them.
+;; * `:fanout` - waiting in the mult and the event consumer's buffer.
+;; * `:classify` - matching the line against the event patterns.
+;; * `:queue` - waiting in the event-channel for the event listener.
+;; * `:parse` - parsing the event's line.
+;; * `:handle` - the event handler, including the parse.
+;;
+;; along with the round trip time of each command, from being queued in the outbox
+;; to the server's prompt after its response, and a count of each type of event.
+;;
+;; Every function here does nothing when given nil instead of metrics, so that
+;; pipelines built without metrics can share the same code.
+(ns uk.org.il2ssd.metrics
+  (:import (java.util.concurrent.atomic AtomicLong AtomicLongArray)))
+
+(def ^:private buckets
+  "### buckets
+   This is the number of histogram buckets. Bucket i counts values below 2^i
+   nanoseconds which are not counted by a lower bucket; the last bucket also
+   counts anything longer."
+  41)
+
+(def stages
+  "### stages
+   This is the list of pipeline stages which are timed."
+  [:read :frame :fanout :classify :queue :parse :handle])
+
+(def event-types
+  "### event-types
+   This is the list of event types which are counted."
+  [:diff :mis :pilot :ban :user :host :error])
+
+;; ### Histograms
+
+(defn new-histogram
+  "### new-histogram
+   This zero argument function returns an empty histogram of nanosecond
+   timings."
+  []
+  {:buckets (AtomicLongArray. (int buckets))
+   :count   (AtomicLong.)
+   :sum     (AtomicLong.)
+   :max     (AtomicLong.)})
+
+(defn record!
+  "### record!
+   This two argument function records a timing in nanoseconds in the supplied
+   histogram."
+  [histogram nanos]
+  (when histogram
+    (let [{:keys [^AtomicLongArray buckets ^AtomicLong count ^AtomicLong sum
+                  ^AtomicLong max]} histogram
+          nanos (long (if (neg? nanos) 0 nanos))
+          bucket (min (dec (.length buckets))
+                      (- 64 (Long/numberOfLeadingZeros nanos)))]
+      (.incrementAndGet buckets bucket)
+      (.incrementAndGet count)
+      (.addAndGet sum nanos)
+      (loop []
+        (let [current (.get max)]
+          (when (and (> nanos current)
+                     (not (.compareAndSet max current nanos)))
+            (recur)))))))
+
+(defn- percentile
+  "### percentile
+   This function returns the upper bound in nanoseconds of the bucket which
+   holds the supplied fraction of the recorded timings."
+  [^AtomicLongArray buckets total fraction]
+  (let [target (Math/ceil (* total fraction))]
+    (loop [bucket 0
+           seen 0]
+      (let [seen (+ seen (.get buckets bucket))]
+        (if (or (>= seen target) (= bucket (dec (.length buckets))))
+          (bit-shift-left 1 bucket)
+          (recur (inc bucket) seen))))))
+
+(defn histogram-stats
+  "### histogram-stats
+   This one argument function returns a map of statistics for the supplied
+   histogram: the number of timings, and the mean, median, 90th and 99th
+   percentile and largest timing in microseconds. No percentile is reported
+   above the largest timing."
+  [histogram]
+  (let [{:keys [buckets ^AtomicLong count ^AtomicLong sum ^AtomicLong max]} histogram
+        total (.get count)
+        largest (.get max)
+        micros #(/ % 1000.0)
+        at #(micros (min largest (percentile buckets total %)))]
+    (if (zero? total)
+      {:count 0 :mean-us 0.0 :p50-us 0.0 :p90-us 0.0 :p99-us 0.0 :max-us 0.0}
+      {:count   total
+       :mean-us (micros (/ (.get sum) total))
+       :p50-us  (at 0.5)
+       :p90-us  (at 0.9)
+       :p99-us  (at 0.99)
+       :max-us  (micros largest)})))
+
+;; ### Pipeline metrics
+
+(defn new-metrics
+  "### new-metrics
+   This zero argument function returns the metrics for a new pipeline: a
+   histogram for each stage and for command round trips, and a counter for
+   each event type and for every line."
+  []
+  {:stages     (into {} (for [stage stages] [stage (new-histogram)]))
+   :round-trip (new-histogram)
+   :events     (into {} (for [type event-types] [type (AtomicLong.)]))
+   :lines      (AtomicLong.)})
+
+(defn record-stage!
+  "### record-stage!
+   This three argument function records a timing in nanoseconds for the named
+   stage in the supplied metrics."
+  [metrics stage nanos]
+  (when metrics
+    (record! (get-in metrics [:stages stage]) nanos)))
+
+(defn since!
+  "### since!
+   This three argument function records the time since the supplied System
+   nanoTime for the named stage in the supplied metrics."
+  [metrics stage start]
+  (when (and metrics start)
+    (record-stage! metrics stage (- (System/nanoTime) start))))
+
+(defmacro timed
+  "### timed
+   This macro evaluates the body, records the time it took for the named stage
+   in the supplied metrics, and returns the value of the body."
+  [metrics stage & body]
+  `(let [start# (System/nanoTime)
+         value# (do ~@body)]
+     (since! ~metrics ~stage start#)
+     value#))
+
+(defn count-line!
+  "### count-line!
+   This two argument function counts a line of the supplied event type, which
+   may be nil for a line which is not an event."
+  [metrics type]
+  (when metrics
+    (.incrementAndGet ^AtomicLong (:lines metrics))
+    (when-let [^AtomicLong counter (get-in metrics [:events type])]
+      (.incrementAndGet counter))))
+
+(defn round-trip!
+  "### round-trip!
+   This two argument function records the round trip of a command which was
+   queued at the supplied System nanoTime."
+  [metrics queued]
+  (when (and metrics queued)
+    (record! (:round-trip metrics) (- (System/nanoTime) queued))))
+
+(defn metrics-stats
+  "### metrics-stats
+   This one argument function returns a map of statistics for the supplied
+   metrics, with the statistics of each histogram as returned by
+   histogram-stats."
+  [{:keys [stages round-trip events ^AtomicLong lines]}]
+  {:stages     (into {} (for [[stage histogram] stages]
+                          [stage (histogram-stats histogram)]))
+   :round-trip (histogram-stats round-trip)
+   :events     (into {} (for [[type ^AtomicLong counter] events]
+                          [type (.get counter)]))
+   :lines      (.get lines)})
@@ -0,0 +1,195 @@
+;;
+;; ## Outbound command queue
+;;
+;; Commands for the server console are not written by the threads which send them.
+;; Instead each session has an outbox: a queue of commands which is drained by a
+;; single writer thread for as long as the session is connected. Each connection
+;; has a queue of its own, so a writer left over from an earlier connection can
+;; never take a command meant for the next one.
+;;
+;; The writer takes every command which is waiting, up to a batch limit, and writes
+;; them to the socket in one write. Each command is added to the session's
+;; outstanding requests in the order it is written, so that its response can be
+;; matched to it, see channel/correlator.
+;;
+;; The writer also caps the rate at which commands reach the server. Commands are
+;; only written while the outbox holds a token; tokens are earned at a steady rate up
+;; to a burst limit. A ban sweep or a burst of chat is spread out instead of arriving
+;; at the server console all at once.
+;;
+;; Queries which only read server state, such as the user list poll, are coalesced:
+;; if the same query is still waiting to be written, the waiting one's response is
+;; returned instead of queueing another. A query is only coalesced with one that is
+;; queued after every command which could change its answer.
+(ns uk.org.il2ssd.outbox
+  (:require [clojure.core.async :refer [thread]]
+            [uk.org.il2ssd.channel :as channel]
+            [uk.org.il2ssd.transport :as transport])
+  (:import (java.io IOException)
+           (java.util ArrayList HashMap)
+           (java.util.concurrent ConcurrentLinkedQueue LinkedBlockingQueue
+                                 TimeUnit)))
+
+(def defaults
+  "### defaults
+   This is a map of the default outbox settings: the number of commands which
+   may be written per second, the number of tokens which may be saved up for a
+   burst and the largest number of commands written at once."
+  {:rate      50
+   :burst     50
+   :max-batch 50})
+
+(def queries
+  "### queries
+   This is the set of commands which only read server state, and which can be
+   coalesced with an identical command that is still waiting."
+  #{"server" "mission" "difficulty" "host" "user" "ban"})
+
+(defn new-outbox
+  "### new-outbox
+   This function returns a new, stopped outbox. A map of settings may be
+   supplied, which is merged over the defaults above."
+  ([]
+   (new-outbox nil))
+  ([settings]
+   {:settings (merge defaults settings)
+    :waiting  (HashMap.)
+    :running  (atom nil)
+    :stats    (atom {:sent 0 :batches 0 :coalesced 0
+                     :latency-ns 0 :max-latency-ns 0})}))
+
+(defn send-command
+  "### send-command
+   This two argument function queues the supplied command in the supplied outbox
+   and returns the promise of its response.
+
+   If an identical query is already waiting, its promise is returned instead. If
+   the outbox is stopped the promise is delivered nil at once."
+  [{:keys [^HashMap waiting running stats]} command]
+  (locking waiting
+    (if-let [^LinkedBlockingQueue queue @running]
+      (if-let [request (and (queries command) (.get waiting command))]
+        (do (swap! stats update-in [:coalesced] inc)
+            (:response request))
+        (let [request (assoc (channel/new-request command)
+                        :queued (System/nanoTime))]
+          (if (queries command)
+            (.put waiting command request)
+            (.clear waiting))
+          (.put queue request)
+          (:response request)))
+      (doto (promise) (deliver nil)))))
+
+(defn- take-batch
+  "### take-batch
+   This function waits up to the supplied number of milliseconds for a command
+   in the supplied queue of a run, then takes it along with up to limit - 1
+   further commands which are already waiting. The taken commands can no longer
+   be coalesced with."
+  [{:keys [^HashMap waiting]} ^LinkedBlockingQueue queue limit wait-ms]
+  (when-let [request (.poll queue wait-ms TimeUnit/MILLISECONDS)]
+    (let [batch (ArrayList.)]
+      (.add batch request)
+      (.drainTo queue batch (dec limit))
+      (locking waiting
+        (doseq [{:keys [command] :as request} batch]
+          (when (identical? request (.get waiting command))
+            (.remove waiting command))))
+      (vec batch))))
+
+(defn- write-batch
+  "### write-batch
+   This function adds each request in the batch to the supplied outstanding
+   requests and writes all of their commands to the socket at once. If the write
+   fails the requests are withdrawn and their promises delivered nil."
+  [{:keys [stats]} socket ^ConcurrentLinkedQueue requests batch]
+  (let [text (apply str (map #(str (:command %) "\n") batch))]
+    (doseq [request batch]
+      (.add requests request))
+    (try (transport/write socket text)
+         (let [now (System/nanoTime)
+               latencies (map #(- now (:queued %)) batch)]
+           (swap! stats
+                  (fn [{:keys [sent batches latency-ns max-latency-ns] :as s}]
+                    (assoc s
+                      :sent (+ sent (count batch))
+                      :batches (inc batches)
+                      :latency-ns (+ latency-ns (reduce + latencies))
+                      :max-latency-ns (apply max max-latency-ns latencies)))))
+         (catch IOException _
+           (doseq [{:keys [response] :as request} batch]
+             (.remove requests request)
+             (deliver response nil))))))
+
+(defn- abandon
+  "### abandon
+   This function delivers nil to every command still waiting in the supplied
+   queue of a run of the outbox."
+  [{:keys [^HashMap waiting]} ^LinkedBlockingQueue queue]
+  (locking waiting
+    (.clear waiting)
+    (loop []
+      (when-let [{:keys [response]} (.poll queue)]
+        (deliver response nil)
+        (recur)))))
+
+(defn start
+  "### start
+   This three argument function starts the single writer thread of the supplied
+   outbox, which writes its commands to the supplied socket and adds them to the
+   supplied outstanding requests until the outbox is stopped.
+
+   The writer holds a token bucket: a batch is never larger than the number of
+   whole tokens held, and when no token is held the writer sleeps until the next
+   one is earned.
+
+   Each start is a new run of the outbox with a queue of its own, so a writer
+   left over from an earlier connection only ever takes the commands of its own
+   run, and stops as soon as it sees that its run has ended."
+  [{:keys [settings running] :as outbox} socket requests]
+  (let [{:keys [rate burst max-batch]} settings
+        ns-per-token (/ 1e9 rate)
+        run (LinkedBlockingQueue.)]
+    (reset! running run)
+    (thread
+      (loop [tokens (double burst)
+             then (System/nanoTime)]
+        (when (identical? run @running)
+          (let [now (System/nanoTime)
+                tokens (min (double burst)
+                            (+ tokens (/ (- now then) ns-per-token)))]
+            (if (< tokens 1.0)
+              (do (Thread/sleep (long (Math/ceil (/ (* (- 1.0 tokens)
+                                                       ns-per-token)
+                                                    1e6))))
+                  (recur tokens now))
+              (if-let [batch (take-batch outbox run
+                                         (min max-batch (long tokens))
+                                         100)]
+                (do (write-batch outbox socket requests batch)
+                    (recur (- tokens (count batch)) now))
+                (recur tokens now)))))))))
+
+(defn stop
+  "### stop
+   This one argument function stops the writer thread of the supplied outbox.
+   Every command still waiting is abandoned with a nil response."
+  [{:keys [running] :as outbox}]
+  (when-let [run @running]
+    (reset! running nil)
+    (abandon outbox run)))
+
+(defn outbox-stats
+  "### outbox-stats
+   This one argument function returns a map of statistics for the supplied
+   outbox: the number of commands waiting, the number of commands and batches
+   written, the number of queries coalesced, and the mean and largest time in
+   milliseconds that a command waited before it was written."
+  [{:keys [running stats]}]
+  (let [{:keys [sent latency-ns max-latency-ns] :as s} @stats
+        ^LinkedBlockingQueue queue @running]
+    (-> s
+        (dissoc :latency-ns :max-latency-ns)
+        (assoc :depth (if queue (.size queue) 0)
+               :mean-latency-ms (if (pos? sent) (/ latency-ns sent 1e6) 0.0)
+               :max-latency-ms (/ max-latency-ns 1e6)))))
@@ -2,102 +2,366 @@
 ;;
 ;; This namespace defines the parsers that we use to parse the server console output
 ;; on our tapped channels.
-(ns uk.org.il2ssd.parse
-  (:require [instaparse.core :as insta]))
+;;
+;; The console lines that we parse have a fixed format, so rather than using a general
+;; purpose parser we scan each line by index. Each scanning function below takes the
+;; line and a starting index, and returns the index just past whatever it matched, or
+;; -1 if the line doesn't match at that index. The parsers thread an index through
+;; these functions and only create strings for the fields they return.
+;;
+;; Each parser returns a record for its kind of line, or nil if the line does not
+;; match. Records can be destructured by key just like maps.
+(ns uk.org.il2ssd.parse)
+
+(defrecord DifficultyLine [setting value])
+(defrecord MissionLine [path mission state])
+(defrecord PilotLine [socket ip port name])
+(defrecord UserLine [number name ping score armyno armyname aircraft])
+(defrecord HostLine [number name socket ip port])
+
+;; ### Scanning functions
+
+(defn- space?
+  "### space?
+   This function returns true for the characters matched by \\s in a regex.
+   Character/isWhitespace matches more than this, so we can't use it here."
+  [c]
+  (case c
+    (\space \tab \newline \formfeed \return \u000B) true
+    false))
+
+(defn- digit?
+  [c]
+  (let [c (int (char c))]
+    (and (>= c (int \0)) (<= c (int \9)))))
+
+(defn- word?
+  "### word?
+   This function returns true for the characters matched by \\w in a regex."
+  [c]
+  (let [c (int (char c))]
+    (or (and (>= c (int \a)) (<= c (int \z)))
+        (and (>= c (int \A)) (<= c (int \Z)))
+        (and (>= c (int \0)) (<= c (int \9)))
+        (= c (int \_)))))
+
+(defn- scan-while
+  "### scan-while
+   This three argument function returns the index of the first character from
+   index i onwards which doesn't satisfy pred, or the length of the text."
+  ^long [pred ^String text ^long i]
+  (if (neg? i)
+    -1
+    (let [end (.length text)]
+      (loop [i i]
+        (if (and (< i end) (pred (.charAt text i)))
+          (recur (inc i))
+          i)))))
+
+(defn- scan-some
+  "### scan-some
+   As scan-while, but at least one character must satisfy pred."
+  ^long [pred ^String text ^long i]
+  (let [end (scan-while pred text i)]
+    (if (> end i) end -1)))
+
+(defn- scan-literal
+  ^long [^String text ^long i ^String literal]
+  (if (and (>= i 0) (.startsWith text literal i))
+    (+ i (.length literal))
+    -1))
+
+(defn- scan-char
+  ^long [^String text ^long i c]
+  (if (and (>= i 0) (< i (.length text)) (= (.charAt text i) (char c)))
+    (inc i)
+    -1))
+
+(defn- scan-space
+  "### scan-space
+   This function scans exactly one whitespace character."
+  ^long [^String text ^long i]
+  (if (and (>= i 0) (< i (.length text)) (space? (.charAt text i)))
+    (inc i)
+    -1))
+
+(defn- scan-ip
+  "### scan-ip
+   This function scans an IP address. As with the regex it replaces, this is
+   four groups of one to three digits, each optionally followed by a dot."
+  ^long [^String text ^long i]
+  (let [length (.length text)]
+    (loop [i i
+           group 0]
+      (cond
+        (neg? i) -1
+        (= group 4) i
+        :else (let [stop (min length (+ i 3))
+                    end (loop [j i]
+                          (if (and (< j stop) (digit? (.charAt text j)))
+                            (recur (inc j))
+                            j))]
+                (recur (long (cond
+                               (= end i) -1
+                               (and (< end length) (= (.charAt text end) \.)) (inc end)
+                               :else end))
+                       (inc group)))))))
+
+(defn- scan-port
+  ^long [^String text ^long i]
+  (scan-some digit? text (scan-char text i \:)))
+
+(defn- scan-line-end
+  "### scan-line-end
+   This function returns the length of the text if the rest of the text from
+   index i is whitespace ending in a newline, otherwise -1."
+  ^long [^String text ^long i]
+  (let [length (.length text)]
+    (if (and (>= i 0)
+             (< i length)
+             (= (.charAt text (dec length)) \newline)
+             (= (scan-while space? text i) length))
+      length
+      -1)))
+
+(defn- scan-lazy
+  "### scan-lazy
+   This function scans the shortest field of at least one character from index
+   i which is followed by text matching the lookahead function. The field may
+   not contain a newline."
+  ^long [^String text ^long i lookahead]
+  (if (neg? i)
+    -1
+    (let [length (.length text)]
+      (loop [j (inc i)]
+        (cond
+          (> j length) -1
+          (= (.charAt text (dec j)) \newline) -1
+          (lookahead text j) j
+          :else (recur (inc j)))))))
+
+;; ### Parsers
 
-(def difficulty-parser
+(defn difficulty-parser
   "### difficulty-parser
-   This parser returns a vector in the format:
+   This parser returns a DifficultyLine record with the setting and its value
+   for each difficulty setting line, in the format:
 
-       [:line [:setting setting] [:value value]]
+       \"  setting value\\n\"
 
-   for each line passed into the parser. This is used to extract the difficulty settings from
-   the server console output."
-  (insta/parser
-    "line = <2sp> setting <sp> value <nl>
-    <sp> = #'\\s*+'
-    <2sp> = #'\\s{2}+'
-    <nl> = '\\n'
-    setting = #'\\w+(?=\\s*\\d)'
-    value = #'[0-1]{1}'"))
+   This is used to extract the difficulty settings from the server console
+   output."
+  [^String text]
+  (let [length (.length text)
+        word-end (when (and (> length 3)
+                            (space? (.charAt text 0))
+                            (space? (.charAt text 1)))
+                   (scan-some word? text 2))
+        value-start (when (and word-end (pos? word-end))
+                      (scan-while space? text word-end))]
+    (when value-start
+      (if (and (< value-start length) (digit? (.charAt text value-start)))
+        (when (and (#{\0 \1} (.charAt text value-start))
+                   (= (+ value-start 2) length)
+                   (= (.charAt text (inc value-start)) \newline))
+          (->DifficultyLine (subs text 2 word-end)
+                            (subs text value-start (inc value-start))))
+        ;; With no space before the value, the setting name gives up its
+        ;; final character to the value.
+        (let [value (dec word-end)]
+          (when (and (> value 2)
+                     (#{\0 \1} (.charAt text value))
+                     (= (inc word-end) length)
+                     (= (.charAt text word-end) \newline))
+            (->DifficultyLine (subs text 2 value)
+                              (subs text value word-end))))))))
 
-(def mission-parser
+(def mission-states ["Playing" "Loaded" "NOT loaded"])
+
+(defn- mission-state
+  "### mission-state
+   This function scans a single space, one of the mission states and the final
+   newline, returning the state or nil."
+  [^String text ^long i]
+  (let [start (scan-space text i)]
+    (when (pos? start)
+      (some (fn [^String state]
+              (when (= (scan-literal text start (str state "\n"))
+                       (.length text))
+                state))
+            mission-states))))
+
+(defn mission-parser
   "### mission-parser
-   This parser returns a vector in the format:
-
-       [:line [:state state]]
-
-   or:
-
-       [:line [:path path] [:mission mission] [:state state]]
-
-   for each line passed into the parser. This is used to extract the mission state from
-   the server console output, and the mission and path if these are available."
-  (insta/parser
-    "line = <'Mission'> (<': '> path+ mission <' is'>)? <sp> state <nl>
-     <sp> = #'\\s{1}+'
-     <nl> = '\\n'
-     path = #'.+/'
-     mission = #'.+\\.mis'
-     state = 'Playing' | 'Loaded' | 'NOT loaded'"))
-
-(def pilot-parser
-  "### pilot-parser"
-  (insta/parser
-    "line = <begin> join? ip port name? leave?
-     <begin> = 'socket channel ' | 'socketConnection with '
-     socket =  #'\\d++'
-     <join> = (<'\\''> socket <'\\''> <', ip '>)
-     ip = #'(\\d{1,3}+\\.?{1}+){4}+'
-     port = <':'> #'\\d++'
-     name = <', '> #'.+(?=, is complete created\\n)' <', is complete created\\n'>
-     <leave> = <' on channel '> socket <' lost.  Reason:'> <#'.*\\n'>"))
-
-(def user-parser
-  (insta/parser
-    "line = <sp> number name ping score army aircraft? <nl>
-     <sp> = #'\\s'
-     <nsp> = #'\\s++'
-     <nl> = #'\\s*\\n'
-     number = #'\\d++' <nsp>
-     name = #'.+?(?=\\s++\\d++\\s++\\d++\\s++\\(\\d)' <nsp>
-     ping = #'\\d++' <nsp>
-     score = #'\\d++' <nsp>
-     <army> = <'('> armyno <')'> armyname
-     armyno = #'\\d++'
-     armyname = #'\\w++'
-     aircraft = <nsp> #'\\w.+(?=\\n)'"))
-
-(def host-parser
-  (insta/parser
-    "line = <sp> number <sp> name <sp> socket ip port <nl>
-     <sp> = #'\\s'
-     <nl> = '\\n'
-     number = #'\\d++' <':'>
-     name = #'.+?(?=\\s\\[\\d++\\](\\d{1,3}+\\.?{1}+){4}+)'
-     socket = <'['> #'\\d++' <']'>
-     ip = #'(\\d{1,3}+\\.?{1}+){4}+'
-     port = <':'> #'\\d++'"))
+   This parser returns a MissionLine record for each mission status line, in
+   one of the formats:
+
+       \"Mission: path/mission.mis is state\\n\"
+       \"Mission state\\n\"
+
+   This is used to extract the mission state from the server console output,
+   and the mission and path if these are available. The path and mission are nil
+   when the mission is not loaded."
+  [^String text]
+  (let [start (scan-literal text 0 "Mission")]
+    (when (pos? start)
+      (if-let [state (mission-state text start)]
+        (->MissionLine nil nil state)
+        (let [path-start (scan-literal text start ": ")
+              newline (.indexOf text "\n")
+              line-end (if (neg? newline) (.length text) newline)
+              path-end (inc (.lastIndexOf text "/" (dec line-end)))
+              mission-end (+ (.lastIndexOf text ".mis" (- line-end 4)) 4)]
+          (when (and (pos? path-start)
+                     (> path-end (inc path-start))
+                     (> mission-end (+ path-end 4)))
+            (when-let [state (mission-state text (scan-literal text mission-end " is"))]
+              (->MissionLine (subs text path-start path-end)
+                             (subs text path-end mission-end)
+                             state))))))))
+
+(def ^:private pilot-created ", is complete created\n")
+
+(defn pilot-parser
+  "### pilot-parser
+   This parser returns a PilotLine record for the lines which show a pilot
+   joining or leaving the server, in the formats:
+
+       \"socket channel 'socket', ip ip:port, name, is complete created\\n\"
+       \"socketConnection with ip:port on channel socket lost.  Reason: ...\\n\"
+
+   The name is nil when a pilot leaves."
+  [^String text]
+  (let [length (.length text)
+        begin (let [i (scan-literal text 0 "socket channel ")]
+                (if (pos? i) i (scan-literal text 0 "socketConnection with ")))
+        socket-end (scan-some digit? text (scan-char text begin \'))
+        ip-start (if (pos? socket-end)
+                   (scan-literal text (scan-char text socket-end \') ", ip ")
+                   begin)
+        ip-end (scan-ip text ip-start)
+        port-end (scan-port text ip-end)
+        name-start (scan-literal text port-end ", ")
+        name-end (.lastIndexOf text ^String pilot-created)
+        name? (and (pos? name-start)
+                   (> name-end name-start)
+                   (= (+ name-end (.length ^String pilot-created)) length)
+                   (= (.indexOf text "\n" name-start) (dec length)))
+        leave-start (scan-literal text port-end " on channel ")
+        leave-end (scan-some digit? text leave-start)
+        reason-end (scan-literal text leave-end " lost.  Reason:")
+        leave? (and (pos? reason-end)
+                    (= (.indexOf text "\n" reason-end) (dec length)))]
+    (when (and (pos? port-end)
+               (or name? leave? (= port-end length)))
+      (->PilotLine (cond leave? (subs text leave-start leave-end)
+                         (pos? socket-end) (subs text (inc begin) socket-end))
+                   (subs text ip-start ip-end)
+                   (subs text (inc ip-end) port-end)
+                   (when name? (subs text name-start name-end))))))
+
+(defn- army-ahead?
+  "### army-ahead?
+   This function returns true if the text at index i is whitespace, the ping,
+   whitespace, the score, whitespace and the start of the army number, which is
+   what follows the name on a user details line."
+  [^String text ^long i]
+  (let [army-no (->> i
+                     (scan-some space? text)
+                     (scan-some digit? text)
+                     (scan-some space? text)
+                     (scan-some digit? text)
+                     (scan-some space? text)
+                     (#(scan-char text % \()))]
+    (and (pos? army-no)
+         (< army-no (.length text))
+         (digit? (.charAt text army-no)))))
+
+(defn user-parser
+  "### user-parser
+   This parser returns a UserLine record for each line of the user details
+   table, in the format:
+
+       \" number name ping score (armyno)armyname aircraft\\n\"
+
+   where the fields are separated by any amount of whitespace and the aircraft
+   is not shown for pilots who have not yet chosen one."
+  [^String text]
+  (let [number-end (scan-some digit? text (scan-space text 0))
+        name-start (scan-some space? text number-end)
+        name-end (scan-lazy text name-start army-ahead?)
+        ping-start (scan-some space? text name-end)
+        ping-end (scan-some digit? text ping-start)
+        score-start (scan-some space? text ping-end)
+        score-end (scan-some digit? text score-start)
+        armyno-start (scan-char text (scan-some space? text score-end) \()
+        armyno-end (scan-some digit? text armyno-start)
+        armyname-start (scan-char text armyno-end \))
+        armyname-end (scan-some word? text armyname-start)
+        aircraft-start (scan-some space? text armyname-end)
+        aircraft-end (if (and (pos? aircraft-start)
+                              (< aircraft-start (.length text))
+                              (word? (.charAt text aircraft-start)))
+                       (.indexOf text "\n" aircraft-start)
+                       -1)
+        aircraft? (and (> aircraft-end (inc aircraft-start))
+                       (pos? (scan-line-end text aircraft-end)))]
+    (when (or aircraft? (pos? (scan-line-end text armyname-end)))
+      (->UserLine (subs text 1 number-end)
+                  (subs text name-start name-end)
+                  (subs text ping-start ping-end)
+                  (subs text score-start score-end)
+                  (subs text armyno-start armyno-end)
+                  (subs text armyname-start armyname-end)
+                  (when aircraft? (subs text aircraft-start aircraft-end))))))
+
+(defn- socket-ahead?
+  "### socket-ahead?
+   This function returns true if the text at index i is a space, the socket in
+   brackets and an IP address, which is what follows the name on a host details
+   line."
+  [^String text ^long i]
+  (pos? (->> i
+             (scan-space text)
+             (#(scan-char text % \[))
+             (scan-some digit? text)
+             (#(scan-char text % \]))
+             (scan-ip text))))
+
+(defn host-parser
+  "### host-parser
+   This parser returns a HostLine record for each line of the host details
+   table, in the format:
+
+       \" number: name [socket]ip:port\\n\""
+  [^String text]
+  (let [number-end (scan-some digit? text (scan-space text 0))
+        name-start (scan-space text (scan-char text number-end \:))
+        name-end (scan-lazy text name-start socket-ahead?)
+        socket-start (scan-char text (scan-space text name-end) \[)
+        socket-end (scan-some digit? text socket-start)
+        ip-start (scan-char text socket-end \])
+        ip-end (scan-ip text ip-start)
+        port-end (scan-port text ip-end)]
+    (when (and (pos? port-end)
+               (= (scan-char text port-end \newline) (.length text)))
+      (->HostLine (subs text 1 number-end)
+                  (subs text name-start name-end)
+                  (subs text socket-start socket-end)
+                  (subs text ip-start ip-end)
+                  (subs text (inc ip-end) port-end)))))
 
 (defn parse-text
   "### parse-text
-   This two argument function passes the input text through the input parser.
-   After receiving this text, the output is stripped of the redundant root element,
-   flattened into a sequence of key-value pairs, then loaded into a map for easy
-   keyed access.
-
-   For example, the mission state map returned by the mission parser:
+   This two argument function passes the input text through the input parser,
+   returning the record which the parser produces. Any text which the parser
+   does not recognise is printed, and nil is returned.
 
-       [:line [:path path] [:mission mission] [:state state]]
+   For example, the mission parser returns this for a playing mission:
 
-   ...will be transformed into this:
+       #uk.org.il2ssd.parse.MissionLine{:path path, :mission mission, :state state}
 
-       {:path path, :mission mission, :state state}"
+   ...which can be destructured by key just like a map."
   [parser text]
-  (let [result (parser text)]
-    (if (insta/failure? result)
-      (println result)
-      (->> result
-           rest
-           flatten
-           (apply hash-map)))))
+  (or (parser text)
+      (println "Parse failure:" (pr-str text))))
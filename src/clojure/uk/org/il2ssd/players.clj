@@ -0,0 +1,338 @@
+;;
+;; ## Player statistics
+;;
+;; Here we keep a record of every pilot's time on our servers, so that a squadron
+;; ladder can be drawn up without anyone writing it down by hand.
+;;
+;; Each session tracks the pilots who are connected to its server. A pilot's
+;; session opens when the host list first shows them on a socket, the user list
+;; polls keep their army and score up to date, and the session closes when the
+;; pilot's connection is lost or we disconnect from the server. A closed session
+;; is a map of the pilot's name, IP address, last army, the server, the join and
+;; leave times in milliseconds and the peak and final scores.
+;;
+;; As each session closes it is folded into a running total for the pilot: the
+;; number of sessions, the total time flown, the sum of the final scores, the best
+;; peak score and when and from where the pilot was last seen. Queries only ever
+;; read these totals, so they cost the same however much history has built up.
+;;
+;; The closed sessions are written in batches by a scheduled flush rather than as
+;; they happen. Each is appended as one edn map per line to sessions.log, which is
+;; the full history. Every so often the totals are written to players.edn along
+;; with the length of the log they include, so that only the sessions logged
+;; since then need to be read again when the store is loaded.
+(ns uk.org.il2ssd.players
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [clojure.string :as string]
+            [overtone.at-at :as at-at]
+            [uk.org.il2ssd.event.scheduler :as scheduler]
+            [uk.org.il2ssd.state :as state])
+  (:import (java.io File RandomAccessFile)
+           (java.nio.charset Charset)
+           (java.nio.file CopyOption Files StandardCopyOption)
+           (java.util.concurrent ConcurrentLinkedQueue)))
+
+(def defaults
+  "### defaults
+   This is a map of the default store settings: the directory which holds the
+   store, how often in milliseconds the closed sessions are written and how
+   many sessions are logged between writes of the totals."
+  {:directory        "players"
+   :flush-ms         5000
+   :snapshot-records 1000})
+
+(def ^Charset utf-8 (Charset/forName "UTF-8"))
+
+(def store
+  "### store
+   This atom holds the player totals keyed by name, along with the settings of
+   the store, the length of the log, the number of sessions logged since the
+   totals were last written and the scheduled flush."
+  (atom {:players {}}))
+
+(def ^ConcurrentLinkedQueue pending
+  "### pending
+   This queue holds the closed sessions which are waiting to be logged. It is
+   also locked while a session is added to the totals and queued, so that a
+   flush always sees totals which include exactly the sessions it takes."
+  (ConcurrentLinkedQueue.))
+
+;; ### Totals
+
+(defn add-session
+  "### add-session
+   This two argument function folds the supplied closed session into the
+   supplied player totals, which may be nil for a pilot not seen before."
+  [player {:keys [name ip army join leave peak score]}]
+  (let [{:keys [sessions total-ms score-sum best first-seen last-seen armies]
+         :or   {sessions 0 total-ms 0 score-sum 0 best 0 armies {}}} player]
+    {:name       name
+     :sessions   (inc sessions)
+     :total-ms   (+ total-ms (max 0 (- leave join)))
+     :score-sum  (+ score-sum score)
+     :best       (max best peak)
+     :first-seen (min (or first-seen join) join)
+     :last-seen  (max (or last-seen leave) leave)
+     :last-ip    (if (and last-seen (< leave last-seen)) (:last-ip player) ip)
+     :armies     (if army (assoc armies army (inc (get armies army 0))) armies)}))
+
+(defn player-view
+  "### player-view
+   This one argument function adds the derived figures to the supplied player
+   totals: the average final score and the total time in hours."
+  [{:keys [sessions total-ms score-sum] :as player}]
+  (assoc player
+    :average (if (pos? sessions) (double (/ score-sum sessions)) 0.0)
+    :hours (/ total-ms 3600000.0)))
+
+(defn query
+  "### query
+   This function returns the totals of every player whose name contains the
+   supplied text, ignoring case, or of every player if there is none. The
+   players are sorted by the supplied key, highest first, and by name when
+   none is given, and at most limit players are returned if a limit is given."
+  ([]
+   (query nil))
+  ([{:keys [name sort limit]}]
+   (let [text (when-not (string/blank? name) (string/lower-case name))]
+     (cond->> (for [player (vals (:players @store))
+                    :when (or (nil? text)
+                              (.contains (string/lower-case (:name player)) text))]
+                (player-view player))
+       sort (sort-by #(get % sort 0) >)
+       (not sort) (sort-by :name)
+       limit (take limit)))))
+
+(defn record!
+  "### record!
+   This one argument function adds the supplied closed session to its pilot's
+   totals and, if the store is started, queues it to be logged."
+  [{:keys [name] :as session}]
+  (locking pending
+    (swap! store update-in [:players name] add-session session)
+    (when (:dir @store)
+      (.add pending session))))
+
+;; ### Open sessions
+
+(defn- now [] (System/currentTimeMillis))
+
+(defn- server-name
+  []
+  (some-> (state/session) :name deref))
+
+(defn- take-open!
+  "### take-open!
+   This one argument function applies f to the open sessions of the session in
+   scope. f returns the sessions it takes along with the open sessions which
+   remain, which replace them; the sessions taken are returned."
+  [f]
+  (let [open (state/players)]
+    (loop []
+      (let [old @open
+            [taken new] (f old)]
+        (if (compare-and-set! open old new)
+          taken
+          (recur))))))
+
+(defn- close-sessions
+  [sessions]
+  (let [leave (now)]
+    (doseq [session sessions
+            :when (:name session)]
+      (record! (-> session
+                   (dissoc :number)
+                   (assoc :leave leave))))))
+
+(defn joined
+  "### joined
+   This four argument function is called with each line of the host list. It
+   opens a session for a pilot not yet seen on the socket, and notes the
+   pilot's channel number, which the user list identifies pilots by."
+  [number socket ip name]
+  (swap! (state/players)
+         (fn [{:keys [sockets numbers] :as open}]
+           (let [known (get sockets socket)]
+             (-> open
+                 (assoc :numbers (-> numbers
+                                     (dissoc (:number known))
+                                     (assoc number socket)))
+                 (assoc-in [:sockets socket]
+                           (assoc (or known {:name   name
+                                             :ip     ip
+                                             :server (server-name)
+                                             :join   (now)
+                                             :peak   0
+                                             :score  0})
+                             :number number)))))))
+
+(defn scored
+  "### scored
+   This four argument function is called with each line of the user list. The
+   army and score are applied to the pilot's open session, but only if the
+   pilot on the channel number still has the same name, as numbers move up
+   when other pilots leave."
+  [number name score army]
+  (let [score (try (Long/decode score)
+                   (catch NumberFormatException _ nil))]
+    (when score
+      (swap! (state/players)
+             (fn [{:keys [sockets numbers] :as open}]
+               (let [socket (get numbers number)
+                     session (get sockets socket)]
+                 (if (= name (:name session))
+                   (assoc-in open [:sockets socket]
+                             (assoc session
+                               :score score
+                               :peak (max score (:peak session))
+                               :army (if (= army "None") (:army session) army)))
+                   open)))))))
+
+(defn left
+  "### left
+   This one argument function closes the session of the pilot on the supplied
+   socket, whose connection has been lost."
+  [socket]
+  (close-sessions
+    (take-open! (fn [{:keys [sockets numbers] :as open}]
+                  (if-let [session (get sockets socket)]
+                    [[session] (-> open
+                                   (update-in [:sockets] dissoc socket)
+                                   (update-in [:numbers] dissoc (:number session)))]
+                    [nil open])))))
+
+(defn left-all
+  "### left-all
+   This zero argument function closes the session of every pilot on the server
+   of the session in scope, as we are disconnecting from it."
+  []
+  (close-sessions
+    (take-open! (fn [{:keys [sockets]}]
+                  [(vals sockets) {}]))))
+
+;; ### Persistence
+
+(defn- log-file ^File [dir] (io/file dir "sessions.log"))
+
+(defn- snapshot-file ^File [dir] (io/file dir "players.edn"))
+
+(defn- read-log
+  "### read-log
+   This two argument function returns the sessions logged in the supplied
+   directory from the supplied offset on, along with the length of the log
+   which they take up. A line left incomplete by a crash is cut off, so that
+   the next session is logged on a line of its own."
+  [dir ^long offset]
+  (let [file (log-file dir)]
+    (if-not (.isFile file)
+      [[] 0]
+      (with-open [raf (RandomAccessFile. file "rw")]
+        (let [length (.length raf)
+              offset (min offset length)
+              bytes (byte-array (- length offset))
+              _ (do (.seek raf offset) (.readFully raf bytes))
+              text (String. bytes utf-8)
+              end (inc (.lastIndexOf text "\n"))
+              complete (+ offset (alength (.getBytes (subs text 0 end) utf-8)))]
+          (when (< complete length)
+            (.setLength raf complete))
+          [(vec (for [line (string/split-lines (subs text 0 end))
+                      :let [session (try (edn/read-string line)
+                                         (catch RuntimeException _ nil))]
+                      :when (map? session)]
+                  session))
+           complete])))))
+
+(defn load-store
+  "### load-store
+   This one argument function reads the totals written to the supplied
+   directory and adds the sessions logged since they were written. It returns
+   the totals and the length of the log."
+  [dir]
+  (let [file (snapshot-file dir)
+        {:keys [offset players] :or {offset 0 players {}}}
+        (when (.isFile file)
+          (try (edn/read-string (slurp file :encoding "UTF-8"))
+               (catch RuntimeException _ nil)))
+        [sessions length] (read-log dir offset)]
+    {:players (reduce (fn [players {:keys [name] :as session}]
+                        (update-in players [name] add-session session))
+                      players
+                      sessions)
+     :offset  length
+     :unsaved (count sessions)}))
+
+(defn- write-snapshot
+  [dir players offset]
+  (let [file (snapshot-file dir)
+        temp (io/file dir "players.edn.tmp")]
+    (spit temp (pr-str {:offset offset :players players}) :encoding "UTF-8")
+    (Files/move (.toPath temp) (.toPath file)
+                (into-array CopyOption [StandardCopyOption/REPLACE_EXISTING
+                                        StandardCopyOption/ATOMIC_MOVE]))))
+
+(defn flush-store
+  "### flush-store
+   This zero argument function appends the sessions waiting in the queue to the
+   log. The totals are written as well once enough sessions have been logged
+   since they were last written, or whenever force? is true."
+  ([]
+   (flush-store false))
+  ([force?]
+   (locking store
+     (when-let [dir (:dir @store)]
+       (let [[sessions players] (locking pending
+                                  [(loop [sessions []]
+                                     (if-let [session (.poll pending)]
+                                       (recur (conj sessions session))
+                                       sessions))
+                                   (:players @store)])
+             file (log-file dir)]
+         (when (seq sessions)
+           (with-open [writer (io/writer file :append true :encoding "UTF-8")]
+             (doseq [session sessions]
+               (.write writer (str (pr-str session) "\n")))))
+         (let [{:keys [unsaved settings]}
+               (swap! store #(-> %
+                                 (assoc :offset (.length file))
+                                 (update-in [:unsaved] + (count sessions))))]
+           (when (and (pos? unsaved)
+                      (or force? (>= unsaved (:snapshot-records settings))))
+             (write-snapshot dir players (:offset @store))
+             (swap! store assoc :unsaved 0))))))))
+
+(defn start
+  "### start
+   This one argument function loads the store from the directory in the
+   supplied settings, which are merged over the defaults above, and schedules
+   the flush. Sessions closed before the store was started are kept in the
+   totals but not logged."
+  [settings]
+  (let [{:keys [directory flush-ms] :as settings} (merge defaults settings)
+        dir (io/file directory)]
+    (.mkdirs dir)
+    (locking store
+      (let [{:keys [players offset unsaved]} (load-store dir)]
+        (swap! store assoc
+               :dir dir
+               :settings settings
+               :players players
+               :offset offset
+               :unsaved unsaved
+               :job (at-at/every flush-ms
+                                 #(try (flush-store)
+                                       (catch Exception e
+                                         (.printStackTrace e)))
+                                 scheduler/schedule
+                                 :initial-delay flush-ms))))))
+
+(defn stop
+  "### stop
+   This zero argument function cancels the scheduled flush, logs any sessions
+   still waiting and writes the totals."
+  []
+  (when-let [job (:job @store)]
+    (at-at/stop job))
+  (flush-store true)
+  (swap! store dissoc :dir :job))
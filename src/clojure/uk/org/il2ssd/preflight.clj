@@ -0,0 +1,103 @@
+;;
+;; ## Mission pre-flight checks
+;;
+;; Here we check mission files before they are sent to the server, so that a
+;; mission which cannot load is found at once rather than when the server answers
+;; a LOAD command with an error, which for a mission cycle may be hours after the
+;; mistake was made.
+;;
+;; A mission passes if its file exists, can be read and parses as a mission: its
+;; first section is [MAIN] and names the map to load. The result of each check is
+;; kept with the file's modification time and size, so checking a mission again
+;; costs a single look at the file's attributes until the file changes.
+;;
+;; Missions can only be checked when the server's Missions directory can be
+;; reached from here. A mission on a server which we only reach over the network
+;; is not checked and always passes.
+(ns uk.org.il2ssd.preflight
+  (:require [clojure.string :as string]
+            [uk.org.il2ssd.catalogue :as catalogue])
+  (:import (java.io BufferedReader IOException)
+           (java.nio.file Files InvalidPathException LinkOption NoSuchFileException
+                          Path)
+           (java.nio.file.attribute BasicFileAttributes)))
+
+(def problems
+  "### problems
+   This is a map of each problem which a check can find to the text which
+   describes it."
+  {:missing    "Missing"
+   :unreadable "Unreadable"
+   :invalid    "Not a mission"})
+
+(def results
+  "### results
+   This atom holds a map of the path of each mission file checked to the
+   result of its check, along with the modification time and size of the file
+   when it was checked."
+  (atom {}))
+
+(defn- parse-problem
+  "### parse-problem
+   This one argument function reads the supplied mission file as far as the
+   end of its [MAIN] section and returns :invalid unless that is its first
+   section and it names a map, or nil if it does."
+  [^Path file]
+  (with-open [^BufferedReader reader (Files/newBufferedReader
+                                       file catalogue/mission-charset)]
+    (let [[header & lines] (->> (catalogue/mission-lines reader)
+                                (map string/trim)
+                                (remove string/blank?))
+          main (take-while #(not (.startsWith ^String % "[")) lines)]
+      (when-not (and (= header "[MAIN]")
+                     (some #(re-matches #"MAP\s+\S.*" %) main))
+        :invalid))))
+
+(defn check
+  "### check
+   This one argument function checks the supplied mission file and returns the
+   problem found, see problems, or nil if the mission can be loaded. The
+   result is kept until the file is modified."
+  [^Path file]
+  (try
+    (let [attributes (Files/readAttributes file BasicFileAttributes
+                                           ^"[Ljava.nio.file.LinkOption;"
+                                           (make-array LinkOption 0))
+          key (str file)
+          modified (.toMillis (.lastModifiedTime attributes))
+          size (.size attributes)
+          known (get @results key)]
+      (if (and known (= modified (:modified known)) (= size (:size known)))
+        (:problem known)
+        (let [problem (if (Files/isReadable file)
+                        (try (parse-problem file)
+                             (catch IOException _ :unreadable))
+                        :unreadable)]
+          (swap! results assoc key {:modified modified
+                                    :size     size
+                                    :problem  problem})
+          problem)))
+    (catch NoSuchFileException _
+      (swap! results dissoc (str file))
+      :missing)
+    (catch IOException _ :unreadable)))
+
+(defn mission-problem
+  "### mission-problem
+   This two argument function checks the supplied mission, given by its path
+   relative to the Missions directory of the server whose il2server.exe is at
+   the supplied path. The problem found is returned, or nil if the mission can
+   be loaded or the Missions directory cannot be reached to check it."
+  [server-path mission]
+  (when-let [^Path dir (catalogue/missions-dir server-path)]
+    (when (and (not (string/blank? mission))
+               (Files/isDirectory dir (make-array LinkOption 0)))
+      (try (check (.resolve dir ^String mission))
+           (catch InvalidPathException _ :missing)))))
+
+(defn describe
+  "### describe
+   This one argument function returns the text which describes the supplied
+   problem, or an empty string if there is none."
+  [problem]
+  (get problems problem ""))
@@ -2,61 +2,40 @@
 ;; ## Server connection and I/O functions
 ;;
 ;; Here we define functions to interact with the Il-2 server console socket. This
-;; includes functions to write to and read from the socket, along with a socket
-;; listener function to put all non-nil values into the channel from which all
-;; server state processing in the UI is driven.
+;; includes functions to write to the socket and to open and close the connection.
+;; Reading is handled by the non-blocking transport, which puts each line that the
+;; server sends into the channel from which all server state processing in the UI
+;; is driven.
+;;
+;; Commands are not written by the calling thread. Each one is queued in the
+;; session's outbox, whose single writer thread batches and paces the writes, see
+;; the outbox namespace. Sending a command returns a promise of the lines which the
+;; server prints in reply. Callers which need the output of a command can deref the
+;; promise; the rest carry on and let the console events update the UI, so several
+;; commands may be sent back to back.
 (ns uk.org.il2ssd.server
-  (:require [clojure.core.async :refer [>!! thread]]
-            [uk.org.il2ssd.channel :refer :all]
-            [uk.org.il2ssd.state :as state])
-  (:import (java.io BufferedReader BufferedWriter InputStreamReader
-                    OutputStreamWriter PrintWriter)
-           (java.net ConnectException InetSocketAddress Socket
-                     SocketTimeoutException SocketException)
-           (java.nio.charset Charset)
-           (org.apache.commons.lang StringEscapeUtils)))
-
-;; ### Socket atoms
-;; Here we define atoms to access the specific instances of the Socket, PrintWriter
-;; and BufferedReader objects that were created on this connection attempt outside
-;; of the initial connection function.
-(def socket (atom nil))
-(def socket-in (atom nil))
-(def socket-out (atom nil))
-
-(defn socket-listener
-  "### socket-listener
-   This function spawns a new thread on which we repeatedly perform a read from
-   the server socket for as long as our connection state atom says that we are
-   connected.
-
-   Any time that we read a non-nil string from the socket, we unescape any
-   Unicode characters using Apache Commons StringEscapeUtils and put the
-   resulting text into in-channel, the channel that is used as the source for
-   all server state parsing."
-  []
-  (thread (while @state/connected
-            (when-let [text (try (.readLine ^BufferedReader @socket-in)
-                                 (catch SocketException _ nil))]
-              (->> text
-                   (StringEscapeUtils/unescapeJava)
-                   (>!! in-channel))))))
+  (:require [uk.org.il2ssd.channel :as channel]
+            [uk.org.il2ssd.config :as config]
+            [uk.org.il2ssd.journal :as journal]
+            [uk.org.il2ssd.outbox :as outbox]
+            [uk.org.il2ssd.players :as players]
+            [uk.org.il2ssd.state :as state]
+            [uk.org.il2ssd.transport :as transport])
+  (:import (java.net ConnectException SocketTimeoutException)))
 
 (defn write-socket
   "### write-socket
-   This is a one argument function that simply calls the print method of the
-   object that is stored in the socket-out atom using the argument that we
-   provide.
+   This is a one argument function that queues the argument to be written to
+   the SocketChannel that is stored in the session's socket atom.
 
-   The argument is coerced to a String and a newline character is
-   appended before printing. The output stream is then flushed.
+   The argument is coerced to a String and a newline character is appended
+   when it is written.
 
-   This atom should contain the instance of the PrintWriter object that is
-   instantiated when we successfully connect to the server."
+   The session's outbox writes the command and adds it to the session's
+   outstanding requests. The promise of its response is returned, which is
+   delivered nil if the command is never written."
   [text]
-  (reset! state/last-command text)
-  (.print ^PrintWriter @socket-out (str text "\n"))
-  (.flush ^PrintWriter @socket-out))
+  (outbox/send-command (state/outbox) (str text)))
 
 (defn get-server-text
   "### get-server-text
@@ -183,67 +162,80 @@
                 :ip "IP ")]
      (write-socket (str "ban " oper type "\"" value "\"")))))
 
+(defn resync
+  "### resync
+   This zero argument function requests everything which the session keeps
+   about its server: the server description, the mission state, the difficulty
+   settings, the ban list and the pilots. The requests are queued back to back,
+   so the outbox writes them to the server in a single batch rather than waiting
+   for each reply in turn. The promises of the replies are returned in a map
+   keyed by :server, :mission, :difficulty, :bans and :pilots.
+
+   The replies update the session through the console events, just as they do
+   when the requests are made one at a time."
+  []
+  {:server     (get-server-text)
+   :mission    (get-mission-state)
+   :difficulty (get-difficulty)
+   :bans       (get-bans)
+   :pilots     (get-pilots)})
+
 (defn connect
   "### connect
-   This is a two argument function which instantiates an InetSocketAddress using
-   the provided host and port arguments. It then stores a new Socket instance
-   in the socket atom defined above and uses the InetSocketAddress to connect to
-   the Socket.
-
-   After connecting, we put a new BufferedReader instance that wraps the input
-   stream for the socket into the socket-in atom and put a new PrintWriter
-   instance which wraps the output stream for the socket into the socket-out
-   atom.
-
-   We also set the connected state atom to true and start the socket-listener
-   to begin parsing the server state. We also get the server description text
-   and mission status here so that there is something display in the UI as
-   a kind of welcome text.
-
-   We use a timeout on the socket connect attempt and wrap the connection and
-   reader/writer instantiation attempts in a try/catch block to catch any I/O
-   exceptions which result."
-  [host port]
-  (let [address (InetSocketAddress. ^String host ^int port)]
-    (reset! socket (Socket.))
-    (try (.connect ^Socket @socket address 10000)
-         (reset! socket-in (BufferedReader.
-                             (InputStreamReader.
-                               (.getInputStream ^Socket @socket)
-                               (Charset/forName "UTF-8"))))
-         (reset! socket-out (PrintWriter.
-                              (BufferedWriter.
-                                (OutputStreamWriter.
-                                  (.getOutputStream ^Socket @socket)
-                                  (Charset/forName "UTF-8")))
-                              true))
-         (reset! state/connected true)
-         (socket-listener)
-         (get-server-text)
-         (get-mission-state)
-         (get-bans)
-         (get-pilots)
-         (catch ConnectException _ nil)
-         (catch SocketTimeoutException _ nil))))
+   This function opens a non-blocking SocketChannel to the provided host and
+   port using the transport, and stores it in the session's socket atom. Every
+   line that the server sends will be put into the session's in-channel by the
+   transport's selector thread, and the session's outbox is started to write
+   commands to it. If an on-close function is supplied it is called, on the
+   transport's selector thread, when the server closes the connection.
+
+   If the console journal is enabled, every line from the server is journalled
+   while the session is connected, see the journal namespace.
+
+   We also set the connected state atom to true, and resync the session with
+   the server so that there is something to display in the UI straight away.
+   The replies to the resync are returned, or nil if we could not connect.
+
+   We use a timeout on the socket connect attempt and wrap the connection attempt
+   in a try/catch block to catch any I/O exceptions which result."
+  ([host port]
+   (connect host port nil))
+  ([host port on-close]
+   (channel/cancel-requests (:requests (state/channels)))
+   (try (reset! (state/socket)
+                (transport/open host port 10000
+                                (:in-channel (state/channels)) on-close
+                                (:metrics (state/channels))))
+        (outbox/start (state/outbox) @(state/socket)
+                      (:requests (state/channels)))
+        (when-let [settings (config/journal)]
+          (journal/start settings host port))
+        (reset! (state/connected) true)
+        (resync)
+        (catch ConnectException _ nil)
+        (catch SocketTimeoutException _ nil))))
 
 (defn disconnect
   "### disconnect
-   This is a zero argument function, which simply resets all of the global state
+   This is a zero argument function, which simply resets all of the session state
    values to their initial values and closes our socket.
 
-   We are forced to call the shutdownInput method on the socket so that read
-   attempts return nil and any reads that are currently blocking return this
-   nil value.
+   Closing the SocketChannel also cancels its registration with the transport's
+   selector, so no further lines are read from it. The outbox is stopped, and any
+   commands still waiting to be written or for a response are abandoned.
 
-   This allows the socket-listener thread to get to the connected
-   state evaluation and end rather than staying at a running, blocked state."
+   The session of every pilot on the server is closed in the player statistics,
+   as we can no longer see them, and the local copy of its ban list is dropped."
   []
-  (reset! state/loading false)
-  (reset! state/loaded false)
-  (reset! state/playing false)
-  (reset! state/cycle-running false)
-  (reset! state/dcg-running false)
-  (reset! state/connected false)
-  (.shutdownInput ^Socket @socket)
-  (.close ^Socket @socket))
-
+  (reset! (state/loading) false)
+  (reset! (state/loaded) false)
+  (reset! (state/playing) false)
+  (reset! (state/cycle-running) false)
+  (reset! (state/dcg-running) false)
+  (reset! (state/connected) false)
+  (outbox/stop (state/outbox))
+  (journal/stop)
+  (players/left-all)
+  (reset! (state/bans) #{})
+  (transport/close @(state/socket))
+  (channel/cancel-requests (:requests (state/channels))))
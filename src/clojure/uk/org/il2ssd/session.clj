@@ -0,0 +1,84 @@
+;;
+;; ## Server sessions
+;;
+;; A session holds everything that belongs to one server connection: the socket,
+;; the outbound command queue, the console channel pipeline, the state atoms, the
+;; scheduled mission event and the lists which back the UI tables. Any number of
+;; sessions can be open at once, each connected to a different server, and the UI
+;; shows one of them at a time.
+;;
+;; Sessions are plain maps which are stored in the state/sessions atom. Each open
+;; session's statistics are published as the JMX bean
+;; "uk.org.il2ssd:type=Session,id=N", see the jmx namespace.
+(ns uk.org.il2ssd.session
+  (:require [uk.org.il2ssd.channel :as channel]
+            [uk.org.il2ssd.jmx :as jmx]
+            [uk.org.il2ssd.outbox :as outbox]
+            [uk.org.il2ssd.state :as state]))
+
+(def next-id
+  "### next-id
+   This atom stores the id of the most recently created session."
+  (atom 0))
+
+(defn session-stats
+  "### session-stats
+   This one argument function returns a map of statistics for the supplied
+   session: those of its channel pipeline and of its outbox."
+  [{:keys [channels outbox]}]
+  (assoc (channel/pipeline-stats channels)
+    :outbox (outbox/outbox-stats outbox)))
+
+(defn- bean-name
+  "### bean-name
+   This function returns the key properties of the JMX bean of the supplied
+   session."
+  [session]
+  (str "type=Session,id=" (:id session)))
+
+(defn new-session
+  "### new-session
+   This one argument function creates a session with a fresh state, outbox and
+   channel pipeline and adds it to the open sessions. The supplied map of lists is
+   stored as the session's table data, and the session's statistics are
+   registered with JMX.
+
+   The new session is returned."
+  [data]
+  (let [id (swap! next-id inc)
+        state (state/new-state)
+        session {:id            id
+                 :name          (atom (str "Server " id))
+                 :state         state
+                 :socket        (atom nil)
+                 :outbox        (outbox/new-outbox)
+                 :channels      (channel/new-pipeline)
+                 :scheduled-mis (atom nil)
+                 :settings      (atom {})
+                 :data          data}]
+    (swap! state/sessions assoc id session)
+    (jmx/register (bean-name session) #(session-stats session))
+    session))
+
+(defn remove-session
+  "### remove-session
+   This one argument function closes the channel pipeline of the supplied
+   session, removes it from the open sessions and unregisters its JMX bean."
+  [session]
+  (channel/close-channels (:channels session))
+  (jmx/unregister (bean-name session))
+  (swap! state/sessions dissoc (:id session)))
+
+(defn switch-session
+  "### switch-session
+   This one argument function makes the supplied session the one which is
+   shown in the UI."
+  [session]
+  (reset! state/current-session session))
+
+(defn all-sessions
+  "### all-sessions
+   This zero argument function returns every open session in the order in
+   which they were created."
+  []
+  (vals @state/sessions))
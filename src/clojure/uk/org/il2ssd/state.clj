@@ -1,8 +1,20 @@
 ;;
-;; ## Global state atoms
+;; ## Global and session state atoms
 ;;
-;; In this namespace we define a number of atoms which will simply hold true or
-;; false values that will define the global state of the program.
+;; In this namespace we define the atoms which hold the global state of the program,
+;; along with the per-server state which is kept in each session.
+;;
+;; A session holds the state for one server connection. The state atoms that
+;; describe a connection are created afresh for every session, and each is reached
+;; through a function of the same name which returns the atom belonging to the
+;; session in scope:
+;;
+;;     (reset! (state/connected) true)
+;;     @(state/playing)
+;;
+;; The session in scope is the one bound to *session* if there is one, which is
+;; how listener threads and scheduled events work on their own server. Otherwise
+;; it is the session currently shown in the UI.
 ;;
 ;; We can add watches to these atoms to define an on-changed function just as we
 ;; might add listeners in a Java UI toolkit.
@@ -42,105 +54,293 @@
    the top=level keys."
   (atom nil))
 
-(def connected
-  "### connected
-   This atom simply stores a true or false connected status for global use in the
-   program."
+;; ### Sessions
+
+(def ^:dynamic *session*
+  "### *session*
+   This var may be bound to a session so that all state functions called within
+   the binding refer to that session rather than the current one."
+  nil)
+
+(def sessions
+  "### sessions
+   This atom stores a sorted map of every open session, keyed by session id."
+  (atom (sorted-map)))
+
+(def current-session
+  "### current-session
+   This atom stores the session which is currently shown in the UI."
   (atom nil))
 
-(def loaded
+(defmacro with-session
+  "### with-session
+   This macro evaluates the body with the supplied session bound as the session
+   in scope. Threads and go blocks started within the body inherit the binding."
+  [session & body]
+  `(binding [*session* ~session] ~@body))
+
+(defn session
+  "### session
+   This zero argument function returns the session in scope."
+  []
+  (or *session* @current-session))
+
+(defn current?
+  "### current?
+   This zero argument function returns true if the session in scope is the
+   session which is currently shown in the UI."
+  []
+  (= (:id (session)) (:id @current-session)))
+
+(defn new-state
+  "### new-state
+   This zero argument function returns a map of fresh state atoms for a new
+   session, keyed by the name of the function which returns each atom."
+  []
+  {:connected           (atom nil)
+   :loaded              (atom nil)
+   :playing             (atom nil)
+   :loading             (atom nil)
+   :cycle-running       (atom nil)
+   :dcg-running         (atom nil)
+   :server-path         (atom nil)
+   :dcg-path            (atom nil)
+   :single-mission-path (atom nil)
+   :cycle-mission-path  (atom nil)
+   :dcg-mission-path    (atom nil)
+   :dcg-timer           (atom nil)
+   :mode                (atom nil)
+   :cycle-index         (atom 0)
+   :pilot-poll          (atom {})
+   :journal             (atom nil)
+   :players             (atom {})
+   :bans                (atom #{})
+   :joins               (atom {})
+   :link                (atom nil)
+   :listeners           (atom nil)
+   :dcg-next            (atom {})})
+
+(defn- state-atom
+  [key]
+  (get-in (session) [:state key]))
+
+;; ### Session state
+
+(defn connected
+  "### connected
+   This function returns the atom which stores a true or false connected
+   status for the session."
+  []
+  (state-atom :connected))
+
+(defn loaded
   "### loaded
-   This atom simply stores a true or false mission loaded status for global use
-   in the program."
-  (atom nil))
+   This function returns the atom which stores a true or false mission
+   loaded status for the session."
+  []
+  (state-atom :loaded))
 
-(def playing
+(defn playing
   "### playing
-   This atom stores a true or false mission playing status for global use in the
-   program."
-  (atom nil))
+   This function returns the atom which stores a true or false mission
+   playing status for the session."
+  []
+  (state-atom :playing))
 
-(def loading
+(defn loading
   "### loading
-   This atom stores a true or false loading status for global use in the program."
-  (atom nil))
+   This function returns the atom which stores a true or false loading
+   status for the session."
+  []
+  (state-atom :loading))
 
-(def cycle-running
+(defn cycle-running
   "### cycle-running
-   This atom stores a true or false cycle running state for global use in the
-   program."
-  (atom nil))
+   This function returns the atom which stores a true or false cycle
+   running state for the session."
+  []
+  (state-atom :cycle-running))
 
-(def dcg-running
+(defn dcg-running
   "### dcg-running
-   This atom stores a true or false DCG running state for global use in the
-   program."
-  (atom nil))
+   This function returns the atom which stores a true or false DCG running
+   state for the session."
+  []
+  (state-atom :dcg-running))
 
-(def server-path
+(defn server-path
   "### server-path
-   This atom stores the server path for global use in the program."
-  (atom nil))
+   This function returns the atom which stores the server path for the
+   session."
+  []
+  (state-atom :server-path))
 
-(def dcg-path
+(defn dcg-path
   "### dcg-path
-   This atom stores the DCG executable path for global use in the
-   program."
-  (atom nil))
+   This function returns the atom which stores the DCG executable path for
+   the session."
+  []
+  (state-atom :dcg-path))
 
-(def single-mission-path
+(defn single-mission-path
   "### mission-path
-   This atom stores the current mission path for global use in the
-   program. It is also used to indicate whether a mission can be
+   This function returns the atom which stores the current mission path for
+   the session. It is also used to indicate whether a mission can be
    loaded."
-  (atom nil))
+  []
+  (state-atom :single-mission-path))
 
-(def cycle-mission-path
+(defn cycle-mission-path
   "### cycle-mission-path
-   This atom stores the current cycle mission path. It is also used
-   to indicate whether a cycle can be started."
-  (atom nil))
+   This function returns the atom which stores the current cycle mission
+   path. It is also used to indicate whether a cycle can be started."
+  []
+  (state-atom :cycle-mission-path))
 
-(def dcg-mission-path
+(defn dcg-mission-path
   "### dcg-mission-path
-   This atom stores the current DCG mission path. It is also used to
-   indicate whether a DCG mission can be loaded."
-  (atom nil))
+   This function returns the atom which stores the current DCG mission
+   path. It is also used to indicate whether a DCG mission can be loaded."
+  []
+  (state-atom :dcg-mission-path))
 
-(def dcg-timer
-  (atom nil))
+(defn dcg-timer
+  []
+  (state-atom :dcg-timer))
 
-(def mode
+(defn mode
   "### mode
-   This atom stores the current mission loading mode for global use
-   in the program."
-  (atom nil))
+   This function returns the atom which stores the current mission loading
+   mode for the session."
+  []
+  (state-atom :mode))
 
-(def cycle-index
+(defn cycle-index
   "### cycle-index
-   This atom stores the current cycle index for global use in the
-   program."
-  (atom 0))
+   This function returns the atom which stores the current cycle index for
+   the session."
+  []
+  (state-atom :cycle-index))
 
-(def last-command
-  (atom nil))
+(defn pilot-poll
+  "### pilot-poll
+   This function returns the atom which stores the session's next scheduled
+   pilot poll, along with its current and longest poll intervals."
+  []
+  (state-atom :pilot-poll))
+
+(defn journal
+  "### journal
+   This function returns the atom which stores the journal of the session's
+   console while it is connected, see the journal namespace."
+  []
+  (state-atom :journal))
+
+(defn players
+  "### players
+   This function returns the atom which stores the pilots connected to the
+   session's server, whose sessions are open in the player statistics, see the
+   players namespace."
+  []
+  (state-atom :players))
+
+(defn bans
+  "### bans
+   This function returns the atom which stores the set of entries banned on the
+   session's server, see the bans namespace."
+  []
+  (state-atom :bans))
+
+(defn joins
+  "### joins
+   This function returns the atom which stores the recent join times of each
+   address on the session's server, which the admission flood limit counts,
+   see the admission namespace."
+  []
+  (state-atom :joins))
+
+(defn link
+  "### link
+   This function returns the atom which stores the supervision of the session's
+   connection while it is wanted, whether or not it is up at the moment, see
+   the supervisor namespace."
+  []
+  (state-atom :link))
+
+(defn listeners
+  "### listeners
+   This function returns the atom which stores the channel which is closed to
+   stop the console and event listeners of the session's current connection."
+  []
+  (state-atom :listeners))
+
+(defn dcg-next
+  "### dcg-next
+   This function returns the atom which stores the DCG mission being generated
+   in the background for the session, along with the timings of its DCG runs
+   and the number of times DCG has been stopped, see the control namespace."
+  []
+  (state-atom :dcg-next))
+
+;; ### Session resources
+
+(defn socket
+  "### socket
+   This function returns the atom which stores the SocketChannel for the
+   session's server connection."
+  []
+  (:socket (session)))
+
+(defn outbox
+  "### outbox
+   This function returns the queue of outbound commands for the session's
+   server connection."
+  []
+  (:outbox (session)))
+
+(defn channels
+  "### channels
+   This function returns the map of channels which make up the session's
+   console pipeline."
+  []
+  (:channels (session)))
+
+(defn scheduled-mis
+  "### scheduled-mis
+   This function returns the atom which stores the session's next scheduled
+   mission load event."
+  []
+  (:scheduled-mis (session)))
+
+(defn data
+  "### data
+   This function returns the map of lists which back the session's tables."
+  []
+  (:data (session)))
+
+(defn settings
+  "### settings
+   This function returns the atom which stores the values of the session's
+   settings controls while another session is shown in the UI."
+  []
+  (:settings (session)))
 
 (defn get-state
   "### get-state
    This function returns a map containing the current state of all
-   of the global state atoms which are relevant to the UI state,
+   of the session state atoms which are relevant to the UI state,
    keyed by the name of the atom."
   []
-  {:connected           @connected
-   :loaded              @loaded
-   :loading             @loading
-   :playing             @playing
-   :server-path         @server-path
-   :dcg-path            @dcg-path
-   :single-mission-path @single-mission-path
-   :cycle-mission-path  @cycle-mission-path
-   :dcg-mission-path    @dcg-mission-path
-   :cycle-running       @cycle-running
-   :cycle-index         @cycle-index
-   :dcg-running         @dcg-running
-   :dcg-timer           @dcg-timer})
\ No newline at end of file
+  {:connected           @(connected)
+   :loaded              @(loaded)
+   :loading             @(loading)
+   :playing             @(playing)
+   :server-path         @(server-path)
+   :dcg-path            @(dcg-path)
+   :single-mission-path @(single-mission-path)
+   :cycle-mission-path  @(cycle-mission-path)
+   :dcg-mission-path    @(dcg-mission-path)
+   :cycle-running       @(cycle-running)
+   :cycle-index         @(cycle-index)
+   :dcg-running         @(dcg-running)
+   :dcg-timer           @(dcg-timer)})
@@ -0,0 +1,227 @@
+;;
+;; ## Connection supervisor
+;;
+;; Here we keep each session connected to its server for as long as we want it to
+;; be, so that a server which restarts, as most do every night, is picked up again
+;; without anyone pressing Connect.
+;;
+;; A connection made through the supervisor is watched in two ways:
+;;
+;; * The transport tells us at once when the server closes the connection or a
+;;   read fails.
+;; * A heartbeat checks the link whenever it has been quiet. If no line has arrived
+;;   from the server since the last beat, the mission state is requested, and if no
+;;   reply arrives in time the link is taken to be dead. This catches a server
+;;   which has hung, or a connection which has gone without being closed.
+;;
+;; When the link is lost, the session is disconnected as usual and we try again
+;; after a delay which doubles with each failed attempt, up to a cap. Once we are
+;; connected again the session's state is rebuilt with a single resync, see
+;; server/resync, and a mission cycle or DCG run which the loss interrupted is
+;; carried on from where it was.
+;;
+;; Disconnecting through the supervisor stops all of this, so that a connection
+;; which we closed on purpose stays closed.
+(ns uk.org.il2ssd.supervisor
+  (:require [overtone.at-at :as at-at]
+            [uk.org.il2ssd.blocking :as blocking]
+            [uk.org.il2ssd.control :as control]
+            [uk.org.il2ssd.event.scheduler :as scheduler]
+            [uk.org.il2ssd.server :as server]
+            [uk.org.il2ssd.state :as state])
+  (:import (java.util.concurrent.atomic AtomicLong)))
+
+(def defaults
+  "### defaults
+   This is a map of the supervisor settings: how often in milliseconds the
+   heartbeat checks the link, how long it waits for a reply, and the first and
+   longest delays in milliseconds before trying to reconnect."
+  {:heartbeat-ms 15000
+   :reply-ms     10000
+   :min-delay-ms 1000
+   :max-delay-ms 60000})
+
+(def settings
+  "### settings
+   This atom holds the supervisor settings in use, which tests may shorten."
+  (atom defaults))
+
+(defn backoff
+  "### backoff
+   This one argument function returns the delay in milliseconds before the
+   supplied reconnect attempt, counting from 0. The delay doubles with each
+   attempt, from the shortest delay up to the longest."
+  [attempt]
+  (let [{:keys [min-delay-ms max-delay-ms]} @settings]
+    (long (min max-delay-ms (* min-delay-ms (Math/pow 2 (min attempt 30)))))))
+
+(defn- lines-read
+  []
+  (.get ^AtomicLong (:lines (:metrics (state/channels)))))
+
+(defn- log
+  [& text]
+  (println (apply str (some-> (state/session) :name deref) ": " text)))
+
+(defn- current?
+  "### current?
+   This one argument function returns true if the supplied link is still the
+   supervised link of the session in scope, so that a late heartbeat or
+   reconnect for a link which has since been replaced or released does
+   nothing."
+  [link]
+  (identical? (:id link) (:id @(state/link))))
+
+(defn- cancel-jobs
+  [{:keys [heartbeat retry]}]
+  (when heartbeat (at-at/stop heartbeat))
+  (when retry (at-at/stop retry)))
+
+(declare lost)
+
+(defn- beat
+  "### beat
+   This function checks the supplied link once. If no line has been read since
+   the previous beat the mission state is requested, and the link is lost if
+   the server does not reply in time. Otherwise the server has been heard from,
+   so the next loss starts the backoff again from the shortest delay."
+  [link]
+  (when (and (current? link) @(state/connected))
+    (let [read (lines-read)
+          quiet? (= read (:read @(state/link)))]
+      (swap! (state/link) assoc :read read)
+      (if (and quiet?
+               (nil? (deref (server/get-mission-state) (:reply-ms @settings) nil)))
+        (when (and (current? link)
+                   (identical? (:socket @(state/link)) @(state/socket)))
+          (lost link "no reply to the heartbeat"))
+        (when (current? link)
+          (swap! (state/link) assoc :attempt 0))))))
+
+(defn- watch
+  "### watch
+   This one argument function records the socket of the supplied link, which
+   has just connected, and starts its heartbeat."
+  [link]
+  (let [session (state/session)
+        every-ms (:heartbeat-ms @settings)]
+    (swap! (state/link) assoc
+           :socket @(state/socket)
+           :read (lines-read)
+           :heartbeat (at-at/every every-ms
+                                   #(blocking/thread
+                                      (state/with-session session (beat link)))
+                                   scheduler/schedule
+                                   :initial-delay every-ms))))
+
+(defn- resume
+  "### resume
+   This function carries on whatever the supplied link was running when it was
+   lost, once the reply to the resync's mission state request has told us
+   whether the server is still playing a mission."
+  [{:keys [cycle? dcg?]} {:keys [mission]}]
+  (when (or cycle? dcg?)
+    (let [playing? (control/reply-playing? (deref mission (:reply-ms @settings)
+                                                  nil))]
+      (cond cycle? (control/resume-cycle playing?)
+            dcg? (control/resume-dcg playing?)))))
+
+(defn- on-close
+  "### on-close
+   This function returns the function which the transport calls, on its selector
+   thread, when the server closes the supplied link."
+  [link]
+  (let [session (state/session)]
+    #(blocking/thread
+       (state/with-session session
+         (lost link "connection closed by the server")))))
+
+(defn- try-connect
+  [link]
+  (try (server/connect (:host link) (:port link) (on-close link))
+       (catch Exception _ nil)))
+
+(defn- retry
+  "### retry
+   This function schedules the next attempt to reconnect the supplied link,
+   after the backoff for the number of attempts made since the server was last
+   heard from. A successful attempt watches the link again and resumes its
+   mission cycle or DCG run."
+  [link]
+  (let [session (state/session)
+        {:keys [attempt]} @(state/link)
+        delay-ms (backoff attempt)
+        attempt! (fn []
+                   (when (current? link)
+                     (if-let [replies (try-connect link)]
+                       (do (log "reconnected")
+                           (watch link)
+                           (resume @(state/link) replies)
+                           (swap! (state/link) dissoc :cycle? :dcg?))
+                       (retry link))))]
+    (log (format "reconnecting in %.1fs" (/ delay-ms 1000.0)))
+    (swap! (state/link) assoc
+           :attempt (inc attempt)
+           :retry (at-at/after delay-ms
+                               #(blocking/thread
+                                  (state/with-session session (attempt!)))
+                               scheduler/schedule))))
+
+(defn- lost
+  "### lost
+   This function handles the loss of the supplied link for the supplied reason.
+   The mission cycle or DCG run is noted and its scheduled mission stopped, the
+   session is disconnected and a reconnect is scheduled. A loss is only handled
+   once for each socket, however many ways it is noticed."
+  [link reason]
+  (let [{:keys [socket] :as old} @(state/link)]
+    (when (and (current? link)
+               socket
+               (identical? socket @(state/socket))
+               @(state/connected)
+               (compare-and-set! (state/link) old
+                                 (assoc old
+                                   :socket nil
+                                   :cycle? @(state/cycle-running)
+                                   :dcg? @(state/dcg-running))))
+      (log "lost the connection: " reason)
+      (cancel-jobs old)
+      (scheduler/stop-scheduled-mis)
+      (scheduler/reset-schedule)
+      (server/disconnect)
+      (retry link))))
+
+(defn release
+  "### release
+   This zero argument function stops supervising the connection of the session
+   in scope, cancelling its heartbeat and any reconnect which is waiting."
+  []
+  (when-let [link @(state/link)]
+    (reset! (state/link) nil)
+    (cancel-jobs link)))
+
+(defn connect
+  "### connect
+   This two argument function connects the session in scope to the supplied
+   host and port, see server/connect, and supervises the connection until it
+   is released. The replies to the resync are returned, or nil if we could not
+   connect, in which case nothing is supervised."
+  [host port]
+  (release)
+  (let [link {:id (Object.) :host host :port port :attempt 0}]
+    (reset! (state/link) link)
+    (if-let [replies (try-connect link)]
+      (do (watch link)
+          replies)
+      (do (reset! (state/link) nil)
+          nil))))
+
+(defn disconnect
+  "### disconnect
+   This zero argument function releases the connection of the session in scope
+   and disconnects it from its server if it is connected. This also stops any
+   attempt to reconnect."
+  []
+  (release)
+  (when @(state/connected)
+    (server/disconnect)))
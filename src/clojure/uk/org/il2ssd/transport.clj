@@ -0,0 +1,256 @@
+;;
+;; ## Non-blocking console transport
+;;
+;; Here we define the transport which carries the server console connection. Rather
+;; than dedicating a thread to a blocking readLine call for each connection, every
+;; console socket is a non-blocking SocketChannel registered with a single shared
+;; Selector, which is serviced by one daemon thread.
+;;
+;; When a channel becomes readable we read into a ByteBuffer that is allocated once
+;; per connection and reused for every read. Complete lines are framed directly out
+;; of this buffer; only a trailing partial line is copied aside until the rest of it
+;; arrives.
+;;
+;; Framed lines are put onto the core.async channel supplied when the connection is
+;; registered. While a batch of lines is waiting to be accepted by that channel we
+;; stop selecting the connection for reads, so that a slow consumer applies
+;; backpressure to the socket rather than to the selector thread.
+(ns uk.org.il2ssd.transport
+  (:require [clojure.core.async :refer [put!]]
+            [uk.org.il2ssd.metrics :as metrics])
+  (:import (java.io ByteArrayOutputStream IOException)
+           (java.net InetSocketAddress)
+           (java.nio ByteBuffer)
+           (java.nio.channels CancelledKeyException ClosedChannelException
+                              SelectionKey Selector SocketChannel)
+           (java.nio.charset Charset)
+           (java.util.concurrent ConcurrentLinkedQueue)
+           (java.util.concurrent.atomic AtomicInteger)
+           (org.apache.commons.lang StringEscapeUtils)))
+
+(def ^Charset utf-8 (Charset/forName "UTF-8"))
+
+(def buffer-size
+  "### buffer-size
+   This is the size in bytes of the read buffer allocated for each connection."
+  16384)
+
+(def ^Selector selector
+  "### selector
+   This is the Selector shared by every console connection."
+  (Selector/open))
+
+(def ^ConcurrentLinkedQueue selector-tasks
+  "### selector-tasks
+   This queue holds zero argument functions to be run on the selector thread.
+   Registering a channel or changing a key's interest from another thread can
+   block until the selector wakes, so other threads queue the work here and wake
+   the selector instead."
+  (ConcurrentLinkedQueue.))
+
+(defn decode-line
+  "### decode-line
+   This one argument function unescapes any Java escape sequences in the console
+   text. The server escapes newlines and Unicode characters, but prompt lines and
+   many others contain no escapes at all, so we only pay for the unescape when a
+   backslash is present."
+  ^String [^String text]
+  (if (neg? (.indexOf text (int \\)))
+    text
+    (StringEscapeUtils/unescapeJava text)))
+
+(defn frame-lines
+  "### frame-lines
+   This two argument function takes a read buffer which has just been written to,
+   and an output stream which holds any partial line left over from the previous
+   read.
+
+   Each complete line in the buffer is decoded and collected into a vector which
+   is returned. A line is decoded straight out of the buffer's backing array unless
+   part of it arrived in an earlier read. The terminating newline and any carriage
+   return preceding it are dropped, just as BufferedReader.readLine would do.
+
+   Any trailing partial line is appended to the output stream and the buffer is
+   cleared, ready for the next read."
+  [^ByteBuffer buffer ^ByteArrayOutputStream partial]
+  (let [bytes (.array buffer)
+        end (.position buffer)]
+    (loop [start 0
+           index 0
+           lines (transient [])]
+      (cond
+        (= index end)
+        (do (when (< start end)
+              (.write partial bytes start (- end start)))
+            (.clear buffer)
+            (persistent! lines))
+
+        (== (aget bytes index) 10)
+        (let [stop (if (and (> index start)
+                            (== (aget bytes (dec index)) 13))
+                     (dec index)
+                     index)
+              text (if (zero? (.size partial))
+                     (String. bytes start (- stop start) utf-8)
+                     (do (.write partial bytes start (- stop start))
+                         (let [text (String. (.toByteArray partial) utf-8)]
+                           (.reset partial)
+                           text)))]
+          (recur (inc index) (inc index) (conj! lines (decode-line text))))
+
+        :else
+        (recur start (inc index) lines)))))
+
+(defn- on-selector
+  "### on-selector
+   This one argument function queues the supplied function to run on the
+   selector thread and wakes the selector so that it runs promptly."
+  [f]
+  (.offer selector-tasks f)
+  (.wakeup selector))
+
+(defn- rearm
+  "### rearm
+   This one argument function makes the supplied key selectable for reads again
+   once all of its pending lines have been accepted."
+  [^SelectionKey key]
+  (on-selector #(try (.interestOps key SelectionKey/OP_READ)
+                     (catch CancelledKeyException _ nil))))
+
+(defn- put-lines!
+  "### put-lines!
+   This three argument function puts each line onto the supplied channel in
+   order without blocking, calling done once the final line has been accepted.
+
+   When a put is accepted immediately its callback runs on this thread, so we
+   use a flag to decide whether the loop here or the callback carries on with
+   the next line. This keeps the stack flat however many lines are in the batch."
+  [ch lines done]
+  (loop [lines (seq lines)]
+    (if-not lines
+      (done)
+      (let [flag (AtomicInteger. 0)]
+        (put! ch (first lines)
+              (fn [_]
+                (when-not (.compareAndSet flag 0 1)
+                  (put-lines! ch (next lines) done))))
+        (when-not (.compareAndSet flag 0 2)
+          (recur (next lines)))))))
+
+(defn- close-key
+  "### close-key
+   This one argument function cancels the supplied key and closes its socket."
+  [^SelectionKey key]
+  (.cancel key)
+  (try (.close (.channel key)) (catch IOException _ nil)))
+
+(defn- read-key
+  "### read-key
+   This one argument function reads whatever is available on the connection for
+   the supplied key, and hands any complete lines to the connection's channel.
+
+   On end of stream or a read error the key is cancelled, the socket is closed
+   and the connection's on-close function is called.
+
+   The time taken to read and to frame the lines is recorded in the
+   connection's metrics, if it has any."
+  [^SelectionKey key]
+  (let [{:keys [^ByteBuffer buffer partial to on-close metrics]} (.attachment key)
+        ^SocketChannel socket (.channel key)
+        read (metrics/timed metrics :read
+               (try (.read socket buffer)
+                    (catch IOException _ -1)))]
+    (if (neg? read)
+      (do (close-key key)
+          (when on-close (on-close)))
+      (let [lines (metrics/timed metrics :frame (frame-lines buffer partial))]
+        (when (seq lines)
+          (.interestOps key 0)
+          (put-lines! to lines #(rearm key)))))))
+
+(defn- select-loop
+  "### select-loop
+   This is the body of the selector thread. Any queued selector tasks are run
+   first, then we wait for readable connections and service each one in turn.
+
+   Every connection shares this thread, so an exception from a task or from one
+   connection is printed and, for a connection, closes only that connection,
+   rather than ending the thread and with it the reads of every session."
+  []
+  (while true
+    (loop []
+      (when-let [f (.poll selector-tasks)]
+        (try (f)
+             (catch Exception e (.printStackTrace e)))
+        (recur)))
+    (.select selector)
+    (let [selected (.selectedKeys selector)]
+      (doseq [^SelectionKey key selected]
+        (try (when (and (.isValid key) (.isReadable key))
+               (read-key key))
+             (catch CancelledKeyException _ nil)
+             (catch Exception e
+               (.printStackTrace e)
+               (close-key key))))
+      (.clear selected))))
+
+(def selector-thread
+  "### selector-thread
+   This is the single daemon thread which services the shared selector. It is
+   started the first time a connection is opened."
+  (delay (doto (Thread. ^Runnable select-loop "il2ssd-selector")
+           (.setDaemon true)
+           (.start))))
+
+(defn open
+  "### open
+   This function connects a new SocketChannel to the supplied host and port,
+   waiting no longer than the timeout in milliseconds.
+
+   Once connected, the channel is switched to non-blocking mode and registered
+   with the shared selector. Each line read from it will be put onto the to
+   channel, and on-close will be called if the server closes the connection.
+   Its read timings are recorded in the supplied metrics, which may be nil.
+
+   The connected SocketChannel is returned. Any exception from the connection
+   attempt is passed on to the caller."
+  ^SocketChannel [^String host port timeout to on-close metrics]
+  (let [address (InetSocketAddress. host (int port))
+        socket (SocketChannel/open)]
+    (try (.connect (.socket socket) address (int timeout))
+         (catch Exception e
+           (.close socket)
+           (throw e)))
+    (.configureBlocking socket false)
+    @selector-thread
+    (on-selector #(try (.register socket selector SelectionKey/OP_READ
+                                  {:buffer   (ByteBuffer/allocate buffer-size)
+                                   :partial  (ByteArrayOutputStream.)
+                                   :to       to
+                                   :on-close on-close
+                                   :metrics  metrics})
+                       (catch ClosedChannelException _ nil)))
+    socket))
+
+(defn write
+  "### write
+   This two argument function encodes the supplied text and writes all of it to
+   the socket. Non-blocking writes may be partial, so we keep writing until the
+   buffer is drained, holding the socket's lock so that concurrent writers cannot
+   interleave their commands."
+  [^SocketChannel socket ^String text]
+  (let [buffer (ByteBuffer/wrap (.getBytes text utf-8))]
+    (locking socket
+      (while (.hasRemaining buffer)
+        (when (zero? (.write socket buffer))
+          (Thread/yield))))))
+
+(defn close
+  "### close
+   This one argument function closes the supplied SocketChannel, which also
+   cancels its registration with the selector."
+  [^SocketChannel socket]
+  (when socket
+    (try (.close socket)
+         (catch IOException _ nil))
+    (.wakeup selector)))
@@ -24,6 +24,10 @@ public class BansPresenter {
     Button removeBanButton;
     @FXML
     Button clearBansButton;
+    @FXML
+    Button importBansButton;
+    @FXML
+    Button exportBansButton;
 
     public BorderPane getBansPane() {
         return bansPane;
@@ -52,4 +56,12 @@ public class BansPresenter {
     public Button getClearBansButton() {
         return clearBansButton;
     }
+
+    public Button getImportBansButton() {
+        return importBansButton;
+    }
+
+    public Button getExportBansButton() {
+        return exportBansButton;
+    }
 }
\ No newline at end of file
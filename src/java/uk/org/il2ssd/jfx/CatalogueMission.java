@@ -0,0 +1,94 @@
+package uk.org.il2ssd.jfx;
+
+import javafx.beans.property.SimpleLongProperty;
+import javafx.beans.property.SimpleStringProperty;
+
+/**
+ * A row of the mission catalogue table: one mission file under the server's Missions directory
+ */
+public class CatalogueMission {
+    SimpleStringProperty mission = new SimpleStringProperty();
+    SimpleStringProperty map = new SimpleStringProperty();
+    SimpleStringProperty date = new SimpleStringProperty();
+    SimpleStringProperty time = new SimpleStringProperty();
+    SimpleStringProperty weather = new SimpleStringProperty();
+    SimpleLongProperty red = new SimpleLongProperty();
+    SimpleLongProperty blue = new SimpleLongProperty();
+    SimpleLongProperty size = new SimpleLongProperty();
+
+    public CatalogueMission(String mission, String map, String date, String time,
+                            String weather, long red, long blue, long size) {
+        this.mission.setValue(mission);
+        this.map.setValue(map);
+        this.date.setValue(date);
+        this.time.setValue(time);
+        this.weather.setValue(weather);
+        this.red.setValue(red);
+        this.blue.setValue(blue);
+        this.size.setValue(size);
+    }
+
+    public String getMission() {
+        return mission.get();
+    }
+
+    public SimpleStringProperty missionProperty() {
+        return mission;
+    }
+
+    public String getMap() {
+        return map.get();
+    }
+
+    public SimpleStringProperty mapProperty() {
+        return map;
+    }
+
+    public String getDate() {
+        return date.get();
+    }
+
+    public SimpleStringProperty dateProperty() {
+        return date;
+    }
+
+    public String getTime() {
+        return time.get();
+    }
+
+    public SimpleStringProperty timeProperty() {
+        return time;
+    }
+
+    public String getWeather() {
+        return weather.get();
+    }
+
+    public SimpleStringProperty weatherProperty() {
+        return weather;
+    }
+
+    public long getRed() {
+        return red.get();
+    }
+
+    public SimpleLongProperty redProperty() {
+        return red;
+    }
+
+    public long getBlue() {
+        return blue.get();
+    }
+
+    public SimpleLongProperty blueProperty() {
+        return blue;
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    public SimpleLongProperty sizeProperty() {
+        return size;
+    }
+}
@@ -0,0 +1,100 @@
+package uk.org.il2ssd.jfx;
+
+import javafx.fxml.FXML;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.BorderPane;
+
+/**
+ * Instantiation from FXML
+ */
+public class CataloguePresenter {
+    @FXML
+    BorderPane cataloguePane;
+    @FXML
+    TextField catalogueSearchField;
+    @FXML
+    Label catalogueStatusLabel;
+    @FXML
+    TableView<CatalogueMission> catalogueTable;
+    @FXML
+    TableColumn<CatalogueMission, String> catalogueMissionColumn;
+    @FXML
+    TableColumn<CatalogueMission, String> catalogueMapColumn;
+    @FXML
+    TableColumn<CatalogueMission, String> catalogueDateColumn;
+    @FXML
+    TableColumn<CatalogueMission, String> catalogueTimeColumn;
+    @FXML
+    TableColumn<CatalogueMission, String> catalogueWeatherColumn;
+    @FXML
+    TableColumn<CatalogueMission, Long> catalogueRedColumn;
+    @FXML
+    TableColumn<CatalogueMission, Long> catalogueBlueColumn;
+    @FXML
+    TableColumn<CatalogueMission, Long> catalogueSizeColumn;
+    @FXML
+    Button catalogueSelectButton;
+    @FXML
+    Button catalogueCloseButton;
+
+    public BorderPane getCataloguePane() {
+        return cataloguePane;
+    }
+
+    public TextField getCatalogueSearchField() {
+        return catalogueSearchField;
+    }
+
+    public Label getCatalogueStatusLabel() {
+        return catalogueStatusLabel;
+    }
+
+    public TableView<CatalogueMission> getCatalogueTable() {
+        return catalogueTable;
+    }
+
+    public TableColumn<CatalogueMission, String> getCatalogueMissionColumn() {
+        return catalogueMissionColumn;
+    }
+
+    public TableColumn<CatalogueMission, String> getCatalogueMapColumn() {
+        return catalogueMapColumn;
+    }
+
+    public TableColumn<CatalogueMission, String> getCatalogueDateColumn() {
+        return catalogueDateColumn;
+    }
+
+    public TableColumn<CatalogueMission, String> getCatalogueTimeColumn() {
+        return catalogueTimeColumn;
+    }
+
+    public TableColumn<CatalogueMission, String> getCatalogueWeatherColumn() {
+        return catalogueWeatherColumn;
+    }
+
+    public TableColumn<CatalogueMission, Long> getCatalogueRedColumn() {
+        return catalogueRedColumn;
+    }
+
+    public TableColumn<CatalogueMission, Long> getCatalogueBlueColumn() {
+        return catalogueBlueColumn;
+    }
+
+    public TableColumn<CatalogueMission, Long> getCatalogueSizeColumn() {
+        return catalogueSizeColumn;
+    }
+
+    public Button getCatalogueSelectButton() {
+        return catalogueSelectButton;
+    }
+
+    public Button getCatalogueCloseButton() {
+        return catalogueCloseButton;
+    }
+
+}
@@ -0,0 +1,119 @@
+package uk.org.il2ssd.jfx;
+
+import javafx.collections.ObservableListBase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Fixed-capacity ring buffer of console lines, observable by a ListView.
+ * <p>
+ * Any thread may offer text or request a clear; these are queued and only
+ * applied to the list when flush is called on the JavaFX Application Thread,
+ * so that each frame applies a whole batch of lines as a single change.
+ * Once the buffer is full the oldest lines are evicted, so the cost of a
+ * batch depends only on the size of the batch and not on the scrollback.
+ */
+public class ConsoleLines extends ObservableListBase<String> {
+    private static final String CLEAR = new String("<clear>");
+
+    private final String[] lines;
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private int head;
+    private int size;
+
+    public ConsoleLines(int capacity) {
+        lines = new String[Math.max(1, capacity)];
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return lines[(head + index) % lines.length];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return lines.length;
+    }
+
+    /**
+     * Queues each line of the supplied console text. A trailing newline does
+     * not start a new line.
+     */
+    public void offer(String text) {
+        int start = 0;
+        int end = text.indexOf('\n');
+        while (end >= 0) {
+            pending.add(text.substring(start, end));
+            start = end + 1;
+            end = text.indexOf('\n', start);
+        }
+        if (start < text.length()) {
+            pending.add(text.substring(start));
+        }
+    }
+
+    /**
+     * Queues a clear, which removes every line flushed before it.
+     */
+    public void requestClear() {
+        pending.add(CLEAR);
+    }
+
+    /**
+     * Applies every queued line and clear to the list as one change. This
+     * must be called on the JavaFX Application Thread.
+     *
+     * @return true if the list was changed
+     */
+    public boolean flush() {
+        List<String> batch = new ArrayList<>();
+        boolean clear = false;
+        String line;
+        while ((line = pending.poll()) != null) {
+            if (line == CLEAR) {
+                clear = true;
+                batch.clear();
+            } else {
+                batch.add(line);
+            }
+        }
+        if (!clear && batch.isEmpty()) {
+            return false;
+        }
+        int capacity = lines.length;
+        if (batch.size() > capacity) {
+            batch = batch.subList(batch.size() - capacity, batch.size());
+        }
+        int evict = clear ? size : Math.max(0, size + batch.size() - capacity);
+        beginChange();
+        if (evict > 0) {
+            List<String> removed = new ArrayList<>(evict);
+            for (int i = 0; i < evict; i++) {
+                removed.add(lines[head]);
+                lines[head] = null;
+                head = (head + 1) % capacity;
+            }
+            size -= evict;
+            nextRemove(0, removed);
+        }
+        if (!batch.isEmpty()) {
+            int from = size;
+            for (String added : batch) {
+                lines[(head + size) % capacity] = added;
+                size++;
+            }
+            nextAdd(from, size);
+        }
+        endChange();
+        return true;
+    }
+}
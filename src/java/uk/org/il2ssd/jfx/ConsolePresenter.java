@@ -1,7 +1,7 @@
 package uk.org.il2ssd.jfx;
 
 import javafx.fxml.FXML;
-import javafx.scene.control.TextArea;
+import javafx.scene.control.ListView;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.BorderPane;
 
@@ -14,7 +14,7 @@ public class ConsolePresenter {
     @FXML
     TextField commandEntryField;
     @FXML
-    TextArea consoleTextArea;
+    ListView<String> consoleList;
 
     public BorderPane getConsolePane() {
         return consolePane;
@@ -24,7 +24,7 @@ public class ConsolePresenter {
         return commandEntryField;
     }
 
-    public TextArea getConsoleTextArea() {
-        return consoleTextArea;
+    public ListView<String> getConsoleList() {
+        return consoleList;
     }
 }
@@ -8,6 +8,7 @@ import javafx.beans.property.SimpleStringProperty;
 public class CycleMission {
     public SimpleStringProperty mission = new SimpleStringProperty();
     public SimpleStringProperty timer = new SimpleStringProperty();
+    public SimpleStringProperty problem = new SimpleStringProperty("");
 
     public CycleMission(String mission, String timer) {
         this.mission.setValue(mission);
@@ -37,4 +38,16 @@ public class CycleMission {
     public SimpleStringProperty timerProperty() {
         return timer;
     }
+
+    public String getProblem() {
+        return problem.get();
+    }
+
+    public void setProblem(String problem) {
+        this.problem.set(problem);
+    }
+
+    public SimpleStringProperty problemProperty() {
+        return problem;
+    }
 }
@@ -20,6 +20,8 @@ public class CyclePresenter {
     @FXML
     TableColumn<CycleMission, String> cycleTimerColumn;
     @FXML
+    TableColumn<CycleMission, String> cycleProblemColumn;
+    @FXML
     Button missionUpButton;
     @FXML
     Button missionDeleteButton;
@@ -44,6 +46,10 @@ public class CyclePresenter {
         return cycleTimerColumn;
     }
 
+    public TableColumn<CycleMission, String> getCycleProblemColumn() {
+        return cycleProblemColumn;
+    }
+
     public Button getMissionUpButton() {
         return missionUpButton;
     }
@@ -36,6 +36,8 @@ public class MainPresenter {
     @FXML
     Tab pilotsTab;
     @FXML
+    Tab playersTab;
+    @FXML
     Tab bansTab;
     @FXML
     Tab settingsTab;
@@ -51,6 +53,12 @@ public class MainPresenter {
     MenuItem exitItem;
     @FXML
     MenuItem aboutItem;
+    @FXML
+    Menu serverMenu;
+    @FXML
+    MenuItem newServerItem;
+    @FXML
+    MenuItem closeServerItem;
 
     public Tab getBansTab() {
         return bansTab;
@@ -60,6 +68,10 @@ public class MainPresenter {
         return pilotsTab;
     }
 
+    public Tab getPlayersTab() {
+        return playersTab;
+    }
+
     public Button getDcgNextButton() {
         return dcgNextButton;
     }
@@ -131,4 +143,16 @@ public class MainPresenter {
     public MenuItem getAboutItem() {
         return aboutItem;
     }
+
+    public Menu getServerMenu() {
+        return serverMenu;
+    }
+
+    public MenuItem getNewServerItem() {
+        return newServerItem;
+    }
+
+    public MenuItem getCloseServerItem() {
+        return closeServerItem;
+    }
 }
@@ -0,0 +1,85 @@
+package uk.org.il2ssd.jfx;
+
+import javafx.beans.property.SimpleDoubleProperty;
+import javafx.beans.property.SimpleLongProperty;
+import javafx.beans.property.SimpleStringProperty;
+
+/**
+ * A row of the players table: one player's totals from the statistics store
+ */
+public class PlayerStats {
+    SimpleStringProperty name = new SimpleStringProperty();
+    SimpleLongProperty sessions = new SimpleLongProperty();
+    SimpleDoubleProperty hours = new SimpleDoubleProperty();
+    SimpleDoubleProperty average = new SimpleDoubleProperty();
+    SimpleLongProperty best = new SimpleLongProperty();
+    SimpleStringProperty lastSeen = new SimpleStringProperty();
+    SimpleStringProperty lastIp = new SimpleStringProperty();
+
+    public PlayerStats(String name, long sessions, double hours, double average,
+                       long best, String lastSeen, String lastIp) {
+        this.name.setValue(name);
+        this.sessions.setValue(sessions);
+        this.hours.setValue(hours);
+        this.average.setValue(average);
+        this.best.setValue(best);
+        this.lastSeen.setValue(lastSeen);
+        this.lastIp.setValue(lastIp);
+    }
+
+    public String getName() {
+        return name.get();
+    }
+
+    public SimpleStringProperty nameProperty() {
+        return name;
+    }
+
+    public long getSessions() {
+        return sessions.get();
+    }
+
+    public SimpleLongProperty sessionsProperty() {
+        return sessions;
+    }
+
+    public double getHours() {
+        return hours.get();
+    }
+
+    public SimpleDoubleProperty hoursProperty() {
+        return hours;
+    }
+
+    public double getAverage() {
+        return average.get();
+    }
+
+    public SimpleDoubleProperty averageProperty() {
+        return average;
+    }
+
+    public long getBest() {
+        return best.get();
+    }
+
+    public SimpleLongProperty bestProperty() {
+        return best;
+    }
+
+    public String getLastSeen() {
+        return lastSeen.get();
+    }
+
+    public SimpleStringProperty lastSeenProperty() {
+        return lastSeen;
+    }
+
+    public String getLastIp() {
+        return lastIp.get();
+    }
+
+    public SimpleStringProperty lastIpProperty() {
+        return lastIp;
+    }
+}
@@ -0,0 +1,81 @@
+package uk.org.il2ssd.jfx;
+
+import javafx.fxml.FXML;
+import javafx.scene.control.Button;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.BorderPane;
+
+/**
+ * Instantiation from FXML
+ */
+public class PlayersPresenter {
+    @FXML
+    BorderPane playersPane;
+    @FXML
+    TableView<PlayerStats> playersTable;
+    @FXML
+    TableColumn<PlayerStats, String> playerNameColumn;
+    @FXML
+    TableColumn<PlayerStats, Long> playerSessionsColumn;
+    @FXML
+    TableColumn<PlayerStats, Double> playerHoursColumn;
+    @FXML
+    TableColumn<PlayerStats, Double> playerAverageColumn;
+    @FXML
+    TableColumn<PlayerStats, Long> playerBestColumn;
+    @FXML
+    TableColumn<PlayerStats, String> playerLastSeenColumn;
+    @FXML
+    TableColumn<PlayerStats, String> playerLastIpColumn;
+    @FXML
+    TextField playerFilterField;
+    @FXML
+    Button refreshPlayersButton;
+
+    public BorderPane getPlayersPane() {
+        return playersPane;
+    }
+
+    public TableView<PlayerStats> getPlayersTable() {
+        return playersTable;
+    }
+
+    public TableColumn<PlayerStats, String> getPlayerNameColumn() {
+        return playerNameColumn;
+    }
+
+    public TableColumn<PlayerStats, Long> getPlayerSessionsColumn() {
+        return playerSessionsColumn;
+    }
+
+    public TableColumn<PlayerStats, Double> getPlayerHoursColumn() {
+        return playerHoursColumn;
+    }
+
+    public TableColumn<PlayerStats, Double> getPlayerAverageColumn() {
+        return playerAverageColumn;
+    }
+
+    public TableColumn<PlayerStats, Long> getPlayerBestColumn() {
+        return playerBestColumn;
+    }
+
+    public TableColumn<PlayerStats, String> getPlayerLastSeenColumn() {
+        return playerLastSeenColumn;
+    }
+
+    public TableColumn<PlayerStats, String> getPlayerLastIpColumn() {
+        return playerLastIpColumn;
+    }
+
+    public TextField getPlayerFilterField() {
+        return playerFilterField;
+    }
+
+    public Button getRefreshPlayersButton() {
+        return refreshPlayersButton;
+    }
+
+}
@@ -0,0 +1,9 @@
+package uk.org.il2ssd.jfx;
+
+import com.airhacks.afterburner.views.FXMLView;
+
+/**
+ * Airhacks fxml and css loader
+ */
+public class PlayersView extends FXMLView {
+}
@@ -0,0 +1,46 @@
+package uk.org.il2ssd.jfx;
+
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.scene.control.TableRow;
+
+/**
+ * Pilots table row which is coloured by the team of the pilot it shows.
+ * <p>
+ * The row listens to the team property of its current pilot, so a team change
+ * recolours only the row showing that pilot without any lookup of the scene
+ * graph.
+ */
+public class TeamTableRow extends TableRow<Pilot> {
+    private final ChangeListener<String> teamListener = new ChangeListener<String>() {
+        @Override
+        public void changed(ObservableValue<? extends String> team, String oldTeam, String newTeam) {
+            highlight(newTeam);
+        }
+    };
+    private Pilot pilot;
+
+    @Override
+    protected void updateItem(Pilot item, boolean empty) {
+        super.updateItem(item, empty);
+        if (pilot != null) {
+            pilot.teamProperty().removeListener(teamListener);
+        }
+        pilot = empty ? null : item;
+        if (pilot != null) {
+            pilot.teamProperty().addListener(teamListener);
+            highlight(pilot.getTeam());
+        } else {
+            highlight(null);
+        }
+    }
+
+    private void highlight(String team) {
+        getStyleClass().removeAll("highlightRed", "highlightBlue");
+        if ("Red".equals(team)) {
+            getStyleClass().add("highlightRed");
+        } else if ("Blue".equals(team)) {
+            getStyleClass().add("highlightBlue");
+        }
+    }
+}
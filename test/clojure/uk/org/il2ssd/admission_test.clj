@@ -0,0 +1,107 @@
+(ns uk.org.il2ssd.admission_test
+  (:require [uk.org.il2ssd.admission :refer :all]
+            [uk.org.il2ssd.state :as state]
+            [clojure.test :refer :all]))
+
+(def flooding? #'uk.org.il2ssd.admission/flooding?)
+
+(defn ranges
+  "A trie of the supplied [cidr action] pairs."
+  [& pairs]
+  (reduce (fn [trie [cidr action]]
+            (trie-insert trie (parse-cidr cidr) {:cidr cidr :action action}))
+          {}
+          pairs))
+
+(defn action-for
+  [trie ip]
+  (:action (trie-lookup trie (parse-ip ip))))
+
+(defmacro with-rules
+  "Evaluates the body with the supplied rules map loaded, in a session of its
+   own."
+  [settings & body]
+  `(let [old# @rules]
+     (reset! rules (compile-rules ~settings))
+     (try (state/with-session {:state (state/new-state)} ~@body)
+          (finally (reset! rules old#)))))
+
+(deftest nested-ranges
+  (let [trie (ranges ["0.0.0.0/0" :warn]
+                     ["203.0.113.0/24" :ban]
+                     ["203.0.113.64/28" :allow]
+                     ["203.0.113.70/32" :kick])]
+    (testing "The most specific range holding the address decides"
+      (is (= :ban (action-for trie "203.0.113.5")))
+      (is (= :allow (action-for trie "203.0.113.64")))
+      (is (= :allow (action-for trie "203.0.113.79")))
+      (is (= :ban (action-for trie "203.0.113.80")))
+      (is (= :kick (action-for trie "203.0.113.70"))))
+    (testing "/0 holds every address"
+      (is (= :warn (action-for trie "8.8.8.8")))
+      (is (= :warn (action-for trie "0.0.0.0")))
+      (is (= :warn (action-for trie "255.255.255.255"))))
+    (testing "/32 holds only its own address"
+      (is (= :allow (action-for trie "203.0.113.71"))))
+    (testing "No range, no rule"
+      (is (nil? (action-for (ranges ["10.0.0.0/8" :ban]) "11.0.0.1"))))
+    (testing "The first rule given for a range is kept"
+      (is (= :ban (action-for (ranges ["10.0.0.0/8" :ban] ["10.0.0.0/8" :allow])
+                              "10.1.2.3"))))
+    (testing "Bits beyond the prefix are ignored"
+      (is (= :ban (action-for (ranges ["10.1.2.3/8" :ban]) "10.200.0.1"))))))
+
+(deftest invalid-rules
+  (testing "Addresses and ranges"
+    (is (nil? (parse-ip "256.0.0.1")))
+    (is (nil? (parse-ip "10.0.0")))
+    (is (nil? (parse-ip "::1")))
+    (doseq [cidr ["10.0.0.0/33" "300.0.0.0/8" "10.0.0.0/" "10.0.0.0/-1"
+                  "example.com/24" ""]]
+      (is (thrown? IllegalArgumentException (parse-cidr cidr)) cidr))
+    (is (= [(parse-ip "10.0.0.1") 32] (parse-cidr "10.0.0.1"))))
+  (testing "Actions and flood limits"
+    (is (thrown? IllegalArgumentException
+                 (compile-rules {:rules [{:cidr "10.0.0.0/8" :action :block}]})))
+    (is (thrown? IllegalArgumentException
+                 (compile-rules {:flood {:joins 0 :seconds 60 :action :kick}})))
+    (is (thrown? IllegalArgumentException
+                 (compile-rules {:flood {:joins 5 :seconds 60}})))))
+
+(deftest rules-are-checked-in-order
+  (with-rules {:rules [{:name "^Spam" :action :kick}
+                       {:name "Pilot" :action :warn}
+                       {:cidr "198.51.100.0/24" :action :ban}
+                       {:cidr "198.51.100.128/25" :action :allow}]
+               :flood {:joins 1 :seconds 60 :action :ban}}
+    (testing "A range decides before any name"
+      (is (= :ban (:action (judge "198.51.100.1" "SpamPilot")))))
+    (testing "An allowed range lets the pilot in without checking names"
+      (is (nil? (judge "198.51.100.200" "SpamPilot"))))
+    (testing "Names are checked in the order they are listed"
+      (is (= :kick (:action (judge "192.0.2.1" "SpamPilot"))))
+      (is (= :warn (:action (judge "192.0.2.2" "Pilot"))))
+      (is (= :warn (:action (judge "192.0.2.2" "Pilot")))))
+    (testing "The flood limit decides when nothing else does"
+      (is (nil? (judge "192.0.2.3" "Someone")))
+      (is (= :ban (:action (judge "192.0.2.3" "Someone")))))
+    (testing "A pilot whose address can't be read is still checked by name"
+      (is (= :kick (:action (judge "" "Spam"))))))
+  (testing "With no rules every pilot is let in"
+    (with-rules nil
+      (is (nil? (judge "198.51.100.1" "Spam"))))))
+
+(deftest flood-window
+  (state/with-session {:state (state/new-state)}
+    (let [limit {:joins 2 :millis 1000}]
+      (testing "Joins up to the limit within the window are let in"
+        (is (not (flooding? limit "192.0.2.1" 10000)))
+        (is (not (flooding? limit "192.0.2.1" 10400))))
+      (testing "One more within the window floods"
+        (is (flooding? limit "192.0.2.1" 10800)))
+      (testing "Each address is counted on its own"
+        (is (not (flooding? limit "192.0.2.2" 10800))))
+      (testing "Joins which have left the window no longer count"
+        (is (not (flooding? limit "192.0.2.1" 11500)))
+        (is (flooding? limit "192.0.2.1" 11700))
+        (is (not (flooding? limit "192.0.2.1" 13000)))))))
@@ -0,0 +1,110 @@
+(ns uk.org.il2ssd.bans_test
+  (:require [uk.org.il2ssd.bans :refer :all]
+            [uk.org.il2ssd.server :as server]
+            [uk.org.il2ssd.state :as state]
+            [clojure.test :refer :all])
+  (:import (java.io File)))
+
+(def change! #'uk.org.il2ssd.bans/change!)
+
+(defmacro with-registry
+  "Evaluates the body in a session of its own, whose registry holds the
+   supplied entries. Commands sent to the server are collected in sent and
+   changes passed to on-change in changed."
+  [banned & body]
+  `(let [old# @on-change]
+     (reset! on-change #(swap! ~'changed conj %))
+     (try
+       (state/with-session {:state (state/new-state)}
+         (reset! (state/bans) (set ~banned))
+         (with-redefs [server/ban (fn [& command#] (swap! ~'sent conj command#))]
+           ~@body))
+       (finally (reset! on-change old#)))))
+
+(defn reply
+  "A delivered response of the supplied lines."
+  [lines]
+  (doto (promise) (deliver lines)))
+
+(deftest entries-are-parsed
+  (is (= [:name "Pilot"] (parse-entry "  Pilot\n")))
+  (is (= [:ip "192.0.2.1"] (parse-entry "  192.0.2.1\n")))
+  (is (= [:name "192.0.2"] (parse-entry "192.0.2")))
+  (is (= [:name "Two words"] (parse-entry " Two words ")))
+  (is (nil? (parse-entry "   \n"))))
+
+(deftest changes-are-deltas
+  (let [sent (atom [])
+        changed (atom [])]
+    (with-registry [[:name "Alpha"]]
+      (testing "change! returns and passes on what f added and removed"
+        (is (= {:added [[:name "Bravo"]] :removed nil}
+               (change! (fn [old] [(conj old [:name "Bravo"]) [[:name "Bravo"]] nil]))))
+        (is (= [{:added [[:name "Bravo"]] :removed nil}] @changed)))
+      (testing "A change which changes nothing is not passed on"
+        (reset! changed [])
+        (change! (fn [old] [old nil nil]))
+        (is (empty? @changed)))
+      (testing "Only entries not banned already are banned, once each"
+        (reset! changed [])
+        (is (= [[:ip "192.0.2.1"] [:name "Charlie"]]
+               (:added (ban! [[:name "Alpha"] [:ip "192.0.2.1"] [:name "Charlie"]
+                              [:ip "192.0.2.1"]]))))
+        (is (= [[:add :ip "192.0.2.1"] [:add :name "Charlie"]] @sent))
+        (is (banned? :ip "192.0.2.1"))
+        (is (= 1 (count @changed))))
+      (testing "Only entries which are banned are lifted"
+        (reset! sent [])
+        (is (= [[:name "Alpha"]] (:removed (lift! [[:name "Alpha"] [:name "Nobody"]]))))
+        (is (= [[:rem :name "Alpha"]] @sent))
+        (is (not (banned? :name "Alpha"))))
+      (testing "Entries seen in the server's list are not sent back to it"
+        (reset! sent [])
+        (is (= [[:name "Delta"]] (:added (seen! [:name "Delta"]))))
+        (is (nil? (:added (seen! [:name "Delta"]))))
+        (is (empty? @sent)))
+      (testing "Entries are listed in order"
+        (is (= [[:ip "192.0.2.1"] [:name "Bravo"] [:name "Charlie"] [:name "Delta"]]
+               (entries)))))))
+
+(deftest reconcile-applies-the-difference
+  (let [sent (atom [])
+        changed (atom [])]
+    (with-registry [[:name "Kept"] [:name "Lifted elsewhere"] [:ip "192.0.2.1"]]
+      (testing "The registry is made to match the server's list"
+        (with-redefs [server/get-bans #(reply ["  Kept\n" "  Banned elsewhere\n"
+                                               "  192.0.2.1\n" "  198.51.100.7\n"
+                                               "not a ban line\n"])]
+          (let [{:keys [added removed]} (reconcile!)]
+            (is (= #{[:name "Banned elsewhere"] [:ip "198.51.100.7"]} (set added)))
+            (is (= [[:name "Lifted elsewhere"]] removed))))
+        (is (= #{[:name "Kept"] [:name "Banned elsewhere"] [:ip "192.0.2.1"]
+                 [:ip "198.51.100.7"]}
+               @(state/bans)))
+        (is (empty? @sent)))
+      (testing "Nothing changes when the lists already match"
+        (reset! changed [])
+        (with-redefs [server/get-bans #(reply ["  Kept\n" "  Banned elsewhere\n"
+                                               "  192.0.2.1\n" "  198.51.100.7\n"])]
+          (is (= {:added [] :removed []} (reconcile!))))
+        (is (empty? @changed)))
+      (testing "Without a reply the registry is left alone"
+        (with-redefs [server/get-bans #(reply nil)]
+          (is (nil? (reconcile!))))
+        (is (= 4 (count @(state/bans))))))))
+
+(deftest export-and-import-round-trip
+  (let [sent (atom [])
+        changed (atom [])
+        file (File/createTempFile "bans" ".txt")
+        banned [[:name "Alpha"] [:name "Two words"] [:ip "192.0.2.1"]]]
+    (try
+      (with-registry banned
+        (is (= 3 (export-bans file))))
+      (with-registry [[:name "Alpha"]]
+        (testing "Only the entries not banned already are imported"
+          (is (= #{[:name "Two words"] [:ip "192.0.2.1"]}
+                 (set (:added (import-bans file)))))
+          (is (= (set banned) @(state/bans)))
+          (is (= 2 (count @sent)))))
+      (finally (.delete file)))))
@@ -0,0 +1,42 @@
+(ns uk.org.il2ssd.channel_test
+  (:require [uk.org.il2ssd.channel :refer :all]
+            [clojure.core.async :refer [<!! >!! alts!! timeout]]
+            [clojure.test :refer :all])
+  (:import (java.util.concurrent ConcurrentLinkedQueue)))
+
+(defn take-event
+  "The next value on the supplied channel, or :timeout after a second."
+  [channel]
+  (let [[value _] (alts!! [channel (timeout 1000)])]
+    (if (nil? value) :timeout value)))
+
+(deftest responses-follow-prompts
+  (let [{:keys [in-channel event-channel print-channel requests]} (new-pipeline)
+        difficulty (new-request "difficulty")
+        bans (new-request "ban")]
+    (.add ^ConcurrentLinkedQueue requests difficulty)
+    (.add ^ConcurrentLinkedQueue requests bans)
+    (doseq [line ["  NoOutside 1\n" "<consoleN><1>"
+                  "  BannedPilot 1\n" "<consoleN><2>"]]
+      (>!! in-channel line))
+    (testing "Each request gets the lines before its prompt"
+      (is (= ["  NoOutside 1\n"] (deref (:response difficulty) 1000 :timeout)))
+      (is (= ["  BannedPilot 1\n"] (deref (:response bans) 1000 :timeout))))
+    (testing "Events are tagged with the command they answer"
+      (is (= {:type :diff :value "  NoOutside 1\n" :command "difficulty"}
+             (take-event event-channel)))
+      (is (= {:type :ban :value "  BannedPilot 1\n" :command "ban"}
+             (take-event event-channel))))
+    (testing "Prompts are not printed"
+      (is (= "  NoOutside 1\n" (take-event print-channel)))
+      (is (= "  BannedPilot 1\n" (take-event print-channel))))
+    (close-channels {:in-channel in-channel :event-channel event-channel
+                     :requests requests})))
+
+(deftest cancelled-requests-get-nil
+  (let [requests (ConcurrentLinkedQueue.)
+        request (new-request "user")]
+    (.add requests request)
+    (cancel-requests requests)
+    (is (nil? (deref (:response request) 1000 :timeout)))
+    (is (.isEmpty requests))))
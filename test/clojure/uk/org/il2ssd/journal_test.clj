@@ -0,0 +1,125 @@
+(ns uk.org.il2ssd.journal_test
+  (:require [uk.org.il2ssd.journal :refer :all]
+            [clojure.java.io :as io]
+            [clojure.string :as string]
+            [clojure.test :refer :all])
+  (:import (java.io File)
+           (java.nio.file Files)
+           (java.nio.file.attribute FileAttribute)))
+
+(def write-line #'uk.org.il2ssd.journal/write-line)
+(def seal #'uk.org.il2ssd.journal/seal)
+(def read-index #'uk.org.il2ssd.journal/read-index)
+
+(def hour-ms (* 60 60 1000))
+
+(def base
+  "A time far enough ahead that every line is written at the time it is given,
+   since the journal never lets time go backwards."
+  (+ (System/currentTimeMillis) (* 24 hour-ms)))
+
+(defn temp-dir
+  []
+  (.toFile (Files/createTempDirectory "journal" (make-array FileAttribute 0))))
+
+(defn delete-dir
+  [^File dir]
+  (doseq [^File file (reverse (file-seq dir))]
+    (.delete file)))
+
+(defn write-lines
+  "Journals each [at line] pair in the supplied directory with the supplied
+   settings, seals the last segment and returns the writer."
+  [dir settings lines]
+  (let [writer (reduce (fn [writer [at line]]
+                         (write-line (assoc writer :last at) line))
+                       {:dir dir :settings (merge defaults settings) :last 0}
+                       lines)]
+    (some-> (:segment writer) seal)
+    writer))
+
+(defn numbered
+  "n lines of about 100 bytes, one millisecond apart from the supplied time."
+  [from n]
+  (for [i (range n)]
+    [(+ from i) (format "%-99d\n" i)]))
+
+(deftest full-and-old-segments-roll
+  (let [dir (temp-dir)
+        lines (concat (numbered base 100)
+                      [[(+ base (* 2 hour-ms)) "later\n"]])]
+    (try
+      (write-lines dir {:segment-bytes 4096 :roll-hours 1} lines)
+      (testing "A full segment is sealed and a new one started"
+        (is (< 2 (count (segments dir)))))
+      (testing "A line after the roll interval starts a segment of its own"
+        (is (= (+ base (* 2 hour-ms)) (segment-start (last (segments dir))))))
+      ;; A line which rolls the journal is written a millisecond later, so that
+      ;; each segment starts at a time of its own.
+      (testing "Every line is found, in order, across the segments"
+        (let [found (search dir {:limit Long/MAX_VALUE})]
+          (is (= (map second lines) (map :line found)))
+          (is (apply <= (map :at found)))))
+      (finally (delete-dir dir)))))
+
+(deftest searches-start-from-the-index
+  (let [dir (temp-dir)
+        lines (numbered base 5000)
+        from (+ base 3210)]
+    (try
+      (write-lines dir {} lines)
+      (let [file (first (segments dir))
+            index (read-index file)]
+        (testing "The sparse index has an entry every index-interval bytes"
+          (is (= 1 (count (segments dir))))
+          (is (< 5 (count index)))
+          (is (every? (fn [[[_ a] [_ b]]] (>= (- b a) index-interval))
+                      (partition 2 1 index))))
+        (testing "A search from a time in the middle of the segment"
+          (is (= (drop 3210 lines)
+                 (map (juxt :at :line) (search dir {:from  from
+                                                    :limit Long/MAX_VALUE})))))
+        (testing "A search between two times"
+          (is (= (take 10 (drop 3210 lines))
+                 (map (juxt :at :line) (search dir {:from from
+                                                    :to   (+ from 9)}))))))
+      (finally (delete-dir dir)))))
+
+(deftest compressed-segments-are-searched
+  (let [dir (temp-dir)
+        lines (numbered base 100)]
+    (try
+      (write-lines dir {:segment-bytes 4096} lines)
+      (let [before (search dir {:limit Long/MAX_VALUE})
+            ^File file (first (segments dir))]
+        (compress-segment file)
+        (testing "The segment and its index are replaced by a gzip file"
+          (is (not (.exists file)))
+          (is (not (.exists (io/file (str (.getPath file) ".idx")))))
+          (is (.exists (io/file (str (.getPath file) ".gz")))))
+        (testing "Searches read the compressed segment"
+          (is (= before (search dir {:limit Long/MAX_VALUE})))
+          (is (= [(second (first lines))]
+                 (map :line (search dir {:query "^0 " :regex true})))))
+        (testing "Substring, regex and limited searches"
+          (is (= 10 (count (search dir {:query "9 "}))))
+          (is (= 10 (count (search dir {:query "^9\\d " :regex true}))))
+          (is (= 3 (count (search dir {:limit 3}))))))
+      (finally (delete-dir dir)))))
+
+(deftest oversized-lines-get-a-segment-of-their-own
+  (let [dir (temp-dir)
+        big (str (string/join (repeat 3000 "€")) "\n")
+        lines (concat (numbered base 10)
+                      [[(+ base 10) big]]
+                      (numbered (+ base 11) 10))]
+    (try
+      (let [writer (write-lines dir {:segment-bytes 4096} lines)]
+        (testing "Journalling carries on after the line"
+          (is (some? (:segment writer))))
+        (testing "The line is kept whole, though its UTF-8 outgrows a segment"
+          (is (= [big] (map :line (search dir {:query "€€€"})))))
+        (testing "No line is lost around it"
+          (is (= (map second lines)
+                 (map :line (search dir {:limit Long/MAX_VALUE}))))))
+      (finally (delete-dir dir)))))
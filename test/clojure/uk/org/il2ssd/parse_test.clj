@@ -0,0 +1,133 @@
+(ns uk.org.il2ssd.parse_test
+  (:require [uk.org.il2ssd.parse :refer :all]
+            [uk.org.il2ssd.transport :refer [decode-line]]
+            [instaparse.core :as insta]
+            [clojure.string :as string]
+            [clojure.test :refer :all]))
+
+;; These are the instaparse grammars which the hand-written parsers replaced. We
+;; keep them here to check that the new parsers give the same results.
+
+(def legacy-difficulty-parser
+  (insta/parser
+    "line = <2sp> setting <sp> value <nl>
+    <sp> = #'\\s*+'
+    <2sp> = #'\\s{2}+'
+    <nl> = '\\n'
+    setting = #'\\w+(?=\\s*\\d)'
+    value = #'[0-1]{1}'"))
+
+(def legacy-mission-parser
+  (insta/parser
+    "line = <'Mission'> (<': '> path+ mission <' is'>)? <sp> state <nl>
+     <sp> = #'\\s{1}+'
+     <nl> = '\\n'
+     path = #'.+/'
+     mission = #'.+\\.mis'
+     state = 'Playing' | 'Loaded' | 'NOT loaded'"))
+
+(def legacy-pilot-parser
+  (insta/parser
+    "line = <begin> join? ip port name? leave?
+     <begin> = 'socket channel ' | 'socketConnection with '
+     socket =  #'\\d++'
+     <join> = (<'\\''> socket <'\\''> <', ip '>)
+     ip = #'(\\d{1,3}+\\.?{1}+){4}+'
+     port = <':'> #'\\d++'
+     name = <', '> #'.+(?=, is complete created\\n)' <', is complete created\\n'>
+     <leave> = <' on channel '> socket <' lost.  Reason:'> <#'.*\\n'>"))
+
+(def legacy-user-parser
+  (insta/parser
+    "line = <sp> number name ping score army aircraft? <nl>
+     <sp> = #'\\s'
+     <nsp> = #'\\s++'
+     <nl> = #'\\s*\\n'
+     number = #'\\d++' <nsp>
+     name = #'.+?(?=\\s++\\d++\\s++\\d++\\s++\\(\\d)' <nsp>
+     ping = #'\\d++' <nsp>
+     score = #'\\d++' <nsp>
+     <army> = <'('> armyno <')'> armyname
+     armyno = #'\\d++'
+     armyname = #'\\w++'
+     aircraft = <nsp> #'\\w.+(?=\\n)'"))
+
+(def legacy-host-parser
+  (insta/parser
+    "line = <sp> number <sp> name <sp> socket ip port <nl>
+     <sp> = #'\\s'
+     <nl> = '\\n'
+     number = #'\\d++' <':'>
+     name = #'.+?(?=\\s\\[\\d++\\](\\d{1,3}+\\.?{1}+){4}+)'
+     socket = <'['> #'\\d++' <']'>
+     ip = #'(\\d{1,3}+\\.?{1}+){4}+'
+     port = <':'> #'\\d++'"))
+
+(def console-output
+  "Console output as it is sent by the server, one line per console line, with
+   newlines and other characters escaped."
+  ["<consoleN><1>"
+   "Mission NOT loaded\\n"
+   "<consoleN><2>"
+   "Mission: Net/dogfight/DCG/dcgmission.mis is Loaded\\n"
+   "Mission: Net/dogfight/DCG/dcgmission.mis is Playing\\n"
+   "Mission: Net/dogfight/Crimea/Sevastopol.mis.mis is Playing\\n"
+   "Mission: dogfight.mis is Playing\\n"
+   "ERROR mission: Net/dogfight/missing.mis NOT loaded"
+   "  SeparateEStart 0\\n"
+   "  ComplexEManagement 1\\n"
+   "  Vulnerability  1\\n"
+   "  NoOutside 2\\n"
+   "  Realism1\\n"
+   "  BannedPilot\\n"
+   "  192.168.1.50\\n"
+   "socket channel '3', ip 192.168.1.10:21000, Pilot, is complete created\\n"
+   "socket channel '12', ip 10.0.0.2:21001, =JG52=Hartmann, is complete created\\n"
+   "socket channel '4', ip 10.0.0.3:21000, Comma, Name, is complete created\\n"
+   "socketConnection with 192.168.1.10:21000 on channel 3 lost.  Reason: \\n"
+   "socketConnection with 10.0.0.2:21001 on channel 12 lost.  Reason: Timeout\\n"
+   " N       Name           Ping    Score   Army        Aircraft\\n"
+   " 0      Server                0      0      (0)None\\n"
+   " 1      Pilot                 25     3      (1)Red       Bf-109G-6\\n"
+   " 2      =JG52=Hartmann        30     120    (2)Blue      * Red 1 *    Bf-109G-6_Late\\n"
+   " 3      Pilot With Spaces 1   45     0      (1)Red\\n"
+   " 4      Trailing              50     0      (2)Blue      P-51D   \\n"
+   " N: Name           [Channel]IP\\n"
+   " 0: Server [0]127.0.0.1:0\\n"
+   " 1: Pilot [3]192.168.1.10:21000\\n"
+   " 12: Name [x] 2 [4]10.0.0.3:21000\\n"
+   "Chat: Pilot: \\thello all\\n"
+   "Chat: --- Pilot has a new plane\\n"
+   "Server: Mission will end in 5 minutes\\n"
+   "\\u0422\\u0435\\u0441\\u0442 \\u043f\\u0438\\u043b\\u043e\\u0442\\n"])
+
+(defn legacy-parse
+  "The result of a legacy parser as the old parse-text function produced it."
+  [parser text]
+  (let [result (parser text)]
+    (when-not (insta/failure? result)
+      (->> result rest flatten (apply hash-map)))))
+
+(defn parse
+  "The result of a new parser as a map, without the keys that were not found."
+  [parser text]
+  (when-let [result (parser text)]
+    (into {} (remove (comp nil? val) result))))
+
+(deftest parsers-match-legacy-grammars
+  (doseq [[parser legacy] [[difficulty-parser legacy-difficulty-parser]
+                           [mission-parser legacy-mission-parser]
+                           [pilot-parser legacy-pilot-parser]
+                           [user-parser legacy-user-parser]
+                           [host-parser legacy-host-parser]]
+          line (map decode-line console-output)]
+    (testing (pr-str line)
+      (is (= (legacy-parse legacy line)
+             (parse parser line))))))
+
+(deftest parsers-return-records
+  (testing "Getting a typed record"
+    (is (instance? UserLine
+                   (user-parser " 1      Pilot      25     3      (1)Red       Bf-109G-6\n")))
+    (is (= (->MissionLine "Net/dogfight/" "test.mis" "Playing")
+           (mission-parser "Mission: Net/dogfight/test.mis is Playing\n")))))
@@ -0,0 +1,121 @@
+(ns uk.org.il2ssd.players_test
+  (:require [uk.org.il2ssd.players :refer :all]
+            [clojure.java.io :as io]
+            [clojure.test :refer :all])
+  (:import (java.io File)
+           (java.nio.file Files)
+           (java.nio.file.attribute FileAttribute)))
+
+(defn temp-dir
+  []
+  (.toFile (Files/createTempDirectory "players" (make-array FileAttribute 0))))
+
+(defn delete-dir
+  [^File dir]
+  (doseq [^File file (reverse (file-seq dir))]
+    (.delete file)))
+
+(defmacro with-store
+  "Evaluates the body with an empty store in the supplied directory, which is
+   not flushed on a schedule, and puts the old store back afterwards."
+  [dir & body]
+  `(let [old# @store]
+     (reset! store {:dir      ~dir
+                    :settings defaults
+                    :players  {}
+                    :offset   0
+                    :unsaved  0})
+     (try ~@body
+          (finally (.clear pending)
+                   (reset! store old#)))))
+
+(defn flown
+  "A closed session for the supplied pilot."
+  [name ip join leave peak score & [army]]
+  {:name name :ip ip :army army :server "Server 1"
+   :join join :leave leave :peak peak :score score})
+
+(deftest sessions-fold-into-totals
+  (let [first-session (flown "Pilot" "192.0.2.1" 1000 4000 30 20 "Red")
+        second-session (flown "Pilot" "192.0.2.2" 10000 13000 50 40 "Blue")
+        early-session (flown "Pilot" "192.0.2.3" 100 200 5 5 "Red")
+        totals (reduce add-session nil [first-session second-session early-session])]
+    (testing "Counts, times and scores add up"
+      (is (= 3 (:sessions totals)))
+      (is (= 6100 (:total-ms totals)))
+      (is (= 65 (:score-sum totals)))
+      (is (= 50 (:best totals))))
+    ;; A session logged out of order doesn't change where the pilot was last
+    ;; seen from.
+    (testing "First and last seen"
+      (is (= 100 (:first-seen totals)))
+      (is (= 13000 (:last-seen totals)))
+      (is (= "192.0.2.2" (:last-ip totals))))
+    (testing "Each army flown is counted"
+      (is (= {"Red" 2 "Blue" 1} (:armies totals))))
+    (testing "A session which ends before it starts adds no time"
+      (is (zero? (:total-ms (add-session nil (flown "P" "192.0.2.1" 500 400 0 0))))))
+    (testing "Derived figures"
+      (let [view (player-view totals)]
+        (is (= (double (/ 65 3)) (:average view)))
+        (is (= (/ 6100 3600000.0) (:hours view)))))))
+
+(deftest queries-read-the-totals
+  (with-store nil
+    (doseq [session [(flown "Alpha" "192.0.2.1" 0 3600000 10 10)
+                     (flown "bravo" "192.0.2.2" 0 7200000 30 30)
+                     (flown "Charlie" "192.0.2.3" 0 1800000 20 20)
+                     (flown "Alpha" "192.0.2.1" 0 10800000 40 40)]]
+      (record! session))
+    (testing "Sessions are not queued while the store is stopped"
+      (is (.isEmpty pending)))
+    (testing "By name, by default"
+      (is (= ["Alpha" "Charlie" "bravo"] (map :name (query)))))
+    (testing "Sorted by a total, highest first, and limited"
+      (is (= ["Alpha" "bravo"] (map :name (query {:sort :hours :limit 2}))))
+      (is (= ["bravo" "Alpha" "Charlie"] (map :name (query {:sort :average})))))
+    (testing "Names are matched ignoring case"
+      (is (= ["bravo"] (map :name (query {:name "BRAV"})))))))
+
+(deftest the-store-survives-a-crash
+  (let [dir (temp-dir)
+        log (io/file dir "sessions.log")]
+    (try
+      (with-store dir
+        (record! (flown "Alpha" "192.0.2.1" 1000 2000 10 5))
+        (record! (flown "Bravo" "192.0.2.2" 1000 3000 20 15))
+        (flush-store)
+        (testing "Sessions are logged, but the totals wait for a snapshot"
+          (is (= 2 (count (re-seq #"\n" (slurp log)))))
+          (is (not (.exists (io/file dir "players.edn"))))
+          (is (= 2 (:unsaved @store))))
+        (flush-store true)
+        (let [snapshot-offset (.length log)]
+          (record! (flown "Alpha" "192.0.2.1" 5000 9000 30 25))
+          (flush-store)
+          (testing "The totals are written with the length of log they include"
+            (is (= snapshot-offset
+                   (:offset (read-string (slurp (io/file dir "players.edn"))))))))
+        ;; The process dies while appending a session.
+        (spit log "{:name \"Charlie\" :ip \"192.0" :append true)
+        (let [written (:players @store)
+              {:keys [players offset unsaved]} (load-store dir)]
+          (testing "The snapshot and the sessions logged since it are read back"
+            (is (= written players))
+            (is (= 1 unsaved)))
+          (testing "The partial line is cut off"
+            (is (= offset (.length log)))
+            (is (.endsWith (slurp log) "\n")))
+          (swap! store assoc :offset offset)
+          (record! (flown "Charlie" "192.0.2.3" 1000 2000 7 7))
+          (flush-store)
+          (testing "The next session is logged on a line of its own"
+            (is (= (assoc written "Charlie"
+                     (add-session nil (flown "Charlie" "192.0.2.3" 1000 2000 7 7)))
+                   (:players (load-store dir)))))
+          (testing "A lost snapshot is rebuilt from the whole log"
+            (.delete (io/file dir "players.edn"))
+            (let [{:keys [players unsaved]} (load-store dir)]
+              (is (= (:players @store) players))
+              (is (= 4 unsaved))))))
+      (finally (delete-dir dir)))))
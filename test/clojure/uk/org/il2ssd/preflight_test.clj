@@ -0,0 +1,51 @@
+(ns uk.org.il2ssd.preflight_test
+  (:require [uk.org.il2ssd.preflight :refer :all]
+            [uk.org.il2ssd.catalogue :as catalogue]
+            [clojure.string :as string]
+            [clojure.test :refer :all])
+  (:import (java.nio.charset Charset)
+           (java.nio.file Files OpenOption Path)
+           (java.nio.file.attribute FileAttribute)))
+
+(defn temp-mission
+  "A temporary mission file holding the supplied lines in the supplied charset,
+   after any supplied leading bytes."
+  ^Path [lines ^String charset & [prefix]]
+  (let [file (Files/createTempFile "mission" ".mis" (make-array FileAttribute 0))
+        text (str (string/join "\r\n" lines) "\r\n")]
+    (Files/write file
+                 ^bytes (byte-array (concat prefix
+                                            (.getBytes text (Charset/forName charset))))
+                 ^"[Ljava.nio.file.OpenOption;" (make-array OpenOption 0))
+    file))
+
+(defn mission
+  "The lines of a mission with a static object of the supplied name."
+  [name]
+  ["[MAIN]" "  MAP Smolensk/load.ini" "  TIME 12.5"
+   "[SEASON]" "  Year 1941"
+   "[NStationary]" (str "  1_Static vehicles.artillery.Artillery$Flak " name " 2")
+   "[BornPlace]" "  1 1000 2000 3000" "  2 1000 4000 5000"])
+
+(deftest missions-in-any-code-page-are-read
+  (let [files {"cp1251"     (temp-mission (mission "Завод") "windows-1251")
+               "ISO-8859-1" (temp-mission (mission "Usine à gaz") "ISO-8859-1")
+               "UTF-8 BOM"  (temp-mission (mission "Завод") "UTF-8" [0xEF 0xBB 0xBF])}
+        details {:map "Smolensk" :time "12:30" :date "1941" :red 1 :blue 1}]
+    (try
+      (doseq [[charset file] files]
+        (testing charset
+          (is (nil? (check file)))
+          (is (= details (catalogue/read-details file)))))
+      (finally (doseq [file (vals files)]
+                 (Files/deleteIfExists file))))))
+
+(deftest missions-are-checked
+  (let [file (temp-mission (rest (mission "Flak")) "ISO-8859-1")]
+    (try
+      (testing "A file whose first section is not [MAIN] is not a mission"
+        (is (= :invalid (check file))))
+      (testing "A file which is gone is missing"
+        (Files/delete file)
+        (is (= :missing (check file))))
+      (finally (Files/deleteIfExists file)))))
@@ -25,7 +25,7 @@ public class Il2SsdGuiTest extends GuiTest {
     static final String consoleTab = "Console";
     static final String missionTab = "Mission";
     static final String settingsTab = "Settings";
-    static final String consoleTextArea = ".text-area";
+    static final String consoleList = "#consoleList";
     static final String connectButton = "\uf090  Connect";
     static final String disconnectButton = "\uf08b  Disconnect";
     static final String startButton = "\uf04b Start";
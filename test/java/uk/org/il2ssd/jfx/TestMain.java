@@ -12,7 +12,7 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.loadui.testfx.Assertions.verifyThat;
 import static org.loadui.testfx.GuiTest.waitUntil;
-import static org.loadui.testfx.controls.Commons.hasText;
+import static org.loadui.testfx.controls.ListViews.containsRow;
 import static org.loadui.testfx.controls.impl.EnabledMatcher.disabled;
 import static org.loadui.testfx.controls.impl.EnabledMatcher.enabled;
 import static org.loadui.testfx.controls.impl.NodeExistsMatcher.exists;
@@ -40,17 +40,17 @@ public class TestMain {
         controller.click(Il2SsdGuiTest.consoleTab);
         verifyThat(Il2SsdGuiTest.connectButton, is(enabled()));
         verifyThat(Il2SsdGuiTest.disconnectButton, is(disabled()));
-        verifyThat(Il2SsdGuiTest.consoleTextArea, hasText("<disconnected>"));
+        verifyThat(Il2SsdGuiTest.consoleList, containsRow("<disconnected>"));
         // Verify connected state
         controller.connect();
         verifyThat(Il2SsdGuiTest.connectButton, is(disabled()));
         verifyThat(Il2SsdGuiTest.disconnectButton, is(enabled()));
-        verifyThat(Il2SsdGuiTest.consoleTextArea, not(hasText("<disconnected>")));
+        verifyThat(Il2SsdGuiTest.consoleList, not(containsRow("<disconnected>")));
         // Verify disconnected state
         controller.disconnect();
         verifyThat(Il2SsdGuiTest.connectButton, is(enabled()));
         verifyThat(Il2SsdGuiTest.disconnectButton, is(disabled()));
-        verifyThat(Il2SsdGuiTest.consoleTextArea, hasText("<disconnected>"));
+        verifyThat(Il2SsdGuiTest.consoleList, containsRow("<disconnected>"));
     }
 
     @Test(expected = NoNodesFoundException.class)